@@ -0,0 +1,200 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.execution.interfaces.IExceptionHandler;
+import hemera.core.structure.enumn.EHttpMethod;
+import hemera.core.structure.enumn.EHttpStatus;
+import hemera.core.structure.enumn.ERedirectBehavior;
+import hemera.core.structure.interfaces.IProcessor;
+import hemera.core.structure.interfaces.IRequest;
+import hemera.core.structure.interfaces.IResource;
+import hemera.core.structure.interfaces.IResourceRegistry;
+import hemera.core.structure.interfaces.IResponse;
+import hemera.core.utility.uri.RESTURI;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.json.JSONObject;
+
+/**
+ * In-memory requests, processor and registry shared by the benchmarks, so
+ * the hot path is measured without any socket or connection overhead.
+ */
+public class BenchmarkFixtures {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String BOUNDARY = "----HemeraBenchmarkBoundary";
+
+	public static final String QUERY_URI = "/hello/hi?name=Yi&age=30&city=San+Francisco&tags=a%2Cb%2Cc&page=2";
+
+	public static final String JSONP_URI = "/hello/hi?name=Yi&callback=jsonp_callback_12345";
+
+	public static final String NOT_FOUND_URI = "/missing/resource?name=Yi";
+
+	public static final String BAD_REQUEST_URI = "/hello/hi?name=Yi&fail=true";
+
+	public static RequestHandler newHandler() {
+		final IExceptionHandler exceptionHandler = new IExceptionHandler() {
+			@Override
+			public void handle(final Exception e) {}
+		};
+		final ApacheConfig config = new ApacheConfig();
+		// Measure the processing path rather than cache hits.
+		config.responseCacheSize = 0;
+		return new RequestHandler(exceptionHandler, new Registry(), new AdmissionController(0, 0, 1), config);
+	}
+
+	public static HttpRequest newQueryRequest(final String uri) {
+		return new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
+	}
+
+	public static HttpRequest newURLEncodedRequest() {
+		final StringBuilder builder = new StringBuilder();
+		builder.append("name=Yi&age=30&city=San+Francisco&comment=");
+		for (int i = 0; i < 32; i++) builder.append("hello+world%21+");
+		return BenchmarkFixtures.newEntityRequest("/hello/hi", builder.toString().getBytes(UTF8), "application/x-www-form-urlencoded; charset=UTF-8");
+	}
+
+	public static HttpRequest newMultipartRequest() {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try {
+			BenchmarkFixtures.writePart(body, "Content-Disposition: form-data; name=\"name\"", "Yi".getBytes(UTF8));
+			BenchmarkFixtures.writePart(body, "Content-Disposition: form-data; name=\"age\"", "30".getBytes(UTF8));
+			final byte[] file = new byte[16 * 1024];
+			for (int i = 0; i < file.length; i++) file[i] = (byte)('a' + i % 26);
+			BenchmarkFixtures.writePart(body, "Content-Disposition: form-data; name=\"file\"; filename=\"data.txt\"\r\nContent-Type: text/plain", file);
+			body.write(("--" + BOUNDARY + "--\r\n").getBytes(UTF8));
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return BenchmarkFixtures.newEntityRequest("/hello/hi", body.toByteArray(), "multipart/form-data; boundary=" + BOUNDARY);
+	}
+
+	public static HttpResponse newResponse() {
+		return new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+	}
+
+	/**
+	 * Serialize the response entity the same way the connection would.
+	 */
+	public static void writeEntity(final HttpResponse response) throws IOException {
+		final HttpEntity entity = response.getEntity();
+		if (entity != null) entity.writeTo(NullOutputStream.NULL_OUTPUT_STREAM);
+	}
+
+	private static HttpRequest newEntityRequest(final String uri, final byte[] body, final String contentType) {
+		final BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", uri, HttpVersion.HTTP_1_1);
+		// The entity creates a new stream on every read, so the request is reusable.
+		final ByteArrayEntity entity = new ByteArrayEntity(body);
+		entity.setContentType(contentType);
+		request.setEntity(entity);
+		request.setHeader("Content-Type", contentType);
+		request.setHeader("Content-Length", String.valueOf(body.length));
+		return request;
+	}
+
+	private static void writePart(final ByteArrayOutputStream body, final String headers, final byte[] data) throws IOException {
+		body.write(("--" + BOUNDARY + "\r\n" + headers + "\r\n\r\n").getBytes(UTF8));
+		body.write(data);
+		body.write("\r\n".getBytes(UTF8));
+	}
+
+	private static class Registry implements IResourceRegistry {
+
+		private final IResource resource = new Resource();
+
+		@Override
+		public IResource getResource(final RESTURI uri, final EHttpMethod method) {
+			final String[] elements = uri.getElementArray();
+			if (elements.length == 0 || !elements[0].equals("hello")) return null;
+			return this.resource;
+		}
+	}
+
+	private static class Resource implements IResource {
+
+		private final Processor processor = new Processor();
+
+		@Override
+		public IProcessor<?, ?> getProcessor(final String[] path, final EHttpMethod method) {
+			return this.processor;
+		}
+	}
+
+	public static class Request implements IRequest {
+
+		private String name;
+
+		private int argumentCount;
+
+		@Override
+		public void parse(final String[] path, final Map<String, Object> arguments) throws Exception {
+			if (arguments.containsKey("fail")) throw new IllegalArgumentException("Invalid argument: fail");
+			this.name = (String)arguments.get("name");
+			this.argumentCount = arguments.size();
+		}
+	}
+
+	public static class Response implements IResponse {
+
+		private final Request request;
+
+		private Response(final Request request) {
+			this.request = request;
+		}
+
+		@Override
+		public EHttpStatus getStatus() {
+			return EHttpStatus.C200_OK;
+		}
+
+		@Override
+		public JSONObject toJSON() throws Exception {
+			final JSONObject json = new JSONObject();
+			json.put("greeting", "Hello " + this.request.name);
+			json.put("arguments", this.request.argumentCount);
+			json.put("message", "The quick brown fox jumps over the lazy dog.");
+			return json;
+		}
+	}
+
+	public static class Processor implements IProcessor<Request, Response> {
+
+		@Override
+		public Response process(final Request request) throws Exception {
+			return new Response(request);
+		}
+
+		@Override
+		public Class<Request> getRequestType() {
+			return Request.class;
+		}
+
+		@Override
+		public ERedirectBehavior getRedirectBehavior(final Request request) {
+			return ERedirectBehavior.Invoke;
+		}
+
+		@Override
+		public String getRedirectURI(final Request request) {
+			return null;
+		}
+
+		@Override
+		public String getRedirectURI(final Request request, final Response response) {
+			return null;
+		}
+	}
+}
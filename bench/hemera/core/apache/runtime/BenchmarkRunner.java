@@ -0,0 +1,20 @@
+package hemera.core.apache.runtime;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all the benchmarks with the GC profiler, which reports the allocation
+ * rate per operation next to the throughput. An optional argument selects the
+ * benchmarks by regular expression.
+ */
+public class BenchmarkRunner {
+
+	public static void main(final String[] args) throws Exception {
+		final String include = (args.length > 0) ? args[0] : "hemera.core.apache.runtime.*Benchmark";
+		final Options options = new OptionsBuilder().include(include).addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,73 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.apache.runtime.fileupload.HttpRequestParser;
+import hemera.core.apache.runtime.fileupload.RequestURIParser;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures <code>HttpRequestParser.parseArguments</code> alone for query,
+ * URL-encoded and multipart requests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpRequestParserBenchmark {
+
+	private HttpRequestParser parser;
+
+	private RequestURIParser uriParser;
+
+	private HttpRequest query;
+
+	private HttpRequest urlEncoded;
+
+	private HttpRequest multipart;
+
+	@Setup
+	public void setup() {
+		this.parser = new HttpRequestParser();
+		this.uriParser = new RequestURIParser();
+		this.query = BenchmarkFixtures.newQueryRequest(BenchmarkFixtures.QUERY_URI);
+		this.urlEncoded = BenchmarkFixtures.newURLEncodedRequest();
+		this.multipart = BenchmarkFixtures.newMultipartRequest();
+	}
+
+	@Benchmark
+	public Map<String, Object> queryArguments() throws Exception {
+		return this.parse(this.query);
+	}
+
+	@Benchmark
+	public Map<String, Object> urlEncodedBody() throws Exception {
+		return this.parse(this.urlEncoded);
+	}
+
+	@Benchmark
+	public Map<String, Object> multipartBody() throws Exception {
+		return this.parse(this.multipart);
+	}
+
+	private Map<String, Object> parse(final HttpRequest request) throws Exception {
+		this.uriParser.parse(request.getRequestLine().getUri());
+		final Map<String, Object> arguments = this.parser.parseArguments(request, this.uriParser);
+		this.parser.release(arguments);
+		return arguments;
+	}
+}
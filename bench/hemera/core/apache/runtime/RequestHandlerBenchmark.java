@@ -0,0 +1,97 @@
+package hemera.core.apache.runtime;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures <code>RequestHandler.handle</code> from the parsed request head to
+ * the serialized response entity, for each kind of request the handler serves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestHandlerBenchmark {
+
+	private RequestHandler handler;
+
+	// One context per thread, as with a keep-alive connection.
+	private HttpContext context;
+
+	private HttpRequest query;
+
+	private HttpRequest urlEncoded;
+
+	private HttpRequest multipart;
+
+	private HttpRequest jsonp;
+
+	private HttpRequest notFound;
+
+	private HttpRequest badRequest;
+
+	@Setup
+	public void setup() {
+		this.handler = BenchmarkFixtures.newHandler();
+		this.context = new BasicHttpContext();
+		this.query = BenchmarkFixtures.newQueryRequest(BenchmarkFixtures.QUERY_URI);
+		this.urlEncoded = BenchmarkFixtures.newURLEncodedRequest();
+		this.multipart = BenchmarkFixtures.newMultipartRequest();
+		this.jsonp = BenchmarkFixtures.newQueryRequest(BenchmarkFixtures.JSONP_URI);
+		this.notFound = BenchmarkFixtures.newQueryRequest(BenchmarkFixtures.NOT_FOUND_URI);
+		this.badRequest = BenchmarkFixtures.newQueryRequest(BenchmarkFixtures.BAD_REQUEST_URI);
+	}
+
+	@Benchmark
+	public HttpResponse queryArguments() throws Exception {
+		return this.handle(this.query);
+	}
+
+	@Benchmark
+	public HttpResponse urlEncodedBody() throws Exception {
+		return this.handle(this.urlEncoded);
+	}
+
+	@Benchmark
+	public HttpResponse multipartBody() throws Exception {
+		return this.handle(this.multipart);
+	}
+
+	@Benchmark
+	public HttpResponse jsonp() throws Exception {
+		return this.handle(this.jsonp);
+	}
+
+	@Benchmark
+	public HttpResponse notFound() throws Exception {
+		return this.handle(this.notFound);
+	}
+
+	@Benchmark
+	public HttpResponse badRequest() throws Exception {
+		return this.handle(this.badRequest);
+	}
+
+	private HttpResponse handle(final HttpRequest request) throws Exception {
+		final HttpResponse response = BenchmarkFixtures.newResponse();
+		this.handler.handle(request, response, this.context);
+		BenchmarkFixtures.writeEntity(response);
+		return response;
+	}
+}
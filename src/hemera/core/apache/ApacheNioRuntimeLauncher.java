@@ -0,0 +1,23 @@
+package hemera.core.apache;
+
+import hemera.core.apache.runtime.ApacheNioRuntime;
+import hemera.core.environment.config.Configuration;
+import hemera.core.execution.interfaces.IExecutionService;
+import hemera.core.structure.interfaces.runtime.IRuntime;
+import hemera.core.structure.runtime.util.RuntimeLauncher;
+
+/**
+ * <code>ApacheNioRuntimeLauncher</code> defines the
+ * utility runtime launching unit that uses the Apache
+ * based non-blocking runtime.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+public class ApacheNioRuntimeLauncher extends RuntimeLauncher {
+
+	@Override
+	protected IRuntime newRuntime(final IExecutionService service, final Configuration config) {
+		return new ApacheNioRuntime(service, config);
+	}
+}
@@ -0,0 +1,274 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import hemera.core.structure.enumn.EHttpStatus;
+
+/**
+ * <code>AdmissionController</code> defines an internal
+ * unit that bounds the number of concurrently open
+ * connections and the number of concurrently processed
+ * requests of a runtime environment. Connections and
+ * requests beyond the limits are immediately rejected
+ * with a canned <code>503 Service Unavailable</code>
+ * response carrying a <code>Retry-After</code> header,
+ * before any routing or argument parsing takes place.
+ * <p>
+ * The number of rejected connections and requests are
+ * counted. A limit of zero or less disables the
+ * corresponding check.
+ * <p>
+ * <code>AdmissionController</code> is thread-safe and
+ * lock-free.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.2
+ */
+class AdmissionController {
+	/**
+	 * The <code>byte</code> array of the rejection
+	 * response body.
+	 */
+	private static final byte[] REJECT_BODY = ("{\"http_status\":\"" + EHttpStatus.C503_ServiceUnavailable.name() +
+			"\",\"exception\":\"Server is overloaded.\"}").getBytes();
+	/**
+	 * The <code>int</code> maximum number of open
+	 * connections.
+	 */
+	private final int maxConnections;
+	/**
+	 * The <code>int</code> maximum number of requests
+	 * being processed.
+	 */
+	private final int maxRequests;
+	/**
+	 * The <code>String</code> retry after value in
+	 * seconds.
+	 */
+	private final String retryAfter;
+	/**
+	 * The <code>byte</code> array of the complete
+	 * connection rejection response.
+	 */
+	private final byte[] rejectResponse;
+	/**
+	 * The <code>AtomicInteger</code> number of open
+	 * connections.
+	 */
+	private final AtomicInteger connections;
+	/**
+	 * The <code>AtomicInteger</code> number of the
+	 * requests being processed.
+	 */
+	private final AtomicInteger requests;
+	/**
+	 * The <code>AtomicLong</code> number of rejected
+	 * connections.
+	 */
+	private final AtomicLong rejectedConnections;
+	/**
+	 * The <code>AtomicLong</code> number of rejected
+	 * requests.
+	 */
+	private final AtomicLong rejectedRequests;
+
+	/**
+	 * Constructor of <code>AdmissionController</code>.
+	 * @param maxConnections The <code>int</code> maximum
+	 * number of open connections.
+	 * @param maxRequests The <code>int</code> maximum
+	 * number of requests being processed.
+	 * @param retryAfter The <code>int</code> number of
+	 * seconds rejected clients should wait for before
+	 * retrying.
+	 */
+	AdmissionController(final int maxConnections, final int maxRequests, final int retryAfter) {
+		this.maxConnections = maxConnections;
+		this.maxRequests = maxRequests;
+		this.retryAfter = String.valueOf(retryAfter);
+		final String head = "HTTP/1.1 503 Service Unavailable\r\n" +
+				"Retry-After: " + this.retryAfter + "\r\n" +
+				"Content-Type: " + ContentType.APPLICATION_JSON.toString() + "\r\n" +
+				"Content-Length: " + REJECT_BODY.length + "\r\n" +
+				"Connection: close\r\n\r\n";
+		final byte[] headBytes = head.getBytes();
+		this.rejectResponse = new byte[headBytes.length + REJECT_BODY.length];
+		System.arraycopy(headBytes, 0, this.rejectResponse, 0, headBytes.length);
+		System.arraycopy(REJECT_BODY, 0, this.rejectResponse, headBytes.length, REJECT_BODY.length);
+		this.connections = new AtomicInteger();
+		this.requests = new AtomicInteger();
+		this.rejectedConnections = new AtomicLong();
+		this.rejectedRequests = new AtomicLong();
+	}
+
+	/**
+	 * Attempt to admit a new connection. If admitted,
+	 * the connection must be released when closed.
+	 * @return <code>true</code> if the connection is
+	 * admitted. <code>false</code> if it should be
+	 * rejected.
+	 */
+	boolean acquireConnection() {
+		if (!this.acquire(this.connections, this.maxConnections)) {
+			this.rejectedConnections.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Release an admitted connection.
+	 */
+	void releaseConnection() {
+		this.connections.decrementAndGet();
+	}
+
+	/**
+	 * Attempt to admit a new request. If admitted,
+	 * the request must be released when processed.
+	 * @return <code>true</code> if the request is
+	 * admitted. <code>false</code> if it should be
+	 * rejected.
+	 */
+	boolean acquireRequest() {
+		if (!this.acquire(this.requests, this.maxRequests)) {
+			this.rejectedRequests.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Release an admitted request.
+	 */
+	void releaseRequest() {
+		this.requests.decrementAndGet();
+	}
+
+	/**
+	 * Increment the given counter if the limit has
+	 * not been reached.
+	 * @param counter The <code>AtomicInteger</code>
+	 * counter.
+	 * @param limit The <code>int</code> limit.
+	 * @return <code>true</code> if incremented.
+	 */
+	private boolean acquire(final AtomicInteger counter, final int limit) {
+		if (limit <= 0) {
+			counter.incrementAndGet();
+			return true;
+		}
+		while (true) {
+			final int current = counter.get();
+			if (current >= limit) return false;
+			if (counter.compareAndSet(current, current+1)) return true;
+		}
+	}
+
+	/**
+	 * Reject the given accepted blocking socket by
+	 * writing the canned response and closing it.
+	 * SSL sockets are closed without a response to
+	 * avoid performing the handshake.
+	 * @param socket The <code>Socket</code> to reject.
+	 * @param secure <code>true</code> if the socket is
+	 * an SSL socket.
+	 */
+	void reject(final Socket socket, final boolean secure) {
+		try {
+			if (!secure) {
+				final OutputStream stream = socket.getOutputStream();
+				stream.write(this.rejectResponse);
+				stream.flush();
+				socket.shutdownOutput();
+			}
+		} catch (final IOException ignore) {
+		} finally {
+			try {
+				socket.close();
+			} catch (final IOException ignore) {}
+		}
+	}
+
+	/**
+	 * Reject the given accepted non-blocking channel
+	 * by writing as much of the canned response as
+	 * the socket buffer allows and closing it.
+	 * @param channel The <code>SocketChannel</code>
+	 * to reject.
+	 * @param secure <code>true</code> if the channel
+	 * is expected to be secure, in which case it is
+	 * closed without a response.
+	 */
+	void reject(final SocketChannel channel, final boolean secure) {
+		try {
+			if (!secure) {
+				channel.write(ByteBuffer.wrap(this.rejectResponse));
+				channel.socket().shutdownOutput();
+			}
+		} catch (final IOException ignore) {
+		} finally {
+			try {
+				channel.close();
+			} catch (final IOException ignore) {}
+		}
+	}
+
+	/**
+	 * Set the canned rejection response to the given
+	 * HTTP response. The connection is closed after
+	 * the response is sent.
+	 * @param httpResponse The <code>HttpResponse</code>
+	 * to set.
+	 */
+	void reject(final HttpResponse httpResponse) {
+		httpResponse.setStatusCode(EHttpStatus.C503_ServiceUnavailable.code);
+		httpResponse.setHeader("Retry-After", this.retryAfter);
+		httpResponse.setHeader("Connection", "close");
+		httpResponse.setEntity(new ByteArrayEntity(REJECT_BODY, ContentType.APPLICATION_JSON));
+	}
+
+	/**
+	 * Retrieve the number of open connections.
+	 * @return The <code>int</code> number of open
+	 * connections.
+	 */
+	int getConnectionCount() {
+		return this.connections.get();
+	}
+
+	/**
+	 * Retrieve the number of requests currently
+	 * being processed.
+	 * @return The <code>int</code> number of requests.
+	 */
+	int getRequestCount() {
+		return this.requests.get();
+	}
+
+	/**
+	 * Retrieve the number of rejected connections.
+	 * @return The <code>long</code> count.
+	 */
+	long getRejectedConnectionCount() {
+		return this.rejectedConnections.get();
+	}
+
+	/**
+	 * Retrieve the number of rejected requests.
+	 * @return The <code>long</code> count.
+	 */
+	long getRejectedRequestCount() {
+		return this.rejectedRequests.get();
+	}
+}
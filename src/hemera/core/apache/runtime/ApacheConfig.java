@@ -0,0 +1,366 @@
+package hemera.core.apache.runtime;
+
+/**
+ * <code>ApacheConfig</code> defines the Apache runtime
+ * specific configuration values that are not part of
+ * the shared environment <code>Configuration</code>.
+ * <p>
+ * All values are loaded from the system properties
+ * prefixed with <code>hemera.apache.</code> when the
+ * instance is constructed, falling back to the given
+ * defaults if the property is not set. The values can
+ * also be modified directly before the configuration
+ * is handed to a runtime environment.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.2
+ */
+public class ApacheConfig {
+	/**
+	 * The <code>String</code> system property prefix.
+	 */
+	private static final String PREFIX = "hemera.apache.";
+	/**
+	 * The <code>EConnectionMode</code> used by the
+	 * blocking runtime to serve accepted connections.
+	 * Defaults to <code>Pooled</code>.
+	 * <p>
+	 * Property <code>hemera.apache.connectionMode</code>.
+	 */
+	public EConnectionMode connectionMode;
+	/**
+	 * The <code>int</code> number of connection
+	 * listeners accepting connections on the port. The
+	 * non-blocking runtime uses it as the number of
+	 * reactors accepting connections, which is capped
+	 * by the number of reactors. Each acceptor has its
+	 * own server socket if <code>SO_REUSEPORT</code> is
+	 * supported, otherwise a single socket is shared by
+	 * the blocking listeners and only one reactor
+	 * accepts. Defaults to one.
+	 * <p>
+	 * Property <code>hemera.apache.acceptors</code>.
+	 */
+	public int acceptors;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * idle keep-alive connections of the blocking
+	 * runtime in the <code>Pooled</code> mode should
+	 * be parked with a readiness poller between the
+	 * requests instead of blocking execution threads.
+	 * Only applies to plain connections. Defaults to
+	 * <code>false</code>.
+	 * <p>
+	 * Property <code>hemera.apache.idleParking</code>.
+	 */
+	public boolean idleParking;
+	/**
+	 * The <code>int</code> maximum length of the
+	 * pending connection queue of each server socket.
+	 * Defaults to 1024.
+	 * <p>
+	 * Property <code>hemera.apache.acceptBacklog</code>.
+	 */
+	public int acceptBacklog;
+	/**
+	 * The <code>int</code> maximum number of open
+	 * connections. Connections beyond the limit are
+	 * rejected. Defaults to zero, which is unlimited.
+	 * <p>
+	 * Property <code>hemera.apache.maxConnections</code>.
+	 */
+	public int maxConnections;
+	/**
+	 * The <code>int</code> maximum number of requests
+	 * processed concurrently. Requests beyond the limit
+	 * are rejected. Defaults to zero, which is unlimited.
+	 * <p>
+	 * Property <code>hemera.apache.maxRequests</code>.
+	 */
+	public int maxRequests;
+	/**
+	 * The <code>int</code> number of seconds rejected
+	 * clients are asked to wait before retrying.
+	 * Defaults to one.
+	 * <p>
+	 * Property <code>hemera.apache.retryAfter</code>.
+	 */
+	public int retryAfter;
+	/**
+	 * The <code>String</code> comma separated request
+	 * rate limits per client, each as <code>prefix=rate</code>
+	 * or <code>prefix=rate/burst</code>, for instance
+	 * <code>/=100/200,/search=5</code>. A request is
+	 * limited by the longest path prefix it matches on a
+	 * segment boundary, to the rate of requests per second
+	 * with bursts of up to the burst, which defaults to
+	 * the rate. Throttled requests are rejected. Defaults
+	 * to <code>null</code>, which disables rate limiting.
+	 * <p>
+	 * Property <code>hemera.apache.rateLimit.limits</code>.
+	 */
+	public String rateLimits;
+	/**
+	 * The <code>String</code> name of the request header
+	 * carrying the API key that identifies the clients
+	 * for rate limiting. The clients without the header
+	 * are identified by their remote address. Defaults to
+	 * <code>null</code>, which only uses the address.
+	 * <p>
+	 * Property <code>hemera.apache.rateLimit.keyHeader</code>.
+	 */
+	public String rateLimitKeyHeader;
+	/**
+	 * The <code>int</code> maximum number of client rate
+	 * limit buckets tracked across all the limits, beyond
+	 * which the least used buckets are evicted. Defaults
+	 * to 65536.
+	 * <p>
+	 * Property <code>hemera.apache.rateLimit.maxKeys</code>.
+	 */
+	public int rateLimitMaxKeys;
+	/**
+	 * The <code>int</code> maximum number of resolved
+	 * request routes cached by the request handler.
+	 * Defaults to 1024. Zero disables route caching.
+	 * <p>
+	 * Property <code>hemera.apache.routeCacheSize</code>.
+	 */
+	public int routeCacheSize;
+	/**
+	 * The <code>int</code> maximum number of recycled
+	 * instances kept for each request type implementing
+	 * <code>IResettableRequest</code>. Defaults to 64.
+	 * Zero disables request recycling.
+	 * <p>
+	 * Property <code>hemera.apache.requestPoolSize</code>.
+	 */
+	public int requestPoolSize;
+	/**
+	 * The <code>long</code> maximum total number of bytes
+	 * of the responses cached for the processors that
+	 * implement <code>ICacheableProcessor</code>. Defaults
+	 * to 16 MB. Zero disables response caching.
+	 * <p>
+	 * Property <code>hemera.apache.responseCacheSize</code>.
+	 */
+	public long responseCacheSize;
+	/**
+	 * The <code>int</code> maximum number of bytes of
+	 * a single cached or coalesced response. Larger
+	 * responses are neither cached nor shared with the
+	 * coalesced requests. Defaults to 1 MB.
+	 * <p>
+	 * Property <code>hemera.apache.responseCacheEntrySize</code>.
+	 */
+	public int responseCacheEntrySize;
+	/**
+	 * The <code>String</code> request path reserved for
+	 * the built-in route that reports the latencies and
+	 * counters of all routes as JSON data, for instance
+	 * <code>/metrics</code>. Defaults to <code>null</code>,
+	 * which disables the route. The metrics are always
+	 * available from the runtime environment.
+	 * <p>
+	 * Property <code>hemera.apache.metricsPath</code>.
+	 */
+	public String metricsPath;
+	/**
+	 * The <code>long</code> maximum number of bytes of
+	 * a request body parsed into arguments. Requests
+	 * beyond the limit are rejected as bad requests.
+	 * Defaults to -1, which is unlimited.
+	 * <p>
+	 * Property <code>hemera.apache.maxBodySize</code>.
+	 */
+	public long maxBodySize;
+	/**
+	 * The <code>long</code> maximum number of bytes of
+	 * a single part of a multi-part request. Defaults
+	 * to -1, which is unlimited.
+	 * <p>
+	 * Property <code>hemera.apache.upload.maxPartSize</code>.
+	 */
+	public long uploadMaxPartSize;
+	/**
+	 * The <code>int</code> maximum number of bytes of
+	 * an uploaded file part kept in memory, beyond which
+	 * the part is spooled to a temporary file. When set,
+	 * file parts are passed to requests as <code>UploadedFile</code>
+	 * handles. Defaults to -1, which passes file parts
+	 * as arrays of <code>byte</code> read into memory.
+	 * <p>
+	 * Property <code>hemera.apache.upload.spoolThreshold</code>.
+	 */
+	public int uploadSpoolThreshold;
+	/**
+	 * The <code>String</code> path of the directory
+	 * the uploaded file parts are spooled to. Defaults
+	 * to <code>null</code>, which is the temporary
+	 * directory of the system.
+	 * <p>
+	 * Property <code>hemera.apache.upload.spoolDirectory</code>.
+	 */
+	public String uploadSpoolDirectory;
+	/**
+	 * The <code>int</code> minimum number of bytes of
+	 * a response body to be compressed for the clients
+	 * that accept gzip or deflate content codings.
+	 * Defaults to 1024. Negative disables response
+	 * compression.
+	 * <p>
+	 * Property <code>hemera.apache.compression.threshold</code>.
+	 */
+	public int compressionThreshold;
+	/**
+	 * The <code>int</code> compression level from 1 for
+	 * the fastest to 9 for the smallest output. Defaults
+	 * to 6.
+	 * <p>
+	 * Property <code>hemera.apache.compression.level</code>.
+	 */
+	public int compressionLevel;
+	/**
+	 * The <code>int</code> number of reactor threads
+	 * used by the non-blocking runtime to multiplex
+	 * connection IO. Defaults to the number of
+	 * available processors.
+	 * <p>
+	 * Property <code>hemera.apache.nio.reactors</code>.
+	 */
+	public int nioReactors;
+	/**
+	 * The <code>int</code> number of worker threads
+	 * used by the non-blocking runtime to process
+	 * the fully received requests. Defaults to four
+	 * times the number of available processors.
+	 * <p>
+	 * Property <code>hemera.apache.nio.workers</code>.
+	 */
+	public int nioWorkers;
+	/**
+	 * The <code>int</code> maximum number of bytes a
+	 * single request including its body can have in
+	 * the non-blocking runtime. Defaults to 8 MB.
+	 * <p>
+	 * Property <code>hemera.apache.nio.maxRequestSize</code>.
+	 */
+	public int nioMaxRequestSize;
+	/**
+	 * The <code>String</code> comma separated TLS
+	 * protocols enabled for secure connections, in
+	 * addition to being supported by the Java runtime.
+	 * Defaults to <code>TLSv1.3,TLSv1.2</code>.
+	 * <p>
+	 * Property <code>hemera.apache.tls.protocols</code>.
+	 */
+	public String tlsProtocols;
+	/**
+	 * The <code>String</code> comma separated cipher
+	 * suites enabled for secure connections in the
+	 * order of preference. The suites not supported by
+	 * the Java runtime are ignored. Defaults to the
+	 * AEAD suites of TLS 1.3 and the ECDHE AEAD suites
+	 * of TLS 1.2.
+	 * <p>
+	 * Property <code>hemera.apache.tls.cipherSuites</code>.
+	 */
+	public String tlsCipherSuites;
+	/**
+	 * The <code>int</code> maximum number of TLS
+	 * sessions cached for resumption. Zero means no
+	 * limit. Defaults to 20480.
+	 * <p>
+	 * Property <code>hemera.apache.tls.sessionCacheSize</code>.
+	 */
+	public int tlsSessionCacheSize;
+	/**
+	 * The <code>int</code> time in seconds a cached
+	 * TLS session can be resumed for. Zero means no
+	 * limit. Defaults to 3600.
+	 * <p>
+	 * Property <code>hemera.apache.tls.sessionTimeout</code>.
+	 */
+	public int tlsSessionTimeout;
+	/**
+	 * The <code>long</code> maximum total number of bytes
+	 * of the idle socket buffers retained for reuse by
+	 * the blocking connections. Defaults to 16 MB. Zero
+	 * disables buffer pooling.
+	 * <p>
+	 * Property <code>hemera.apache.bufferPoolSize</code>.
+	 */
+	public long bufferPoolSize;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * pooled socket buffers should be tracked, so the
+	 * buffers never returned to the pool are detected
+	 * and logged. Defaults to <code>false</code>.
+	 * <p>
+	 * Property <code>hemera.apache.bufferLeakDetection</code>.
+	 */
+	public boolean bufferLeakDetection;
+
+	/**
+	 * Constructor of <code>ApacheConfig</code>.
+	 * <p>
+	 * Load all the values from system properties.
+	 */
+	public ApacheConfig() {
+		final int processors = java.lang.Runtime.getRuntime().availableProcessors();
+		this.connectionMode = EConnectionMode.parse(System.getProperty(PREFIX + "connectionMode"), EConnectionMode.Pooled);
+		this.acceptors = this.getInt("acceptors", 1);
+		this.idleParking = Boolean.getBoolean(PREFIX + "idleParking");
+		this.acceptBacklog = this.getInt("acceptBacklog", 1024);
+		this.maxConnections = this.getInt("maxConnections", 0);
+		this.maxRequests = this.getInt("maxRequests", 0);
+		this.retryAfter = this.getInt("retryAfter", 1);
+		this.rateLimits = System.getProperty(PREFIX + "rateLimit.limits");
+		this.rateLimitKeyHeader = System.getProperty(PREFIX + "rateLimit.keyHeader");
+		this.rateLimitMaxKeys = this.getInt("rateLimit.maxKeys", 65536);
+		this.routeCacheSize = this.getInt("routeCacheSize", 1024);
+		this.requestPoolSize = this.getInt("requestPoolSize", 64);
+		this.responseCacheSize = this.getLong("responseCacheSize", 16 * 1024 * 1024);
+		this.responseCacheEntrySize = this.getInt("responseCacheEntrySize", 1024 * 1024);
+		this.metricsPath = System.getProperty(PREFIX + "metricsPath");
+		this.maxBodySize = this.getLong("maxBodySize", -1);
+		this.uploadMaxPartSize = this.getLong("upload.maxPartSize", -1);
+		this.uploadSpoolThreshold = this.getInt("upload.spoolThreshold", -1);
+		this.uploadSpoolDirectory = System.getProperty(PREFIX + "upload.spoolDirectory");
+		this.compressionThreshold = this.getInt("compression.threshold", 1024);
+		this.compressionLevel = this.getInt("compression.level", 6);
+		this.nioReactors = this.getInt("nio.reactors", processors);
+		this.nioWorkers = this.getInt("nio.workers", processors * 4);
+		this.nioMaxRequestSize = this.getInt("nio.maxRequestSize", 8 * 1024 * 1024);
+		this.tlsProtocols = System.getProperty(PREFIX + "tls.protocols", "TLSv1.3,TLSv1.2");
+		this.tlsCipherSuites = System.getProperty(PREFIX + "tls.cipherSuites", TlsContext.DEFAULT_CIPHER_SUITES);
+		this.tlsSessionCacheSize = this.getInt("tls.sessionCacheSize", 20480);
+		this.tlsSessionTimeout = this.getInt("tls.sessionTimeout", 3600);
+		this.bufferPoolSize = this.getLong("bufferPoolSize", 16 * 1024 * 1024);
+		this.bufferLeakDetection = Boolean.getBoolean(PREFIX + "bufferLeakDetection");
+	}
+
+	/**
+	 * Retrieve the integer system property value.
+	 * @param name The <code>String</code> property name
+	 * without the prefix.
+	 * @param defaultValue The <code>int</code> value to
+	 * use if the property is not set.
+	 * @return The <code>int</code> value.
+	 */
+	private int getInt(final String name, final int defaultValue) {
+		return Integer.getInteger(PREFIX + name, defaultValue);
+	}
+
+	/**
+	 * Retrieve the long system property value.
+	 * @param name The <code>String</code> property name
+	 * without the prefix.
+	 * @param defaultValue The <code>long</code> value to
+	 * use if the property is not set.
+	 * @return The <code>long</code> value.
+	 */
+	private long getLong(final String name, final long defaultValue) {
+		return Long.getLong(PREFIX + name, defaultValue);
+	}
+}
@@ -0,0 +1,392 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpService;
+
+import hemera.core.environment.config.Configuration;
+import hemera.core.execution.interfaces.IExecutionService;
+import hemera.core.execution.interfaces.task.handle.ICyclicTaskHandle;
+import hemera.core.structure.interfaces.IResource;
+import hemera.core.structure.runtime.Runtime;
+
+/**
+ * <code>ApacheNioRuntime</code> defines the implementation
+ * of a runtime environment based on non-blocking IO
+ * multiplexing. A small number of reactor tasks serve
+ * the IO of all open connections, and a pool of worker
+ * tasks process the complete requests through the same
+ * Apache HTTP core protocol chain and request routing
+ * as <code>ApacheRuntime</code>. Idle keep-alive
+ * connections therefore do not occupy any execution
+ * threads.
+ * <p>
+ * The number of open connections and concurrently
+ * processed requests can be limited, in which case
+ * the excess is rejected with a canned response. The
+ * rate of the requests of each client can also be
+ * limited per path prefix, in which case throttled
+ * requests are rejected with <code>429</code>.
+ * <p>
+ * The requests of the processors implementing
+ * <code>IAsyncProcessor</code> release their worker
+ * while the responses are pending, so slow processors
+ * do not occupy execution threads either.
+ * <p>
+ * Multiple reactors can be configured to accept the
+ * connections on the same port, each with its own
+ * server socket channel bound with the <code>SO_REUSEPORT</code>
+ * option, so the operating system shards the incoming
+ * connections across them. If the option is not
+ * supported, a single reactor accepts the connections.
+ * <p>
+ * If a certificate is configured, the connections
+ * are secured with <code>SSLEngine</code> instances
+ * driven by the reactors, so the secure connections
+ * do not occupy execution threads either.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.4
+ */
+public class ApacheNioRuntime extends Runtime {
+	/**
+	 * The <code>Configuration</code> for the runtime.
+	 */
+	private final Configuration config;
+	/**
+	 * The <code>ApacheConfig</code> for the runtime.
+	 */
+	private final ApacheConfig apacheConfig;
+	/**
+	 * The <code>AdmissionController</code> instance.
+	 */
+	private AdmissionController admission;
+	/**
+	 * The <code>RequestHandler</code> instance.
+	 */
+	private volatile RequestHandler handler;
+	/**
+	 * The <code>ResponseCompression</code> instance.
+	 */
+	private ResponseCompression compression;
+	/**
+	 * The array of <code>ICyclicTaskHandle</code> for
+	 * the reactor and worker tasks.
+	 */
+	private ICyclicTaskHandle[] handles;
+	/**
+	 * The optional <code>TlsContext</code> of the
+	 * secure connections.
+	 */
+	private TlsContext tls;
+
+	/**
+	 * Constructor of <code>ApacheNioRuntime</code>.
+	 * @param service The <code>IExecutionService</code>
+	 * used to dispatch request processing.
+	 * @param config The <code>Configuration</code> for
+	 * the runtime.
+	 */
+	public ApacheNioRuntime(final IExecutionService service, final Configuration config) {
+		this(service, config, new ApacheConfig());
+	}
+
+	/**
+	 * Constructor of <code>ApacheNioRuntime</code>.
+	 * @param service The <code>IExecutionService</code>
+	 * used to dispatch request processing.
+	 * @param config The <code>Configuration</code> for
+	 * the runtime.
+	 * @param apacheConfig The <code>ApacheConfig</code>
+	 * for the runtime.
+	 */
+	public ApacheNioRuntime(final IExecutionService service, final Configuration config, final ApacheConfig apacheConfig) {
+		super(service);
+		this.config = config;
+		this.apacheConfig = apacheConfig;
+	}
+
+	@Override
+	protected void activateComponents() throws Exception {
+		final int port = this.config.runtime.socket.port;
+		final int timeout = this.config.runtime.socket.timeout;
+		final int buffersize = this.config.runtime.socket.bufferSize;
+		final String appname = "Hemera/1.1";
+		final String certPath = this.config.runtime.socket.certPath;
+		final String keyPass = this.config.runtime.socket.keyPass;
+		if (certPath != null) this.tls = new TlsContext(certPath, keyPass, this.apacheConfig);
+		// Bind a server socket channel per acceptor.
+		final int reactorCount = Math.max(1, this.apacheConfig.nioReactors);
+		final int acceptors = Math.min(Math.max(1, this.apacheConfig.acceptors), reactorCount);
+		final ServerSocketChannel[] serverChannels;
+		try {
+			serverChannels = new ServerSocketBinder(null).bindChannels(port, this.apacheConfig.acceptBacklog, acceptors);
+		} catch (final IOException e) {
+			this.logger.severe("Binding server socket on port: " + port + " failed.");
+			throw e;
+		}
+		// Setup the shared HTTP service.
+		this.admission = new AdmissionController(this.apacheConfig.maxConnections, this.apacheConfig.maxRequests, this.apacheConfig.retryAfter);
+		this.handler = new RequestHandler(this.service.getExceptionHandler(), this, this.admission, this.apacheConfig);
+		final HttpParams httpParams = HttpServiceFactory.newHttpParams(timeout, buffersize, appname);
+		this.compression = new ResponseCompression(this.apacheConfig.compressionThreshold, this.apacheConfig.compressionLevel);
+		final HttpService httpService = HttpServiceFactory.newHttpService(this.handler, this.compression, httpParams);
+		final AsyncResponder responder = HttpServiceFactory.newAsyncResponder(this.handler, this.compression, httpParams);
+		// Create reactors with the first ones accepting connections.
+		final int workerCount = Math.max(1, this.apacheConfig.nioWorkers);
+		final int maxRequestSize = this.apacheConfig.nioMaxRequestSize;
+		final BlockingQueue<NioConnection> workQueue = new LinkedBlockingQueue<NioConnection>();
+		final NioReactor[] reactors = new NioReactor[reactorCount];
+		for (int i = 0; i < reactorCount; i++) {
+			final ServerSocketChannel channel = (i < serverChannels.length) ? serverChannels[i] : null;
+			reactors[i] = new NioReactor(channel, reactors, workQueue, httpParams, timeout, buffersize, maxRequestSize, this.admission, this.tls);
+		}
+		// Submit the reactor and worker tasks.
+		this.handles = new ICyclicTaskHandle[reactorCount + workerCount];
+		for (int i = 0; i < reactorCount; i++) {
+			this.handles[i] = this.service.submit(reactors[i]);
+		}
+		for (int i = 0; i < workerCount; i++) {
+			this.handles[reactorCount+i] = this.service.submit(new NioRequestWorker(workQueue, httpService, responder));
+		}
+		final String type = (this.tls != null) ? "Non-blocking SSL connection listener" : "Non-blocking connection listener";
+		this.logger.info(type + " opened on port " + port + " with " + serverChannels.length + " acceptors, " +
+				reactorCount + " reactors and " + workerCount + " workers.");
+	}
+
+	/**
+	 * Retrieve the number of open connections.
+	 * @return The <code>int</code> count.
+	 */
+	public int getLiveConnectionCount() {
+		if (this.admission == null) return 0;
+		return this.admission.getConnectionCount();
+	}
+
+	/**
+	 * Add the given resource to the runtime, and
+	 * invalidate the cached request routes so the
+	 * resource is visible to new requests.
+	 * @param resource The <code>IResource</code> to add.
+	 * @throws Exception If adding the resource failed.
+	 */
+	@Override
+	public void add(final IResource resource) throws Exception {
+		try {
+			super.add(resource);
+		} finally {
+			this.invalidateRoutes();
+		}
+	}
+
+	/**
+	 * Remove the resource of the given path from the
+	 * runtime, and invalidate the cached request routes
+	 * so the resource is no longer served.
+	 * @param path The <code>String</code> path of the
+	 * resource to remove.
+	 * @return The removed <code>IResource</code>.
+	 */
+	@Override
+	public IResource remove(final String path) {
+		final IResource removed = super.remove(path);
+		this.invalidateRoutes();
+		return removed;
+	}
+
+	/**
+	 * Invalidate the cached request routes, since the
+	 * resources of the runtime have changed.
+	 */
+	private void invalidateRoutes() {
+		final RequestHandler current = this.handler;
+		if (current != null) current.invalidateRoutes();
+	}
+
+	/**
+	 * Invalidate the cached responses of the processors
+	 * implementing <code>ICacheableProcessor</code>, so
+	 * the changes of the underlying data are visible to
+	 * new requests before the responses expire.
+	 */
+	public void invalidateResponseCache() {
+		if (this.handler == null) return;
+		this.handler.invalidateResponses();
+	}
+
+	/**
+	 * Retrieve the number of requests that have been
+	 * answered from the response cache.
+	 * @return The <code>long</code> count.
+	 */
+	public long getResponseCacheHitCount() {
+		if (this.handler == null || this.handler.getResponseCache() == null) return 0;
+		return this.handler.getResponseCache().getHitCount();
+	}
+
+	/**
+	 * Retrieve the number of cacheable requests that
+	 * were not found in the response cache.
+	 * @return The <code>long</code> count.
+	 */
+	public long getResponseCacheMissCount() {
+		if (this.handler == null || this.handler.getResponseCache() == null) return 0;
+		return this.handler.getResponseCache().getMissCount();
+	}
+
+	/**
+	 * Retrieve the number of requests that have been
+	 * answered with the response of an identical request
+	 * in progress.
+	 * @return The <code>long</code> count.
+	 */
+	public long getCoalescedRequestCount() {
+		if (this.handler == null) return 0;
+		return this.handler.getRequestCoalescer().getSharedCount();
+	}
+
+	/**
+	 * Retrieve the number of requests that waited for an
+	 * identical request in progress, but were processed
+	 * independently since its response was unavailable.
+	 * @return The <code>long</code> count.
+	 */
+	public long getCoalescingFallbackCount() {
+		if (this.handler == null) return 0;
+		return this.handler.getRequestCoalescer().getFallbackCount();
+	}
+
+	/**
+	 * Take a snapshot of the latencies and counters of
+	 * all the routes that have received requests.
+	 * @return The <code>List</code> of <code>RouteMetricsSnapshot</code>
+	 * ordered by route name.
+	 */
+	public List<RouteMetricsSnapshot> getRouteMetrics() {
+		if (this.handler == null) return Collections.emptyList();
+		return this.handler.getRequestMetrics().snapshot();
+	}
+
+	/**
+	 * Retrieve the number of responses that have been
+	 * compressed.
+	 * @return The <code>long</code> count.
+	 */
+	public long getCompressedResponseCount() {
+		if (this.compression == null) return 0;
+		return this.compression.getCompressedCount();
+	}
+
+	/**
+	 * Retrieve the overall ratio of the compressed size
+	 * to the original size of the compressed responses.
+	 * @return The <code>double</code> ratio. Zero if no
+	 * response has been compressed.
+	 */
+	public double getCompressionRatio() {
+		if (this.compression == null) return 0;
+		return this.compression.getRatio();
+	}
+
+	/**
+	 * Retrieve the total processing time spent on the
+	 * compression of responses.
+	 * @param unit The <code>TimeUnit</code> of the
+	 * returned value.
+	 * @return The <code>long</code> time in the given
+	 * unit.
+	 */
+	public long getCompressionTime(final TimeUnit unit) {
+		if (this.compression == null) return 0;
+		return this.compression.getTime(unit);
+	}
+
+	/**
+	 * Retrieve the number of connections that have
+	 * been rejected due to the connection limit.
+	 * @return The <code>long</code> count.
+	 */
+	public long getRejectedConnectionCount() {
+		if (this.admission == null) return 0;
+		return this.admission.getRejectedConnectionCount();
+	}
+
+	/**
+	 * Retrieve the number of requests that have been
+	 * rejected due to the concurrent request limit.
+	 * @return The <code>long</code> count.
+	 */
+	public long getRejectedRequestCount() {
+		if (this.admission == null) return 0;
+		return this.admission.getRejectedRequestCount();
+	}
+
+	/**
+	 * Retrieve the number of requests that have been
+	 * throttled by the per-client rate limits.
+	 * @return The <code>long</code> count.
+	 */
+	public long getThrottledRequestCount() {
+		if (this.handler == null || this.handler.getRateLimiter() == null) return 0;
+		return this.handler.getRateLimiter().getThrottledCount();
+	}
+
+	/**
+	 * Retrieve the number of requests currently being
+	 * processed.
+	 * @return The <code>int</code> count.
+	 */
+	public int getInFlightRequestCount() {
+		if (this.admission == null) return 0;
+		return this.admission.getRequestCount();
+	}
+
+	/**
+	 * Retrieve the number of completed TLS handshakes.
+	 * @param resumed The <code>boolean</code> flag
+	 * indicating if the resumed handshakes should be
+	 * counted instead of the full handshakes.
+	 * @return The <code>long</code> count.
+	 */
+	public long getTlsHandshakeCount(final boolean resumed) {
+		if (this.tls == null) return 0;
+		return this.tls.getHandshakeLatency(resumed).getCount();
+	}
+
+	/**
+	 * Retrieve the number of failed TLS handshakes.
+	 * @return The <code>long</code> count.
+	 */
+	public long getFailedTlsHandshakeCount() {
+		if (this.tls == null) return 0;
+		return this.tls.getFailedHandshakeCount();
+	}
+
+	/**
+	 * Take a snapshot of the latencies of the completed
+	 * TLS handshakes.
+	 * @param resumed The <code>boolean</code> flag
+	 * indicating if the resumed handshakes should be
+	 * reported instead of the full handshakes.
+	 * @return The <code>LatencySnapshot</code>.
+	 * <code>null</code> if TLS is not enabled.
+	 */
+	public LatencySnapshot getTlsHandshakeLatency(final boolean resumed) {
+		if (this.tls == null) return null;
+		return this.tls.getHandshakeLatency(resumed);
+	}
+
+	@Override
+	protected void shutdownComponents() throws Exception {
+		for (int i = 0; i < this.handles.length; i++) {
+			this.handles[i].terminate();
+		}
+	}
+}
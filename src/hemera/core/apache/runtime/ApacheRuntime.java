@@ -1,19 +1,62 @@
 package hemera.core.apache.runtime;
 
 import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpService;
 
 import hemera.core.environment.config.Configuration;
 import hemera.core.execution.interfaces.IExecutionService;
 import hemera.core.execution.interfaces.task.handle.ICyclicTaskHandle;
+import hemera.core.structure.interfaces.IResource;
 import hemera.core.structure.runtime.Runtime;
 
 /**
  * <code>ApacheRuntime</code> defines the implementation
  * of a runtime environment based on the Apache basic IO
  * HTTP core connector.
+ * <p>
+ * The accepted connections are either served by
+ * cyclic tasks submitted to the execution service,
+ * or by dedicated threads, based on the configured
+ * <code>EConnectionMode</code>. The thread mode uses
+ * virtual threads, and falls back to the execution
+ * service if they are not supported by the Java
+ * runtime. The connections served by dedicated
+ * threads are closed when the runtime shuts down.
+ * <p>
+ * Multiple connection listeners can be configured to
+ * accept connections on the same port concurrently,
+ * each serving its own share of the connections.
+ * <p>
+ * In the pooled mode, idle keep-alive connections can
+ * be parked with a readiness poller, so the number of
+ * execution threads used scales with the number of
+ * active requests instead of open connections.
+ * <p>
+ * The number of open connections and concurrently
+ * processed requests can be limited, in which case
+ * the excess is rejected with a canned response. The
+ * rate of the requests of each client can also be
+ * limited per path prefix, in which case throttled
+ * requests are rejected with <code>429</code>.
+ * <p>
+ * Secure connections are configured with the TLS
+ * protocols, cipher suites and session cache of the
+ * <code>ApacheConfig</code>, and their handshakes are
+ * recorded.
+ * <p>
+ * The socket buffers of the connections are borrowed
+ * from a shared pool and returned once the connections
+ * are closed, instead of being allocated for every
+ * connection.
  *
  * @author Yi Wang (Neakor)
- * @version 1.0.0
+ * @version 1.0.5
  */
 public class ApacheRuntime extends Runtime {
 	/**
@@ -21,10 +64,50 @@ public class ApacheRuntime extends Runtime {
 	 */
 	private final Configuration config;
 	/**
-	 * The <code>ICyclicTaskHandle</code> for the
-	 * connection listener task.
+	 * The <code>ApacheConfig</code> for the runtime.
+	 */
+	private final ApacheConfig apacheConfig;
+	/**
+	 * The array of <code>ConnectionListener</code>
+	 * accepting the connections.
+	 */
+	private ConnectionListener[] listeners;
+	/**
+	 * The <code>AdmissionController</code> instance.
+	 */
+	private AdmissionController admission;
+	/**
+	 * The <code>RequestHandler</code> instance.
+	 */
+	private volatile RequestHandler handler;
+	/**
+	 * The <code>ResponseCompression</code> instance.
+	 */
+	private ResponseCompression compression;
+	/**
+	 * The optional <code>IdleConnectionPoller</code>.
+	 */
+	private IdleConnectionPoller poller;
+	/**
+	 * The <code>ICyclicTaskHandle</code> for the idle
+	 * connection poller task.
+	 */
+	private ICyclicTaskHandle pollerHandle;
+	/**
+	 * The array of <code>ICyclicTaskHandle</code> for
+	 * the connection listener tasks.
+	 */
+	private ICyclicTaskHandle[] listenerHandles;
+	/**
+	 * The optional <code>TlsContext</code> of the
+	 * secure connections.
+	 */
+	private TlsContext tls;
+	/**
+	 * The <code>BufferPool</code> of the connection
+	 * socket buffers.
 	 */
-	private ICyclicTaskHandle listenerHandle;
+	private BufferPool bufferPool;
 
 	/**
 	 * Constructor of <code>ApacheRuntime</code>.
@@ -34,8 +117,22 @@ public class ApacheRuntime extends Runtime {
 	 * the runtime.
 	 */
 	public ApacheRuntime(final IExecutionService service, final Configuration config) {
+		this(service, config, new ApacheConfig());
+	}
+
+	/**
+	 * Constructor of <code>ApacheRuntime</code>.
+	 * @param service The <code>IExecutionService</code>
+	 * used to dispatch request processing.
+	 * @param config The <code>Configuration</code> for
+	 * the runtime.
+	 * @param apacheConfig The <code>ApacheConfig</code>
+	 * for the runtime.
+	 */
+	public ApacheRuntime(final IExecutionService service, final Configuration config, final ApacheConfig apacheConfig) {
 		super(service);
 		this.config = config;
+		this.apacheConfig = apacheConfig;
 	}
 
 	@Override
@@ -46,20 +143,350 @@ public class ApacheRuntime extends Runtime {
 		final String certPath = this.config.runtime.socket.certPath;
 		final String keyPass = this.config.runtime.socket.keyPass;
 		final String appname = "Hemera/1.1";
-		// Submit the connection listener task.
-		final RequestHandler handler = new RequestHandler(this.service.getExceptionHandler(), this);
+		final int acceptors = Math.max(1, this.apacheConfig.acceptors);
+		final int backlog = this.apacheConfig.acceptBacklog;
+		// Setup the shared HTTP service.
+		this.admission = new AdmissionController(this.apacheConfig.maxConnections, this.apacheConfig.maxRequests, this.apacheConfig.retryAfter);
+		this.handler = new RequestHandler(this.service.getExceptionHandler(), this, this.admission, this.apacheConfig);
+		final HttpParams httpParams = HttpServiceFactory.newHttpParams(timeout, buffersize, appname);
+		this.compression = new ResponseCompression(this.apacheConfig.compressionThreshold, this.apacheConfig.compressionLevel);
+		final HttpService httpService = HttpServiceFactory.newHttpService(this.handler, this.compression, httpParams);
+		// Create dedicated thread factory in thread mode if virtual threads are supported.
+		ConnectionThreadFactory threadFactory = null;
+		if (this.apacheConfig.connectionMode == EConnectionMode.Thread) {
+			final ConnectionThreadFactory virtualFactory = new ConnectionThreadFactory();
+			if (virtualFactory.isVirtual()) {
+				threadFactory = virtualFactory;
+				this.logger.info("Serving connections with dedicated virtual threads.");
+			}
+		}
+		this.bufferPool = new BufferPool(this.apacheConfig.bufferPoolSize, this.apacheConfig.bufferLeakDetection);
+		// Bind server sockets.
+		if (certPath != null) this.tls = new TlsContext(certPath, keyPass, this.apacheConfig);
+		final ServerSocketBinder binder = new ServerSocketBinder(this.tls);
+		final ServerSocket[] sockets;
 		try {
-			final ConnectionListener listener = new ConnectionListener(this.service, port, timeout,
-					buffersize, certPath, keyPass, appname, handler);
-			this.listenerHandle = this.service.submit(listener);
+			sockets = binder.bind(port, backlog, acceptors);
 		} catch (final IOException e) {
 			this.logger.severe("Binding server socket on port: " + port + " failed.");
 			throw e;
 		}
+		// Create idle connection poller for plain pooled connections.
+		if (this.apacheConfig.idleParking && threadFactory == null && certPath == null) {
+			this.poller = new IdleConnectionPoller(this.service, timeout);
+			this.pollerHandle = this.service.submit(this.poller);
+			this.logger.info("Parking idle connections between requests.");
+		}
+		// Submit the connection listener tasks.
+		this.listeners = new ConnectionListener[acceptors];
+		this.listenerHandles = new ICyclicTaskHandle[acceptors];
+		for (int i = 0; i < acceptors; i++) {
+			this.listeners[i] = new ConnectionListener(this.service, sockets[i], httpParams, httpService, threadFactory, this.admission, this.poller, this.tls, this.bufferPool);
+			this.listenerHandles[i] = this.service.submit(this.listeners[i]);
+		}
+		// Log.
+		final String type = binder.isSecure() ? "SSL connection listener" : "Connection listener";
+		this.logger.info(type + " opened on port " + port + " with " + acceptors + " acceptors.");
+	}
+
+	/**
+	 * Retrieve the number of accepted connections that
+	 * are still open.
+	 * @return The <code>int</code> live connection
+	 * count. <code>0</code> if the runtime has not
+	 * been activated.
+	 */
+	public int getLiveConnectionCount() {
+		if (this.listeners == null) return 0;
+		int count = 0;
+		for (int i = 0; i < this.listeners.length; i++) {
+			count += this.listeners[i].getLiveConnectionCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Retrieve the number of idle connections that are
+	 * currently parked.
+	 * @return The <code>int</code> count.
+	 */
+	public int getParkedConnectionCount() {
+		if (this.poller == null) return 0;
+		return this.poller.getParkedCount();
+	}
+
+	/**
+	 * Add the given resource to the runtime, and
+	 * invalidate the cached request routes so the
+	 * resource is visible to new requests.
+	 * @param resource The <code>IResource</code> to add.
+	 * @throws Exception If adding the resource failed.
+	 */
+	@Override
+	public void add(final IResource resource) throws Exception {
+		try {
+			super.add(resource);
+		} finally {
+			this.invalidateRoutes();
+		}
+	}
+
+	/**
+	 * Remove the resource of the given path from the
+	 * runtime, and invalidate the cached request routes
+	 * so the resource is no longer served.
+	 * @param path The <code>String</code> path of the
+	 * resource to remove.
+	 * @return The removed <code>IResource</code>.
+	 */
+	@Override
+	public IResource remove(final String path) {
+		final IResource removed = super.remove(path);
+		this.invalidateRoutes();
+		return removed;
+	}
+
+	/**
+	 * Invalidate the cached request routes, since the
+	 * resources of the runtime have changed.
+	 */
+	private void invalidateRoutes() {
+		final RequestHandler current = this.handler;
+		if (current != null) current.invalidateRoutes();
+	}
+
+	/**
+	 * Invalidate the cached responses of the processors
+	 * implementing <code>ICacheableProcessor</code>, so
+	 * the changes of the underlying data are visible to
+	 * new requests before the responses expire.
+	 */
+	public void invalidateResponseCache() {
+		if (this.handler == null) return;
+		this.handler.invalidateResponses();
+	}
+
+	/**
+	 * Retrieve the number of requests that have been
+	 * answered from the response cache.
+	 * @return The <code>long</code> count.
+	 */
+	public long getResponseCacheHitCount() {
+		if (this.handler == null || this.handler.getResponseCache() == null) return 0;
+		return this.handler.getResponseCache().getHitCount();
+	}
+
+	/**
+	 * Retrieve the number of cacheable requests that
+	 * were not found in the response cache.
+	 * @return The <code>long</code> count.
+	 */
+	public long getResponseCacheMissCount() {
+		if (this.handler == null || this.handler.getResponseCache() == null) return 0;
+		return this.handler.getResponseCache().getMissCount();
+	}
+
+	/**
+	 * Retrieve the number of requests that have been
+	 * answered with the response of an identical request
+	 * in progress.
+	 * @return The <code>long</code> count.
+	 */
+	public long getCoalescedRequestCount() {
+		if (this.handler == null) return 0;
+		return this.handler.getRequestCoalescer().getSharedCount();
+	}
+
+	/**
+	 * Retrieve the number of requests that waited for an
+	 * identical request in progress, but were processed
+	 * independently since its response was unavailable.
+	 * @return The <code>long</code> count.
+	 */
+	public long getCoalescingFallbackCount() {
+		if (this.handler == null) return 0;
+		return this.handler.getRequestCoalescer().getFallbackCount();
+	}
+
+	/**
+	 * Take a snapshot of the latencies and counters of
+	 * all the routes that have received requests.
+	 * @return The <code>List</code> of <code>RouteMetricsSnapshot</code>
+	 * ordered by route name.
+	 */
+	public List<RouteMetricsSnapshot> getRouteMetrics() {
+		if (this.handler == null) return Collections.emptyList();
+		return this.handler.getRequestMetrics().snapshot();
+	}
+
+	/**
+	 * Retrieve the number of responses that have been
+	 * compressed.
+	 * @return The <code>long</code> count.
+	 */
+	public long getCompressedResponseCount() {
+		if (this.compression == null) return 0;
+		return this.compression.getCompressedCount();
+	}
+
+	/**
+	 * Retrieve the overall ratio of the compressed size
+	 * to the original size of the compressed responses.
+	 * @return The <code>double</code> ratio. Zero if no
+	 * response has been compressed.
+	 */
+	public double getCompressionRatio() {
+		if (this.compression == null) return 0;
+		return this.compression.getRatio();
+	}
+
+	/**
+	 * Retrieve the total processing time spent on the
+	 * compression of responses.
+	 * @param unit The <code>TimeUnit</code> of the
+	 * returned value.
+	 * @return The <code>long</code> time in the given
+	 * unit.
+	 */
+	public long getCompressionTime(final TimeUnit unit) {
+		if (this.compression == null) return 0;
+		return this.compression.getTime(unit);
+	}
+
+	/**
+	 * Retrieve the number of connections that have
+	 * been rejected due to the connection limit.
+	 * @return The <code>long</code> count.
+	 */
+	public long getRejectedConnectionCount() {
+		if (this.admission == null) return 0;
+		return this.admission.getRejectedConnectionCount();
+	}
+
+	/**
+	 * Retrieve the number of requests that have been
+	 * rejected due to the concurrent request limit.
+	 * @return The <code>long</code> count.
+	 */
+	public long getRejectedRequestCount() {
+		if (this.admission == null) return 0;
+		return this.admission.getRejectedRequestCount();
+	}
+
+	/**
+	 * Retrieve the number of requests that have been
+	 * throttled by the per-client rate limits.
+	 * @return The <code>long</code> count.
+	 */
+	public long getThrottledRequestCount() {
+		if (this.handler == null || this.handler.getRateLimiter() == null) return 0;
+		return this.handler.getRateLimiter().getThrottledCount();
+	}
+
+	/**
+	 * Retrieve the number of requests currently being
+	 * processed.
+	 * @return The <code>int</code> count.
+	 */
+	public int getInFlightRequestCount() {
+		if (this.admission == null) return 0;
+		return this.admission.getRequestCount();
+	}
+
+	/**
+	 * Retrieve the number of completed TLS handshakes.
+	 * @param resumed The <code>boolean</code> flag
+	 * indicating if the resumed handshakes should be
+	 * counted instead of the full handshakes.
+	 * @return The <code>long</code> count.
+	 */
+	public long getTlsHandshakeCount(final boolean resumed) {
+		if (this.tls == null) return 0;
+		return this.tls.getHandshakeLatency(resumed).getCount();
+	}
+
+	/**
+	 * Retrieve the number of failed TLS handshakes.
+	 * @return The <code>long</code> count.
+	 */
+	public long getFailedTlsHandshakeCount() {
+		if (this.tls == null) return 0;
+		return this.tls.getFailedHandshakeCount();
+	}
+
+	/**
+	 * Take a snapshot of the latencies of the completed
+	 * TLS handshakes.
+	 * @param resumed The <code>boolean</code> flag
+	 * indicating if the resumed handshakes should be
+	 * reported instead of the full handshakes.
+	 * @return The <code>LatencySnapshot</code>.
+	 * <code>null</code> if TLS is not enabled.
+	 */
+	public LatencySnapshot getTlsHandshakeLatency(final boolean resumed) {
+		if (this.tls == null) return null;
+		return this.tls.getHandshakeLatency(resumed);
+	}
+
+	/**
+	 * Retrieve the number of pooled socket buffers that
+	 * are currently borrowed by the open connections.
+	 * @return The <code>int</code> count.
+	 */
+	public int getBorrowedBufferCount() {
+		if (this.bufferPool == null) return 0;
+		return this.bufferPool.getBorrowedCount();
+	}
+
+	/**
+	 * Retrieve the number of idle socket buffers that
+	 * are retained by the pool.
+	 * @return The <code>int</code> count.
+	 */
+	public int getPooledBufferCount() {
+		if (this.bufferPool == null) return 0;
+		return this.bufferPool.getPooledCount();
+	}
+
+	/**
+	 * Retrieve the total size of the idle socket buffers
+	 * that are retained by the pool.
+	 * @return The <code>long</code> number of bytes.
+	 */
+	public long getPooledBufferBytes() {
+		if (this.bufferPool == null) return 0;
+		return this.bufferPool.getPooledBytes();
+	}
+
+	/**
+	 * Retrieve the number of socket buffers allocated
+	 * since no pooled buffer was available.
+	 * @return The <code>long</code> count.
+	 */
+	public long getBufferAllocationCount() {
+		if (this.bufferPool == null) return 0;
+		return this.bufferPool.getAllocationCount();
+	}
+
+	/**
+	 * Retrieve the number of socket buffers detected to
+	 * have been garbage collected without being returned
+	 * to the pool. Always zero unless leak detection is
+	 * enabled.
+	 * @return The <code>long</code> count.
+	 */
+	public long getLeakedBufferCount() {
+		if (this.bufferPool == null) return 0;
+		return this.bufferPool.getLeakCount();
 	}
 
 	@Override
 	protected void shutdownComponents() throws Exception {
-		this.listenerHandle.terminate();
+		for (int i = 0; i < this.listenerHandles.length; i++) {
+			this.listenerHandles[i].terminate();
+		}
+		if (this.pollerHandle != null) {
+			this.pollerHandle.terminate();
+		}
 	}
 }
@@ -0,0 +1,234 @@
+package hemera.core.apache.runtime;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpRequest;
+
+import hemera.core.structure.interfaces.IRequest;
+import hemera.core.structure.interfaces.IResponse;
+
+/**
+ * <code>AsyncExchange</code> defines an internal unit
+ * that is given to an <code>IAsyncProcessor</code> as
+ * the callback of a single request, and holds the
+ * completion of the request until the response is
+ * committed.
+ * <p>
+ * The request is either waited for by the thread that
+ * invoked the processor, or deferred with the state
+ * needed to commit its response, and suspended on its
+ * <code>NioConnection</code>. A suspended exchange
+ * resumes the connection once it is completed or has
+ * timed out, so the response is committed by a worker
+ * thread.
+ * <p>
+ * The exchange also holds the request whose response
+ * content is written after the handler returns, so the
+ * request is released once the response is sent.
+ * <p>
+ * <code>AsyncExchange</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.1
+ */
+class AsyncExchange implements IResponseCallback<IResponse> {
+	/**
+	 * The <code>int</code> state of an exchange that
+	 * is waiting for its completion.
+	 */
+	private static final int PENDING = 0;
+	/**
+	 * The <code>int</code> state of an exchange that
+	 * is attached to its suspended connection.
+	 */
+	private static final int SUSPENDED = 1;
+	/**
+	 * The <code>int</code> state of an exchange that
+	 * is completed or timed out.
+	 */
+	private static final int COMPLETED = 2;
+	/**
+	 * The <code>CountDownLatch</code> released on
+	 * completion.
+	 */
+	private final CountDownLatch latch;
+	/**
+	 * The <code>long</code> deadline in the
+	 * <code>System.nanoTime</code> scale. Zero if the
+	 * exchange never times out.
+	 */
+	private final long deadline;
+	/**
+	 * The <code>int</code> state.
+	 */
+	private int state;
+	/**
+	 * The <code>IResponse</code> completed with.
+	 */
+	private IResponse response;
+	/**
+	 * The <code>Exception</code> failed with.
+	 */
+	private Exception failure;
+	/**
+	 * The suspended <code>NioConnection</code>.
+	 */
+	private NioConnection connection;
+	/**
+	 * The <code>IAsyncProcessor</code> of the deferred
+	 * request.
+	 */
+	IAsyncProcessor<?, ?> processor;
+	/**
+	 * The deferred <code>IRequest</code>.
+	 */
+	IRequest request;
+	/**
+	 * The <code>HttpRequest</code> of the deferred
+	 * request.
+	 */
+	HttpRequest httpRequest;
+	/**
+	 * The <code>String</code> call back argument.
+	 */
+	String callbackArg;
+	/**
+	 * The <code>String</code> key to cache the response
+	 * with. <code>null</code> if the response should not
+	 * be cached.
+	 */
+	String cacheKey;
+	/**
+	 * The <code>Flight</code> to share the response
+	 * with. <code>null</code> if the request is not
+	 * coalesced.
+	 */
+	RequestCoalescer.Flight flight;
+	/**
+	 * The <code>long</code> response cache generation
+	 * before processing.
+	 */
+	long generation;
+	/**
+	 * The <code>RouteMetrics</code> to record the
+	 * request in.
+	 */
+	RouteMetrics route;
+	/**
+	 * The <code>RequestFactory</code> to release the
+	 * request to.
+	 */
+	RequestFactory factory;
+	/**
+	 * The <code>Map</code> of request arguments to
+	 * release.
+	 */
+	Map<String, Object> arguments;
+	/**
+	 * The <code>RequestHandler</code> to release the
+	 * request with once its response is sent.
+	 */
+	RequestHandler handler;
+
+	/**
+	 * Constructor of <code>AsyncExchange</code>.
+	 * @param timeout The <code>long</code> timeout in
+	 * nanoseconds. Zero or less never times out.
+	 */
+	AsyncExchange(final long timeout) {
+		this.state = PENDING;
+		this.latch = new CountDownLatch(1);
+		this.deadline = (timeout > 0) ? Math.max(1, System.nanoTime() + timeout) : 0;
+	}
+
+	@Override
+	public void completed(final IResponse response) {
+		this.complete(response, null);
+	}
+
+	@Override
+	public void failed(final Exception cause) {
+		this.complete(null, cause);
+	}
+
+	/**
+	 * Expire the exchange if it is still pending at
+	 * the given time.
+	 * @param now The <code>long</code> current time in
+	 * the <code>System.nanoTime</code> scale.
+	 */
+	void expire(final long now) {
+		if (this.deadline == 0 || now - this.deadline < 0) return;
+		this.complete(null, null);
+	}
+
+	/**
+	 * Complete the exchange with the given result if
+	 * it is not completed yet, and resume its suspended
+	 * connection.
+	 * @param response The <code>IResponse</code>.
+	 * @param failure The <code>Exception</code>.
+	 */
+	private void complete(final IResponse response, final Exception failure) {
+		final NioConnection connection;
+		synchronized (this) {
+			if (this.state == COMPLETED) return;
+			connection = (this.state == SUSPENDED) ? this.connection : null;
+			this.response = response;
+			this.failure = failure;
+			this.state = COMPLETED;
+		}
+		this.latch.countDown();
+		if (connection != null) connection.resumeExchange();
+	}
+
+	/**
+	 * Attach the given suspended connection to be
+	 * resumed on completion.
+	 * @param connection The <code>NioConnection</code>.
+	 * @return <code>true</code> if the connection is
+	 * attached. <code>false</code> if the exchange is
+	 * already completed.
+	 */
+	synchronized boolean attach(final NioConnection connection) {
+		if (this.state != PENDING) return false;
+		this.connection = connection;
+		this.state = SUSPENDED;
+		return true;
+	}
+
+	/**
+	 * Check if the exchange is completed or timed out.
+	 * @return <code>true</code> if completed.
+	 */
+	synchronized boolean isCompleted() {
+		return this.state == COMPLETED;
+	}
+
+	/**
+	 * Wait for the completion of the exchange up to its
+	 * timeout, and retrieve the result.
+	 * @return The completed <code>IResponse</code>.
+	 * <code>null</code> if timed out.
+	 * @throws Exception If the exchange failed or the
+	 * waiting is interrupted.
+	 */
+	IResponse await() throws Exception {
+		if (this.deadline == 0) this.latch.await();
+		else if (!this.latch.await(this.deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) this.expire(this.deadline);
+		return this.getResponse();
+	}
+
+	/**
+	 * Retrieve the result of the completed exchange.
+	 * @return The completed <code>IResponse</code>.
+	 * <code>null</code> if timed out.
+	 * @throws Exception If the exchange failed.
+	 */
+	synchronized IResponse getResponse() throws Exception {
+		if (this.failure != null) throw this.failure;
+		return this.response;
+	}
+}
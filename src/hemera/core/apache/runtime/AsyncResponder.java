@@ -0,0 +1,120 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseFactory;
+import org.apache.http.HttpServerConnection;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.params.DefaultedHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessor;
+
+/**
+ * <code>AsyncResponder</code> defines an internal unit
+ * that sends the deferred responses of the requests
+ * suspended by the <code>RequestHandler</code>. This
+ * completes the exchange the <code>HttpService</code>
+ * started, by committing the response of the completed
+ * request and sending it through the same protocol
+ * chain on the connection of the request.
+ * <p>
+ * <code>AsyncResponder</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class AsyncResponder {
+	/**
+	 * The <code>RequestHandler</code> that defers the
+	 * responses.
+	 */
+	private final RequestHandler handler;
+	/**
+	 * The <code>HttpProcessor</code> of the responses.
+	 */
+	private final HttpProcessor processor;
+	/**
+	 * The <code>ConnectionReuseStrategy</code>.
+	 */
+	private final ConnectionReuseStrategy connStrategy;
+	/**
+	 * The <code>HttpResponseFactory</code>.
+	 */
+	private final HttpResponseFactory responseFactory;
+	/**
+	 * The <code>HttpParams</code> of the service.
+	 */
+	private final HttpParams params;
+
+	/**
+	 * Constructor of <code>AsyncResponder</code>.
+	 * @param handler The <code>RequestHandler</code>
+	 * that defers the responses.
+	 * @param processor The <code>HttpProcessor</code>
+	 * of the responses.
+	 * @param connStrategy The <code>ConnectionReuseStrategy</code>.
+	 * @param responseFactory The <code>HttpResponseFactory</code>.
+	 * @param params The <code>HttpParams</code> of the
+	 * service.
+	 */
+	AsyncResponder(final RequestHandler handler, final HttpProcessor processor, final ConnectionReuseStrategy connStrategy,
+			final HttpResponseFactory responseFactory, final HttpParams params) {
+		this.handler = handler;
+		this.processor = processor;
+		this.connStrategy = connStrategy;
+		this.responseFactory = responseFactory;
+		this.params = params;
+	}
+
+	/**
+	 * Send the response of the given completed exchange
+	 * on the given connection.
+	 * @param exchange The completed <code>AsyncExchange</code>.
+	 * @param conn The <code>HttpServerConnection</code>
+	 * to send the response on.
+	 * @param context The <code>HttpContext</code> of
+	 * the connection.
+	 * @throws IOException If sending failed.
+	 * @throws HttpException If the response violates
+	 * the protocol.
+	 */
+	void respond(final AsyncExchange exchange, final HttpServerConnection conn, final HttpContext context) throws IOException, HttpException {
+		final HttpRequest request = exchange.httpRequest;
+		ProtocolVersion version = request.getRequestLine().getProtocolVersion();
+		if (!version.lessEquals(HttpVersion.HTTP_1_1)) version = HttpVersion.HTTP_1_1;
+		final HttpResponse response = this.responseFactory.newHttpResponse(version, HttpStatus.SC_OK, context);
+		response.setParams(new DefaultedHttpParams(response.getParams(), this.params));
+		this.handler.complete(exchange, response, context);
+		// Send through the same chain as the service.
+		context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+		context.setAttribute(ExecutionContext.HTTP_RESPONSE, response);
+		this.processor.process(response, context);
+		conn.sendResponseHeader(response);
+		if (this.hasBody(request, response)) conn.sendResponseEntity(response);
+		conn.flush();
+		if (!this.connStrategy.keepAlive(response, context)) conn.close();
+	}
+
+	/**
+	 * Check if the given response to the given request
+	 * has a message body.
+	 * @param request The <code>HttpRequest</code>.
+	 * @param response The <code>HttpResponse</code>.
+	 * @return <code>true</code> if the entity should
+	 * be sent.
+	 */
+	private boolean hasBody(final HttpRequest request, final HttpResponse response) {
+		if (request.getRequestLine().getMethod().equalsIgnoreCase("HEAD")) return false;
+		final int status = response.getStatusLine().getStatusCode();
+		return status >= HttpStatus.SC_OK && status != HttpStatus.SC_NO_CONTENT && status != HttpStatus.SC_NOT_MODIFIED
+				&& status != HttpStatus.SC_RESET_CONTENT;
+	}
+}
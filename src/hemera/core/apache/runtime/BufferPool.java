@@ -0,0 +1,328 @@
+package hemera.core.apache.runtime;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hemera.core.utility.logging.FileLogger;
+
+/**
+ * <code>BufferPool</code> defines an internal unit that
+ * lends the socket IO buffers of the connections from
+ * a shared pool, so the short-lived connections do not
+ * allocate new buffers for the garbage collector to
+ * reclaim.
+ * <p>
+ * The buffers are pooled in size classes of powers of
+ * two, and a requested size is rounded up to its class.
+ * The total size of the idle buffers retained by the
+ * pool is bounded, beyond which the released buffers
+ * are left to the garbage collector. The sizes beyond
+ * the largest class are never pooled.
+ * <p>
+ * Each borrowed buffer is returned as a <code>Lease</code>
+ * that must be released exactly once. If leak detection
+ * is enabled, the leases are weakly tracked, and a lease
+ * that is garbage collected without being released is
+ * counted and logged as a leak.
+ * <p>
+ * <code>BufferPool</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.1
+ */
+class BufferPool {
+	/**
+	 * The <code>int</code> shift of the smallest size
+	 * class.
+	 */
+	private static final int MIN_SHIFT = 9;
+	/**
+	 * The <code>int</code> shift of the largest size
+	 * class.
+	 */
+	private static final int MAX_SHIFT = 20;
+	/**
+	 * The <code>FileLogger</code> instance.
+	 */
+	private final FileLogger logger;
+	/**
+	 * The <code>long</code> maximum total number of
+	 * bytes of the idle buffers retained.
+	 */
+	private final long maxBytes;
+	/**
+	 * The array of <code>Queue</code> of idle buffers
+	 * indexed by size class.
+	 */
+	private final Queue<byte[]>[] classes;
+	/**
+	 * The <code>Set</code> of <code>Tracker</code> of
+	 * the outstanding leases. <code>null</code> if leak
+	 * detection is disabled.
+	 */
+	private final Set<Tracker> trackers;
+	/**
+	 * The <code>ReferenceQueue</code> of the collected
+	 * leases. <code>null</code> if leak detection is
+	 * disabled.
+	 */
+	private final ReferenceQueue<Lease> collected;
+	/**
+	 * The <code>AtomicLong</code> total number of bytes
+	 * of the idle buffers.
+	 */
+	private final AtomicLong pooledBytes;
+	/**
+	 * The <code>AtomicInteger</code> number of idle
+	 * buffers.
+	 */
+	private final AtomicInteger pooledCount;
+	/**
+	 * The <code>AtomicInteger</code> number of the
+	 * outstanding leases.
+	 */
+	private final AtomicInteger borrowedCount;
+	/**
+	 * The <code>AtomicLong</code> number of buffers
+	 * allocated since no idle buffer was available.
+	 */
+	private final AtomicLong allocationCount;
+	/**
+	 * The <code>AtomicLong</code> number of leases that
+	 * were never released.
+	 */
+	private final AtomicLong leakCount;
+
+	/**
+	 * Constructor of <code>BufferPool</code>.
+	 * @param maxBytes The <code>long</code> maximum
+	 * total number of bytes of the idle buffers retained.
+	 * Zero or less disables pooling.
+	 * @param leakDetection <code>true</code> if the
+	 * leases should be tracked for leaks.
+	 */
+	@SuppressWarnings("unchecked")
+	BufferPool(final long maxBytes, final boolean leakDetection) {
+		this.logger = FileLogger.getLogger(this.getClass());
+		this.maxBytes = Math.max(0, maxBytes);
+		this.classes = (Queue<byte[]>[])new Queue<?>[MAX_SHIFT-MIN_SHIFT+1];
+		for (int i = 0; i < this.classes.length; i++) {
+			this.classes[i] = new ConcurrentLinkedQueue<byte[]>();
+		}
+		if (leakDetection) {
+			this.trackers = Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+			this.collected = new ReferenceQueue<Lease>();
+		} else {
+			this.trackers = null;
+			this.collected = null;
+		}
+		this.pooledBytes = new AtomicLong();
+		this.pooledCount = new AtomicInteger();
+		this.borrowedCount = new AtomicInteger();
+		this.allocationCount = new AtomicLong();
+		this.leakCount = new AtomicLong();
+	}
+
+	/**
+	 * Borrow a buffer of at least the given size.
+	 * @param size The <code>int</code> minimum size in
+	 * bytes.
+	 * @return The <code>Lease</code> of the buffer.
+	 */
+	Lease borrow(final int size) {
+		this.detectLeaks();
+		final int index = this.indexOf(size);
+		byte[] array = null;
+		if (index >= 0) {
+			array = this.classes[index].poll();
+			if (array != null) {
+				this.pooledCount.decrementAndGet();
+				this.pooledBytes.addAndGet(-array.length);
+			}
+		}
+		if (array == null) {
+			array = new byte[(index >= 0) ? (1 << (index+MIN_SHIFT)) : size];
+			this.allocationCount.incrementAndGet();
+		}
+		this.borrowedCount.incrementAndGet();
+		final Lease lease = new Lease(array);
+		if (this.trackers != null) {
+			lease.tracker = new Tracker(lease, this.collected);
+			this.trackers.add(lease.tracker);
+		}
+		return lease;
+	}
+
+	/**
+	 * Release the given lease and return its buffer to
+	 * the pool if there is room. Releasing a lease more
+	 * than once has no effect.
+	 * @param lease The <code>Lease</code> to release.
+	 */
+	void release(final Lease lease) {
+		if (lease == null) return;
+		final byte[] array;
+		synchronized (lease) {
+			if (lease.array == null) return;
+			array = lease.array;
+			lease.array = null;
+		}
+		if (lease.tracker != null) {
+			this.trackers.remove(lease.tracker);
+			lease.tracker.clear();
+		}
+		this.borrowedCount.decrementAndGet();
+		// Only retain the exact class sizes within budget.
+		final int index = this.indexOf(array.length);
+		if (index < 0 || array.length != (1 << (index+MIN_SHIFT))) return;
+		if (this.pooledBytes.addAndGet(array.length) > this.maxBytes) {
+			this.pooledBytes.addAndGet(-array.length);
+			return;
+		}
+		this.classes[index].add(array);
+		this.pooledCount.incrementAndGet();
+	}
+
+	/**
+	 * Count and log the leases collected without being
+	 * released.
+	 */
+	private void detectLeaks() {
+		if (this.collected == null) return;
+		Reference<? extends Lease> reference;
+		while ((reference = this.collected.poll()) != null) {
+			final Tracker tracker = (Tracker)reference;
+			if (!this.trackers.remove(tracker)) continue;
+			this.borrowedCount.decrementAndGet();
+			this.leakCount.incrementAndGet();
+			this.logger.warning("Pooled buffer of " + tracker.size + " bytes was garbage collected without being released.");
+		}
+	}
+
+	/**
+	 * Retrieve the size class index of the given size.
+	 * @param size The <code>int</code> size in bytes.
+	 * @return The <code>int</code> index. Negative if
+	 * the size is beyond the largest class.
+	 */
+	private int indexOf(final int size) {
+		if (size > (1 << MAX_SHIFT)) return -1;
+		final int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1);
+		return Math.max(0, shift - MIN_SHIFT);
+	}
+
+	/**
+	 * Retrieve the number of borrowed buffers that have
+	 * not been released.
+	 * @return The <code>int</code> count.
+	 */
+	int getBorrowedCount() {
+		return this.borrowedCount.get();
+	}
+
+	/**
+	 * Retrieve the number of idle buffers retained.
+	 * @return The <code>int</code> count.
+	 */
+	int getPooledCount() {
+		return this.pooledCount.get();
+	}
+
+	/**
+	 * Retrieve the total size of the idle buffers
+	 * retained.
+	 * @return The <code>long</code> number of bytes.
+	 */
+	long getPooledBytes() {
+		return this.pooledBytes.get();
+	}
+
+	/**
+	 * Retrieve the number of buffers allocated since no
+	 * idle buffer was available.
+	 * @return The <code>long</code> count.
+	 */
+	long getAllocationCount() {
+		return this.allocationCount.get();
+	}
+
+	/**
+	 * Retrieve the number of leases detected to have
+	 * been garbage collected without being released.
+	 * @return The <code>long</code> count.
+	 */
+	long getLeakCount() {
+		this.detectLeaks();
+		return this.leakCount.get();
+	}
+
+	/**
+	 * <code>Lease</code> defines the unit of a single
+	 * borrowed buffer.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.0
+	 */
+	static final class Lease {
+		/**
+		 * The borrowed <code>byte</code> array.
+		 * <code>null</code> once released.
+		 */
+		private byte[] array;
+		/**
+		 * The <code>Tracker</code> of the lease.
+		 */
+		private Tracker tracker;
+
+		/**
+		 * Constructor of <code>Lease</code>.
+		 * @param array The borrowed <code>byte</code>
+		 * array.
+		 */
+		private Lease(final byte[] array) {
+			this.array = array;
+		}
+
+		/**
+		 * Retrieve the borrowed buffer.
+		 * @return The <code>byte</code> array.
+		 */
+		synchronized byte[] array() {
+			if (this.array == null) throw new IllegalStateException("Buffer lease has been released.");
+			return this.array;
+		}
+	}
+
+	/**
+	 * <code>Tracker</code> defines the weak reference to
+	 * an outstanding lease used to detect its leak.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.0
+	 */
+	private static final class Tracker extends WeakReference<Lease> {
+		/**
+		 * The <code>int</code> size of the buffer.
+		 */
+		private final int size;
+
+		/**
+		 * Constructor of <code>Tracker</code>.
+		 * @param lease The <code>Lease</code> to track.
+		 * @param queue The <code>ReferenceQueue</code>
+		 * to register with.
+		 */
+		private Tracker(final Lease lease, final ReferenceQueue<Lease> queue) {
+			super(lease, queue);
+			this.size = lease.array.length;
+		}
+	}
+}
@@ -0,0 +1,688 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.AbstractHttpServerConnection;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.io.BufferInfo;
+import org.apache.http.io.EofSensor;
+import org.apache.http.io.HttpTransportMetrics;
+import org.apache.http.io.SessionInputBuffer;
+import org.apache.http.io.SessionOutputBuffer;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.CharArrayBuffer;
+
+/**
+ * <code>BufferedHttpServerConnection</code> defines an
+ * internal <code>HttpServerConnection</code> that is
+ * backed by memory buffers instead of socket streams.
+ * It allows the non-blocking runtime to process a
+ * fully received request through the standard
+ * <code>HttpService</code> without ever blocking on
+ * the network. The response produced is collected in
+ * memory and handed back to the reactor for writing.
+ * <p>
+ * Since the request body has already been received
+ * when the connection is bound, any <code>Expect</code>
+ * header is removed from the received requests, so
+ * that no interim response is produced.
+ * <p>
+ * The file region entities are not collected in
+ * memory. Their regions are memory-mapped and handed
+ * back to the reactor separately, to be written after
+ * the collected response headers.
+ * <p>
+ * The entities of unknown length are not collected in
+ * memory either. Their data is handed to the owning
+ * <code>NioConnection</code> as it is produced, in
+ * blocks of the socket buffer size, which blocks the
+ * worker while the client is not keeping up. The
+ * flushes of a streaming entity hand over the data
+ * produced so far immediately.
+ * <p>
+ * The session buffers, the request parser and the
+ * response writer are created once for the connection
+ * and reused by every request. The request data is
+ * read in place from the buffer of the owning
+ * connection, and the response is written directly to
+ * the response buffer without an intermediate copy.
+ * The array collecting the response is handed over to
+ * the owning connection as is, and recycled once the
+ * connection has written it.
+ * <p>
+ * <code>BufferedHttpServerConnection</code> is bound
+ * to a single request at a time by the worker that
+ * processes the request.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.4
+ */
+class BufferedHttpServerConnection extends AbstractHttpServerConnection implements HttpInetConnection {
+	/**
+	 * The <code>int</code> maximum capacity of a written
+	 * response array that is recycled.
+	 */
+	private static final int RECYCLED_CAPACITY = 64 * 1024;
+	/**
+	 * The <code>NioConnection</code> that streams the
+	 * response data.
+	 */
+	private final NioConnection connection;
+	/**
+	 * The <code>Socket</code> of the actual connection
+	 * used to provide the address information.
+	 */
+	private final Socket socket;
+	/**
+	 * The <code>HttpParams</code> instance.
+	 */
+	private final HttpParams params;
+	/**
+	 * The <code>ResponseBuffer</code> that collects the
+	 * response data.
+	 */
+	private final ResponseBuffer outstream;
+	/**
+	 * The <code>InputBuffer</code> reading the bound
+	 * request data.
+	 */
+	private final InputBuffer inbuffer;
+	/**
+	 * The <code>OutputBuffer</code> writing to the
+	 * response buffer.
+	 */
+	private final OutputBuffer outbuffer;
+	/**
+	 * The array of memory-mapped <code>ByteBuffer</code>
+	 * of the file region entity sent. <code>null</code>
+	 * if there is none.
+	 */
+	private ByteBuffer[] regions;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * connection is currently open.
+	 */
+	private volatile boolean open;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * connection should be kept alive after the
+	 * current response is written.
+	 */
+	private volatile boolean keepAlive;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * request header is being parsed. If the parsing
+	 * failed, the parser is left in the middle of the
+	 * failed request and must be recreated.
+	 */
+	private boolean parsing;
+
+	/**
+	 * Constructor of <code>BufferedHttpServerConnection</code>.
+	 * @param connection The <code>NioConnection</code>
+	 * to stream the response data with.
+	 * @param socket The <code>Socket</code> of the
+	 * actual connection.
+	 * @param params The <code>HttpParams</code> of the
+	 * HTTP service.
+	 */
+	BufferedHttpServerConnection(final NioConnection connection, final Socket socket, final HttpParams params) {
+		this.connection = connection;
+		this.socket = socket;
+		this.params = params;
+		this.outstream = new ResponseBuffer(params.getIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8192));
+		this.inbuffer = new InputBuffer();
+		this.outbuffer = new OutputBuffer(this.outstream);
+		this.init(this.inbuffer, this.outbuffer, params);
+	}
+
+	/**
+	 * Bind the connection to the given region of the
+	 * request data. The session buffers, the parser and
+	 * the writer of the connection are reused, and the
+	 * request data is read in place, so the region must
+	 * not be modified until the request is processed.
+	 * @param data The <code>byte</code> array of the
+	 * complete request data.
+	 * @param offset The <code>int</code> offset of the
+	 * request in the data.
+	 * @param length The <code>int</code> length of the
+	 * request.
+	 */
+	void bind(final byte[] data, final int offset, final int length) {
+		this.outstream.reset();
+		this.regions = null;
+		this.inbuffer.bind(data, offset, length);
+		if (this.parsing) {
+			this.init(this.inbuffer, this.outbuffer, this.params);
+			this.parsing = false;
+		}
+		this.open = true;
+		this.keepAlive = true;
+	}
+
+	/**
+	 * Take the response data produced since the
+	 * connection was last bound. The array of the data
+	 * is handed over without copying, and should be
+	 * given back with <code>recycle</code> once written.
+	 * @return The <code>ByteBuffer</code> of the data.
+	 * <code>null</code> if there is none.
+	 */
+	ByteBuffer takeOutput() {
+		return this.outstream.take();
+	}
+
+	/**
+	 * Give back the given buffer taken from the
+	 * connection once it has been written, so its
+	 * array is reused for the following responses.
+	 * The buffers that are read-only or not backed by
+	 * an array are ignored. This method is thread-safe.
+	 * @param buffer The written <code>ByteBuffer</code>.
+	 */
+	void recycle(final ByteBuffer buffer) {
+		if (!buffer.hasArray() || buffer.isReadOnly()) return;
+		final byte[] array = buffer.array();
+		if (array.length > RECYCLED_CAPACITY) return;
+		this.outstream.spare.compareAndSet(null, array);
+	}
+
+	/**
+	 * Retrieve the memory-mapped regions of the file
+	 * region entity sent since the connection was last
+	 * bound, which must be written after the output.
+	 * @return The array of <code>ByteBuffer</code>.
+	 * <code>null</code> if there is none.
+	 */
+	ByteBuffer[] takeRegions() {
+		final ByteBuffer[] taken = this.regions;
+		this.regions = null;
+		return taken;
+	}
+
+	/**
+	 * Check if the connection should be kept alive
+	 * after the produced response is written.
+	 * @return <code>true</code> if connection should
+	 * be kept alive.
+	 */
+	boolean isKeepAlive() {
+		return this.keepAlive;
+	}
+
+	@Override
+	public HttpRequest receiveRequestHeader() throws HttpException, IOException {
+		this.parsing = true;
+		final HttpRequest request = super.receiveRequestHeader();
+		this.parsing = false;
+		// Body is already received.
+		request.removeHeaders("Expect");
+		return request;
+	}
+
+	@Override
+	public void sendResponseEntity(final HttpResponse response) throws HttpException, IOException {
+		final HttpEntity entity = response.getEntity();
+		if (entity instanceof FileRegionEntity) {
+			this.assertOpen();
+			this.doFlush();
+			this.regions = ((FileRegionEntity)entity).map();
+			return;
+		}
+		// Hand over the data of unknown length as produced.
+		if (entity == null || entity.getContentLength() >= 0) {
+			super.sendResponseEntity(response);
+			return;
+		}
+		this.outstream.draining = true;
+		this.outstream.flushing = entity.isStreaming();
+		try {
+			super.sendResponseEntity(response);
+		} finally {
+			this.outstream.draining = false;
+			this.outstream.flushing = false;
+		}
+	}
+
+	@Override
+	protected void assertOpen() throws IllegalStateException {
+		if (!this.open) throw new IllegalStateException("Connection is not open");
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!this.open) return;
+		this.doFlush();
+		this.open = false;
+		this.keepAlive = false;
+	}
+
+	@Override
+	public void shutdown() throws IOException {
+		this.open = false;
+		this.keepAlive = false;
+	}
+
+	@Override
+	public void setSocketTimeout(final int timeout) {}
+
+	@Override
+	public int getSocketTimeout() {
+		return this.params.getIntParameter(CoreConnectionPNames.SO_TIMEOUT, 0);
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return this.socket.getLocalAddress();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return this.socket.getLocalPort();
+	}
+
+	@Override
+	public InetAddress getRemoteAddress() {
+		return this.socket.getInetAddress();
+	}
+
+	@Override
+	public int getRemotePort() {
+		return this.socket.getPort();
+	}
+
+	/**
+	 * <code>ResponseBuffer</code> defines the output
+	 * stream that collects the response data in memory,
+	 * and hands the data over to the connection while
+	 * an entity of unknown length is written. The array
+	 * collecting the data is handed over as is, and is
+	 * replaced by the spare array recycled after the
+	 * previous data was written.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.1
+	 */
+	private class ResponseBuffer extends OutputStream {
+		/**
+		 * The <code>int</code> number of collected bytes
+		 * that are handed over while draining.
+		 */
+		private final int drainSize;
+		/**
+		 * The <code>AtomicReference</code> of the spare
+		 * <code>byte</code> array recycled after being
+		 * written by the connection.
+		 */
+		private final AtomicReference<byte[]> spare;
+		/**
+		 * The <code>byte</code> array of the collected
+		 * data. <code>null</code> if it has been handed
+		 * over.
+		 */
+		private byte[] data;
+		/**
+		 * The <code>int</code> number of collected bytes.
+		 */
+		private int count;
+		/**
+		 * The <code>boolean</code> flag indicating if the
+		 * collected data is handed over once it reaches
+		 * the drain size.
+		 */
+		private boolean draining;
+		/**
+		 * The <code>boolean</code> flag indicating if the
+		 * collected data is handed over when flushed.
+		 */
+		private boolean flushing;
+
+		/**
+		 * Constructor of <code>ResponseBuffer</code>.
+		 * @param drainSize The <code>int</code> number
+		 * of collected bytes that are handed over while
+		 * draining.
+		 */
+		private ResponseBuffer(final int drainSize) {
+			this.drainSize = drainSize;
+			this.spare = new AtomicReference<byte[]>();
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			this.ensureCapacity(this.count + 1);
+			this.data[this.count++] = (byte)b;
+			if (this.draining && this.count >= this.drainSize) this.drain();
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			this.ensureCapacity(this.count + len);
+			System.arraycopy(b, off, this.data, this.count, len);
+			this.count += len;
+			if (this.draining && this.count >= this.drainSize) this.drain();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (this.flushing) this.drain();
+		}
+
+		/**
+		 * Ensure the data array has at least the given
+		 * capacity, taking the spare array if the data
+		 * has been handed over.
+		 * @param capacity The <code>int</code> capacity.
+		 */
+		private void ensureCapacity(final int capacity) {
+			if (this.data == null) {
+				this.data = this.spare.getAndSet(null);
+				if (this.data == null) this.data = new byte[Math.max(capacity, this.drainSize)];
+			}
+			if (capacity <= this.data.length) return;
+			final byte[] expanded = new byte[Math.max(capacity, this.data.length << 1)];
+			System.arraycopy(this.data, 0, expanded, 0, this.count);
+			this.data = expanded;
+		}
+
+		/**
+		 * Hand the collected data over to the connection.
+		 * @throws IOException If the connection failed.
+		 */
+		private void drain() throws IOException {
+			final ByteBuffer taken = this.take();
+			if (taken != null) BufferedHttpServerConnection.this.connection.stream(taken);
+		}
+
+		/**
+		 * Discard the collected data.
+		 */
+		private void reset() {
+			this.count = 0;
+		}
+
+		/**
+		 * Take the collected data, handing over the
+		 * array collecting it.
+		 * @return The <code>ByteBuffer</code> of the
+		 * data. <code>null</code> if there is none.
+		 */
+		private ByteBuffer take() {
+			if (this.count == 0) return null;
+			final ByteBuffer taken = ByteBuffer.wrap(this.data, 0, this.count);
+			this.data = null;
+			this.count = 0;
+			return taken;
+		}
+	}
+
+	/**
+	 * <code>InputBuffer</code> defines the session
+	 * input buffer that reads the bound request data
+	 * in place. The lines are decoded as single byte
+	 * characters, which is exact for the default
+	 * <code>US-ASCII</code> element charset.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.0
+	 */
+	private static class InputBuffer implements SessionInputBuffer, BufferInfo, EofSensor {
+		/**
+		 * The <code>HttpTransportMetricsImpl</code>.
+		 */
+		private final HttpTransportMetricsImpl metrics;
+		/**
+		 * The bound <code>byte</code> array data.
+		 */
+		private byte[] data;
+		/**
+		 * The <code>int</code> position of the next byte
+		 * to read.
+		 */
+		private int position;
+		/**
+		 * The <code>int</code> end of the bound data.
+		 */
+		private int end;
+
+		/**
+		 * Constructor of <code>InputBuffer</code>.
+		 */
+		private InputBuffer() {
+			this.metrics = new HttpTransportMetricsImpl();
+		}
+
+		/**
+		 * Bind the buffer to the given region of data.
+		 * @param data The <code>byte</code> array data.
+		 * @param offset The <code>int</code> offset of
+		 * the region.
+		 * @param length The <code>int</code> length of
+		 * the region.
+		 */
+		private void bind(final byte[] data, final int offset, final int length) {
+			this.data = data;
+			this.position = offset;
+			this.end = offset + length;
+			this.metrics.incrementBytesTransferred(length);
+		}
+
+		@Override
+		public boolean isDataAvailable(final int timeout) {
+			return this.position < this.end;
+		}
+
+		@Override
+		public int read() {
+			if (this.position >= this.end) return -1;
+			return this.data[this.position++] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if (b == null) return 0;
+			if (this.position >= this.end) return -1;
+			final int count = Math.min(len, this.end - this.position);
+			System.arraycopy(this.data, this.position, b, off, count);
+			this.position += count;
+			return count;
+		}
+
+		@Override
+		public int read(final byte[] b) {
+			if (b == null) return 0;
+			return this.read(b, 0, b.length);
+		}
+
+		@Override
+		public int readLine(final CharArrayBuffer charbuffer) {
+			if (charbuffer == null) throw new IllegalArgumentException("Char array buffer may not be null");
+			if (this.position >= this.end) return -1;
+			final int off = this.position;
+			int lf = off;
+			while (lf < this.end && this.data[lf] != HTTP.LF) lf++;
+			int last = lf;
+			this.position = Math.min(lf + 1, this.end);
+			if (lf < this.end && last > off && this.data[last-1] == HTTP.CR) last--;
+			final int len = last - off;
+			charbuffer.ensureCapacity(len);
+			for (int i = off; i < last; i++) charbuffer.append((char)(this.data[i] & 0xff));
+			return len;
+		}
+
+		@Override
+		public String readLine() {
+			final CharArrayBuffer charbuffer = new CharArrayBuffer(64);
+			final int count = this.readLine(charbuffer);
+			if (count == -1) return null;
+			return charbuffer.toString();
+		}
+
+		@Override
+		public boolean isEof() {
+			return this.position >= this.end;
+		}
+
+		@Override
+		public HttpTransportMetrics getMetrics() {
+			return this.metrics;
+		}
+
+		@Override
+		public int capacity() {
+			return this.end - this.position;
+		}
+
+		@Override
+		public int length() {
+			return this.end - this.position;
+		}
+
+		@Override
+		public int available() {
+			return 0;
+		}
+	}
+
+	/**
+	 * <code>OutputBuffer</code> defines the session
+	 * output buffer that writes directly to the response
+	 * buffer, which already collects the data in memory.
+	 * The lines are encoded as single byte characters,
+	 * which is exact for the default <code>US-ASCII</code>
+	 * element charset.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.0
+	 */
+	private static class OutputBuffer implements SessionOutputBuffer, BufferInfo {
+		/**
+		 * The <code>OutputStream</code> to write to.
+		 */
+		private final OutputStream outstream;
+		/**
+		 * The <code>HttpTransportMetricsImpl</code>.
+		 */
+		private final HttpTransportMetricsImpl metrics;
+		/**
+		 * The <code>byte</code> array of the line being
+		 * encoded, grown as needed.
+		 */
+		private byte[] line;
+
+		/**
+		 * Constructor of <code>OutputBuffer</code>.
+		 * @param outstream The <code>OutputStream</code>
+		 * to write to.
+		 */
+		private OutputBuffer(final OutputStream outstream) {
+			this.outstream = outstream;
+			this.metrics = new HttpTransportMetricsImpl();
+			this.line = new byte[256];
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			if (b == null) return;
+			this.outstream.write(b, off, len);
+			this.metrics.incrementBytesTransferred(len);
+		}
+
+		@Override
+		public void write(final byte[] b) throws IOException {
+			if (b == null) return;
+			this.write(b, 0, b.length);
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			this.outstream.write(b);
+			this.metrics.incrementBytesTransferred(1);
+		}
+
+		@Override
+		public void writeLine(final String s) throws IOException {
+			if (s == null) return;
+			final int len = s.length();
+			this.ensureLineCapacity(len + 2);
+			for (int i = 0; i < len; i++) this.line[i] = (byte)s.charAt(i);
+			this.writeLine(len);
+		}
+
+		@Override
+		public void writeLine(final CharArrayBuffer charbuffer) throws IOException {
+			if (charbuffer == null) return;
+			final int len = charbuffer.length();
+			this.ensureLineCapacity(len + 2);
+			final char[] chars = charbuffer.buffer();
+			for (int i = 0; i < len; i++) this.line[i] = (byte)chars[i];
+			this.writeLine(len);
+		}
+
+		/**
+		 * Terminate the encoded line of the given length
+		 * and write it.
+		 * @param len The <code>int</code> length of the
+		 * encoded line.
+		 * @throws IOException If writing failed.
+		 */
+		private void writeLine(final int len) throws IOException {
+			this.line[len] = HTTP.CR;
+			this.line[len+1] = HTTP.LF;
+			this.write(this.line, 0, len + 2);
+		}
+
+		/**
+		 * Ensure the line buffer has at least the given
+		 * capacity.
+		 * @param capacity The <code>int</code> capacity.
+		 */
+		private void ensureLineCapacity(final int capacity) {
+			if (capacity <= this.line.length) return;
+			this.line = new byte[Math.max(capacity, this.line.length << 1)];
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.outstream.flush();
+		}
+
+		@Override
+		public HttpTransportMetrics getMetrics() {
+			return this.metrics;
+		}
+
+		@Override
+		public int capacity() {
+			return this.line.length;
+		}
+
+		@Override
+		public int length() {
+			return 0;
+		}
+
+		@Override
+		public int available() {
+			return this.line.length;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package hemera.core.apache.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * <code>CompressedEntity</code> defines an internal HTTP
+ * entity that compresses the data of another entity on
+ * the fly as it is written into the connection output,
+ * in either the gzip or the zlib based deflate format.
+ * The deflaters are borrowed from the pools of the
+ * <code>ResponseCompression</code> only for the duration
+ * of the write, and the time spent deflating is recorded
+ * along with the sizes of the data.
+ * <p>
+ * Since the length of the compressed data is not known
+ * until the entity is written, the entity is sent with
+ * the chunked transfer coding.
+ * <p>
+ * The flushes of a streaming entity flush the deflater
+ * as well, so the data written so far reaches the
+ * client instead of being held back by the deflater.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.1
+ */
+class CompressedEntity extends AbstractHttpEntity {
+	/**
+	 * The <code>byte</code> array of the fixed gzip
+	 * header without any optional fields.
+	 */
+	private static final byte[] GZIP_HEADER = {0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+	/**
+	 * The <code>int</code> size of the gzip trailer.
+	 */
+	private static final int GZIP_TRAILER_SIZE = 8;
+	/**
+	 * The <code>HttpEntity</code> to compress.
+	 */
+	private final HttpEntity entity;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * data is compressed in the gzip format.
+	 */
+	private final boolean gzip;
+	/**
+	 * The <code>ResponseCompression</code> providing
+	 * the deflaters and recording the metrics.
+	 */
+	private final ResponseCompression compression;
+
+	/**
+	 * Constructor of <code>CompressedEntity</code>.
+	 * @param entity The <code>HttpEntity</code> to
+	 * compress.
+	 * @param gzip The <code>boolean</code> flag
+	 * indicating if the data should be compressed in
+	 * the gzip format instead of the deflate format.
+	 * @param compression The <code>ResponseCompression</code>
+	 * providing the deflaters and recording the metrics.
+	 */
+	CompressedEntity(final HttpEntity entity, final boolean gzip, final ResponseCompression compression) {
+		this.entity = entity;
+		this.gzip = gzip;
+		this.compression = compression;
+		this.setContentType(entity.getContentType());
+		this.setContentEncoding(gzip ? "gzip" : "deflate");
+		this.setChunked(true);
+	}
+
+	@Override
+	public void writeTo(final OutputStream outstream) throws IOException {
+		if (outstream == null) throw new IllegalArgumentException("Output stream may not be null");
+		final Deflater deflater = this.compression.acquireDeflater(this.gzip);
+		try {
+			final TimedDeflaterOutputStream deflated = new TimedDeflaterOutputStream(outstream, deflater, this.gzip, this.entity.isStreaming());
+			if (this.gzip) outstream.write(GZIP_HEADER);
+			this.entity.writeTo(deflated);
+			deflated.finish();
+			long size = deflater.getBytesWritten();
+			if (this.gzip) {
+				this.writeInt(outstream, (int)deflated.crc.getValue());
+				this.writeInt(outstream, (int)deflater.getBytesRead());
+				size += GZIP_HEADER.length + GZIP_TRAILER_SIZE;
+			}
+			outstream.flush();
+			this.compression.record(deflater.getBytesRead(), size, deflated.time);
+		} finally {
+			this.compression.releaseDeflater(deflater, this.gzip);
+		}
+	}
+
+	/**
+	 * Write the given integer in the little-endian
+	 * order of the gzip trailer.
+	 * @param outstream The <code>OutputStream</code>
+	 * to write to.
+	 * @param value The <code>int</code> value.
+	 * @throws IOException If writing failed.
+	 */
+	private void writeInt(final OutputStream outstream, final int value) throws IOException {
+		outstream.write(value & 0xff);
+		outstream.write((value >> 8) & 0xff);
+		outstream.write((value >> 16) & 0xff);
+		outstream.write((value >> 24) & 0xff);
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		final ByteArrayOutputStream outstream = new ByteArrayOutputStream();
+		this.writeTo(outstream);
+		return new ByteArrayInputStream(outstream.toByteArray());
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return this.entity.isRepeatable();
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return this.entity.isStreaming();
+	}
+
+	/**
+	 * <code>TimedDeflaterOutputStream</code> defines the
+	 * deflater stream that measures the time spent in
+	 * the deflater, excluding the time spent writing
+	 * the compressed data into the connection, and that
+	 * computes the checksum of the gzip format. Closing
+	 * the stream only finishes the compression, leaving
+	 * the connection output open.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.0
+	 */
+	private static class TimedDeflaterOutputStream extends DeflaterOutputStream {
+		/**
+		 * The <code>CRC32</code> checksum of the data.
+		 * <code>null</code> if not in the gzip format.
+		 */
+		private final CRC32 crc;
+		/**
+		 * The <code>long</code> time spent compressing
+		 * in nanoseconds.
+		 */
+		private long time;
+
+		/**
+		 * Constructor of <code>TimedDeflaterOutputStream</code>.
+		 * @param outstream The <code>OutputStream</code>
+		 * of the compressed data.
+		 * @param deflater The <code>Deflater</code> to
+		 * use.
+		 * @param gzip The <code>boolean</code> flag
+		 * indicating if the checksum should be computed.
+		 * @param syncFlush The <code>boolean</code> flag
+		 * indicating if flushing should flush the deflater.
+		 */
+		private TimedDeflaterOutputStream(final OutputStream outstream, final Deflater deflater, final boolean gzip, final boolean syncFlush) {
+			super(outstream, deflater, 8192, syncFlush);
+			this.crc = gzip ? new CRC32() : null;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			if (this.crc != null) {
+				final long start = System.nanoTime();
+				this.crc.update(b, off, len);
+				this.time += System.nanoTime() - start;
+			}
+			super.write(b, off, len);
+		}
+
+		@Override
+		protected void deflate() throws IOException {
+			final long start = System.nanoTime();
+			final int length = this.def.deflate(this.buf, 0, this.buf.length);
+			this.time += System.nanoTime() - start;
+			if (length > 0) this.out.write(this.buf, 0, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.finish();
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package hemera.core.apache.runtime;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <code>ConcurrentLruCache</code> defines an internal
+ * bounded cache that evicts the least recently used
+ * entries once its capacity is reached.
+ * <p>
+ * The cache is split into a number of segments
+ * selected by the key hash, each of which holds its
+ * share of the capacity. The entries of a segment are
+ * read from a concurrent map without locking, while
+ * the access order is kept by an access ordered map
+ * guarded by the lock of the segment. A read only
+ * records its access if the lock is free, so under
+ * contention the eviction order is approximate, and
+ * it is only exact within each segment.
+ * <p>
+ * The cache has a generation that is incremented
+ * whenever it is cleared, so the values computed
+ * before the cache is cleared can be discarded
+ * instead of stored.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.1
+ */
+class ConcurrentLruCache<K, V> {
+	/**
+	 * The <code>int</code> number of segments.
+	 */
+	private static final int SEGMENT_COUNT = 16;
+	/**
+	 * The array of <code>Segment</code>.
+	 */
+	private final Segment<K, V>[] segments;
+	/**
+	 * The <code>AtomicLong</code> generation that is
+	 * incremented whenever the cache is cleared.
+	 */
+	private final AtomicLong generation;
+
+	/**
+	 * Constructor of <code>ConcurrentLruCache</code>.
+	 * @param capacity The <code>int</code> maximum
+	 * number of entries.
+	 */
+	@SuppressWarnings("unchecked")
+	ConcurrentLruCache(final int capacity) {
+		final int segmentCapacity = Math.max(1, (capacity + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+		this.segments = (Segment<K, V>[])new Segment<?, ?>[SEGMENT_COUNT];
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			this.segments[i] = new Segment<K, V>(segmentCapacity);
+		}
+		this.generation = new AtomicLong();
+	}
+
+	/**
+	 * Retrieve the value of the given key without
+	 * waiting for the segment lock.
+	 * @param key The <code>K</code> key.
+	 * @return The <code>V</code> value. <code>null</code>
+	 * if there is no such entry.
+	 */
+	V get(final K key) {
+		final Segment<K, V> segment = this.segmentFor(key);
+		final V value = segment.values.get(key);
+		if (value != null && segment.lock.tryLock()) {
+			try {
+				segment.order.get(key);
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Retrieve the current generation of the cache,
+	 * which should be retrieved before computing a
+	 * value to store.
+	 * @return The <code>long</code> generation.
+	 */
+	long getGeneration() {
+		return this.generation.get();
+	}
+
+	/**
+	 * Store the given entry, evicting the least
+	 * recently used entry of the segment if full.
+	 * @param key The <code>K</code> key.
+	 * @param value The <code>V</code> value.
+	 */
+	void put(final K key, final V value) {
+		final Segment<K, V> segment = this.segmentFor(key);
+		segment.lock.lock();
+		try {
+			segment.put(key, value);
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * Store the given entry if the cache has not been
+	 * cleared since the given generation, evicting the
+	 * least recently used entry of the segment if full.
+	 * @param key The <code>K</code> key.
+	 * @param value The <code>V</code> value.
+	 * @param generation The <code>long</code> generation
+	 * retrieved before the value was computed.
+	 * @return <code>true</code> if the entry is stored.
+	 */
+	boolean put(final K key, final V value, final long generation) {
+		final Segment<K, V> segment = this.segmentFor(key);
+		segment.lock.lock();
+		try {
+			// The generation is incremented before the
+			// segments are cleared under their locks.
+			if (this.generation.get() != generation) return false;
+			segment.put(key, value);
+			return true;
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the entry of the given key.
+	 * @param key The <code>K</code> key.
+	 * @return The removed <code>V</code> value.
+	 * <code>null</code> if there is no such entry.
+	 */
+	V remove(final K key) {
+		final Segment<K, V> segment = this.segmentFor(key);
+		segment.lock.lock();
+		try {
+			segment.order.remove(key);
+			return segment.values.remove(key);
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove all the entries, and increment the
+	 * generation of the cache.
+	 */
+	void clear() {
+		this.generation.incrementAndGet();
+		for (int i = 0; i < this.segments.length; i++) {
+			final Segment<K, V> segment = this.segments[i];
+			segment.lock.lock();
+			try {
+				segment.order.clear();
+				segment.values.clear();
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Retrieve the number of cached entries.
+	 * @return The <code>int</code> size.
+	 */
+	int size() {
+		int size = 0;
+		for (int i = 0; i < this.segments.length; i++) {
+			size += this.segments[i].values.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Retrieve the segment of the given key.
+	 * @param key The <code>K</code> key.
+	 * @return The <code>Segment</code>.
+	 */
+	private Segment<K, V> segmentFor(final K key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return this.segments[hash & (SEGMENT_COUNT-1)];
+	}
+
+	/**
+	 * <code>Segment</code> defines a share of the
+	 * entries with a fixed capacity.
+	 *
+	 * @param <K> The key type.
+	 * @param <V> The value type.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.1
+	 */
+	private static class Segment<K, V> {
+		/**
+		 * The <code>int</code> capacity.
+		 */
+		private final int capacity;
+		/**
+		 * The <code>ReentrantLock</code> guarding the
+		 * access order and the modifications.
+		 */
+		private final ReentrantLock lock;
+		/**
+		 * The <code>ConcurrentHashMap</code> of the
+		 * entries read without locking.
+		 */
+		private final ConcurrentHashMap<K, V> values;
+		/**
+		 * The access ordered <code>LinkedHashMap</code>
+		 * of the keys.
+		 */
+		private final LinkedHashMap<K, Boolean> order;
+
+		/**
+		 * Constructor of <code>Segment</code>.
+		 * @param capacity The <code>int</code> capacity.
+		 */
+		private Segment(final int capacity) {
+			this.capacity = capacity;
+			this.lock = new ReentrantLock();
+			this.values = new ConcurrentHashMap<K, V>();
+			this.order = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+		}
+
+		/**
+		 * Store the given entry and evict the least
+		 * recently used entry if full. The lock must
+		 * be held.
+		 * @param key The <code>K</code> key.
+		 * @param value The <code>V</code> value.
+		 */
+		private void put(final K key, final V value) {
+			this.values.put(key, value);
+			this.order.put(key, Boolean.TRUE);
+			if (this.order.size() <= this.capacity) return;
+			final Map.Entry<K, Boolean> eldest = this.order.entrySet().iterator().next();
+			this.order.remove(eldest.getKey());
+			this.values.remove(eldest.getKey());
+		}
+	}
+}
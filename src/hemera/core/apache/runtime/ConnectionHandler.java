@@ -1,11 +1,12 @@
 package hemera.core.apache.runtime;
 
 import java.io.IOException;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.ConnectionClosedException;
 import org.apache.http.HttpException;
-import org.apache.http.HttpServerConnection;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpService;
@@ -20,42 +21,126 @@ import hemera.core.execution.interfaces.task.ICyclicTask;
  * task by the <code>ConnectionListener</code> after
  * a new connection is accepted.
  * <p>
+ * In the thread connection mode, the handler is run
+ * by a dedicated thread instead, which repeatedly
+ * executes the handler until it terminates.
+ * <p>
+ * If an <code>IdleConnectionPoller</code> is given,
+ * the handler parks the connection with the poller
+ * whenever there is no more buffered request data,
+ * instead of blocking the executing thread on reading
+ * the next request. The handler then terminates
+ * without closing the connection, and the poller
+ * submits a resumed handler once more data arrives.
+ * <p>
  * <code>ConnectionHandler</code> will terminate if
  * the connection is closed or any IO error occurs.
  *
  * @author Yi Wang (Neakor)
- * @version 1.0.0
+ * @version 1.0.2
  */
-class ConnectionHandler implements ICyclicTask {
+class ConnectionHandler implements ICyclicTask, Runnable {
 	/**
 	 * The <code>HttpService</code> instance used by
 	 * the connection listener.
 	 */
 	private final HttpService httpService;
 	/**
-	 * The <code>HttpServerConnection</code> accepted
-	 * by the connection listener that this handler is
-	 * responsible for.
+	 * The <code>ManagedHttpServerConnection</code>
+	 * accepted by the connection listener that this
+	 * handler is responsible for.
 	 */
-	private final HttpServerConnection connection;
+	private final ManagedHttpServerConnection connection;
 	/**
 	 * The <code>HttpContext</code> shared by all the
 	 * requests received in the responsible connection.
 	 */
 	private final HttpContext context;
+	/**
+	 * The <code>AtomicInteger</code> count of live
+	 * connections of the listener.
+	 */
+	private final AtomicInteger liveCount;
+	/**
+	 * The <code>AdmissionController</code> that
+	 * admitted the connection.
+	 */
+	private final AdmissionController admission;
+	/**
+	 * The optional <code>IdleConnectionPoller</code>
+	 * to park the idle connection with.
+	 */
+	private final IdleConnectionPoller poller;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * connection should be parked when the handler
+	 * is cleaned up.
+	 */
+	private boolean park;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * handler has been cleaned up.
+	 */
+	private boolean cleaned;
+	/**
+	 * The <code>long</code> time in milliseconds when
+	 * the connection was parked.
+	 */
+	private volatile long parkTime;
 
 	/**
 	 * Constructor of <code>ConnectionHandler</code>.
 	 * @param httpService The <code>HttpService</code>
 	 * instance used by the connection listener.
-	 * @param connection The <code>HttpServerConnection</code>
+	 * @param connection The <code>ManagedHttpServerConnection</code>
 	 * accepted by the connection listener that this
 	 * handler is responsible for.
+	 * @param liveCount The <code>AtomicInteger</code>
+	 * count of live connections of the listener, which
+	 * is decremented when the connection is closed.
+	 * @param admission The <code>AdmissionController</code>
+	 * that admitted the connection, which is released
+	 * when the connection is closed.
+	 * @param poller The optional <code>IdleConnectionPoller</code>
+	 * to park the idle connection with. <code>null</code>
+	 * if the connection should not be parked.
 	 */
-	ConnectionHandler(final HttpService httpService, final HttpServerConnection connection) {
+	ConnectionHandler(final HttpService httpService, final ManagedHttpServerConnection connection, final AtomicInteger liveCount,
+			final AdmissionController admission, final IdleConnectionPoller poller) {
 		this.httpService = httpService;
 		this.connection = connection;
 		this.context = new BasicHttpContext();
+		this.liveCount = liveCount;
+		this.admission = admission;
+		this.poller = poller;
+	}
+
+	/**
+	 * Constructor of <code>ConnectionHandler</code>.
+	 * <p>
+	 * Create a handler that resumes the connection of
+	 * the given parked handler.
+	 * @param parked The parked <code>ConnectionHandler</code>.
+	 */
+	private ConnectionHandler(final ConnectionHandler parked) {
+		this.httpService = parked.httpService;
+		this.connection = parked.connection;
+		this.context = parked.context;
+		this.liveCount = parked.liveCount;
+		this.admission = parked.admission;
+		this.poller = parked.poller;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (this.execute());
+		} catch (final Exception ignore) {
+		} finally {
+			try {
+				this.cleanup();
+			} catch (final Exception ignore) {}
+		}
 	}
 
 	@Override
@@ -65,7 +150,17 @@ class ConnectionHandler implements ICyclicTask {
 			if (!this.connection.isOpen()) return false;
 			// Dispatch requests to request router.
 			else {
-				this.httpService.handleRequest(this.connection, this.context);
+				this.connection.handshake();
+				try {
+					this.httpService.handleRequest(this.connection, this.context);
+				} finally {
+					RequestHandler.releaseDeferred(this.context);
+				}
+				// Park the connection if there is no more data.
+				if (this.poller != null && this.connection.isOpen() && !this.connection.hasBufferedInput()) {
+					this.park = true;
+					return false;
+				}
 				return true;
 			}
 		} catch (final ConnectionClosedException e) {
@@ -79,18 +174,89 @@ class ConnectionHandler implements ICyclicTask {
 			return false;
 		}
 	}
-	
+
+	/**
+	 * Park the connection with the poller immediately
+	 * without reading any data. This is used to park
+	 * newly accepted connections.
+	 */
+	void park() {
+		this.park = true;
+		this.cleaned = true;
+		this.parkTime = System.currentTimeMillis();
+		this.poller.park(this);
+	}
+
+	/**
+	 * Create a new handler to resume serving the
+	 * parked connection.
+	 * @return The resuming <code>ConnectionHandler</code>.
+	 */
+	ConnectionHandler resume() {
+		return new ConnectionHandler(this);
+	}
+
+	/**
+	 * Close the parked connection since it has been
+	 * idle for too long or the poller is terminating.
+	 */
+	void expire() {
+		this.release();
+	}
+
+	/**
+	 * Retrieve the socket channel of the connection.
+	 * @return The <code>SocketChannel</code>.
+	 */
+	SocketChannel getChannel() {
+		return this.connection.getChannel();
+	}
+
+	/**
+	 * Retrieve the time when the connection was
+	 * parked.
+	 * @return The <code>long</code> time in
+	 * milliseconds.
+	 */
+	long getParkTime() {
+		return this.parkTime;
+	}
+
 	@Override
 	public void cleanup() throws Exception {
+		synchronized (this) {
+			if (this.cleaned) return;
+			this.cleaned = true;
+		}
+		// Hand the open connection to the poller.
+		if (this.park && this.connection.isOpen()) {
+			this.parkTime = System.currentTimeMillis();
+			this.poller.park(this);
+		} else {
+			this.release();
+		}
+	}
+
+	/**
+	 * Close the connection, release the connection from
+	 * the counters and return its buffers to the pool.
+	 */
+	private void release() {
+		this.liveCount.decrementAndGet();
+		this.admission.releaseConnection();
 		try {
 			if (this.connection.isOpen()) {
 				this.connection.shutdown();
 			}
-		} catch (final IOException ignore) {}
+		} catch (final IOException ignore) {
+		} finally {
+			this.connection.releaseBuffers();
+		}
 	}
 
 	@Override
 	public void signalTerminate() throws Exception {
+		this.park = false;
 		this.connection.shutdown();
 	}
 
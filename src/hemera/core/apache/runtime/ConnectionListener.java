@@ -1,40 +1,19 @@
 package hemera.core.apache.runtime;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
 
-import org.apache.http.HttpResponseInterceptor;
-import org.apache.http.impl.DefaultConnectionReuseStrategy;
-import org.apache.http.impl.DefaultHttpResponseFactory;
-import org.apache.http.impl.DefaultHttpServerConnection;
-import org.apache.http.params.CoreConnectionPNames;
-import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
-import org.apache.http.params.SyncBasicHttpParams;
-import org.apache.http.protocol.HttpProcessor;
-import org.apache.http.protocol.HttpRequestHandlerRegistry;
 import org.apache.http.protocol.HttpService;
-import org.apache.http.protocol.ImmutableHttpProcessor;
-import org.apache.http.protocol.ResponseConnControl;
-import org.apache.http.protocol.ResponseContent;
-import org.apache.http.protocol.ResponseDate;
-import org.apache.http.protocol.ResponseServer;
 
 import hemera.core.execution.interfaces.IExecutionService;
 import hemera.core.execution.interfaces.task.ICyclicTask;
@@ -48,13 +27,31 @@ import hemera.core.utility.logging.FileLogger;
  * instance that handles the dispatching of all the
  * requests sent in that connection. This handler
  * instance is submitted to the execution service for
- * execution.
+ * execution, or run by a dedicated thread if the
+ * listener is in the thread connection mode.
+ * <p>
+ * The handlers run by dedicated threads are tracked
+ * until they exit, so their connections are closed
+ * when the listener is terminated.
+ * <p>
+ * The listener keeps track of the number of accepted
+ * connections that are still open. Multiple listeners
+ * may accept on the same server socket concurrently,
+ * each serving its own set of connections.
+ * <p>
+ * Connections beyond the limit of the runtime's
+ * <code>AdmissionController</code> are rejected with
+ * a canned response right after being accepted.
+ * <p>
+ * If an <code>IdleConnectionPoller</code> is given,
+ * the accepted plain connections are parked with the
+ * poller until the first request data arrives.
  * <p>
  * <code>ConnectionListener</code> terminates itself
  * if an IO error occurs when accepting connections.
  *
  * @author Yi Wang (Neakor)
- * @version 1.0.0
+ * @version 1.0.3
  */
 class ConnectionListener implements ICyclicTask {
 	/**
@@ -78,167 +75,193 @@ class ConnectionListener implements ICyclicTask {
 	 * The <code>HTTPService</code> instance.
 	 */
 	private final HttpService httpService;
+	/**
+	 * The <code>ConnectionThreadFactory</code> used to
+	 * create the dedicated connection threads in the
+	 * thread connection mode. <code>null</code> if the
+	 * handlers are submitted to the execution service.
+	 */
+	private final ConnectionThreadFactory threadFactory;
+	/**
+	 * The <code>Set</code> of <code>ConnectionHandler</code>
+	 * currently run by dedicated threads.
+	 */
+	private final Set<ConnectionHandler> threadHandlers;
+	/**
+	 * The <code>AtomicInteger</code> count of the live
+	 * connections.
+	 */
+	private final AtomicInteger liveCount;
+	/**
+	 * The <code>AdmissionController</code> instance.
+	 */
+	private final AdmissionController admission;
+	/**
+	 * The optional <code>IdleConnectionPoller</code>
+	 * used to park idle connections.
+	 */
+	private final IdleConnectionPoller poller;
+	/**
+	 * The optional <code>TlsContext</code> of the
+	 * secure connections.
+	 */
+	private final TlsContext tls;
+	/**
+	 * The <code>BufferPool</code> the connections
+	 * borrow their session buffers from.
+	 */
+	private final BufferPool bufferPool;
 
 	/**
 	 * Constructor of <code>ConnectionListener</code>.
 	 * @param service The <code>IExecutionService</code>
 	 * used by the runtime environment.
-	 * @param port The <code>int</code> port the listener
-	 * should listen on.
-	 * @param timeout The <code>int</code> socket
-	 * connection timeout value in milliseconds.
-	 * @param buffersize The <code>int</code> socket
-	 * buffer size value in bytes.
-	 * @param certPath The <code>String</code> optional
-	 * SSL connection certificate path.
-	 * @param keyPass The <code>String</code> optional
-	 * password used to protect the certificate public
-	 * key.
-	 * @param appname The <code>String</code> server
-	 * application name used for HTTP response header.
-	 * @param handler The <code>RequestHandler</code>
-	 * used by the runtime environment to route the
-	 * received requests to corresponding processors.
-	 * @throws IOException If server socket creation
-	 * failed.
-	 * @throws CertificateException If loading certificate
-	 * failed.
-	 * @throws NoSuchAlgorithmException  If initialize key
-	 * store failed.
-	 * @throws KeyStoreException  If initialize key
-	 * store failed.
-	 * @throws UnrecoverableKeyException If initialize
-	 * key store failed.
-	 * @throws KeyManagementException If initialize
-	 * key store failed.
-	 */
-	ConnectionListener(final IExecutionService service, final int port,
-			final int timeout, final int buffersize, final String certPath,
-			final String keyPass, final String appname, final RequestHandler handler) throws IOException,
-			KeyManagementException, UnrecoverableKeyException, KeyStoreException, NoSuchAlgorithmException, CertificateException {
+	 * @param serverSocket The bound <code>ServerSocket</code>
+	 * to accept connections on. The socket may be shared
+	 * with other listeners.
+	 * @param httpParams The <code>HttpParams</code>
+	 * the accepted connections are bound with.
+	 * @param httpService The <code>HttpService</code>
+	 * used to dispatch the received requests.
+	 * @param threadFactory The <code>ConnectionThreadFactory</code>
+	 * used to create dedicated connection threads.
+	 * <code>null</code> if connection handlers should
+	 * be submitted to the execution service.
+	 * @param admission The <code>AdmissionController</code>
+	 * used to admit the accepted connections.
+	 * @param poller The optional <code>IdleConnectionPoller</code>
+	 * used to park idle connections. <code>null</code>
+	 * if connections should not be parked.
+	 * @param tls The optional <code>TlsContext</code>
+	 * of the secure connections. <code>null</code> if
+	 * the connections are plain.
+	 * @param bufferPool The <code>BufferPool</code> the
+	 * connections borrow their session buffers from.
+	 */
+	ConnectionListener(final IExecutionService service, final ServerSocket serverSocket, final HttpParams httpParams,
+			final HttpService httpService, final ConnectionThreadFactory threadFactory, final AdmissionController admission,
+			final IdleConnectionPoller poller, final TlsContext tls, final BufferPool bufferPool) {
 		this.logger = FileLogger.getLogger(this.getClass());
 		this.service = service;
-		// Create server socket.
-		this.serverSocket = this.initServerSocket(certPath, keyPass, port);
-		// Setup HTTP parameters.
-		this.httpParams = this.initHttpParameters(timeout, buffersize, appname);
-		// Set up the HTTP protocol processor, using the basic chain.
-		final HttpProcessor httpprocessor = new ImmutableHttpProcessor(new HttpResponseInterceptor[] {
-				new ResponseDate(), new ResponseServer(), new ResponseContent(), new ResponseConnControl()
-		});
-		// Set up request handler that is invoked when the
-		// connection handler dispatches a request.
-		final HttpRequestHandlerRegistry handlerReqistry = new HttpRequestHandlerRegistry();
-		handlerReqistry.register("*", handler);
-		// Set up the HTTP service.
-		this.httpService = new HttpService(httpprocessor, new DefaultConnectionReuseStrategy(),
-				new DefaultHttpResponseFactory(), handlerReqistry, this.httpParams);
-		// Log.
-		if (certPath == null) {
-			this.logger.info("Connection listener opened on port " + port);
-		} else {
-			this.logger.info("SSL connection listener opened on port " + port);
-		}
-	}
-	
-	/**
-	 * Create and initialize the server socket using
-	 * the certificate at the given path protected
-	 * by given password and listens on the given port.
-	 * @param certPath The <code>String</code> optional
-	 * path to the SSL certificate.
-	 * @param keyPass The <code>String</code> optional
-	 * password used to protect the certificate public
-	 * key.
-	 * @param port The <code>int</code> port to listen
-	 * on.
-	 * @return The <code>ServerSocket</code> instance.
-	 * @throws KeyManagementException If initialize key
-	 * store failed.
-	 * @throws UnrecoverableKeyException If initialize
-	 * key store failed.
-	 * @throws KeyStoreException If initialize key store
-	 * failed.
-	 * @throws NoSuchAlgorithmException If initialize key
-	 * store failed.
-	 * @throws CertificateException If loading certificate
-	 * failed.
-	 * @throws FileNotFoundException If certificate path
-	 * is invalid.
-	 * @throws IOException If certificate is invalid.
-	 */
-	private ServerSocket initServerSocket(final String certPath, final String keyPass, final int port) throws KeyManagementException,
-	UnrecoverableKeyException, KeyStoreException, NoSuchAlgorithmException, CertificateException, FileNotFoundException, IOException {
-		// Plain server socket.
-		if (certPath == null) return new ServerSocket(port);
-		// SSL server socket.
-		else {
-			final SSLContext context = SSLContext.getInstance("SSL");
-			final KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-			final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-			final char[] keyPassChars = keyPass.toCharArray();
-			keyStore.load(new FileInputStream(certPath), keyPassChars);
-			keyFactory.init(keyStore, keyPassChars);
-			context.init(keyFactory.getKeyManagers(), null, new SecureRandom());
-			final SSLServerSocketFactory serverFactory = context.getServerSocketFactory();
-			return serverFactory.createServerSocket(port);
-		}
-	}
-	
-	/**
-	 * Create and initialize the Http parameters.
-	 * @param timeout The <code>int</code> socket
-	 * connection timeout value in milliseconds.
-	 * @param buffersize The <code>int</code> socket
-	 * buffer size value in bytes.
-	 * @param appname The <code>String</code> server
-	 * application name used for HTTP response header.
-	 * @return The <code>HttpParams</code> instance.
-	 */
-	private HttpParams initHttpParameters(final int timeout, final int buffersize, final String appname) {
-		final HttpParams httpParams = new SyncBasicHttpParams();
-		httpParams.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, timeout);
-		httpParams.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, buffersize);
-		httpParams.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false);
-		httpParams.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true);
-		httpParams.setBooleanParameter(CoreConnectionPNames.SO_KEEPALIVE, true);
-		httpParams.setParameter(CoreProtocolPNames.ORIGIN_SERVER, appname);
-		return httpParams;
+		this.serverSocket = serverSocket;
+		this.httpParams = httpParams;
+		this.httpService = httpService;
+		this.threadFactory = threadFactory;
+		this.threadHandlers = Collections.newSetFromMap(new ConcurrentHashMap<ConnectionHandler, Boolean>());
+		this.liveCount = new AtomicInteger();
+		this.admission = admission;
+		this.poller = poller;
+		this.tls = tls;
+		this.bufferPool = bufferPool;
 	}
-	
+
 	@Override
 	public boolean execute() throws Exception {
 		try {
 			// Accept new HTTP connection.
 			final Socket socket = this.serverSocket.accept();
-			final DefaultHttpServerConnection connection = new DefaultHttpServerConnection();
-			connection.bind(socket, this.httpParams);
+			// Reject immediately if overloaded.
+			if (!this.admission.acquireConnection()) {
+				this.admission.reject(socket, (socket instanceof SSLSocket));
+				return true;
+			}
+			final ManagedHttpServerConnection connection = new ManagedHttpServerConnection(this.tls, this.bufferPool);
+			try {
+				connection.bind(socket, this.httpParams);
+			} catch (final IOException e) {
+				this.admission.releaseConnection();
+				connection.releaseBuffers();
+				socket.close();
+				throw e;
+			}
 			// Create connection handler for the new connection.
-			final ConnectionHandler handler = new ConnectionHandler(this.httpService, connection);
-			// Submit handler for execution.
-			this.service.submit(handler);
+			this.liveCount.incrementAndGet();
+			final IdleConnectionPoller handlerPoller = (connection.getChannel() == null) ? null : this.poller;
+			final ConnectionHandler handler = new ConnectionHandler(this.httpService, connection, this.liveCount, this.admission, handlerPoller);
+			// Park until data arrives or submit handler for execution.
+			if (handlerPoller != null) handler.park();
+			else if (this.threadFactory == null) this.service.submit(handler);
+			else this.startThread(handler);
 			return true;
 		} catch (final SocketException e) {
 			// This could be due to task termination.
 			this.logger.info("Connection listener closed.");
 			return false;
 		} catch (final IOException e) {
-			this.logger.exception(e);
+			// Channel based sockets fail differently on termination.
+			if (this.serverSocket.isClosed()) this.logger.info("Connection listener closed.");
+			else this.logger.exception(e);
 			return false;
 		}
 	}
 	
+	/**
+	 * Start a dedicated thread running the given handler.
+	 * The handler is tracked until the thread exits.
+	 * @param handler The <code>ConnectionHandler</code>
+	 * to run.
+	 */
+	private void startThread(final ConnectionHandler handler) {
+		this.threadHandlers.add(handler);
+		try {
+			this.threadFactory.newThread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						handler.run();
+					} finally {
+						ConnectionListener.this.threadHandlers.remove(handler);
+					}
+				}
+			}).start();
+		} catch (final RuntimeException e) {
+			this.threadHandlers.remove(handler);
+			try {
+				handler.cleanup();
+			} catch (final Exception ignore) {}
+			throw e;
+		}
+	}
+
+	/**
+	 * Close the connections of all the handlers run by
+	 * dedicated threads. The threads release the
+	 * connections once they exit.
+	 */
+	private void closeThreadHandlers() {
+		for (final ConnectionHandler handler : this.threadHandlers) {
+			try {
+				handler.signalTerminate();
+			} catch (final Exception e) {
+				this.logger.exception(e);
+			}
+		}
+	}
+
+	/**
+	 * Retrieve the number of accepted connections that
+	 * are still open.
+	 * @return The <code>int</code> live connection
+	 * count.
+	 */
+	int getLiveConnectionCount() {
+		return this.liveCount.get();
+	}
+
 	@Override
 	public void cleanup() throws Exception {
 		if (!this.serverSocket.isClosed()) {
 			this.serverSocket.close();
 		}
+		// Close the connections accepted before termination.
+		this.closeThreadHandlers();
 	}
 
 	@Override
 	public void signalTerminate() throws Exception {
 		// Close the server socket to wake up execution block.
 		this.serverSocket.close();
+		this.closeThreadHandlers();
 	}
 
 	@Override
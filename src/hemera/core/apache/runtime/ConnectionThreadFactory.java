@@ -0,0 +1,116 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.utility.logging.FileLogger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <code>ConnectionThreadFactory</code> defines the
+ * internal <code>ThreadFactory</code> that creates the
+ * dedicated threads serving connections when the
+ * runtime is in the thread connection mode.
+ * <p>
+ * The virtual thread factory is located reflectively,
+ * so holding a large number of idle keep-alive
+ * connections does not consume platform threads. If
+ * the Java runtime does not support virtual threads,
+ * no thread is created by the factory, and the
+ * runtime serves the connections with the execution
+ * service instead of creating an unbounded number of
+ * platform threads.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.2
+ */
+class ConnectionThreadFactory implements ThreadFactory {
+	/**
+	 * The <code>String</code> thread name prefix.
+	 */
+	private static final String NAME_PREFIX = "hemera-connection-";
+	/**
+	 * The <code>AtomicBoolean</code> flag indicating if
+	 * the fall back to platform threads has been logged.
+	 */
+	private static final AtomicBoolean FALLBACK_LOGGED = new AtomicBoolean();
+	/**
+	 * The virtual thread <code>ThreadFactory</code>.
+	 * <code>null</code> if not supported.
+	 */
+	private final ThreadFactory virtualFactory;
+
+	/**
+	 * Constructor of <code>ConnectionThreadFactory</code>.
+	 */
+	ConnectionThreadFactory() {
+		this.virtualFactory = this.locateVirtualFactory();
+	}
+
+	/**
+	 * Locate the virtual thread factory if supported
+	 * by the Java runtime. The builder methods are
+	 * resolved on the public builder interfaces, since
+	 * the builder implementation classes are not
+	 * accessible. The fall back to the execution service
+	 * is logged once.
+	 * @return The <code>ThreadFactory</code> creating
+	 * virtual threads. <code>null</code> if virtual
+	 * threads are not supported.
+	 */
+	private ThreadFactory locateVirtualFactory() {
+		try {
+			final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			final Class<?> virtualType = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			final Method name = virtualType.getMethod("name", String.class, long.class);
+			final Method factory = builderType.getMethod("factory");
+			final Object builder = name.invoke(ofVirtual.invoke(null), NAME_PREFIX, 0L);
+			return (ThreadFactory)factory.invoke(builder);
+		} catch (final ClassNotFoundException e) {
+			this.logFallback("virtual threads are not supported by the Java runtime");
+		} catch (final NoSuchMethodException e) {
+			this.logFallback("virtual threads are not supported by the Java runtime");
+		} catch (final InvocationTargetException e) {
+			this.logFallback("virtual threads are not available: " + e.getCause());
+		} catch (final Exception e) {
+			this.logFallback("virtual threads cannot be created: " + e);
+		}
+		return null;
+	}
+
+	/**
+	 * Log the fall back to the execution service with
+	 * the given reason, if not logged already.
+	 * @param reason The <code>String</code> reason.
+	 */
+	private void logFallback(final String reason) {
+		if (FALLBACK_LOGGED.compareAndSet(false, true)) {
+			FileLogger.getLogger(this.getClass()).warning("Serving connections with the execution service, " + reason + ".");
+		}
+	}
+
+	/**
+	 * Check if the created threads are virtual.
+	 * @return <code>true</code> if virtual threads
+	 * are created.
+	 */
+	boolean isVirtual() {
+		return (this.virtualFactory != null);
+	}
+
+	/**
+	 * Create a new virtual thread running the given
+	 * runnable.
+	 * @param runnable The <code>Runnable</code> to run.
+	 * @return The virtual <code>Thread</code>.
+	 * @throws IllegalStateException If virtual threads
+	 * are not supported.
+	 */
+	@Override
+	public Thread newThread(final Runnable runnable) {
+		if (this.virtualFactory == null) throw new IllegalStateException("Virtual threads are not supported.");
+		return this.virtualFactory.newThread(runnable);
+	}
+}
@@ -0,0 +1,95 @@
+package hemera.core.apache.runtime;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * <code>DeflaterPool</code> defines an internal unit
+ * that keeps a bounded pool of <code>Deflater</code>
+ * instances of the same configuration. Creating a
+ * deflater allocates a sizable amount of native memory
+ * that is only freed when the instance is ended, so
+ * the deflaters are reset and reused across responses
+ * instead of being created for each one.
+ * <p>
+ * <code>DeflaterPool</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class DeflaterPool {
+	/**
+	 * The <code>int</code> compression level.
+	 */
+	private final int level;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * deflaters produce raw data without the zlib header
+	 * and checksum.
+	 */
+	private final boolean nowrap;
+	/**
+	 * The <code>Queue</code> of pooled deflaters.
+	 */
+	private final Queue<Deflater> pool;
+	/**
+	 * The <code>int</code> maximum number of pooled
+	 * deflaters.
+	 */
+	private final int capacity;
+	/**
+	 * The <code>AtomicInteger</code> number of pooled
+	 * deflaters.
+	 */
+	private final AtomicInteger pooled;
+
+	/**
+	 * Constructor of <code>DeflaterPool</code>.
+	 * @param level The <code>int</code> compression
+	 * level.
+	 * @param nowrap The <code>boolean</code> flag
+	 * indicating if the deflaters should produce raw
+	 * data for the gzip format.
+	 * @param capacity The <code>int</code> maximum
+	 * number of pooled deflaters.
+	 */
+	DeflaterPool(final int level, final boolean nowrap, final int capacity) {
+		this.level = level;
+		this.nowrap = nowrap;
+		this.pool = new ConcurrentLinkedQueue<Deflater>();
+		this.capacity = capacity;
+		this.pooled = new AtomicInteger();
+	}
+
+	/**
+	 * Acquire a deflater, reusing a pooled one if
+	 * available.
+	 * @return The <code>Deflater</code> instance.
+	 */
+	Deflater acquire() {
+		final Deflater deflater = this.pool.poll();
+		if (deflater == null) return new Deflater(this.level, this.nowrap);
+		this.pooled.decrementAndGet();
+		return deflater;
+	}
+
+	/**
+	 * Release the given deflater once the compression
+	 * is completed or aborted, which resets and pools
+	 * the deflater if the pool is not full, or ends it
+	 * otherwise.
+	 * @param deflater The <code>Deflater</code> to
+	 * release.
+	 */
+	void release(final Deflater deflater) {
+		if (this.pooled.incrementAndGet() > this.capacity) {
+			this.pooled.decrementAndGet();
+			deflater.end();
+			return;
+		}
+		deflater.reset();
+		this.pool.add(deflater);
+	}
+}
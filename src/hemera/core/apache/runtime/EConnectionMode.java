@@ -0,0 +1,40 @@
+package hemera.core.apache.runtime;
+
+/**
+ * <code>EConnectionMode</code> defines the enumeration
+ * of all the modes the blocking runtime environment
+ * can use to serve the accepted connections.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.1
+ */
+public enum EConnectionMode {
+	/**
+	 * Each connection is served by a cyclic task
+	 * submitted to the execution service.
+	 */
+	Pooled,
+	/**
+	 * Each connection is served by its own dedicated
+	 * virtual thread. If the Java runtime does not
+	 * support virtual threads, the connections are
+	 * served by the execution service as in the
+	 * <code>Pooled</code> mode.
+	 */
+	Thread;
+
+	/**
+	 * Parse the given value into a mode ignoring case.
+	 * @param value The <code>String</code> value.
+	 * @param defaultMode The <code>EConnectionMode</code>
+	 * to use if the value is not valid.
+	 * @return The <code>EConnectionMode</code> value.
+	 */
+	public static EConnectionMode parse(final String value, final EConnectionMode defaultMode) {
+		if (value == null) return defaultMode;
+		for (final EConnectionMode mode : EConnectionMode.values()) {
+			if (mode.name().equalsIgnoreCase(value.trim())) return mode;
+		}
+		return defaultMode;
+	}
+}
@@ -0,0 +1,44 @@
+package hemera.core.apache.runtime;
+
+/**
+ * <code>ERequestPhase</code> defines the enumeration
+ * of all the phases of handling a request that are
+ * timed separately by the Apache runtime environments.
+ * The phases are consecutive, so the durations of all
+ * the phases a request went through add up to its
+ * total latency.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+public enum ERequestPhase {
+	/**
+	 * Parsing the request URI, starting when the
+	 * request head is received.
+	 */
+	URIParsing,
+	/**
+	 * Resolving the resource and processor.
+	 */
+	Routing,
+	/**
+	 * Parsing the request arguments from the query
+	 * and the request body.
+	 */
+	ArgumentParsing,
+	/**
+	 * Parsing the arguments into the processor request
+	 * with <code>IRequest.parse</code>.
+	 */
+	RequestParsing,
+	/**
+	 * Processing the request with <code>IProcessor.process</code>,
+	 * including waiting for a coalesced request.
+	 */
+	Processing,
+	/**
+	 * Serializing the response and writing it to the
+	 * connection.
+	 */
+	Serialization;
+}
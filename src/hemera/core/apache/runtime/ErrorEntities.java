@@ -0,0 +1,126 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.structure.enumn.EHttpStatus;
+
+import java.nio.charset.Charset;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * <code>ErrorEntities</code> defines the internal
+ * utility unit that produces the bodies of the error
+ * responses sent by the <code>RequestHandler</code>.
+ * <p>
+ * The bodies of the errors without any details are
+ * encoded once. The bodies with details are encoded
+ * directly into bytes without building intermediate
+ * <code>JSONObject</code>, with the same escaping as
+ * <code>JSONObject</code> would apply.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class ErrorEntities {
+	/**
+	 * The <code>Charset</code> of the bodies.
+	 */
+	private static final Charset CHARSET = ContentType.DEFAULT_TEXT.getCharset();
+	/**
+	 * The <code>ContentType</code> of the bodies.
+	 */
+	private static final ContentType TYPE = ContentType.DEFAULT_TEXT;
+	/**
+	 * The <code>char</code> array of hexadecimal digits.
+	 */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	/**
+	 * The <code>byte</code> array body of the server
+	 * error.
+	 */
+	private static final byte[] SERVER_ERROR = encode(EHttpStatus.C500_InternalServerError, "A server error has occurred.");
+	/**
+	 * The <code>byte</code> array body of the disabled
+	 * service error.
+	 */
+	private static final byte[] SERVICE_DISABLED = encode(EHttpStatus.C503_ServiceUnavailable, "Requested service has been disabled.");
+
+	/**
+	 * Create the error entity of the given status.
+	 * @param status The <code>EHttpStatus</code> of
+	 * the error.
+	 * @param detail The <code>String</code> detail of
+	 * the error, which is only used by the not found
+	 * and bad request errors.
+	 * @return The <code>HttpEntity</code> instance.
+	 */
+	static HttpEntity newEntity(final EHttpStatus status, final String detail) {
+		final byte[] body;
+		if (status == EHttpStatus.C404_NotFound) body = encode(status, "No such service provided: " + detail);
+		else if (status == EHttpStatus.C400_BadRequest) body = encode(status, "Invalid request: " + detail);
+		else if (status == EHttpStatus.C500_InternalServerError) body = SERVER_ERROR;
+		else if (status == EHttpStatus.C503_ServiceUnavailable) body = SERVICE_DISABLED;
+		else body = encode(status, null);
+		return new ByteArrayEntity(body, TYPE);
+	}
+
+	/**
+	 * Encode the error body of the given status and
+	 * message.
+	 * @param status The <code>EHttpStatus</code> of
+	 * the error.
+	 * @param message The optional <code>String</code>
+	 * exception message.
+	 * @return The <code>byte</code> array body.
+	 */
+	private static byte[] encode(final EHttpStatus status, final String message) {
+		final StringBuilder builder = new StringBuilder(64 + ((message == null) ? 0 : message.length()));
+		builder.append("{\"http_status\":\"").append(status.name()).append('"');
+		if (message != null) {
+			builder.append(",\"exception\":");
+			quote(message, builder);
+		}
+		builder.append('}');
+		return builder.toString().getBytes(CHARSET);
+	}
+
+	/**
+	 * Append the given value as a quoted JSON string
+	 * to the given builder.
+	 * @param value The <code>String</code> value.
+	 * @param builder The <code>StringBuilder</code> to
+	 * append to.
+	 */
+	private static void quote(final String value, final StringBuilder builder) {
+		builder.append('"');
+		char previous = 0;
+		final int length = value.length();
+		for (int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+			case '"':
+				builder.append('\\').append(c);
+				break;
+			case '/':
+				if (previous == '<') builder.append('\\');
+				builder.append(c);
+				break;
+			case '\b': builder.append("\\b"); break;
+			case '\t': builder.append("\\t"); break;
+			case '\n': builder.append("\\n"); break;
+			case '\f': builder.append("\\f"); break;
+			case '\r': builder.append("\\r"); break;
+			default:
+				if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+					builder.append("\\u").append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF]).append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+				} else {
+					builder.append(c);
+				}
+			}
+			previous = c;
+		}
+		builder.append('"');
+	}
+}
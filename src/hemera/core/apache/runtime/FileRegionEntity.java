@@ -0,0 +1,209 @@
+package hemera.core.apache.runtime;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * <code>FileRegionEntity</code> defines the internal
+ * HTTP entity of a region of a file, which is sent
+ * without copying the content through the heap where
+ * the connection allows it.
+ * <p>
+ * The region is either transferred to the socket
+ * channel with <code>FileChannel.transferTo</code>, or
+ * memory-mapped into buffers that are written to the
+ * channel by the non-blocking runtime. The entity can
+ * still be written to any output stream, in which case
+ * the content is copied in chunks.
+ * <p>
+ * If the response is metered, the metering is
+ * completed once the region has been sent, since the
+ * bytes bypass the metered output stream.
+ * <p>
+ * Since the HTTP service writes the entities of the
+ * responses to <code>HEAD</code> requests, an entity
+ * of such a response is created without content, which
+ * only provides the entity headers.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class FileRegionEntity extends AbstractHttpEntity {
+	/**
+	 * The <code>long</code> maximum size of a single
+	 * memory-mapped buffer.
+	 */
+	private static final long MAP_SIZE = 1 << 30;
+	/**
+	 * The <code>File</code> of the region.
+	 */
+	private final File file;
+	/**
+	 * The <code>long</code> offset of the region.
+	 */
+	private final long offset;
+	/**
+	 * The <code>long</code> length of the region.
+	 */
+	private final long length;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * content of the region is written.
+	 */
+	private final boolean content;
+	/**
+	 * The optional <code>RequestTimer</code> to complete
+	 * once the region is sent.
+	 */
+	private RequestTimer timer;
+	/**
+	 * The <code>int</code> status to complete the timer
+	 * with.
+	 */
+	private int status;
+
+	/**
+	 * Constructor of <code>FileRegionEntity</code>.
+	 * @param file The <code>File</code> of the region.
+	 * @param offset The <code>long</code> offset of the
+	 * region.
+	 * @param length The <code>long</code> length of the
+	 * region.
+	 * @param contentType The <code>String</code> content
+	 * type.
+	 * @param content <code>false</code> if only the
+	 * entity headers are sent, as for the responses of
+	 * <code>HEAD</code> requests.
+	 */
+	FileRegionEntity(final File file, final long offset, final long length, final String contentType, final boolean content) {
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+		this.content = content;
+		this.setContentType(contentType);
+	}
+
+	/**
+	 * Complete the given timer with the number of bytes
+	 * sent once the region is sent.
+	 * @param timer The <code>RequestTimer</code>.
+	 * @param status The <code>int</code> response
+	 * status code.
+	 */
+	void meter(final RequestTimer timer, final int status) {
+		this.timer = timer;
+		this.status = status;
+	}
+
+	/**
+	 * Transfer the region to the given blocking channel
+	 * without copying it through the heap.
+	 * @param target The blocking <code>WritableByteChannel</code>
+	 * to transfer to.
+	 * @throws IOException If the transfer failed or the
+	 * file has been truncated.
+	 */
+	void transferTo(final WritableByteChannel target) throws IOException {
+		if (!this.content) return;
+		long position = this.offset;
+		final long end = this.offset + this.length;
+		final FileInputStream stream = new FileInputStream(this.file);
+		try {
+			final FileChannel channel = stream.getChannel();
+			while (position < end) {
+				final long count = channel.transferTo(position, end - position, target);
+				if (count <= 0 && position >= channel.size()) throw new EOFException("File truncated: " + this.file);
+				position += count;
+			}
+		} finally {
+			stream.close();
+			this.complete(position - this.offset);
+		}
+	}
+
+	/**
+	 * Memory-map the region into read-only buffers. The
+	 * mapping remains valid after this method returns.
+	 * @return The array of <code>ByteBuffer</code> of
+	 * the region in order. Empty if the content is not
+	 * sent.
+	 * @throws IOException If mapping failed.
+	 */
+	ByteBuffer[] map() throws IOException {
+		if (!this.content) return new ByteBuffer[0];
+		final int count = (int)((this.length + MAP_SIZE - 1) / MAP_SIZE);
+		final ByteBuffer[] buffers = new ByteBuffer[count];
+		final FileInputStream stream = new FileInputStream(this.file);
+		try {
+			final FileChannel channel = stream.getChannel();
+			for (int i = 0; i < count; i++) {
+				final long position = this.offset + i * MAP_SIZE;
+				buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, this.offset + this.length - position));
+			}
+		} finally {
+			stream.close();
+		}
+		this.complete(this.length);
+		return buffers;
+	}
+
+	/**
+	 * Complete the metering with the given number of
+	 * bytes sent.
+	 * @param bytes The <code>long</code> number of
+	 * bytes.
+	 */
+	private void complete(final long bytes) {
+		if (this.timer == null) return;
+		this.timer.complete(this.status, bytes);
+		this.timer = null;
+	}
+
+	@Override
+	public void writeTo(final OutputStream outstream) throws IOException {
+		this.transferTo(Channels.newChannel(outstream));
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		final FileInputStream stream = new FileInputStream(this.file);
+		try {
+			long skipped = 0;
+			while (skipped < this.offset) {
+				final long count = stream.skip(this.offset - skipped);
+				if (count <= 0) throw new EOFException("File truncated: " + this.file);
+				skipped += count;
+			}
+		} catch (final IOException e) {
+			stream.close();
+			throw e;
+		}
+		return new BoundedInputStream(stream, this.length);
+	}
+
+	@Override
+	public long getContentLength() {
+		return this.length;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+}
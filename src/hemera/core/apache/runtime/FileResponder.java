@@ -0,0 +1,272 @@
+package hemera.core.apache.runtime;
+
+import java.io.File;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+
+/**
+ * <code>FileResponder</code> defines the internal unit
+ * that commits the <code>IFileResponse</code> produced
+ * by the processors as file region entities, which are
+ * sent without loading the file into memory.
+ * <p>
+ * The successful responses carry a strong entity tag
+ * and the modification time derived from the file, and
+ * are answered based on the conditional headers of the
+ * request, including <code>If-Match</code>,
+ * <code>If-None-Match</code>, <code>If-Modified-Since</code>
+ * and <code>If-Unmodified-Since</code>.
+ * <p>
+ * A single byte range of a <code>GET</code> request is
+ * answered with partial content, unless its
+ * <code>If-Range</code> header does not match. The
+ * requests of multiple ranges and malformed ranges are
+ * answered with the entire content instead, and the
+ * ranges that cannot be satisfied are rejected.
+ * <p>
+ * <code>FileResponder</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class FileResponder {
+	/**
+	 * The <code>String</code> default content type.
+	 */
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+	/**
+	 * The <code>String</code> range unit prefix.
+	 */
+	private static final String BYTES_UNIT = "bytes=";
+	/**
+	 * The <code>SimpleDateFormat</code> used to format
+	 * and parse the HTTP dates, guarded by itself.
+	 */
+	private final SimpleDateFormat format;
+
+	/**
+	 * Constructor of <code>FileResponder</code>.
+	 */
+	FileResponder() {
+		this.format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		this.format.setTimeZone(TimeZone.getTimeZone("GMT"));
+	}
+
+	/**
+	 * Commit the given file response to the given HTTP
+	 * response.
+	 * @param httpRequest The <code>HttpRequest</code>
+	 * being processed.
+	 * @param httpResponse The <code>HttpResponse</code>
+	 * to commit to.
+	 * @param response The <code>IFileResponse</code>
+	 * produced by the processor.
+	 */
+	void commit(final HttpRequest httpRequest, final HttpResponse httpResponse, final IFileResponse response) {
+		final File file = response.getFile();
+		if (file == null || !file.isFile() || !file.canRead()) {
+			httpResponse.setStatusCode(HttpStatus.SC_NOT_FOUND);
+			httpResponse.setEntity(null);
+			return;
+		}
+		// Clamp the region to the current file.
+		final long fileLength = file.length();
+		final long offset = Math.min(Math.max(0, response.getOffset()), fileLength);
+		final long length = (response.getLength() < 0) ? fileLength-offset : Math.min(response.getLength(), fileLength-offset);
+		final String contentType = (response.getContentType() == null) ? DEFAULT_CONTENT_TYPE : response.getContentType();
+		final boolean content = !httpRequest.getRequestLine().getMethod().equalsIgnoreCase("HEAD");
+		final int status = response.getStatus().code;
+		httpResponse.setStatusCode(status);
+		if (response.getFileName() != null) {
+			httpResponse.setHeader("Content-Disposition", "attachment; filename=\"" + response.getFileName().replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+		}
+		// Only successful content is conditional.
+		if (status != HttpStatus.SC_OK) {
+			httpResponse.setEntity(new FileRegionEntity(file, offset, length, contentType, content));
+			return;
+		}
+		final long lastModified = file.lastModified();
+		final String etag = FileResponder.buildETag(lastModified, fileLength, offset, length);
+		httpResponse.setHeader("ETag", etag);
+		httpResponse.setHeader("Last-Modified", this.formatDate(lastModified));
+		httpResponse.setHeader("Accept-Ranges", "bytes");
+		final int precondition = this.evaluatePreconditions(httpRequest, etag, lastModified);
+		if (precondition != HttpStatus.SC_OK) {
+			httpResponse.setStatusCode(precondition);
+			httpResponse.setEntity(null);
+			return;
+		}
+		// Answer a single range of the region.
+		final long[] range = this.getRange(httpRequest, etag, lastModified, length);
+		if (range == null) {
+			httpResponse.setEntity(new FileRegionEntity(file, offset, length, contentType, content));
+		} else if (range.length == 0) {
+			httpResponse.setStatusCode(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			httpResponse.setHeader("Content-Range", "bytes */" + length);
+			httpResponse.setEntity(null);
+		} else {
+			httpResponse.setStatusCode(HttpStatus.SC_PARTIAL_CONTENT);
+			httpResponse.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+			httpResponse.setEntity(new FileRegionEntity(file, offset+range[0], range[1]-range[0]+1, contentType, content));
+		}
+	}
+
+	/**
+	 * Evaluate the conditional headers of the given
+	 * request against the given validators.
+	 * @param httpRequest The <code>HttpRequest</code>.
+	 * @param etag The <code>String</code> entity tag.
+	 * @param lastModified The <code>long</code> last
+	 * modified time in milliseconds.
+	 * @return The <code>int</code> status code to
+	 * respond with. <code>200</code> if the content
+	 * should be sent.
+	 */
+	private int evaluatePreconditions(final HttpRequest httpRequest, final String etag, final long lastModified) {
+		final String method = httpRequest.getRequestLine().getMethod();
+		final boolean safe = method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("HEAD");
+		final Header[] ifMatch = httpRequest.getHeaders("If-Match");
+		if (ifMatch.length > 0) {
+			if (!FileResponder.matches(ifMatch, etag)) return HttpStatus.SC_PRECONDITION_FAILED;
+		} else {
+			final long since = this.parseDate(httpRequest.getFirstHeader("If-Unmodified-Since"));
+			if (since >= 0 && lastModified/1000 > since/1000) return HttpStatus.SC_PRECONDITION_FAILED;
+		}
+		if (httpRequest.containsHeader("If-None-Match")) {
+			if (ResponseCache.isNotModified(httpRequest, etag)) return safe ? HttpStatus.SC_NOT_MODIFIED : HttpStatus.SC_PRECONDITION_FAILED;
+		} else if (safe) {
+			final long since = this.parseDate(httpRequest.getFirstHeader("If-Modified-Since"));
+			if (since >= 0 && lastModified/1000 <= since/1000) return HttpStatus.SC_NOT_MODIFIED;
+		}
+		return HttpStatus.SC_OK;
+	}
+
+	/**
+	 * Retrieve the single byte range requested by the
+	 * given request within the given length.
+	 * @param httpRequest The <code>HttpRequest</code>.
+	 * @param etag The <code>String</code> entity tag.
+	 * @param lastModified The <code>long</code> last
+	 * modified time in milliseconds.
+	 * @param length The <code>long</code> length of
+	 * the content.
+	 * @return The <code>long</code> array of the first
+	 * and last byte positions, inclusive. An empty array
+	 * if the range cannot be satisfied. <code>null</code>
+	 * if the entire content should be sent.
+	 */
+	private long[] getRange(final HttpRequest httpRequest, final String etag, final long lastModified, final long length) {
+		if (!httpRequest.getRequestLine().getMethod().equalsIgnoreCase("GET")) return null;
+		final Header header = httpRequest.getFirstHeader("Range");
+		if (header == null) return null;
+		// Ignore the range of a changed representation.
+		final Header ifRange = httpRequest.getFirstHeader("If-Range");
+		if (ifRange != null) {
+			final String validator = ifRange.getValue().trim();
+			if (validator.startsWith("\"") || validator.startsWith("W/")) {
+				if (!validator.equals(etag)) return null;
+			} else {
+				final long date = this.parseDate(ifRange);
+				if (date < 0 || date/1000 != lastModified/1000) return null;
+			}
+		}
+		final String value = header.getValue().trim();
+		if (!value.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) return null;
+		final String spec = value.substring(BYTES_UNIT.length()).trim();
+		final int dash = spec.indexOf('-');
+		if (dash < 0 || spec.indexOf(',') >= 0) return null;
+		try {
+			final String first = spec.substring(0, dash).trim();
+			final String last = spec.substring(dash+1).trim();
+			// Suffix range of the last bytes.
+			if (first.isEmpty()) {
+				final long suffix = Long.parseLong(last);
+				if (suffix < 0) return null;
+				if (suffix == 0 || length == 0) return new long[0];
+				return new long[] {Math.max(0, length-suffix), length-1};
+			}
+			final long start = Long.parseLong(first);
+			final long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+			if (start < 0 || end < start) return null;
+			if (start >= length) return new long[0];
+			return new long[] {start, Math.min(end, length-1)};
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Format the given time as an HTTP date.
+	 * @param time The <code>long</code> time in
+	 * milliseconds.
+	 * @return The <code>String</code> date.
+	 */
+	private String formatDate(final long time) {
+		synchronized (this.format) {
+			return this.format.format(new Date(time));
+		}
+	}
+
+	/**
+	 * Parse the HTTP date value of the given header.
+	 * @param header The <code>Header</code> to parse.
+	 * @return The <code>long</code> time in milliseconds.
+	 * <code>-1</code> if the header is absent or not a
+	 * valid date.
+	 */
+	private long parseDate(final Header header) {
+		if (header == null) return -1;
+		try {
+			synchronized (this.format) {
+				return this.format.parse(header.getValue().trim()).getTime();
+			}
+		} catch (final ParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Check if any of the entity tags of the given
+	 * headers strongly matches the given tag.
+	 * @param headers The <code>Header</code> array.
+	 * @param etag The <code>String</code> entity tag.
+	 * @return <code>true</code> if there is a match.
+	 */
+	private static boolean matches(final Header[] headers, final String etag) {
+		for (final Header header : headers) {
+			for (final String tag : header.getValue().split(",")) {
+				final String trimmed = tag.trim();
+				if (trimmed.equals("*") || trimmed.equals(etag)) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Build the strong entity tag of the given region
+	 * of a file from its modification time and length.
+	 * @param lastModified The <code>long</code> last
+	 * modified time in milliseconds.
+	 * @param fileLength The <code>long</code> length of
+	 * the file.
+	 * @param offset The <code>long</code> offset of
+	 * the region.
+	 * @param length The <code>long</code> length of
+	 * the region.
+	 * @return The <code>String</code> quoted tag.
+	 */
+	private static String buildETag(final long lastModified, final long fileLength, final long offset, final long length) {
+		final StringBuilder builder = new StringBuilder(48);
+		builder.append('"').append(Long.toHexString(lastModified)).append('-').append(Long.toHexString(fileLength));
+		if (offset != 0 || length != fileLength) builder.append('-').append(Long.toHexString(offset)).append('-').append(Long.toHexString(length));
+		return builder.append('"').toString();
+	}
+}
@@ -0,0 +1,327 @@
+package hemera.core.apache.runtime;
+
+import org.apache.http.ProtocolException;
+
+/**
+ * <code>HttpRequestFramer</code> defines an internal
+ * unit that locates the boundaries of HTTP requests
+ * within the raw bytes received by a non-blocking
+ * connection. It only inspects the bytes required to
+ * determine where a request ends, which includes the
+ * request head and the <code>Content-Length</code> or
+ * chunked transfer coding of the body. The actual
+ * request parsing is left to the HTTP core parsers
+ * once a request has been fully received.
+ * <p>
+ * A request exceeding the maximum size is rejected
+ * with a <code>RequestTooLargeException</code>, which
+ * tells apart a request head that is too large from
+ * a body that is too large. Any other framing error
+ * is rejected with a plain <code>ProtocolException</code>.
+ * <p>
+ * <code>HttpRequestFramer</code> is not thread-safe,
+ * since each instance is confined to the reactor that
+ * owns the connection.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.1
+ */
+class HttpRequestFramer {
+	/**
+	 * The <code>int</code> maximum number of bytes a
+	 * single request can have.
+	 */
+	private final int maxRequestSize;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * last framed request head expects an interim
+	 * <code>100 Continue</code> response before its
+	 * body is sent.
+	 */
+	private boolean expectContinue;
+
+	/**
+	 * Constructor of <code>HttpRequestFramer</code>.
+	 * @param maxRequestSize The <code>int</code>
+	 * maximum number of bytes a single request can
+	 * have.
+	 */
+	HttpRequestFramer(final int maxRequestSize) {
+		this.maxRequestSize = maxRequestSize;
+	}
+
+	/**
+	 * Count the number of blank line bytes preceding
+	 * the next request, which should be discarded.
+	 * @param data The <code>byte</code> array data.
+	 * @param offset The <code>int</code> offset of
+	 * the first byte.
+	 * @param length The <code>int</code> number of
+	 * available bytes.
+	 * @return The <code>int</code> number of leading
+	 * carriage return and line feed bytes.
+	 */
+	int countLeadingBlanks(final byte[] data, final int offset, final int length) {
+		int count = 0;
+		while (count < length && (data[offset+count] == '\r' || data[offset+count] == '\n')) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Locate the end of the first request within the
+	 * given data.
+	 * @param data The <code>byte</code> array data.
+	 * @param offset The <code>int</code> offset of
+	 * the first byte of the request.
+	 * @param length The <code>int</code> number of
+	 * available bytes.
+	 * @return The <code>int</code> number of bytes
+	 * of the complete request. <code>-1</code> if the
+	 * request has not been fully received yet.
+	 * @throws RequestTooLargeException If the request
+	 * exceeds the maximum size.
+	 * @throws ProtocolException If the request is
+	 * malformed.
+	 */
+	int frame(final byte[] data, final int offset, final int length) throws ProtocolException {
+		this.expectContinue = false;
+		final int end = offset + length;
+		// Locate the end of the request head.
+		final int headEnd = this.locateHeadEnd(data, offset, end);
+		if (headEnd < 0) {
+			if (length > this.maxRequestSize) throw new RequestTooLargeException("Request head too large", true);
+			return -1;
+		}
+		if (headEnd - offset > this.maxRequestSize) throw new RequestTooLargeException("Request head too large", true);
+		// Inspect the headers that determine body length.
+		long contentLength = 0;
+		boolean chunked = false;
+		boolean expect = false;
+		int lineStart = this.nextLine(data, offset, headEnd);
+		while (lineStart < headEnd) {
+			final int lineEnd = this.nextLine(data, lineStart, headEnd);
+			final int colon = this.indexOf(data, lineStart, lineEnd, (byte)':');
+			if (colon > lineStart) {
+				if (this.nameEquals(data, lineStart, colon, "content-length")) {
+					contentLength = this.parseLength(data, colon+1, lineEnd);
+				} else if (this.nameEquals(data, lineStart, colon, "transfer-encoding")) {
+					chunked = this.valueContains(data, colon+1, lineEnd, "chunked");
+				} else if (this.nameEquals(data, lineStart, colon, "expect")) {
+					expect = this.valueContains(data, colon+1, lineEnd, "100-continue");
+				}
+			}
+			lineStart = lineEnd;
+		}
+		// Locate the end of the body.
+		final int bodyEnd;
+		if (chunked) bodyEnd = this.locateChunkedEnd(data, headEnd, end, offset);
+		else {
+			if (contentLength > this.maxRequestSize) throw new RequestTooLargeException("Request body too large", false);
+			final long total = (headEnd - offset) + contentLength;
+			if (total > this.maxRequestSize) throw new RequestTooLargeException("Request too large", false);
+			bodyEnd = (total <= length) ? (int)(offset + total) : -1;
+		}
+		if (bodyEnd < 0) {
+			this.expectContinue = expect;
+			return -1;
+		}
+		return bodyEnd - offset;
+	}
+
+	/**
+	 * Check if the last framed request expects an
+	 * interim <code>100 Continue</code> response
+	 * before sending its body.
+	 * @return <code>true</code> if the client waits
+	 * for the continue response.
+	 */
+	boolean isExpectContinue() {
+		return this.expectContinue;
+	}
+
+	/**
+	 * Locate the end of the request head, which is
+	 * the index right after the terminating empty
+	 * line.
+	 * @param data The <code>byte</code> array data.
+	 * @param start The <code>int</code> start index.
+	 * @param end The <code>int</code> exclusive end
+	 * index.
+	 * @return The <code>int</code> index after the
+	 * head. <code>-1</code> if not found.
+	 */
+	private int locateHeadEnd(final byte[] data, final int start, final int end) {
+		for (int i = start; i < end; i++) {
+			if (data[i] != '\n') continue;
+			// Empty line is either LF or CRLF following a LF.
+			if (i+1 < end && data[i+1] == '\n') return i+2;
+			if (i+2 < end && data[i+1] == '\r' && data[i+2] == '\n') return i+3;
+		}
+		return -1;
+	}
+
+	/**
+	 * Locate the end of the chunked body.
+	 * @param data The <code>byte</code> array data.
+	 * @param start The <code>int</code> index of the
+	 * first body byte.
+	 * @param end The <code>int</code> exclusive end
+	 * index.
+	 * @param offset The <code>int</code> offset of
+	 * the request used for size limit check.
+	 * @return The <code>int</code> index after the
+	 * body. <code>-1</code> if not fully received.
+	 * @throws RequestTooLargeException If the body
+	 * exceeds the limit.
+	 * @throws ProtocolException If chunk size is
+	 * malformed.
+	 */
+	private int locateChunkedEnd(final byte[] data, final int start, final int end, final int offset) throws ProtocolException {
+		int pos = start;
+		while (true) {
+			final int lineEnd = this.indexOf(data, pos, end, (byte)'\n');
+			if (lineEnd < 0) return -1;
+			final long size = this.parseChunkSize(data, pos, lineEnd);
+			pos = lineEnd + 1;
+			if (size == 0) break;
+			if ((pos - offset) + size > this.maxRequestSize) throw new RequestTooLargeException("Request too large", false);
+			pos += (int)size;
+			// Skip the CRLF following the chunk data.
+			if (pos < end && data[pos] == '\r') pos++;
+			if (pos >= end) return -1;
+			if (data[pos] != '\n') throw new ProtocolException("Malformed chunk");
+			pos++;
+		}
+		// Skip trailers until the empty line.
+		while (true) {
+			final int lineEnd = this.indexOf(data, pos, end, (byte)'\n');
+			if (lineEnd < 0) return -1;
+			final boolean empty = (lineEnd == pos) || (lineEnd == pos+1 && data[pos] == '\r');
+			pos = lineEnd + 1;
+			if (empty) return pos;
+		}
+	}
+
+	/**
+	 * Parse the hexadecimal chunk size line.
+	 * @param data The <code>byte</code> array data.
+	 * @param start The <code>int</code> start index.
+	 * @param end The <code>int</code> exclusive end
+	 * index.
+	 * @return The <code>long</code> chunk size.
+	 * @throws ProtocolException If size is malformed.
+	 */
+	private long parseChunkSize(final byte[] data, final int start, final int end) throws ProtocolException {
+		long size = 0;
+		int digits = 0;
+		for (int i = start; i < end; i++) {
+			final byte b = data[i];
+			if (b == ';' || b == '\r') break;
+			if (b == ' ' || b == '\t') continue;
+			final int digit = Character.digit(b, 16);
+			if (digit < 0 || digits >= 15) throw new ProtocolException("Malformed chunk size");
+			size = (size << 4) + digit;
+			digits++;
+		}
+		if (digits == 0) throw new ProtocolException("Malformed chunk size");
+		return size;
+	}
+
+	/**
+	 * Parse the decimal content length value.
+	 * @param data The <code>byte</code> array data.
+	 * @param start The <code>int</code> start index.
+	 * @param end The <code>int</code> exclusive end
+	 * index.
+	 * @return The <code>long</code> length.
+	 * @throws ProtocolException If value is malformed.
+	 */
+	private long parseLength(final byte[] data, final int start, final int end) throws ProtocolException {
+		long length = 0;
+		int digits = 0;
+		for (int i = start; i < end; i++) {
+			final byte b = data[i];
+			if (b == ' ' || b == '\t' || b == '\r' || b == '\n') continue;
+			if (b < '0' || b > '9' || digits >= 18) throw new ProtocolException("Malformed content length");
+			length = length * 10 + (b - '0');
+			digits++;
+		}
+		if (digits == 0) throw new ProtocolException("Malformed content length");
+		return length;
+	}
+
+	/**
+	 * Retrieve the start index of the next line.
+	 * @param data The <code>byte</code> array data.
+	 * @param start The <code>int</code> start index.
+	 * @param end The <code>int</code> exclusive end
+	 * index.
+	 * @return The <code>int</code> index after the
+	 * next line feed, or the end index.
+	 */
+	private int nextLine(final byte[] data, final int start, final int end) {
+		final int index = this.indexOf(data, start, end, (byte)'\n');
+		return (index < 0) ? end : index+1;
+	}
+
+	/**
+	 * Find the index of the given byte.
+	 * @param data The <code>byte</code> array data.
+	 * @param start The <code>int</code> start index.
+	 * @param end The <code>int</code> exclusive end
+	 * index.
+	 * @param value The <code>byte</code> to find.
+	 * @return The <code>int</code> index or -1.
+	 */
+	private int indexOf(final byte[] data, final int start, final int end, final byte value) {
+		for (int i = start; i < end; i++) {
+			if (data[i] == value) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Check if the header name equals to the given
+	 * lower case name ignoring case.
+	 * @param data The <code>byte</code> array data.
+	 * @param start The <code>int</code> start index.
+	 * @param end The <code>int</code> exclusive end
+	 * index.
+	 * @param name The lower case <code>String</code>
+	 * name.
+	 * @return <code>true</code> if names are equal.
+	 */
+	private boolean nameEquals(final byte[] data, final int start, final int end, final String name) {
+		if (end - start != name.length()) return false;
+		for (int i = 0; i < name.length(); i++) {
+			if (Character.toLowerCase((char)data[start+i]) != name.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check if the header value contains the given
+	 * lower case token ignoring case.
+	 * @param data The <code>byte</code> array data.
+	 * @param start The <code>int</code> start index.
+	 * @param end The <code>int</code> exclusive end
+	 * index.
+	 * @param token The lower case <code>String</code>
+	 * token.
+	 * @return <code>true</code> if value contains the
+	 * token.
+	 */
+	private boolean valueContains(final byte[] data, final int start, final int end, final String token) {
+		final int last = end - token.length();
+		for (int i = start; i <= last; i++) {
+			boolean match = true;
+			for (int j = 0; j < token.length() && match; j++) {
+				match = (Character.toLowerCase((char)data[i+j]) == token.charAt(j));
+			}
+			if (match) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,113 @@
+package hemera.core.apache.runtime;
+
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.SyncBasicHttpParams;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.HttpRequestHandlerRegistry;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ImmutableHttpProcessor;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+
+/**
+ * <code>HttpServiceFactory</code> defines the internal
+ * utility unit that assembles the HTTP parameters and
+ * the <code>HttpService</code> shared by all the
+ * connection dispatching implementations. Both the
+ * blocking and the non-blocking runtime environments
+ * use this factory so that requests are processed by
+ * the exact same protocol chain and routed through the
+ * same <code>RequestHandler</code>.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class HttpServiceFactory {
+
+	/**
+	 * Create and initialize the Http parameters.
+	 * @param timeout The <code>int</code> socket
+	 * connection timeout value in milliseconds.
+	 * @param buffersize The <code>int</code> socket
+	 * buffer size value in bytes.
+	 * @param appname The <code>String</code> server
+	 * application name used for HTTP response header.
+	 * @return The <code>HttpParams</code> instance.
+	 */
+	static HttpParams newHttpParams(final int timeout, final int buffersize, final String appname) {
+		final HttpParams httpParams = new SyncBasicHttpParams();
+		httpParams.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, timeout);
+		httpParams.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, buffersize);
+		httpParams.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false);
+		httpParams.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true);
+		httpParams.setBooleanParameter(CoreConnectionPNames.SO_KEEPALIVE, true);
+		httpParams.setParameter(CoreProtocolPNames.ORIGIN_SERVER, appname);
+		return httpParams;
+	}
+
+	/**
+	 * Create the <code>HttpService</code> that routes
+	 * all requests to the given handler.
+	 * @param handler The <code>RequestHandler</code>
+	 * used by the runtime environment to route the
+	 * received requests to corresponding processors.
+	 * @param compression The <code>ResponseCompression</code>
+	 * used to compress the response entities.
+	 * @param httpParams The <code>HttpParams</code>
+	 * of the service.
+	 * @return The <code>HttpService</code> instance.
+	 */
+	static HttpService newHttpService(final RequestHandler handler, final ResponseCompression compression, final HttpParams httpParams) {
+		final HttpProcessor httpprocessor = HttpServiceFactory.newHttpProcessor(compression, httpParams);
+		// Set up request handler that is invoked when the
+		// connection handler dispatches a request.
+		final HttpRequestHandlerRegistry handlerReqistry = new HttpRequestHandlerRegistry();
+		handlerReqistry.register("*", handler);
+		// Set up the HTTP service.
+		return new HttpService(httpprocessor, new DefaultConnectionReuseStrategy(),
+				new DefaultHttpResponseFactory(), handlerReqistry, httpParams);
+	}
+
+	/**
+	 * Create the <code>AsyncResponder</code> that sends
+	 * the deferred responses of the given handler with
+	 * the same protocol chain as the <code>HttpService</code>.
+	 * @param handler The <code>RequestHandler</code>
+	 * that defers the responses.
+	 * @param compression The <code>ResponseCompression</code>
+	 * used to compress the response entities.
+	 * @param httpParams The <code>HttpParams</code>
+	 * of the service.
+	 * @return The <code>AsyncResponder</code> instance.
+	 */
+	static AsyncResponder newAsyncResponder(final RequestHandler handler, final ResponseCompression compression, final HttpParams httpParams) {
+		final HttpProcessor httpprocessor = HttpServiceFactory.newHttpProcessor(compression, httpParams);
+		return new AsyncResponder(handler, httpprocessor, new DefaultConnectionReuseStrategy(), new DefaultHttpResponseFactory(), httpParams);
+	}
+
+	/**
+	 * Create the HTTP protocol processor, using the basic
+	 * chain with cached headers, content codings and
+	 * metering.
+	 * @param compression The <code>ResponseCompression</code>
+	 * used to compress the response entities.
+	 * @param httpParams The <code>HttpParams</code>
+	 * of the service.
+	 * @return The <code>HttpProcessor</code> instance.
+	 */
+	private static HttpProcessor newHttpProcessor(final ResponseCompression compression, final HttpParams httpParams) {
+		final String server = (String)httpParams.getParameter(CoreProtocolPNames.ORIGIN_SERVER);
+		return new ImmutableHttpProcessor(new HttpRequestInterceptor[] {
+				new RequestMetering(), new RequestDecompression()
+		}, new HttpResponseInterceptor[] {
+				new ResponseHeaderCache(server), compression, new ResponseTransferControl(), new ResponseContent(), new ResponseConnControl(),
+				new ResponseMetering()
+		});
+	}
+}
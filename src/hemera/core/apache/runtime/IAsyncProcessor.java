@@ -0,0 +1,65 @@
+package hemera.core.apache.runtime;
+
+import java.util.concurrent.TimeUnit;
+
+import hemera.core.structure.interfaces.IProcessor;
+import hemera.core.structure.interfaces.IRequest;
+import hemera.core.structure.interfaces.IResponse;
+
+/**
+ * <code>IAsyncProcessor</code> defines the interface
+ * of a processor that produces its responses
+ * asynchronously, typically by waiting on a slow
+ * downstream service, without holding the thread that
+ * serves the connection of the request.
+ * <p>
+ * The Apache runtime environments invoke the
+ * <code>processAsync</code> method of this processor
+ * instead of the synchronous <code>process</code>
+ * method. The processor completes the given callback
+ * once the response is available, from any thread.
+ * The non-blocking runtime suspends the request and
+ * releases its worker thread until the callback is
+ * completed, and then sends the response on the same
+ * connection. The blocking runtime, as well as the
+ * requests redirected after invocation, wait for the
+ * callback on the thread serving the connection.
+ * <p>
+ * If the callback is not completed within the timeout
+ * of the processor, the request is answered as if the
+ * processor is inactive. The processor must not access
+ * the request after completing the callback or after
+ * the timeout, since the request is reused afterwards.
+ *
+ * @param <R> The <code>IRequest</code> type.
+ * @param <S> The <code>IResponse</code> type.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+public interface IAsyncProcessor<R extends IRequest, S extends IResponse> extends IProcessor<R, S> {
+
+	/**
+	 * Start processing the given request, and complete
+	 * the given callback once the response is available.
+	 * This method should return without waiting for the
+	 * response.
+	 * @param request The <code>IRequest</code> to be
+	 * processed.
+	 * @param callback The <code>IResponseCallback</code>
+	 * to complete.
+	 * @throws Exception If starting the processing
+	 * failed.
+	 */
+	public void processAsync(final R request, final IResponseCallback<S> callback) throws Exception;
+
+	/**
+	 * Retrieve the maximum duration to wait for the
+	 * callback to be completed.
+	 * @param unit The <code>TimeUnit</code> of the
+	 * returned value.
+	 * @return The <code>long</code> duration in the
+	 * given unit. Zero or less waits indefinitely.
+	 */
+	public long getAsyncTimeout(final TimeUnit unit);
+}
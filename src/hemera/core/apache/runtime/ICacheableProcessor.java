@@ -0,0 +1,43 @@
+package hemera.core.apache.runtime;
+
+import java.util.concurrent.TimeUnit;
+
+import hemera.core.structure.interfaces.IProcessor;
+import hemera.core.structure.interfaces.IRequest;
+import hemera.core.structure.interfaces.IResponse;
+
+/**
+ * <code>ICacheableProcessor</code> defines the interface
+ * of a processor whose responses to <code>GET</code>
+ * requests can be cached by the Apache runtime
+ * environments for a fixed duration, in order to avoid
+ * processing and serializing identical responses.
+ * <p>
+ * The responses are cached by the request path and
+ * arguments. While a response is cached, the requests
+ * with the same path and arguments are answered with
+ * the cached data without parsing the request or
+ * invoking the processor. Therefore, the processor
+ * must produce the same response for the same path
+ * and arguments within the caching duration. Only the
+ * successful responses of the processors invoked
+ * without redirection are cached.
+ *
+ * @param <R> The <code>IRequest</code> type.
+ * @param <S> The <code>IResponse</code> type.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+public interface ICacheableProcessor<R extends IRequest, S extends IResponse> extends IProcessor<R, S> {
+
+	/**
+	 * Retrieve the duration the responses of this
+	 * processor are cached for.
+	 * @param unit The <code>TimeUnit</code> of the
+	 * returned value.
+	 * @return The <code>long</code> duration in the
+	 * given unit. Zero or less disables caching.
+	 */
+	public long getCacheDuration(final TimeUnit unit);
+}
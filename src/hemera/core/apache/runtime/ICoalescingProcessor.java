@@ -0,0 +1,45 @@
+package hemera.core.apache.runtime;
+
+import java.util.concurrent.TimeUnit;
+
+import hemera.core.structure.interfaces.IProcessor;
+import hemera.core.structure.interfaces.IRequest;
+import hemera.core.structure.interfaces.IResponse;
+
+/**
+ * <code>ICoalescingProcessor</code> defines the interface
+ * of a processor whose concurrent identical requests
+ * can share a single invocation in the Apache runtime
+ * environments, in order to avoid overwhelming the
+ * backing resources when many clients request the same
+ * data at once.
+ * <p>
+ * The <code>GET</code> and <code>HEAD</code> requests
+ * with the same method, path and arguments that arrive
+ * while a previous one is being processed wait for its
+ * response instead of invoking the processor, and are
+ * answered with the same encoded data. The waiting is
+ * bounded by the timeout of the processor, after which
+ * the requests are processed independently. They are
+ * also processed independently if the shared response
+ * is not available, for instance if the processor
+ * redirected or failed.
+ *
+ * @param <R> The <code>IRequest</code> type.
+ * @param <S> The <code>IResponse</code> type.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+public interface ICoalescingProcessor<R extends IRequest, S extends IResponse> extends IProcessor<R, S> {
+
+	/**
+	 * Retrieve the maximum duration a request waits
+	 * for the identical request in progress.
+	 * @param unit The <code>TimeUnit</code> of the
+	 * returned value.
+	 * @return The <code>long</code> duration in the
+	 * given unit. Zero or less disables coalescing.
+	 */
+	public long getCoalescingTimeout(final TimeUnit unit);
+}
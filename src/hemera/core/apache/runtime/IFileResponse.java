@@ -0,0 +1,67 @@
+package hemera.core.apache.runtime;
+
+import java.io.File;
+
+import hemera.core.structure.interfaces.IResponse;
+
+/**
+ * <code>IFileResponse</code> defines the interface of a
+ * response whose content is a region of a file, such as
+ * an export or a media file, instead of JSON data.
+ * <p>
+ * The Apache runtime environments send the content
+ * straight from the file without loading it into memory,
+ * using <code>FileChannel.transferTo</code> on plain
+ * blocking connections and memory-mapped regions on
+ * non-blocking connections. The <code>toJSON</code>
+ * method of a file response is never invoked.
+ * <p>
+ * Successful file responses support conditional
+ * requests with the entity tag and the modification
+ * time derived from the file, and single byte range
+ * requests. File responses are never cached or shared
+ * with identical requests.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+public interface IFileResponse extends IResponse {
+
+	/**
+	 * Retrieve the file of the response content.
+	 * @return The <code>File</code> to send.
+	 */
+	public File getFile();
+
+	/**
+	 * Retrieve the offset of the region of the file to
+	 * send.
+	 * @return The <code>long</code> offset in bytes.
+	 */
+	public long getOffset();
+
+	/**
+	 * Retrieve the length of the region of the file to
+	 * send.
+	 * @return The <code>long</code> length in bytes.
+	 * Negative to send the rest of the file after the
+	 * offset.
+	 */
+	public long getLength();
+
+	/**
+	 * Retrieve the content type of the file.
+	 * @return The <code>String</code> content type.
+	 * <code>null</code> for <code>application/octet-stream</code>.
+	 */
+	public String getContentType();
+
+	/**
+	 * Retrieve the file name the client should save the
+	 * content as.
+	 * @return The <code>String</code> file name sent as
+	 * an attachment. <code>null</code> if the content
+	 * should be displayed inline.
+	 */
+	public String getFileName();
+}
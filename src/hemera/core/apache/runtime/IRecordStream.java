@@ -0,0 +1,50 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * <code>IRecordStream</code> defines the interface of
+ * the stream given to an <code>IStreamingResponse</code>
+ * to write its records into the connection.
+ * <p>
+ * The records are buffered and sent in chunks as the
+ * buffer fills up, except that the first record is
+ * sent immediately. The writes block while the client
+ * is not keeping up with the data already sent.
+ * <p>
+ * <code>IRecordStream</code> is not thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+public interface IRecordStream {
+
+	/**
+	 * Write the given object record.
+	 * @param record The <code>JSONObject</code> to
+	 * write.
+	 * @throws IOException If writing failed or the
+	 * connection has been closed.
+	 */
+	public void write(final JSONObject record) throws IOException;
+
+	/**
+	 * Write the given array record.
+	 * @param record The <code>JSONArray</code> to
+	 * write.
+	 * @throws IOException If writing failed or the
+	 * connection has been closed.
+	 */
+	public void write(final JSONArray record) throws IOException;
+
+	/**
+	 * Send the buffered records immediately, such as
+	 * before a slow operation producing the next records.
+	 * @throws IOException If writing failed or the
+	 * connection has been closed.
+	 */
+	public void flush() throws IOException;
+}
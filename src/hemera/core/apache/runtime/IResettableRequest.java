@@ -0,0 +1,28 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.structure.interfaces.IRequest;
+
+/**
+ * <code>IResettableRequest</code> defines the interface
+ * of a processor request that can be recycled by the
+ * Apache runtime environments once a request has been
+ * processed, in order to reduce the allocation rate of
+ * high throughput processors.
+ * <p>
+ * A recycled request instance is parsed again with
+ * the data of a new request. Therefore, processors of
+ * resettable requests must not retain any references
+ * to the request or its data beyond the processing
+ * of the request, including the produced response.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+public interface IResettableRequest extends IRequest {
+
+	/**
+	 * Reset the request to its initial state, clearing
+	 * all the data parsed from the processed request.
+	 */
+	public void reset();
+}
@@ -0,0 +1,37 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.structure.interfaces.IResponse;
+
+/**
+ * <code>IResponseCallback</code> defines the interface
+ * of the callback given to an <code>IAsyncProcessor</code>
+ * to complete the processing of a request with either
+ * a response or a failure.
+ * <p>
+ * Only the first completion of a callback takes effect,
+ * and the subsequent ones are ignored, including the
+ * completions after the processing has timed out. The
+ * callback can be completed by any thread.
+ *
+ * @param <S> The <code>IResponse</code> type.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+public interface IResponseCallback<S extends IResponse> {
+
+	/**
+	 * Complete the processing with the given response.
+	 * @param response The produced <code>IResponse</code>.
+	 * <code>null</code> if the processor is inactive.
+	 */
+	public void completed(final S response);
+
+	/**
+	 * Complete the processing with the given failure,
+	 * which is handled the same way as an exception
+	 * thrown by a synchronous processor.
+	 * @param cause The <code>Exception</code> cause.
+	 */
+	public void failed(final Exception cause);
+}
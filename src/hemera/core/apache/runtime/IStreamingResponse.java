@@ -0,0 +1,52 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.structure.interfaces.IResponse;
+
+/**
+ * <code>IStreamingResponse</code> defines the interface
+ * of a response whose content is a sequence of JSON
+ * records emitted incrementally, such as a large result
+ * set, instead of a single JSON object built in memory.
+ * <p>
+ * The Apache runtime environments send the response
+ * headers first, and then invoke the <code>stream</code>
+ * method on the thread processing the request to write
+ * the records as they are produced. The records are
+ * sent with the chunked transfer coding, either as the
+ * elements of a single JSON array, optionally wrapped
+ * with the JSONP callback function, or as newline
+ * delimited JSON. The writes block while the client is
+ * not keeping up, so the memory used does not grow with
+ * the size of the result. The <code>toJSON</code> method
+ * of a streaming response is never invoked.
+ * <p>
+ * Since the status is sent before the records, a
+ * failure while streaming can only abort the connection,
+ * and the client observes an incomplete response.
+ * Streaming responses are never cached or shared with
+ * identical requests.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+public interface IStreamingResponse extends IResponse {
+
+	/**
+	 * Write all the records of the response to the
+	 * given stream. The stream must not be used after
+	 * this method returns.
+	 * @param stream The <code>IRecordStream</code> to
+	 * write to.
+	 * @throws Exception If producing the records failed
+	 * or the connection failed.
+	 */
+	public void stream(final IRecordStream stream) throws Exception;
+
+	/**
+	 * Check if the records are sent as newline delimited
+	 * JSON instead of the elements of a JSON array.
+	 * @return <code>true</code> if the records are sent
+	 * as <code>application/x-ndjson</code>.
+	 */
+	public boolean isDelimited();
+}
@@ -0,0 +1,247 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hemera.core.execution.interfaces.IExecutionService;
+import hemera.core.execution.interfaces.task.ICyclicTask;
+import hemera.core.utility.logging.FileLogger;
+
+/**
+ * <code>IdleConnectionPoller</code> defines an internal
+ * task unit that watches the idle keep-alive connections
+ * of the blocking runtime for readiness, so that they do
+ * not occupy execution threads between requests.
+ * <p>
+ * A <code>ConnectionHandler</code> parks its connection
+ * with the poller once there is no more buffered request
+ * data. The poller switches the connection channel into
+ * non-blocking mode and registers it with its selector.
+ * As soon as data arrives, the channel is switched back
+ * into blocking mode and a resumed handler is submitted
+ * to the execution service to serve the request. Parked
+ * connections that stay idle for longer than the socket
+ * timeout are closed.
+ * <p>
+ * <code>IdleConnectionPoller</code> terminates itself if
+ * the selector fails or is closed.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class IdleConnectionPoller implements ICyclicTask {
+	/**
+	 * The <code>long</code> maximum selection wait
+	 * time in milliseconds.
+	 */
+	private static final long SELECT_TIMEOUT = 1000;
+	/**
+	 * The <code>FileLogger</code> instance.
+	 */
+	private final FileLogger logger;
+	/**
+	 * The <code>IExecutionService</code> used to
+	 * dispatch the resumed handlers.
+	 */
+	private final IExecutionService service;
+	/**
+	 * The <code>Selector</code> instance.
+	 */
+	private final Selector selector;
+	/**
+	 * The <code>int</code> idle timeout in
+	 * milliseconds.
+	 */
+	private final int timeout;
+	/**
+	 * The <code>Queue</code> of handlers pending to
+	 * be parked.
+	 */
+	private final Queue<ConnectionHandler> pending;
+	/**
+	 * The <code>List</code> of handlers ready to be
+	 * resumed in the current cycle.
+	 */
+	private final List<ConnectionHandler> ready;
+	/**
+	 * The <code>AtomicInteger</code> number of the
+	 * parked connections.
+	 */
+	private final AtomicInteger parkedCount;
+	/**
+	 * The <code>long</code> time in milliseconds of
+	 * the last idle connection check.
+	 */
+	private long lastIdleCheck;
+	/**
+	 * The <code>boolean</code> termination flag.
+	 */
+	private volatile boolean terminated;
+
+	/**
+	 * Constructor of <code>IdleConnectionPoller</code>.
+	 * @param service The <code>IExecutionService</code>
+	 * used to dispatch the resumed handlers.
+	 * @param timeout The <code>int</code> idle timeout
+	 * in milliseconds.
+	 * @throws IOException If opening selector failed.
+	 */
+	IdleConnectionPoller(final IExecutionService service, final int timeout) throws IOException {
+		this.logger = FileLogger.getLogger(this.getClass());
+		this.service = service;
+		this.selector = Selector.open();
+		this.timeout = timeout;
+		this.pending = new ConcurrentLinkedQueue<ConnectionHandler>();
+		this.ready = new ArrayList<ConnectionHandler>();
+		this.parkedCount = new AtomicInteger();
+		this.lastIdleCheck = System.currentTimeMillis();
+	}
+
+	/**
+	 * Park the connection of the given handler. This
+	 * method is thread-safe.
+	 * @param handler The <code>ConnectionHandler</code>
+	 * with the idle connection.
+	 */
+	void park(final ConnectionHandler handler) {
+		this.parkedCount.incrementAndGet();
+		this.pending.add(handler);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Retrieve the number of parked connections.
+	 * @return The <code>int</code> count.
+	 */
+	int getParkedCount() {
+		return this.parkedCount.get();
+	}
+
+	@Override
+	public boolean execute() throws Exception {
+		if (this.terminated) return false;
+		try {
+			this.selector.select(SELECT_TIMEOUT);
+			this.registerPending();
+			// Collect ready connections.
+			final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				final SelectionKey key = keys.next();
+				keys.remove();
+				key.cancel();
+				this.ready.add((ConnectionHandler)key.attachment());
+			}
+			this.expireIdle();
+			// Flush cancelled keys so channels can block again.
+			this.selector.selectNow();
+			for (int i = 0; i < this.ready.size(); i++) {
+				this.dispatch(this.ready.get(i));
+			}
+			this.ready.clear();
+			return !this.terminated;
+		} catch (final ClosedSelectorException e) {
+			// This could be due to task termination.
+			return false;
+		} catch (final IOException e) {
+			this.logger.exception(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Register all the pending parked connections.
+	 */
+	private void registerPending() {
+		ConnectionHandler handler;
+		while ((handler = this.pending.poll()) != null) {
+			final SocketChannel channel = handler.getChannel();
+			try {
+				channel.configureBlocking(false);
+				channel.register(this.selector, SelectionKey.OP_READ, handler);
+			} catch (final IOException e) {
+				this.parkedCount.decrementAndGet();
+				handler.expire();
+			} catch (final CancelledKeyException e) {
+				this.parkedCount.decrementAndGet();
+				handler.expire();
+			}
+		}
+	}
+
+	/**
+	 * Resume serving the given ready connection.
+	 * @param handler The parked <code>ConnectionHandler</code>.
+	 */
+	private void dispatch(final ConnectionHandler handler) {
+		this.parkedCount.decrementAndGet();
+		try {
+			handler.getChannel().configureBlocking(true);
+			this.service.submit(handler.resume());
+		} catch (final IOException e) {
+			handler.expire();
+		}
+	}
+
+	/**
+	 * Close the parked connections that have been
+	 * idle for longer than the timeout value.
+	 */
+	private void expireIdle() {
+		if (this.timeout <= 0) return;
+		final long now = System.currentTimeMillis();
+		if (now - this.lastIdleCheck < 1000) return;
+		this.lastIdleCheck = now;
+		for (final SelectionKey key : this.selector.keys()) {
+			if (!key.isValid()) continue;
+			final ConnectionHandler handler = (ConnectionHandler)key.attachment();
+			if (now - handler.getParkTime() > this.timeout) {
+				key.cancel();
+				this.parkedCount.decrementAndGet();
+				handler.expire();
+			}
+		}
+	}
+
+	@Override
+	public void cleanup() throws Exception {
+		if (this.selector.isOpen()) {
+			for (final SelectionKey key : this.selector.keys()) {
+				if (key.isValid()) ((ConnectionHandler)key.attachment()).expire();
+			}
+			this.selector.close();
+		}
+		ConnectionHandler handler;
+		while ((handler = this.pending.poll()) != null) {
+			handler.expire();
+		}
+		this.parkedCount.set(0);
+	}
+
+	@Override
+	public void signalTerminate() throws Exception {
+		this.terminated = true;
+		// Wake up selection block.
+		this.selector.wakeup();
+	}
+
+	@Override
+	public int getCycleCount() {
+		return 0;
+	}
+
+	@Override
+	public long getCycleLimit(final TimeUnit unit) {
+		return 0;
+	}
+}
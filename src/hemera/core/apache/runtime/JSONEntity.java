@@ -0,0 +1,193 @@
+package hemera.core.apache.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <code>JSONEntity</code> defines an internal HTTP
+ * entity that serializes a <code>JSONObject</code>
+ * straight into the connection output as UTF-8 text,
+ * optionally wrapped with a JSONP callback function,
+ * in which case the data is labelled as JavaScript.
+ * Unlike a <code>StringEntity</code>, the data is never
+ * materialized as a string or a byte array, so the
+ * memory used does not grow with the response size.
+ * <p>
+ * Since the length of the data is not known until
+ * the entity is written, the entity is sent with the
+ * chunked transfer coding.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.1
+ */
+class JSONEntity extends AbstractHttpEntity {
+	/**
+	 * The <code>Charset</code> of the data.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * The <code>String</code> content type of JSONP
+	 * data.
+	 */
+	static final String JAVASCRIPT = "application/javascript; charset=UTF-8";
+	/**
+	 * The <code>JSONObject</code> to write.
+	 */
+	private final JSONObject json;
+	/**
+	 * The optional <code>String</code> JSONP callback
+	 * function name.
+	 */
+	private final String callback;
+
+	/**
+	 * Constructor of <code>JSONEntity</code>.
+	 * @param json The <code>JSONObject</code> to write.
+	 * @param callback The optional <code>String</code>
+	 * JSONP callback function name. <code>null</code>
+	 * if the data should not be wrapped.
+	 */
+	JSONEntity(final JSONObject json, final String callback) {
+		this.json = json;
+		this.callback = callback;
+		this.setContentType((callback == null) ? ContentType.APPLICATION_JSON.toString() : JAVASCRIPT);
+		this.setChunked(true);
+	}
+
+	@Override
+	public void writeTo(final OutputStream outstream) throws IOException {
+		if (outstream == null) throw new IllegalArgumentException("Output stream may not be null");
+		// The entity stream is already buffered.
+		final Writer writer = new OutputStreamWriter(outstream, UTF8);
+		try {
+			if (this.callback == null) this.json.write(writer);
+			else {
+				writer.write(this.callback);
+				writer.write('(');
+				this.json.write(writer);
+				writer.write(')');
+			}
+		} catch (final JSONException e) {
+			throw new IOException(e.getMessage());
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Serialize the data into memory if it is within
+	 * the given size. The serialization is abandoned as
+	 * soon as the size is exceeded, so checking a large
+	 * entity only costs serializing the limit amount of
+	 * data plus one buffer of the writer.
+	 * @param limit The <code>int</code> maximum number
+	 * of bytes.
+	 * @return The <code>byte</code> array data. <code>null</code>
+	 * if the data is larger than the limit.
+	 * @throws IOException If serialization failed.
+	 */
+	byte[] toByteArray(final int limit) throws IOException {
+		final LimitedOutputStream outstream = new LimitedOutputStream(limit);
+		try {
+			this.writeTo(outstream);
+		} catch (final LimitExceededException e) {
+			return null;
+		}
+		return outstream.toByteArray();
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		final ByteArrayOutputStream outstream = new ByteArrayOutputStream();
+		this.writeTo(outstream);
+		return new ByteArrayInputStream(outstream.toByteArray());
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * <code>LimitedOutputStream</code> defines the byte
+	 * array output stream that fails any write beyond
+	 * its size limit.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.0
+	 */
+	private static class LimitedOutputStream extends ByteArrayOutputStream {
+		/**
+		 * The <code>int</code> maximum number of bytes.
+		 */
+		private final int limit;
+
+		/**
+		 * Constructor of <code>LimitedOutputStream</code>.
+		 * @param limit The <code>int</code> maximum number
+		 * of bytes.
+		 */
+		private LimitedOutputStream(final int limit) {
+			super(Math.min(limit, 1024));
+			this.limit = limit;
+		}
+
+		@Override
+		public void write(final int b) {
+			this.check(1);
+			super.write(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			this.check(len);
+			super.write(b, off, len);
+		}
+
+		/**
+		 * Check if the given number of bytes can still be
+		 * written within the limit.
+		 * @param len The <code>int</code> number of bytes.
+		 * @throws LimitExceededException If the limit is
+		 * exceeded.
+		 */
+		private void check(final int len) {
+			if (this.count + len > this.limit) throw new LimitExceededException();
+		}
+	}
+
+	/**
+	 * <code>LimitExceededException</code> defines the
+	 * unchecked exception thrown when the data exceeds
+	 * the limit of a <code>LimitedOutputStream</code>.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.0
+	 */
+	private static class LimitExceededException extends RuntimeException {
+		/**
+		 * Serial version ID.
+		 */
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -0,0 +1,127 @@
+package hemera.core.apache.runtime;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <code>LatencyHistogram</code> defines a lock-free
+ * histogram of latencies in nanoseconds.
+ * <p>
+ * The values are counted in log-linear buckets. Each
+ * power of two range is split into a fixed number of
+ * linear sub-buckets, so the relative error of the
+ * reported percentiles is bounded by the sub-bucket
+ * resolution at any magnitude, while the memory used
+ * is constant. Values beyond the largest bucket are
+ * counted in the largest bucket.
+ * <p>
+ * Recording a value only updates atomic counters,
+ * so the histogram can be shared by all the request
+ * threads, or all the client threads of a load test,
+ * without locking. A snapshot taken while values are
+ * recorded may be off by the concurrent values.
+ * <p>
+ * <code>LatencyHistogram</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.1
+ */
+public class LatencyHistogram {
+	/**
+	 * The <code>int</code> number of bits of the linear
+	 * sub-buckets within each power of two, which bounds
+	 * the relative error to about three percent.
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+	/**
+	 * The <code>int</code> number of sub-buckets.
+	 */
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	/**
+	 * The <code>int</code> exponent of the largest
+	 * value distinguished, about eighteen minutes.
+	 */
+	private static final int MAX_EXPONENT = 40;
+	/**
+	 * The <code>int</code> total number of buckets.
+	 */
+	static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+	/**
+	 * The <code>AtomicLongArray</code> of bucket counts.
+	 */
+	private final AtomicLongArray buckets;
+	/**
+	 * The <code>AtomicLong</code> sum of all values.
+	 */
+	private final AtomicLong sum;
+	/**
+	 * The <code>AtomicLong</code> maximum value.
+	 */
+	private final AtomicLong max;
+
+	/**
+	 * Constructor of <code>LatencyHistogram</code>.
+	 */
+	public LatencyHistogram() {
+		this.buckets = new AtomicLongArray(BUCKET_COUNT);
+		this.sum = new AtomicLong();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Record the given value.
+	 * @param nanos The <code>long</code> latency in
+	 * nanoseconds. Negative values are recorded as zero.
+	 */
+	public void record(final long nanos) {
+		final long value = Math.max(0, nanos);
+		this.buckets.incrementAndGet(LatencyHistogram.indexOf(value));
+		this.sum.addAndGet(value);
+		long current = this.max.get();
+		while (value > current && !this.max.compareAndSet(current, value)) {
+			current = this.max.get();
+		}
+	}
+
+	/**
+	 * Take a snapshot of the recorded values.
+	 * @return The <code>LatencySnapshot</code>.
+	 */
+	public LatencySnapshot snapshot() {
+		final long[] counts = new long[BUCKET_COUNT];
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = this.buckets.get(i);
+			count += counts[i];
+		}
+		return new LatencySnapshot(counts, count, this.sum.get(), this.max.get());
+	}
+
+	/**
+	 * Retrieve the index of the bucket of the given
+	 * value.
+	 * @param value The <code>long</code> non-negative
+	 * value.
+	 * @return The <code>int</code> bucket index.
+	 */
+	static int indexOf(final long value) {
+		if (value < SUB_BUCKET_COUNT) return (int)value;
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) return BUCKET_COUNT - 1;
+		final int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKET_COUNT + (int)((value >>> shift) - SUB_BUCKET_COUNT);
+	}
+
+	/**
+	 * Retrieve the largest value counted in the bucket
+	 * of the given index.
+	 * @param index The <code>int</code> bucket index.
+	 * @return The <code>long</code> value.
+	 */
+	static long valueOf(final int index) {
+		final int shift = index / SUB_BUCKET_COUNT - 1;
+		if (shift <= 0) return index;
+		final long sub = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,133 @@
+package hemera.core.apache.runtime;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <code>LatencySnapshot</code> defines the immutable
+ * snapshot of the latency distribution of a phase of
+ * handling requests, as recorded by the Apache runtime
+ * environments.
+ * <p>
+ * The percentiles are reported as the upper bound of
+ * the histogram bucket they fall in, which is within
+ * about three percent of the actual value.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+public class LatencySnapshot {
+	/**
+	 * The <code>long</code> array of bucket counts.
+	 */
+	private final long[] counts;
+	/**
+	 * The <code>long</code> total number of values.
+	 */
+	private final long count;
+	/**
+	 * The <code>long</code> sum of all values in
+	 * nanoseconds.
+	 */
+	private final long sum;
+	/**
+	 * The <code>long</code> maximum value in
+	 * nanoseconds.
+	 */
+	private final long max;
+
+	/**
+	 * Constructor of <code>LatencySnapshot</code>.
+	 * @param counts The <code>long</code> array of
+	 * bucket counts.
+	 * @param count The <code>long</code> total number
+	 * of values.
+	 * @param sum The <code>long</code> sum of all values
+	 * in nanoseconds.
+	 * @param max The <code>long</code> maximum value in
+	 * nanoseconds.
+	 */
+	LatencySnapshot(final long[] counts, final long count, final long sum, final long max) {
+		this.counts = counts;
+		this.count = count;
+		this.sum = sum;
+		this.max = max;
+	}
+
+	/**
+	 * Retrieve the number of recorded values.
+	 * @return The <code>long</code> count.
+	 */
+	public long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Retrieve the mean value.
+	 * @param unit The <code>TimeUnit</code> of the
+	 * returned value.
+	 * @return The <code>double</code> mean in the given
+	 * unit. Zero if there are no values.
+	 */
+	public double getMean(final TimeUnit unit) {
+		if (this.count == 0) return 0;
+		return (double)this.sum / this.count / unit.toNanos(1);
+	}
+
+	/**
+	 * Retrieve the maximum value.
+	 * @param unit The <code>TimeUnit</code> of the
+	 * returned value.
+	 * @return The <code>long</code> maximum in the given
+	 * unit. Zero if there are no values.
+	 */
+	public long getMax(final TimeUnit unit) {
+		return unit.convert(this.max, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Retrieve the value at the given percentile.
+	 * @param percentile The <code>double</code>
+	 * percentile between zero and one hundred.
+	 * @param unit The <code>TimeUnit</code> of the
+	 * returned value.
+	 * @return The <code>long</code> value in the given
+	 * unit. Zero if there are no values.
+	 */
+	public long getPercentile(final double percentile, final TimeUnit unit) {
+		if (this.count == 0) return 0;
+		final double bounded = Math.min(100, Math.max(0, percentile));
+		final long rank = Math.max(1, (long)Math.ceil(bounded / 100 * this.count));
+		long seen = 0;
+		for (int i = 0; i < this.counts.length; i++) {
+			seen += this.counts[i];
+			if (seen >= rank) {
+				// Never report beyond the actual maximum.
+				final long value = Math.min(LatencyHistogram.valueOf(i), this.max);
+				return unit.convert(value, TimeUnit.NANOSECONDS);
+			}
+		}
+		return unit.convert(this.max, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Convert the snapshot into JSON data with the
+	 * count, mean, maximum and common percentiles in
+	 * microseconds.
+	 * @return The <code>JSONObject</code> data.
+	 * @throws JSONException If conversion failed.
+	 */
+	public JSONObject toJSON() throws JSONException {
+		final JSONObject json = new JSONObject();
+		json.put("count", this.count);
+		json.put("mean", this.getMean(TimeUnit.MICROSECONDS));
+		json.put("p50", this.getPercentile(50, TimeUnit.MICROSECONDS));
+		json.put("p90", this.getPercentile(90, TimeUnit.MICROSECONDS));
+		json.put("p99", this.getPercentile(99, TimeUnit.MICROSECONDS));
+		json.put("p999", this.getPercentile(99.9, TimeUnit.MICROSECONDS));
+		json.put("max", this.getMax(TimeUnit.MICROSECONDS));
+		return json;
+	}
+}
@@ -0,0 +1,268 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.io.SessionInputBuffer;
+import org.apache.http.io.SessionOutputBuffer;
+import org.apache.http.params.HttpParams;
+
+/**
+ * <code>ManagedHttpServerConnection</code> defines the
+ * internal blocking server connection implementation
+ * used by the connection listeners. In addition to the
+ * default behavior, it exposes the connection state
+ * the runtime requires to manage the connection, such
+ * as whether any received data is still buffered and
+ * the underlying socket channel.
+ * <p>
+ * Responses to pipelined requests are not flushed
+ * while the next request is already buffered, so the
+ * responses of a batch of pipelined requests are sent
+ * with as few socket writes as possible. The pending
+ * responses are flushed before the connection blocks
+ * on reading more data, and once the buffered requests
+ * are drained.
+ * <p>
+ * The handshake of a secure connection is performed
+ * explicitly before the first request is read, so it
+ * is recorded with the <code>TlsContext</code>.
+ * <p>
+ * The session buffers are borrowed from the shared
+ * <code>BufferPool</code> when the connection is bound,
+ * and must be returned once it is closed.
+ * <p>
+ * The file region entities are transferred from the
+ * file straight to the socket channel of the plain
+ * connections after the buffered headers are flushed.
+ * Secure connections write them through the session
+ * buffer instead.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.4
+ */
+class ManagedHttpServerConnection extends DefaultHttpServerConnection {
+	/**
+	 * The <code>BufferPool</code> the session buffers
+	 * are borrowed from.
+	 */
+	private final BufferPool pool;
+	/**
+	 * The <code>InputBuffer</code> of the connection.
+	 */
+	private InputBuffer inbuffer;
+	/**
+	 * The <code>OutputBuffer</code> of the connection.
+	 */
+	private OutputBuffer outbuffer;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * connection is being closed.
+	 */
+	private boolean closing;
+	/**
+	 * The optional <code>TlsContext</code> to record
+	 * the handshake of a secure connection with.
+	 */
+	private final TlsContext tls;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * handshake of a secure connection is performed.
+	 */
+	private boolean handshaken;
+
+	/**
+	 * Constructor of <code>ManagedHttpServerConnection</code>.
+	 * @param tls The optional <code>TlsContext</code> to
+	 * record the handshake of a secure connection with.
+	 * <code>null</code> if the connection is plain.
+	 * @param pool The <code>BufferPool</code> to borrow
+	 * the session buffers from.
+	 */
+	ManagedHttpServerConnection(final TlsContext tls, final BufferPool pool) {
+		this.tls = tls;
+		this.pool = pool;
+	}
+
+	@Override
+	protected SessionInputBuffer createSessionInputBuffer(final Socket socket, final int buffersize, final HttpParams params) throws IOException {
+		this.inbuffer = new InputBuffer(socket, buffersize, params);
+		return this.inbuffer;
+	}
+
+	@Override
+	protected SessionOutputBuffer createSessionOutputBuffer(final Socket socket, final int buffersize, final HttpParams params) throws IOException {
+		this.outbuffer = new OutputBuffer(socket, buffersize, params);
+		return this.outbuffer;
+	}
+
+	/**
+	 * Return the session buffers to the pool. This must
+	 * be invoked once the connection is closed or has
+	 * failed to bind, after which the connection must
+	 * not be used.
+	 */
+	void releaseBuffers() {
+		if (this.inbuffer != null) this.inbuffer.release();
+		if (this.outbuffer != null) this.outbuffer.release();
+	}
+
+	@Override
+	public void close() throws IOException {
+		// Never defer the final flush.
+		this.closing = true;
+		super.close();
+	}
+
+	@Override
+	public void sendResponseEntity(final HttpResponse response) throws HttpException, IOException {
+		final HttpEntity entity = response.getEntity();
+		final SocketChannel channel = this.getChannel();
+		if (!(entity instanceof FileRegionEntity) || channel == null) {
+			super.sendResponseEntity(response);
+			return;
+		}
+		this.assertOpen();
+		this.outbuffer.flushNow();
+		((FileRegionEntity)entity).transferTo(channel);
+	}
+
+	/**
+	 * Perform the handshake of a secure connection if
+	 * it has not been performed yet. This allows the
+	 * handshake to be performed and recorded by the
+	 * connection handler instead of implicitly by the
+	 * first read.
+	 * @throws IOException If the handshake failed.
+	 */
+	void handshake() throws IOException {
+		if (this.handshaken) return;
+		this.handshaken = true;
+		final Socket socket = this.getSocket();
+		if (this.tls != null && socket instanceof SSLSocket) this.tls.handshake((SSLSocket)socket);
+	}
+
+	/**
+	 * Check if the connection has received data that
+	 * is buffered but not consumed yet.
+	 * @return <code>true</code> if there is buffered
+	 * input data.
+	 */
+	boolean hasBufferedInput() {
+		if (this.inbuffer == null) return false;
+		return this.inbuffer.length() > 0;
+	}
+
+	/**
+	 * Retrieve the socket channel of the connection.
+	 * @return The <code>SocketChannel</code>. <code>null</code>
+	 * if the socket was not created by a channel, such
+	 * as SSL sockets.
+	 */
+	SocketChannel getChannel() {
+		final Socket socket = this.getSocket();
+		if (socket == null) return null;
+		return socket.getChannel();
+	}
+
+	/**
+	 * <code>InputBuffer</code> defines the socket input
+	 * buffer that flushes the deferred responses before
+	 * blocking on reading from the socket.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.1
+	 */
+	private class InputBuffer extends PooledSessionInputBuffer {
+
+		/**
+		 * Constructor of <code>InputBuffer</code>.
+		 * @param socket The <code>Socket</code> to read
+		 * from.
+		 * @param buffersize The <code>int</code> buffer
+		 * size in bytes.
+		 * @param params The <code>HttpParams</code> of
+		 * the connection.
+		 * @throws IOException If creating the buffer
+		 * failed.
+		 */
+		private InputBuffer(final Socket socket, final int buffersize, final HttpParams params) throws IOException {
+			super(socket, buffersize, params, ManagedHttpServerConnection.this.pool);
+		}
+
+		@Override
+		protected int fillBuffer() throws IOException {
+			ManagedHttpServerConnection.this.outbuffer.flushPending();
+			return super.fillBuffer();
+		}
+	}
+
+	/**
+	 * <code>OutputBuffer</code> defines the socket output
+	 * buffer that defers flushing while the next request
+	 * is already buffered.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.2
+	 */
+	private class OutputBuffer extends PooledSessionOutputBuffer {
+		/**
+		 * The <code>boolean</code> flag indicating if the
+		 * written data has not been flushed.
+		 */
+		private boolean pending;
+
+		/**
+		 * Constructor of <code>OutputBuffer</code>.
+		 * @param socket The <code>Socket</code> to write
+		 * to.
+		 * @param buffersize The <code>int</code> buffer
+		 * size in bytes.
+		 * @param params The <code>HttpParams</code> of
+		 * the connection.
+		 * @throws IOException If creating the buffer
+		 * failed.
+		 */
+		private OutputBuffer(final Socket socket, final int buffersize, final HttpParams params) throws IOException {
+			super(socket, buffersize, params, ManagedHttpServerConnection.this.pool);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// Defer to batch with the pipelined responses.
+			if (!ManagedHttpServerConnection.this.closing && ManagedHttpServerConnection.this.hasBufferedInput()) {
+				this.pending = true;
+				return;
+			}
+			this.pending = false;
+			super.flush();
+		}
+
+		/**
+		 * Flush the deferred data if there is any.
+		 * @throws IOException If flushing failed.
+		 */
+		private void flushPending() throws IOException {
+			if (!this.pending) return;
+			this.pending = false;
+			super.flush();
+		}
+
+		/**
+		 * Flush the buffered data immediately, including
+		 * any deferred data.
+		 * @throws IOException If flushing failed.
+		 */
+		private void flushNow() throws IOException {
+			this.pending = false;
+			super.flush();
+		}
+	}
+}
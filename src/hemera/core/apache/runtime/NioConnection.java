@@ -0,0 +1,718 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpException;
+import org.apache.http.ProtocolException;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpService;
+
+/**
+ * <code>NioConnection</code> defines an internal unit
+ * that maintains the state of a single connection
+ * multiplexed by a <code>NioReactor</code>. All the
+ * network IO is performed by the owning reactor. Once
+ * a complete request is received, the connection is
+ * handed to a <code>NioRequestWorker</code> to process
+ * the request, after which the connection is resumed
+ * by its reactor to write the response.
+ * <p>
+ * A connection processes at most one request at a
+ * time, and does not read any more data while the
+ * request is being processed. This guarantees the
+ * responses are written in the same order as the
+ * requests are received. The complete pipelined
+ * requests already received are processed back-to-back
+ * by the same worker, and their responses are written
+ * with a single gathering write. The regions of the
+ * file responses are queued as memory-mapped buffers,
+ * so they are written without copying them into the
+ * heap. The arrays of the written responses are
+ * recycled by the HTTP connection that produced them.
+ * <p>
+ * The data of a response streamed by the worker is
+ * queued as it is produced, and written by the reactor
+ * while the request is still being processed. The
+ * worker is blocked while too much of the streamed data
+ * is queued, until the reactor has written it, or the
+ * socket timeout elapses, in which case the connection
+ * is aborted.
+ * <p>
+ * A request of an <code>IAsyncProcessor</code> that
+ * is not completed immediately suspends the connection
+ * and releases the worker. Once the processing is
+ * completed, the connection is handed to a worker
+ * again to send the response, and then resumed.
+ * <p>
+ * A secure connection reads and writes through its
+ * <code>TlsTransport</code>. The delegated tasks of
+ * its handshake are run by a worker in place of a
+ * request, so the reactor never blocks on them.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.10
+ */
+class NioConnection {
+	/**
+	 * The <code>String</code> context attribute of the
+	 * connection itself.
+	 */
+	static final String ATTRIBUTE = "hemera.nio.connection";
+	/**
+	 * The empty <code>byte</code> array to bind the
+	 * HTTP connection with to send deferred responses.
+	 */
+	private static final byte[] EMPTY = new byte[0];
+	/**
+	 * The <code>int</code> maximum number of pipelined
+	 * requests processed back-to-back by a worker.
+	 */
+	private static final int PIPELINE_BATCH = 16;
+	/**
+	 * The <code>int</code> maximum number of buffers
+	 * written with a single gathering write.
+	 */
+	private static final int GATHER_SIZE = 16;
+	/**
+	 * The <code>int</code> maximum number of queued
+	 * buffers before the worker streaming a response
+	 * is blocked.
+	 */
+	private static final int STREAM_WINDOW = 8;
+	/**
+	 * The <code>int</code> initial size of the input
+	 * buffer.
+	 */
+	private static final int INPUT_BUFFER_SIZE = 1024;
+	/**
+	 * The <code>int</code> maximum size of the input
+	 * buffer retained once the received data fits in
+	 * the initial size again.
+	 */
+	private static final int INPUT_BUFFER_RETAINED = 64 * 1024;
+	/**
+	 * The <code>byte</code> array of the interim
+	 * continue response.
+	 */
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+	/**
+	 * The <code>byte</code> array of the response
+	 * sent for malformed requests.
+	 */
+	private static final byte[] BAD_REQUEST = ("HTTP/1.1 400 Bad Request\r\n" +
+			"Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes();
+	/**
+	 * The <code>byte</code> array of the response
+	 * sent for requests whose body exceeds the maximum
+	 * request size.
+	 */
+	private static final byte[] PAYLOAD_TOO_LARGE = ("HTTP/1.1 413 Payload Too Large\r\n" +
+			"Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes();
+	/**
+	 * The <code>byte</code> array of the response
+	 * sent for requests whose head exceeds the maximum
+	 * request size.
+	 */
+	private static final byte[] HEADER_FIELDS_TOO_LARGE = ("HTTP/1.1 431 Request Header Fields Too Large\r\n" +
+			"Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes();
+	/**
+	 * The <code>NioReactor</code> owning this
+	 * connection.
+	 */
+	private final NioReactor reactor;
+	/**
+	 * The <code>AdmissionController</code> that
+	 * admitted the connection.
+	 */
+	private final AdmissionController admission;
+	/**
+	 * The <code>SocketChannel</code> of the connection.
+	 */
+	private final SocketChannel channel;
+	/**
+	 * The <code>int</code> maximum number of bytes of
+	 * a single request.
+	 */
+	private final int maxRequestSize;
+	/**
+	 * The <code>TlsTransport</code> of a secure
+	 * connection. <code>null</code> if the connection
+	 * is plain.
+	 */
+	private final TlsTransport transport;
+	/**
+	 * The <code>HttpRequestFramer</code> instance.
+	 */
+	private final HttpRequestFramer framer;
+	/**
+	 * The <code>BufferedHttpServerConnection</code>
+	 * used by workers to process the requests.
+	 */
+	private final BufferedHttpServerConnection httpConnection;
+	/**
+	 * The <code>HttpContext</code> shared by all the
+	 * requests received in this connection.
+	 */
+	private final HttpContext context;
+	/**
+	 * The <code>Queue</code> of <code>ByteBuffer</code>
+	 * to be written to the channel. It is also the
+	 * monitor the streaming worker waits on. The writable
+	 * heap buffers are taken from the HTTP connection
+	 * and recycled once written, so any other data must
+	 * be queued as read-only buffers.
+	 */
+	private final Queue<ByteBuffer> outbound;
+	/**
+	 * The <code>ByteBuffer</code> array of the buffers
+	 * gathered for writing.
+	 */
+	private final ByteBuffer[] gather;
+	/**
+	 * The <code>int</code> maximum time in milliseconds
+	 * the streaming worker waits for the queued data to
+	 * be written. Zero for no limit.
+	 */
+	private final int streamTimeout;
+	/**
+	 * The <code>AtomicBoolean</code> flag indicating if
+	 * writing the streamed data has been requested from
+	 * the reactor.
+	 */
+	private final AtomicBoolean flushRequested;
+	/**
+	 * The <code>SelectionKey</code> of the connection.
+	 */
+	private SelectionKey key;
+	/**
+	 * The <code>byte</code> array buffer of received
+	 * data that has not been processed yet.
+	 */
+	private byte[] inbuffer;
+	/**
+	 * The <code>int</code> number of bytes in the
+	 * input buffer.
+	 */
+	private int inlength;
+	/**
+	 * The <code>int</code> length of the complete
+	 * request at the head of the input buffer pending
+	 * processing. The request is processed in place,
+	 * and removed from the input buffer once processed.
+	 */
+	private int requestLength;
+	/**
+	 * The <code>boolean</code> flag indicating if a
+	 * request is being processed by a worker.
+	 */
+	private volatile boolean processing;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * connection should be closed once the outbound
+	 * data is written.
+	 */
+	private volatile boolean closeAfterWrite;
+	/**
+	 * The <code>AsyncExchange</code> of the request
+	 * suspended on this connection. <code>null</code>
+	 * if not suspended.
+	 */
+	private volatile AsyncExchange exchange;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * interim continue response has been sent for the
+	 * current request.
+	 */
+	private boolean continueSent;
+	/**
+	 * The <code>long</code> time in milliseconds of
+	 * the last IO activity.
+	 */
+	private volatile long lastActivity;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * connection should be closed without writing the
+	 * remaining data.
+	 */
+	private volatile boolean aborted;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * connection has been closed.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Constructor of <code>NioConnection</code>.
+	 * @param reactor The <code>NioReactor</code>
+	 * owning this connection.
+	 * @param channel The <code>SocketChannel</code>
+	 * of the connection.
+	 * @param params The <code>HttpParams</code> of the
+	 * HTTP service.
+	 * @param maxRequestSize The <code>int</code>
+	 * maximum number of bytes of a single request.
+	 * @param admission The <code>AdmissionController</code>
+	 * that admitted the connection, which is released
+	 * when the connection is closed.
+	 * @param tls The optional <code>TlsContext</code>
+	 * to secure the connection with. <code>null</code>
+	 * if the connection is plain.
+	 */
+	NioConnection(final NioReactor reactor, final SocketChannel channel, final HttpParams params, final int maxRequestSize,
+			final AdmissionController admission, final TlsContext tls) {
+		this.reactor = reactor;
+		this.admission = admission;
+		this.channel = channel;
+		this.transport = (tls == null) ? null : new TlsTransport(tls);
+		this.maxRequestSize = maxRequestSize;
+		this.framer = new HttpRequestFramer(maxRequestSize);
+		this.httpConnection = new BufferedHttpServerConnection(this, channel.socket(), params);
+		this.context = new BasicHttpContext();
+		this.context.setAttribute(ATTRIBUTE, this);
+		this.outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.gather = new ByteBuffer[GATHER_SIZE];
+		this.streamTimeout = params.getIntParameter(CoreConnectionPNames.SO_TIMEOUT, 0);
+		this.flushRequested = new AtomicBoolean();
+		this.inbuffer = new byte[INPUT_BUFFER_SIZE];
+		this.lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Set the selection key of the connection.
+	 * @param key The <code>SelectionKey</code>.
+	 */
+	void setKey(final SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Read the available data from the channel into
+	 * the input buffer. Reading stops once the buffered
+	 * data exceeds the maximum request size, in which
+	 * case the buffered requests are either framed or
+	 * rejected before reading more. This method should
+	 * only be invoked by the owning reactor.
+	 * @param readBuffer The <code>ByteBuffer</code>
+	 * shared by the reactor to read data with.
+	 * @return <code>false</code> if the end of stream
+	 * has been reached.
+	 * @throws IOException If reading failed.
+	 */
+	boolean read(final ByteBuffer readBuffer) throws IOException {
+		while (this.inlength <= this.maxRequestSize) {
+			readBuffer.clear();
+			final int count = (this.transport == null) ? this.channel.read(readBuffer) : this.transport.read(this.channel, readBuffer);
+			if (count < 0) return false;
+			else if (count == 0) break;
+			this.ensureCapacity(this.inlength + count);
+			readBuffer.flip();
+			readBuffer.get(this.inbuffer, this.inlength, count);
+			this.inlength += count;
+			this.lastActivity = System.currentTimeMillis();
+		}
+		return true;
+	}
+
+	/**
+	 * Attempt to frame the next complete request from
+	 * the input buffer and mark the connection as
+	 * processing if a request is available. If the
+	 * request head expects a continue response, the
+	 * interim response is queued. This method should
+	 * only be invoked by the owning reactor.
+	 * @return <code>true</code> if a complete request
+	 * is ready to be processed, or the delegated tasks
+	 * of the handshake are ready to be run.
+	 */
+	boolean prepareRequest() {
+		if (this.processing || this.closeAfterWrite) return false;
+		// Run the delegated handshake tasks as a request.
+		if (this.transport != null && this.transport.needsTask()) {
+			this.processing = true;
+			return true;
+		}
+		if (!this.frameRequest(true)) return false;
+		this.processing = true;
+		return true;
+	}
+
+	/**
+	 * Frame the next complete request in the input
+	 * buffer as the pending request. A malformed request
+	 * queues the bad request response, and a request
+	 * exceeding the maximum size queues the payload or
+	 * header fields too large response. The connection
+	 * is closed once the response is written.
+	 * @param interim The <code>boolean</code> flag
+	 * indicating if the interim continue response should
+	 * be queued for an incomplete request expecting it.
+	 * @return <code>true</code> if a complete request
+	 * is framed.
+	 */
+	private boolean frameRequest(final boolean interim) {
+		try {
+			final int blanks = this.framer.countLeadingBlanks(this.inbuffer, 0, this.inlength);
+			if (blanks > 0) this.consume(blanks);
+			if (this.inlength == 0) return false;
+			final int length = this.framer.frame(this.inbuffer, 0, this.inlength);
+			if (length < 0) {
+				if (interim && this.framer.isExpectContinue() && !this.continueSent) {
+					this.outbound.add(ByteBuffer.wrap(CONTINUE).asReadOnlyBuffer());
+					this.continueSent = true;
+				}
+				return false;
+			}
+			this.requestLength = length;
+			this.continueSent = false;
+			return true;
+		} catch (final RequestTooLargeException e) {
+			this.reject(e.isHead() ? HEADER_FIELDS_TOO_LARGE : PAYLOAD_TOO_LARGE);
+			return false;
+		} catch (final ProtocolException e) {
+			this.reject(BAD_REQUEST);
+			return false;
+		}
+	}
+
+	/**
+	 * Discard the received data and queue the given
+	 * error response, after which the connection is
+	 * closed.
+	 * @param response The <code>byte</code> array of
+	 * the canned response.
+	 */
+	private void reject(final byte[] response) {
+		this.inlength = 0;
+		this.outbound.add(ByteBuffer.wrap(response).asReadOnlyBuffer());
+		this.closeAfterWrite = true;
+	}
+
+	/**
+	 * Process the pending request using the given
+	 * HTTP service, followed by the complete pipelined
+	 * requests already received, and resume the
+	 * connection with its reactor. If a request is
+	 * suspended, the connection is not resumed until
+	 * the response of the request is sent using the
+	 * given responder. The delegated tasks of a pending
+	 * handshake are run instead if there are any. This
+	 * method is invoked by the worker that picked up the
+	 * connection.
+	 * @param httpService The <code>HttpService</code>
+	 * to process the requests with.
+	 * @param responder The <code>AsyncResponder</code>
+	 * to send the deferred responses with.
+	 */
+	void process(final HttpService httpService, final AsyncResponder responder) {
+		if (this.transport != null && this.transport.needsTask()) {
+			try {
+				this.transport.runTasks();
+			} finally {
+				this.reactor.resume(this);
+			}
+			return;
+		}
+		boolean suspended = false;
+		try {
+			int count = 0;
+			do {
+				suspended = this.processRequest(httpService, responder);
+				count++;
+			} while (!suspended && !this.closeAfterWrite && count < PIPELINE_BATCH && this.frameRequest(false));
+		} finally {
+			if (!suspended) this.reactor.resume(this);
+		}
+	}
+
+	/**
+	 * Process the pending request, or send the deferred
+	 * response of the completed suspended request, and
+	 * queue the produced response.
+	 * @param httpService The <code>HttpService</code>
+	 * to process the request with.
+	 * @param responder The <code>AsyncResponder</code>
+	 * to send the deferred response with.
+	 * @return <code>true</code> if the request is
+	 * suspended.
+	 */
+	private boolean processRequest(final HttpService httpService, final AsyncResponder responder) {
+		try {
+			if (this.exchange == null) {
+				this.httpConnection.bind(this.inbuffer, 0, this.requestLength);
+				httpService.handleRequest(this.httpConnection, this.context);
+				// Discard the interim response if suspended.
+				if (this.exchange != null && this.exchange.attach(this)) return true;
+			}
+			if (this.exchange != null) {
+				final AsyncExchange completed = this.exchange;
+				this.exchange = null;
+				this.httpConnection.bind(EMPTY, 0, 0);
+				responder.respond(completed, this.httpConnection, this.context);
+			}
+			if (!this.httpConnection.isKeepAlive()) this.closeAfterWrite = true;
+		} catch (final ConnectionClosedException e) {
+			this.closeAfterWrite = true;
+		} catch (final IOException e) {
+			this.closeAfterWrite = true;
+		} catch (final HttpException e) {
+			this.closeAfterWrite = true;
+		} finally {
+			RequestHandler.releaseDeferred(this.context);
+			// The input buffer is not read by the reactor
+			// while the request is processed.
+			if (this.requestLength > 0) {
+				this.consume(this.requestLength);
+				this.requestLength = 0;
+			}
+		}
+		final ByteBuffer output = this.httpConnection.takeOutput();
+		if (output != null) this.outbound.add(output);
+		final ByteBuffer[] regions = this.httpConnection.takeRegions();
+		if (regions != null) {
+			for (final ByteBuffer region : regions) this.outbound.add(region);
+		}
+		return false;
+	}
+
+	/**
+	 * Queue the given data of the response being streamed
+	 * and have the reactor write it while the request is
+	 * being processed. The invoking worker is blocked
+	 * while too much data is queued. This method should
+	 * only be invoked by the worker processing the request.
+	 * @param data The <code>ByteBuffer</code> of the
+	 * data taken from the HTTP connection.
+	 * @throws IOException If the connection has been
+	 * closed, or the queued data is not written within
+	 * the socket timeout.
+	 */
+	void stream(final ByteBuffer data) throws IOException {
+		synchronized (this.outbound) {
+			final long deadline = System.currentTimeMillis() + this.streamTimeout;
+			try {
+				while (!this.closed && this.outbound.size() >= STREAM_WINDOW) {
+					if (this.streamTimeout <= 0) this.outbound.wait();
+					else {
+						final long remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							this.aborted = true;
+							throw new SocketTimeoutException("Streamed response was not written within the timeout");
+						}
+						this.outbound.wait(remaining);
+					}
+				}
+			} catch (final InterruptedException e) {
+				this.aborted = true;
+				throw new InterruptedIOException("Interrupted while streaming response");
+			}
+			if (this.closed) throw new ConnectionClosedException("Connection closed while streaming response");
+			this.outbound.add(data);
+		}
+		if (this.flushRequested.compareAndSet(false, true)) this.reactor.flush(this);
+	}
+
+	/**
+	 * Write the streamed data queued since the flush was
+	 * requested. This method should only be invoked by
+	 * the owning reactor.
+	 * @return <code>false</code> if the connection
+	 * should be closed.
+	 * @throws IOException If writing failed.
+	 */
+	boolean flush() throws IOException {
+		// Data queued from now on requests again.
+		this.flushRequested.set(false);
+		return this.write();
+	}
+
+	/**
+	 * Suspend the connection with the given exchange of
+	 * the request being processed, until the exchange is
+	 * completed. This method should only be invoked by
+	 * the worker processing the request.
+	 * @param exchange The <code>AsyncExchange</code>.
+	 */
+	void suspend(final AsyncExchange exchange) {
+		this.exchange = exchange;
+	}
+
+	/**
+	 * Hand the suspended connection to the workers to
+	 * send the response of its completed exchange. This
+	 * method is thread-safe.
+	 */
+	void resumeExchange() {
+		this.reactor.schedule(this);
+	}
+
+	/**
+	 * Expire the exchange suspended on the connection if
+	 * its timeout has elapsed.
+	 * @param now The <code>long</code> current time in
+	 * the <code>System.nanoTime</code> scale.
+	 */
+	void expireExchange(final long now) {
+		final AsyncExchange suspended = this.exchange;
+		if (suspended != null) suspended.expire(now);
+	}
+
+	/**
+	 * Mark the processing of the current request as
+	 * completed. This method should only be invoked by
+	 * the owning reactor.
+	 */
+	void completeProcessing() {
+		this.processing = false;
+		this.lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Write the queued outbound data to the channel.
+	 * This method should only be invoked by the owning
+	 * reactor.
+	 * @return <code>false</code> if the connection
+	 * should be closed since all data is written and
+	 * the connection is not kept alive.
+	 * @throws IOException If writing failed.
+	 */
+	boolean write() throws IOException {
+		if (this.aborted) return false;
+		if (this.transport != null && !this.transport.flush(this.channel)) return true;
+		while (!this.outbound.isEmpty()) {
+			// Gather the queued buffers into a single write.
+			int count = 0;
+			for (final ByteBuffer buffer : this.outbound) {
+				this.gather[count++] = buffer;
+				if (count == this.gather.length) break;
+			}
+			if (this.transport == null) this.channel.write(this.gather, 0, count);
+			else this.transport.write(this.channel, this.gather, 0, count);
+			int written = 0;
+			while (written < count && !this.gather[written].hasRemaining()) {
+				this.httpConnection.recycle(this.outbound.poll());
+				written++;
+			}
+			Arrays.fill(this.gather, 0, count, null);
+			if (written > 0) this.lastActivity = System.currentTimeMillis();
+			if (written < count) break;
+		}
+		// Release the worker streaming a response.
+		if (this.processing) {
+			synchronized (this.outbound) {
+				this.outbound.notifyAll();
+			}
+		}
+		return !(this.outbound.isEmpty() && this.closeAfterWrite && !this.processing && !this.hasPendingOutput());
+	}
+
+	/**
+	 * Check if there is encrypted data pending to be
+	 * written by the transport.
+	 * @return <code>true</code> if there is pending
+	 * output.
+	 */
+	private boolean hasPendingOutput() {
+		return (this.transport != null && this.transport.hasPendingOutput());
+	}
+
+	/**
+	 * Check if the connection is secure and its initial
+	 * handshake is still in progress without running its
+	 * delegated tasks, in which case the
+	 * handshake should be advanced whenever the channel
+	 * is ready or the delegated tasks have been run.
+	 * @return <code>true</code> if handshaking.
+	 */
+	boolean isHandshaking() {
+		return (this.transport != null && !this.processing && this.transport.isHandshaking());
+	}
+
+	/**
+	 * Update the interested operations of the key
+	 * based on the current connection state. This
+	 * method should only be invoked by the owning
+	 * reactor.
+	 */
+	void updateInterest() {
+		if (!this.key.isValid()) return;
+		int ops = 0;
+		if (!this.outbound.isEmpty() || this.hasPendingOutput()) ops |= SelectionKey.OP_WRITE;
+		if (!this.processing && !this.closeAfterWrite) ops |= SelectionKey.OP_READ;
+		this.key.interestOps(ops);
+	}
+
+	/**
+	 * Check if the connection has been idle for
+	 * longer than the given timeout.
+	 * @param now The <code>long</code> current time
+	 * in milliseconds.
+	 * @param timeout The <code>int</code> timeout in
+	 * milliseconds.
+	 * @return <code>true</code> if connection is idle.
+	 */
+	boolean isIdle(final long now, final int timeout) {
+		if (this.processing || !this.outbound.isEmpty() || this.hasPendingOutput()) return false;
+		return (now - this.lastActivity) > timeout;
+	}
+
+	/**
+	 * Close the connection.
+	 */
+	void close() {
+		if (this.closed) return;
+		this.closed = true;
+		synchronized (this.outbound) {
+			this.outbound.notifyAll();
+		}
+		this.admission.releaseConnection();
+		if (this.key != null) this.key.cancel();
+		if (this.transport != null) this.transport.close(this.channel);
+		try {
+			this.channel.close();
+		} catch (final IOException ignore) {}
+	}
+
+	/**
+	 * Ensure the input buffer has at least the given
+	 * capacity.
+	 * @param capacity The <code>int</code> capacity.
+	 */
+	private void ensureCapacity(final int capacity) {
+		if (capacity <= this.inbuffer.length) return;
+		final byte[] expanded = new byte[Math.max(capacity, this.inbuffer.length << 1)];
+		System.arraycopy(this.inbuffer, 0, expanded, 0, this.inlength);
+		this.inbuffer = expanded;
+	}
+
+	/**
+	 * Remove the given number of bytes from the head
+	 * of the input buffer, and shrink the buffer back
+	 * to its initial size once a large request has
+	 * been removed.
+	 * @param count The <code>int</code> number of
+	 * bytes to remove.
+	 */
+	private void consume(final int count) {
+		this.inlength -= count;
+		if (this.inbuffer.length > INPUT_BUFFER_RETAINED && this.inlength <= INPUT_BUFFER_SIZE) {
+			final byte[] shrunk = new byte[INPUT_BUFFER_SIZE];
+			System.arraycopy(this.inbuffer, count, shrunk, 0, this.inlength);
+			this.inbuffer = shrunk;
+		} else {
+			System.arraycopy(this.inbuffer, count, this.inbuffer, 0, this.inlength);
+		}
+	}
+}
@@ -0,0 +1,430 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.params.HttpParams;
+
+import hemera.core.execution.interfaces.task.ICyclicTask;
+import hemera.core.utility.logging.FileLogger;
+
+/**
+ * <code>NioReactor</code> defines an internal task unit
+ * that multiplexes the IO of many connections with a
+ * single <code>Selector</code>. Each execution cycle
+ * performs a single selection, reads the available
+ * request data, and writes the pending response data.
+ * Complete requests are queued for the request workers
+ * to process, so the reactor itself never blocks on
+ * request processing.
+ * <p>
+ * Some of the reactors are given a server socket
+ * channel each, in which case they also accept the
+ * incoming connections and distribute them across all
+ * the reactors in a round-robin fashion. Connections
+ * beyond the limit of the <code>AdmissionController</code>
+ * are rejected right after being accepted.
+ * <p>
+ * When a <code>TlsContext</code> is given, all the
+ * connections are secured with their own engines.
+ * The handshakes are advanced by the reactor as the
+ * channels become ready, except for the delegated
+ * tasks, which are run by the request workers.
+ * <p>
+ * The response data streamed by the workers is written
+ * as soon as it is queued, without waiting for the
+ * requests to be processed.
+ * <p>
+ * <code>NioReactor</code> terminates itself if the
+ * selector fails or is closed.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.3
+ */
+class NioReactor implements ICyclicTask {
+	/**
+	 * The <code>long</code> maximum selection wait
+	 * time in milliseconds.
+	 */
+	private static final long SELECT_TIMEOUT = 1000;
+	/**
+	 * The <code>FileLogger</code> instance.
+	 */
+	private final FileLogger logger;
+	/**
+	 * The <code>Selector</code> instance.
+	 */
+	private final Selector selector;
+	/**
+	 * The optional <code>ServerSocketChannel</code>
+	 * this reactor accepts connections on.
+	 */
+	private final ServerSocketChannel serverChannel;
+	/**
+	 * The array of all the <code>NioReactor</code>
+	 * the accepted connections are distributed to.
+	 */
+	private final NioReactor[] reactors;
+	/**
+	 * The <code>BlockingQueue</code> of connections
+	 * with complete requests ready to be processed.
+	 */
+	private final BlockingQueue<NioConnection> workQueue;
+	/**
+	 * The <code>HttpParams</code> instance.
+	 */
+	private final HttpParams httpParams;
+	/**
+	 * The <code>int</code> idle connection timeout
+	 * in milliseconds.
+	 */
+	private final int timeout;
+	/**
+	 * The <code>int</code> maximum request size.
+	 */
+	private final int maxRequestSize;
+	/**
+	 * The <code>AdmissionController</code> instance.
+	 */
+	private final AdmissionController admission;
+	/**
+	 * The optional <code>TlsContext</code> to secure
+	 * the connections with.
+	 */
+	private final TlsContext tls;
+	/**
+	 * The <code>ByteBuffer</code> used to read data.
+	 */
+	private final ByteBuffer readBuffer;
+	/**
+	 * The <code>Queue</code> of accepted channels
+	 * pending registration with this reactor.
+	 */
+	private final Queue<SocketChannel> pendingChannels;
+	/**
+	 * The <code>Queue</code> of connections that have
+	 * completed request processing.
+	 */
+	private final Queue<NioConnection> resumedConnections;
+	/**
+	 * The <code>Queue</code> of connections with
+	 * streamed response data to write.
+	 */
+	private final Queue<NioConnection> flushedConnections;
+	/**
+	 * The <code>int</code> index of the reactor that
+	 * receives the next accepted connection.
+	 */
+	private int nextReactor;
+	/**
+	 * The <code>long</code> time in milliseconds of
+	 * the last idle connection check.
+	 */
+	private long lastIdleCheck;
+	/**
+	 * The <code>boolean</code> termination flag.
+	 */
+	private volatile boolean terminated;
+
+	/**
+	 * Constructor of <code>NioReactor</code>.
+	 * @param serverChannel The optional non-blocking
+	 * <code>ServerSocketChannel</code> to accept the
+	 * connections on. <code>null</code> if this
+	 * reactor does not accept connections.
+	 * @param reactors The array of all the reactors
+	 * the accepted connections are distributed to.
+	 * @param workQueue The <code>BlockingQueue</code>
+	 * of connections with complete requests.
+	 * @param httpParams The <code>HttpParams</code>
+	 * of the HTTP service.
+	 * @param timeout The <code>int</code> idle
+	 * connection timeout in milliseconds.
+	 * @param buffersize The <code>int</code> socket
+	 * buffer size in bytes.
+	 * @param maxRequestSize The <code>int</code>
+	 * maximum number of bytes of a single request.
+	 * @param admission The <code>AdmissionController</code>
+	 * used to admit the accepted connections.
+	 * @param tls The optional <code>TlsContext</code>
+	 * to secure the connections with. <code>null</code>
+	 * if the connections are plain.
+	 * @throws IOException If opening selector failed.
+	 */
+	NioReactor(final ServerSocketChannel serverChannel, final NioReactor[] reactors, final BlockingQueue<NioConnection> workQueue,
+			final HttpParams httpParams, final int timeout, final int buffersize, final int maxRequestSize,
+			final AdmissionController admission, final TlsContext tls) throws IOException {
+		this.logger = FileLogger.getLogger(this.getClass());
+		this.selector = Selector.open();
+		this.serverChannel = serverChannel;
+		this.reactors = reactors;
+		this.workQueue = workQueue;
+		this.httpParams = httpParams;
+		this.timeout = timeout;
+		this.maxRequestSize = maxRequestSize;
+		this.admission = admission;
+		this.tls = tls;
+		this.readBuffer = ByteBuffer.allocateDirect(buffersize);
+		this.pendingChannels = new ConcurrentLinkedQueue<SocketChannel>();
+		this.resumedConnections = new ConcurrentLinkedQueue<NioConnection>();
+		this.flushedConnections = new ConcurrentLinkedQueue<NioConnection>();
+		this.lastIdleCheck = System.currentTimeMillis();
+		if (this.serverChannel != null) {
+			this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+		}
+	}
+
+	/**
+	 * Register the given accepted channel with this
+	 * reactor. This method is thread-safe.
+	 * @param channel The non-blocking accepted
+	 * <code>SocketChannel</code>.
+	 */
+	void register(final SocketChannel channel) {
+		this.pendingChannels.add(channel);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Resume the given connection after its request
+	 * has been processed. This method is thread-safe.
+	 * @param connection The <code>NioConnection</code>
+	 * to resume.
+	 */
+	void resume(final NioConnection connection) {
+		this.resumedConnections.add(connection);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Write the response data streamed by the worker
+	 * processing the request of the given connection.
+	 * This method is thread-safe.
+	 * @param connection The <code>NioConnection</code>
+	 * to write.
+	 */
+	void flush(final NioConnection connection) {
+		this.flushedConnections.add(connection);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Schedule the given connection to be processed by
+	 * the workers. This method is thread-safe.
+	 * @param connection The <code>NioConnection</code>
+	 * to process.
+	 */
+	void schedule(final NioConnection connection) {
+		this.workQueue.add(connection);
+	}
+
+	@Override
+	public boolean execute() throws Exception {
+		if (this.terminated) return false;
+		try {
+			this.selector.select(SELECT_TIMEOUT);
+			this.registerPending();
+			this.resumeProcessed();
+			this.writeFlushed();
+			final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				final SelectionKey key = keys.next();
+				keys.remove();
+				this.handleKey(key);
+			}
+			this.closeIdle();
+			return !this.terminated;
+		} catch (final ClosedSelectorException e) {
+			// This could be due to task termination.
+			return false;
+		} catch (final IOException e) {
+			this.logger.exception(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Register all the pending accepted channels.
+	 */
+	private void registerPending() {
+		SocketChannel channel;
+		while ((channel = this.pendingChannels.poll()) != null) {
+			final NioConnection connection = new NioConnection(this, channel, this.httpParams, this.maxRequestSize, this.admission, this.tls);
+			try {
+				connection.setKey(channel.register(this.selector, SelectionKey.OP_READ, connection));
+			} catch (final IOException e) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Resume all the connections that have completed
+	 * processing their requests.
+	 */
+	private void resumeProcessed() {
+		NioConnection connection;
+		while ((connection = this.resumedConnections.poll()) != null) {
+			connection.completeProcessing();
+			try {
+				// Advance the handshake after its tasks.
+				if (connection.isHandshaking() && !connection.read(this.readBuffer)) connection.close();
+				else if (!connection.write()) connection.close();
+				else this.dispatch(connection);
+			} catch (final IOException e) {
+				connection.close();
+			} catch (final CancelledKeyException e) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Write the streamed data of all the connections
+	 * that are still processing their requests.
+	 */
+	private void writeFlushed() {
+		NioConnection connection;
+		while ((connection = this.flushedConnections.poll()) != null) {
+			try {
+				if (!connection.flush()) connection.close();
+				else connection.updateInterest();
+			} catch (final IOException e) {
+				connection.close();
+			} catch (final CancelledKeyException e) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Handle the given selected key.
+	 * @param key The <code>SelectionKey</code>.
+	 */
+	private void handleKey(final SelectionKey key) {
+		if (!key.isValid()) return;
+		if (key.isAcceptable()) {
+			this.accept();
+			return;
+		}
+		final NioConnection connection = (NioConnection)key.attachment();
+		try {
+			if (key.isWritable() && !connection.write()) {
+				connection.close();
+				return;
+			}
+			if ((key.isReadable() || connection.isHandshaking()) && !connection.read(this.readBuffer)) {
+				connection.close();
+				return;
+			}
+			this.dispatch(connection);
+		} catch (final IOException e) {
+			connection.close();
+		} catch (final CancelledKeyException e) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Dispatch the next complete request of the given
+	 * connection to the workers if there is one, and
+	 * update the interested operations.
+	 * @param connection The <code>NioConnection</code>.
+	 * @throws IOException If writing interim response
+	 * failed.
+	 */
+	private void dispatch(final NioConnection connection) throws IOException {
+		if (connection.prepareRequest()) {
+			this.workQueue.add(connection);
+		}
+		if (!connection.write()) connection.close();
+		else connection.updateInterest();
+	}
+
+	/**
+	 * Accept all the pending connections and evenly
+	 * distribute them across the reactors.
+	 */
+	private void accept() {
+		try {
+			SocketChannel channel;
+			while ((channel = this.serverChannel.accept()) != null) {
+				channel.configureBlocking(false);
+				// Reject immediately if overloaded.
+				if (!this.admission.acquireConnection()) {
+					this.admission.reject(channel, (this.tls != null));
+					continue;
+				}
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().setKeepAlive(true);
+				final NioReactor reactor = this.reactors[this.nextReactor];
+				this.nextReactor = (this.nextReactor+1) % this.reactors.length;
+				reactor.register(channel);
+			}
+		} catch (final IOException e) {
+			this.logger.exception(e);
+		}
+	}
+
+	/**
+	 * Close the connections that have been idle for
+	 * longer than the timeout value, and expire the
+	 * suspended requests that have timed out.
+	 */
+	private void closeIdle() {
+		final long now = System.currentTimeMillis();
+		if (now - this.lastIdleCheck < 1000) return;
+		this.lastIdleCheck = now;
+		final long nanos = System.nanoTime();
+		for (final SelectionKey key : this.selector.keys()) {
+			final Object attachment = key.attachment();
+			if (attachment instanceof NioConnection) {
+				final NioConnection connection = (NioConnection)attachment;
+				connection.expireExchange(nanos);
+				if (this.timeout > 0 && connection.isIdle(now, this.timeout)) connection.close();
+			}
+		}
+	}
+
+	@Override
+	public void cleanup() throws Exception {
+		if (this.selector.isOpen()) {
+			for (final SelectionKey key : this.selector.keys()) {
+				final Object attachment = key.attachment();
+				if (attachment instanceof NioConnection) ((NioConnection)attachment).close();
+			}
+			this.selector.close();
+		}
+		if (this.serverChannel != null && this.serverChannel.isOpen()) {
+			this.serverChannel.close();
+		}
+	}
+
+	@Override
+	public void signalTerminate() throws Exception {
+		this.terminated = true;
+		// Wake up selection block.
+		this.selector.wakeup();
+	}
+
+	@Override
+	public int getCycleCount() {
+		return 0;
+	}
+
+	@Override
+	public long getCycleLimit(final TimeUnit unit) {
+		return 0;
+	}
+}
@@ -0,0 +1,95 @@
+package hemera.core.apache.runtime;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.protocol.HttpService;
+
+import hemera.core.execution.interfaces.task.ICyclicTask;
+
+/**
+ * <code>NioRequestWorker</code> defines an internal
+ * task unit that processes the complete requests
+ * received by the <code>NioReactor</code> instances.
+ * Each execution cycle retrieves a connection with a
+ * complete request from the shared work queue, and
+ * processes the request through the shared
+ * <code>HttpService</code>. The produced response is
+ * handed back to the reactor owning the connection
+ * for writing. The deferred responses of suspended
+ * requests are sent by the workers in the same way
+ * once the requests are completed.
+ * <p>
+ * Since workers only hold on to a connection while
+ * its request is being processed, the number of
+ * workers bounds the number of concurrently processed
+ * requests instead of the number of open connections.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class NioRequestWorker implements ICyclicTask {
+	/**
+	 * The <code>long</code> maximum time in
+	 * milliseconds to wait for a request.
+	 */
+	private static final long POLL_TIMEOUT = 500;
+	/**
+	 * The <code>BlockingQueue</code> of connections
+	 * with complete requests.
+	 */
+	private final BlockingQueue<NioConnection> workQueue;
+	/**
+	 * The <code>HttpService</code> instance.
+	 */
+	private final HttpService httpService;
+	/**
+	 * The <code>AsyncResponder</code> instance.
+	 */
+	private final AsyncResponder responder;
+	/**
+	 * The <code>boolean</code> termination flag.
+	 */
+	private volatile boolean terminated;
+
+	/**
+	 * Constructor of <code>NioRequestWorker</code>.
+	 * @param workQueue The <code>BlockingQueue</code>
+	 * of connections with complete requests.
+	 * @param httpService The <code>HttpService</code>
+	 * to process the requests with.
+	 * @param responder The <code>AsyncResponder</code>
+	 * to send the deferred responses with.
+	 */
+	NioRequestWorker(final BlockingQueue<NioConnection> workQueue, final HttpService httpService, final AsyncResponder responder) {
+		this.workQueue = workQueue;
+		this.httpService = httpService;
+		this.responder = responder;
+	}
+
+	@Override
+	public boolean execute() throws Exception {
+		if (this.terminated) return false;
+		final NioConnection connection = this.workQueue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+		if (connection != null) connection.process(this.httpService, this.responder);
+		return !this.terminated;
+	}
+
+	@Override
+	public void cleanup() throws Exception {}
+
+	@Override
+	public void signalTerminate() throws Exception {
+		this.terminated = true;
+	}
+
+	@Override
+	public int getCycleCount() {
+		return 0;
+	}
+
+	@Override
+	public long getCycleLimit(final TimeUnit unit) {
+		return 0;
+	}
+}
@@ -0,0 +1,330 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.apache.http.io.BufferInfo;
+import org.apache.http.io.EofSensor;
+import org.apache.http.io.HttpTransportMetrics;
+import org.apache.http.io.SessionInputBuffer;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.ByteArrayBuffer;
+import org.apache.http.util.CharArrayBuffer;
+
+/**
+ * <code>PooledSessionInputBuffer</code> defines the
+ * socket session input buffer that borrows its buffer
+ * from a <code>BufferPool</code> instead of allocating
+ * it for every connection. The buffer must be released
+ * once the connection is closed.
+ * <p>
+ * The behavior mirrors the socket input buffer of the
+ * HTTP core, except that the lines are decoded as
+ * single byte characters, which is exact for the
+ * default <code>US-ASCII</code> element charset. The
+ * line buffer is only allocated for the lines that do
+ * not fit in a single fill of the buffer.
+ * <p>
+ * <code>PooledSessionInputBuffer</code> is not
+ * thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class PooledSessionInputBuffer implements SessionInputBuffer, BufferInfo, EofSensor {
+	/**
+	 * The <code>BufferPool</code> to release to.
+	 */
+	private final BufferPool pool;
+	/**
+	 * The <code>Lease</code> of the buffer.
+	 */
+	private final BufferPool.Lease lease;
+	/**
+	 * The <code>Socket</code> to read from.
+	 */
+	private final Socket socket;
+	/**
+	 * The <code>InputStream</code> of the socket.
+	 */
+	private final InputStream instream;
+	/**
+	 * The <code>HttpTransportMetricsImpl</code>.
+	 */
+	private final HttpTransportMetricsImpl metrics;
+	/**
+	 * The <code>int</code> maximum line length. Zero
+	 * or less for no limit.
+	 */
+	private final int maxLineLen;
+	/**
+	 * The <code>int</code> minimum read length that
+	 * bypasses the buffer.
+	 */
+	private final int minChunkLimit;
+	/**
+	 * The borrowed <code>byte</code> array buffer.
+	 * <code>null</code> once released.
+	 */
+	private byte[] buffer;
+	/**
+	 * The <code>int</code> position of the next byte
+	 * to read in the buffer.
+	 */
+	private int bufferpos;
+	/**
+	 * The <code>int</code> end of the data in the
+	 * buffer.
+	 */
+	private int bufferlen;
+	/**
+	 * The <code>ByteArrayBuffer</code> of the partially
+	 * read line. <code>null</code> until needed.
+	 */
+	private ByteArrayBuffer linebuffer;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * end of stream has been reached.
+	 */
+	private boolean eof;
+
+	/**
+	 * Constructor of <code>PooledSessionInputBuffer</code>.
+	 * @param socket The <code>Socket</code> to read
+	 * from.
+	 * @param buffersize The <code>int</code> buffer
+	 * size in bytes.
+	 * @param params The <code>HttpParams</code> of the
+	 * connection.
+	 * @param pool The <code>BufferPool</code> to borrow
+	 * the buffer from.
+	 * @throws IOException If retrieving the socket
+	 * stream failed.
+	 */
+	PooledSessionInputBuffer(final Socket socket, final int buffersize, final HttpParams params, final BufferPool pool) throws IOException {
+		this.socket = socket;
+		this.instream = socket.getInputStream();
+		this.pool = pool;
+		this.lease = pool.borrow(Math.max(1024, buffersize));
+		this.buffer = this.lease.array();
+		this.metrics = new HttpTransportMetricsImpl();
+		this.maxLineLen = params.getIntParameter(CoreConnectionPNames.MAX_LINE_LENGTH, -1);
+		this.minChunkLimit = params.getIntParameter(CoreConnectionPNames.MIN_CHUNK_LIMIT, 512);
+	}
+
+	/**
+	 * Fill the buffer with the data read from the
+	 * socket, compacting the unread data first.
+	 * @return The <code>int</code> number of bytes
+	 * read. <code>-1</code> if the end of stream has
+	 * been reached.
+	 * @throws IOException If reading failed.
+	 */
+	protected int fillBuffer() throws IOException {
+		if (this.bufferpos > 0) {
+			final int remaining = this.bufferlen - this.bufferpos;
+			if (remaining > 0) System.arraycopy(this.buffer, this.bufferpos, this.buffer, 0, remaining);
+			this.bufferpos = 0;
+			this.bufferlen = remaining;
+		}
+		final int off = this.bufferlen;
+		final int count = this.instream.read(this.buffer, off, this.buffer.length - off);
+		if (count == -1) {
+			this.eof = true;
+			return -1;
+		}
+		this.bufferlen = off + count;
+		this.metrics.incrementBytesTransferred(count);
+		return count;
+	}
+
+	/**
+	 * Check if there is unread data in the buffer.
+	 * @return <code>true</code> if there is buffered
+	 * data.
+	 */
+	protected boolean hasBufferedData() {
+		return this.bufferpos < this.bufferlen;
+	}
+
+	@Override
+	public boolean isDataAvailable(final int timeout) throws IOException {
+		boolean result = this.hasBufferedData();
+		if (!result) {
+			final int previous = this.socket.getSoTimeout();
+			try {
+				this.socket.setSoTimeout(timeout);
+				this.fillBuffer();
+				result = this.hasBufferedData();
+			} catch (final SocketTimeoutException ignore) {
+			} finally {
+				this.socket.setSoTimeout(previous);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public int read() throws IOException {
+		while (!this.hasBufferedData()) {
+			if (this.fillBuffer() == -1) return -1;
+		}
+		return this.buffer[this.bufferpos++] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (b == null) return 0;
+		if (this.hasBufferedData()) {
+			final int count = Math.min(len, this.bufferlen - this.bufferpos);
+			System.arraycopy(this.buffer, this.bufferpos, b, off, count);
+			this.bufferpos += count;
+			return count;
+		}
+		// Read large chunks directly from the socket.
+		if (len > this.minChunkLimit) {
+			final int count = this.instream.read(b, off, len);
+			if (count > 0) this.metrics.incrementBytesTransferred(count);
+			return count;
+		}
+		while (!this.hasBufferedData()) {
+			if (this.fillBuffer() == -1) return -1;
+		}
+		final int count = Math.min(len, this.bufferlen - this.bufferpos);
+		System.arraycopy(this.buffer, this.bufferpos, b, off, count);
+		this.bufferpos += count;
+		return count;
+	}
+
+	@Override
+	public int read(final byte[] b) throws IOException {
+		if (b == null) return 0;
+		return this.read(b, 0, b.length);
+	}
+
+	@Override
+	public int readLine(final CharArrayBuffer charbuffer) throws IOException {
+		if (charbuffer == null) throw new IllegalArgumentException("Char array buffer may not be null");
+		int count = 0;
+		boolean retry = true;
+		while (retry) {
+			final int lf = this.locateLF();
+			if (lf != -1) {
+				// Decode directly if the line is in the buffer.
+				if (this.linebuffer == null || this.linebuffer.isEmpty()) return this.lineFromReadBuffer(charbuffer, lf);
+				retry = false;
+				this.linebuffer.append(this.buffer, this.bufferpos, lf + 1 - this.bufferpos);
+				this.bufferpos = lf + 1;
+			} else {
+				if (this.hasBufferedData()) {
+					if (this.linebuffer == null) this.linebuffer = new ByteArrayBuffer(this.buffer.length);
+					this.linebuffer.append(this.buffer, this.bufferpos, this.bufferlen - this.bufferpos);
+					this.bufferpos = this.bufferlen;
+				}
+				count = this.fillBuffer();
+				if (count == -1) retry = false;
+			}
+			if (this.maxLineLen > 0 && this.linebuffer != null && this.linebuffer.length() >= this.maxLineLen) {
+				throw new IOException("Maximum line length limit exceeded");
+			}
+		}
+		if (count == -1 && (this.linebuffer == null || this.linebuffer.isEmpty())) return -1;
+		return this.lineFromLineBuffer(charbuffer);
+	}
+
+	@Override
+	public String readLine() throws IOException {
+		final CharArrayBuffer charbuffer = new CharArrayBuffer(64);
+		final int count = this.readLine(charbuffer);
+		if (count == -1) return null;
+		return charbuffer.toString();
+	}
+
+	/**
+	 * Locate the next line feed in the buffer.
+	 * @return The <code>int</code> index. <code>-1</code>
+	 * if not found.
+	 */
+	private int locateLF() {
+		for (int i = this.bufferpos; i < this.bufferlen; i++) {
+			if (this.buffer[i] == HTTP.LF) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Decode the line ending at the given line feed in
+	 * the buffer.
+	 * @param charbuffer The <code>CharArrayBuffer</code>
+	 * to decode into.
+	 * @param lf The <code>int</code> index of the line
+	 * feed.
+	 * @return The <code>int</code> length of the line.
+	 */
+	private int lineFromReadBuffer(final CharArrayBuffer charbuffer, final int lf) {
+		final int off = this.bufferpos;
+		int end = lf;
+		this.bufferpos = lf + 1;
+		if (end > off && this.buffer[end-1] == HTTP.CR) end--;
+		final int len = end - off;
+		charbuffer.ensureCapacity(len);
+		for (int i = off; i < end; i++) charbuffer.append((char)(this.buffer[i] & 0xff));
+		return len;
+	}
+
+	/**
+	 * Decode the line accumulated in the line buffer.
+	 * @param charbuffer The <code>CharArrayBuffer</code>
+	 * to decode into.
+	 * @return The <code>int</code> length of the line.
+	 */
+	private int lineFromLineBuffer(final CharArrayBuffer charbuffer) {
+		int len = this.linebuffer.length();
+		if (len > 0 && this.linebuffer.byteAt(len-1) == HTTP.LF) len--;
+		if (len > 0 && this.linebuffer.byteAt(len-1) == HTTP.CR) len--;
+		charbuffer.append(this.linebuffer, 0, len);
+		this.linebuffer.clear();
+		return len;
+	}
+
+	@Override
+	public boolean isEof() {
+		return this.eof;
+	}
+
+	@Override
+	public HttpTransportMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	@Override
+	public int capacity() {
+		return (this.buffer == null) ? 0 : this.buffer.length;
+	}
+
+	@Override
+	public int length() {
+		return this.bufferlen - this.bufferpos;
+	}
+
+	@Override
+	public int available() {
+		return this.capacity() - this.length();
+	}
+
+	/**
+	 * Return the buffer to the pool. The buffer must not
+	 * be used afterwards.
+	 */
+	void release() {
+		this.buffer = null;
+		this.bufferpos = 0;
+		this.bufferlen = 0;
+		this.pool.release(this.lease);
+	}
+}
@@ -0,0 +1,182 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.apache.http.io.BufferInfo;
+import org.apache.http.io.HttpTransportMetrics;
+import org.apache.http.io.SessionOutputBuffer;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.CharArrayBuffer;
+
+/**
+ * <code>PooledSessionOutputBuffer</code> defines the
+ * socket session output buffer that borrows its buffer
+ * from a <code>BufferPool</code> instead of allocating
+ * it for every connection. The buffer must be released
+ * once the connection is closed.
+ * <p>
+ * The behavior mirrors the socket output buffer of the
+ * HTTP core, except that the lines are encoded as
+ * single byte characters, which is exact for the
+ * default <code>US-ASCII</code> element charset.
+ * <p>
+ * <code>PooledSessionOutputBuffer</code> is not
+ * thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class PooledSessionOutputBuffer implements SessionOutputBuffer, BufferInfo {
+	/**
+	 * The <code>byte</code> array of the line ending.
+	 */
+	private static final byte[] CRLF = new byte[] {'\r', '\n'};
+	/**
+	 * The <code>BufferPool</code> to release to.
+	 */
+	private final BufferPool pool;
+	/**
+	 * The <code>Lease</code> of the buffer.
+	 */
+	private final BufferPool.Lease lease;
+	/**
+	 * The <code>OutputStream</code> of the socket.
+	 */
+	private final OutputStream outstream;
+	/**
+	 * The <code>HttpTransportMetricsImpl</code>.
+	 */
+	private final HttpTransportMetricsImpl metrics;
+	/**
+	 * The <code>int</code> minimum write length that
+	 * bypasses the buffer.
+	 */
+	private final int minChunkLimit;
+	/**
+	 * The borrowed <code>byte</code> array buffer.
+	 * <code>null</code> once released.
+	 */
+	private byte[] buffer;
+	/**
+	 * The <code>int</code> number of bytes in the
+	 * buffer.
+	 */
+	private int count;
+
+	/**
+	 * Constructor of <code>PooledSessionOutputBuffer</code>.
+	 * @param socket The <code>Socket</code> to write
+	 * to.
+	 * @param buffersize The <code>int</code> buffer
+	 * size in bytes.
+	 * @param params The <code>HttpParams</code> of the
+	 * connection.
+	 * @param pool The <code>BufferPool</code> to borrow
+	 * the buffer from.
+	 * @throws IOException If retrieving the socket
+	 * stream failed.
+	 */
+	PooledSessionOutputBuffer(final Socket socket, final int buffersize, final HttpParams params, final BufferPool pool) throws IOException {
+		this.outstream = socket.getOutputStream();
+		this.pool = pool;
+		this.lease = pool.borrow(Math.max(1024, buffersize));
+		this.buffer = this.lease.array();
+		this.metrics = new HttpTransportMetricsImpl();
+		this.minChunkLimit = params.getIntParameter(CoreConnectionPNames.MIN_CHUNK_LIMIT, 512);
+	}
+
+	/**
+	 * Write the buffered data to the socket without
+	 * flushing the socket stream.
+	 * @throws IOException If writing failed.
+	 */
+	protected void flushBuffer() throws IOException {
+		if (this.count <= 0) return;
+		this.outstream.write(this.buffer, 0, this.count);
+		this.metrics.incrementBytesTransferred(this.count);
+		this.count = 0;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this.flushBuffer();
+		this.outstream.flush();
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		if (b == null) return;
+		// Write large chunks directly to the socket.
+		if (len > this.minChunkLimit || len > this.buffer.length) {
+			this.flushBuffer();
+			this.outstream.write(b, off, len);
+			this.metrics.incrementBytesTransferred(len);
+			return;
+		}
+		if (len > this.buffer.length - this.count) this.flushBuffer();
+		System.arraycopy(b, off, this.buffer, this.count, len);
+		this.count += len;
+	}
+
+	@Override
+	public void write(final byte[] b) throws IOException {
+		if (b == null) return;
+		this.write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		if (this.count == this.buffer.length) this.flushBuffer();
+		this.buffer[this.count++] = (byte)b;
+	}
+
+	@Override
+	public void writeLine(final String s) throws IOException {
+		if (s == null) return;
+		for (int i = 0; i < s.length(); i++) this.write(s.charAt(i));
+		this.write(CRLF);
+	}
+
+	@Override
+	public void writeLine(final CharArrayBuffer charbuffer) throws IOException {
+		if (charbuffer == null) return;
+		final char[] chars = charbuffer.buffer();
+		final int len = charbuffer.length();
+		for (int i = 0; i < len; i++) this.write(chars[i]);
+		this.write(CRLF);
+	}
+
+	@Override
+	public HttpTransportMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	@Override
+	public int capacity() {
+		return (this.buffer == null) ? 0 : this.buffer.length;
+	}
+
+	@Override
+	public int length() {
+		return this.count;
+	}
+
+	@Override
+	public int available() {
+		return this.capacity() - this.length();
+	}
+
+	/**
+	 * Return the buffer to the pool. The buffer must not
+	 * be used afterwards.
+	 */
+	void release() {
+		this.buffer = null;
+		this.count = 0;
+		this.pool.release(this.lease);
+	}
+}
@@ -0,0 +1,500 @@
+package hemera.core.apache.runtime;
+
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * <code>RateLimiter</code> defines an internal unit
+ * that limits the rate of the requests of each client
+ * with token buckets, before any routing or argument
+ * parsing takes place. Throttled requests are rejected
+ * with a canned <code>429 Too Many Requests</code>
+ * response carrying a <code>Retry-After</code> header.
+ * <p>
+ * The limits are configured per request path prefix,
+ * and a request is limited by the longest prefix that
+ * matches its path on a segment boundary. Repeated
+ * slashes are treated as one, since the empty path
+ * segments are dropped by the routing as well. Requests
+ * without a matching prefix are not limited. A client
+ * is identified by the value of the configured API key
+ * header if present, or by its remote address.
+ * <p>
+ * Each bucket is a single atomic theoretical arrival
+ * time, which is equivalent to a token bucket, so the
+ * buckets are updated without locking. The buckets are
+ * kept in a fixed number of stripes with a bounded
+ * number of buckets each. A bucket that has refilled
+ * completely carries no state, so such idle buckets
+ * are periodically evicted. When a stripe is full of
+ * active buckets, the fullest bucket of a small sample
+ * is evicted to make room.
+ * <p>
+ * <code>RateLimiter</code> is thread-safe and lock-free.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.2
+ */
+class RateLimiter {
+	/**
+	 * The <code>int</code> status code of throttled
+	 * requests.
+	 */
+	static final int SC_TOO_MANY_REQUESTS = 429;
+	/**
+	 * The <code>byte</code> array of the rejection
+	 * response body.
+	 */
+	private static final byte[] REJECT_BODY = "{\"http_status\":\"C429_TooManyRequests\",\"exception\":\"Too many requests.\"}".getBytes(Charset.forName("UTF-8"));
+	/**
+	 * The <code>int</code> number of stripes, which
+	 * must be a power of two.
+	 */
+	private static final int STRIPE_COUNT = 16;
+	/**
+	 * The <code>long</code> interval in nanoseconds
+	 * between the evictions of the idle buckets of a
+	 * stripe.
+	 */
+	private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+	/**
+	 * The <code>int</code> number of buckets sampled
+	 * when a stripe is full of active buckets.
+	 */
+	private static final int EVICTION_SAMPLE = 8;
+	/**
+	 * The array of <code>Limit</code> sorted by the
+	 * descending length of their prefixes.
+	 */
+	private final Limit[] limits;
+	/**
+	 * The optional <code>String</code> name of the API
+	 * key header.
+	 */
+	private final String keyHeader;
+	/**
+	 * The array of <code>Stripe</code>.
+	 */
+	private final Stripe[] stripes;
+	/**
+	 * The <code>AtomicLong</code> number of throttled
+	 * requests.
+	 */
+	private final AtomicLong throttled;
+
+	/**
+	 * Constructor of <code>RateLimiter</code>.
+	 * @param limits The <code>String</code> comma
+	 * separated limits, each as <code>prefix=rate</code>
+	 * or <code>prefix=rate/burst</code>, where the rate
+	 * is the number of requests per second refilled to
+	 * a client, and the burst is the number of requests
+	 * a client can send at once, which defaults to the
+	 * rate.
+	 * @param keyHeader The optional <code>String</code>
+	 * name of the API key header. <code>null</code> if
+	 * the clients are only identified by address.
+	 * @param maxKeys The <code>int</code> maximum number
+	 * of buckets tracked across all the limits.
+	 * @throws IllegalArgumentException If the limits
+	 * are malformed.
+	 */
+	RateLimiter(final String limits, final String keyHeader, final int maxKeys) {
+		this.limits = RateLimiter.parse(limits);
+		this.keyHeader = keyHeader;
+		final int stripeCapacity = Math.max(EVICTION_SAMPLE, (maxKeys + STRIPE_COUNT - 1) / STRIPE_COUNT);
+		this.stripes = new Stripe[STRIPE_COUNT];
+		for (int i = 0; i < STRIPE_COUNT; i++) {
+			this.stripes[i] = new Stripe(stripeCapacity);
+		}
+		this.throttled = new AtomicLong();
+	}
+
+	/**
+	 * Parse the given limits specification.
+	 * @param spec The <code>String</code> comma
+	 * separated limits.
+	 * @return The array of <code>Limit</code> sorted
+	 * by the descending length of their prefixes.
+	 * @throws IllegalArgumentException If the limits
+	 * are malformed.
+	 */
+	static Limit[] parse(final String spec) {
+		final List<Limit> list = new ArrayList<Limit>();
+		for (final String entry : spec.split(",")) {
+			final String trimmed = entry.trim();
+			if (trimmed.isEmpty()) continue;
+			final int equals = trimmed.lastIndexOf('=');
+			if (equals <= 0) throw new IllegalArgumentException("Invalid rate limit: " + trimmed);
+			String prefix = trimmed.substring(0, equals).trim();
+			if (!prefix.startsWith("/")) prefix = "/" + prefix;
+			prefix = prefix.replaceAll("/{2,}", "/");
+			final String value = trimmed.substring(equals+1).trim();
+			final int slash = value.indexOf('/');
+			try {
+				final double rate = Double.parseDouble((slash < 0) ? value : value.substring(0, slash).trim());
+				final double burst = (slash < 0) ? Math.max(1, rate) : Double.parseDouble(value.substring(slash+1).trim());
+				if (!(rate > 0) || !(burst >= 1)) throw new IllegalArgumentException("Invalid rate limit: " + trimmed);
+				list.add(new Limit(list.size(), prefix, rate, burst));
+			} catch (final NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid rate limit: " + trimmed);
+			}
+		}
+		final Limit[] limits = list.toArray(new Limit[list.size()]);
+		Arrays.sort(limits, new Comparator<Limit>() {
+			@Override
+			public int compare(final Limit a, final Limit b) {
+				return b.prefix.length() - a.prefix.length();
+			}
+		});
+		return limits;
+	}
+
+	/**
+	 * Attempt to take a token for the given request
+	 * from the bucket of its client.
+	 * @param httpRequest The <code>HttpRequest</code>
+	 * received.
+	 * @param context The <code>HttpContext</code> of
+	 * the connection.
+	 * @return The <code>long</code> time in nanoseconds
+	 * the client should wait before the request would
+	 * be allowed. Zero if the request is allowed.
+	 */
+	long acquire(final HttpRequest httpRequest, final HttpContext context) {
+		final Limit limit = this.match(httpRequest.getRequestLine().getUri());
+		if (limit == null) return 0;
+		final String key = limit.id + this.getClient(httpRequest, context);
+		final long now = System.nanoTime();
+		final Stripe stripe = this.stripes[RateLimiter.spread(key.hashCode()) & (STRIPE_COUNT-1)];
+		final long wait = limit.take(stripe.get(key, now), now);
+		if (wait > 0) this.throttled.incrementAndGet();
+		return wait;
+	}
+
+	/**
+	 * Find the limit of the longest prefix that matches
+	 * the path of the given request URI. Repeated slashes
+	 * in the path match a single slash of the prefix.
+	 * @param uri The <code>String</code> request URI.
+	 * @return The matching <code>Limit</code>. <code>null</code>
+	 * if the path is not limited.
+	 */
+	Limit match(final String uri) {
+		// Skip the scheme and authority of absolute URIs.
+		int start = 0;
+		if (!uri.startsWith("/")) {
+			final int scheme = uri.indexOf("://");
+			if (scheme < 0) return null;
+			start = uri.indexOf('/', scheme+3);
+			if (start < 0) return null;
+		}
+		int end = uri.length();
+		for (int i = start; i < end; i++) {
+			final char c = uri.charAt(i);
+			if (c == '?' || c == '#') end = i;
+		}
+		for (final Limit limit : this.limits) {
+			if (RateLimiter.matches(uri, start, end, limit.prefix)) return limit;
+		}
+		return null;
+	}
+
+	/**
+	 * Check if the given prefix matches the given path
+	 * on a segment boundary, treating repeated slashes
+	 * in the path as one.
+	 * @param uri The <code>String</code> request URI.
+	 * @param start The <code>int</code> start index of
+	 * the path in the URI.
+	 * @param end The <code>int</code> end index of the
+	 * path in the URI.
+	 * @param prefix The <code>String</code> prefix
+	 * without repeated slashes.
+	 * @return <code>true</code> if the prefix matches.
+	 */
+	private static boolean matches(final String uri, final int start, final int end, final String prefix) {
+		final int prefixLength = prefix.length();
+		int index = start;
+		for (int i = 0; i < prefixLength; i++) {
+			if (index >= end) return false;
+			final char c = prefix.charAt(i);
+			if (uri.charAt(index) != c) return false;
+			index++;
+			if (c == '/') {
+				while (index < end && uri.charAt(index) == '/') index++;
+			}
+		}
+		return (index == end || prefix.charAt(prefixLength-1) == '/' || uri.charAt(index) == '/');
+	}
+
+	/**
+	 * Retrieve the identity of the client that sent
+	 * the given request.
+	 * @param httpRequest The <code>HttpRequest</code>
+	 * received.
+	 * @param context The <code>HttpContext</code> of
+	 * the connection.
+	 * @return The <code>String</code> client identity.
+	 */
+	private String getClient(final HttpRequest httpRequest, final HttpContext context) {
+		if (this.keyHeader != null) {
+			final Header header = httpRequest.getFirstHeader(this.keyHeader);
+			if (header != null) return "k" + header.getValue();
+		}
+		final HttpConnection connection = (HttpConnection)context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+		if (connection instanceof HttpInetConnection) {
+			final InetAddress address = ((HttpInetConnection)connection).getRemoteAddress();
+			if (address != null) return "a" + address.getHostAddress();
+		}
+		return "a";
+	}
+
+	/**
+	 * Set the canned rejection response to the given
+	 * HTTP response.
+	 * @param httpResponse The <code>HttpResponse</code>
+	 * to set.
+	 * @param wait The <code>long</code> time in
+	 * nanoseconds the client should wait.
+	 */
+	void reject(final HttpResponse httpResponse, final long wait) {
+		httpResponse.setStatusLine(httpResponse.getProtocolVersion(), SC_TOO_MANY_REQUESTS, "Too Many Requests");
+		httpResponse.setHeader("Retry-After", String.valueOf(Math.max(1, (wait + 999999999L) / 1000000000L)));
+		httpResponse.setEntity(new ByteArrayEntity(REJECT_BODY, ContentType.APPLICATION_JSON));
+	}
+
+	/**
+	 * Retrieve the number of throttled requests.
+	 * @return The <code>long</code> count.
+	 */
+	long getThrottledCount() {
+		return this.throttled.get();
+	}
+
+	/**
+	 * Retrieve the number of buckets currently tracked.
+	 * @return The <code>int</code> count.
+	 */
+	int getKeyCount() {
+		int count = 0;
+		for (final Stripe stripe : this.stripes) {
+			count += stripe.size.get();
+		}
+		return count;
+	}
+
+	/**
+	 * Spread the bits of the given hash code, so the
+	 * low bits selecting the stripe depend on the whole
+	 * hash code.
+	 * @param hash The <code>int</code> hash code.
+	 * @return The <code>int</code> spread hash code.
+	 */
+	private static int spread(int hash) {
+		hash ^= (hash >>> 20) ^ (hash >>> 12);
+		return hash ^ (hash >>> 7) ^ (hash >>> 4);
+	}
+
+	/**
+	 * <code>Limit</code> defines the immutable rate
+	 * limit of a path prefix.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.1
+	 */
+	static final class Limit {
+		/**
+		 * The <code>String</code> identifier prepended
+		 * to the client keys of the limit.
+		 */
+		final String id;
+		/**
+		 * The <code>String</code> path prefix.
+		 */
+		final String prefix;
+		/**
+		 * The <code>long</code> interval in nanoseconds
+		 * between two refilled tokens.
+		 */
+		final long interval;
+		/**
+		 * The <code>long</code> time in nanoseconds the
+		 * theoretical arrival time can be ahead of the
+		 * current time, which is the burst capacity.
+		 */
+		final long tolerance;
+
+		/**
+		 * Constructor of <code>Limit</code>.
+		 * @param index The <code>int</code> index of the
+		 * limit in the configuration.
+		 * @param prefix The <code>String</code> path
+		 * prefix.
+		 * @param rate The <code>double</code> number of
+		 * tokens refilled per second.
+		 * @param burst The <code>double</code> capacity
+		 * of the bucket in tokens.
+		 */
+		private Limit(final int index, final String prefix, final double rate, final double burst) {
+			this.id = Integer.toString(index, Character.MAX_RADIX) + ":";
+			this.prefix = prefix;
+			this.interval = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1) / rate));
+			this.tolerance = (long)(this.interval * burst);
+		}
+
+		/**
+		 * Take a token from the given bucket.
+		 * @param bucket The <code>AtomicLong</code>
+		 * theoretical arrival time of the bucket.
+		 * @param now The <code>long</code> current time
+		 * in nanoseconds.
+		 * @return The <code>long</code> time in nanoseconds
+		 * until a token is available. Zero if a token has
+		 * been taken.
+		 */
+		long take(final AtomicLong bucket, final long now) {
+			while (true) {
+				final long current = bucket.get();
+				final long next = Math.max(current - now, 0) + now + this.interval;
+				final long ahead = next - now;
+				if (ahead > this.tolerance) return ahead - this.tolerance;
+				if (bucket.compareAndSet(current, next)) return 0;
+			}
+		}
+	}
+
+	/**
+	 * <code>Stripe</code> defines a bounded share of
+	 * the buckets, selected by the key hash.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.0
+	 */
+	private static class Stripe {
+		/**
+		 * The <code>int</code> maximum number of buckets.
+		 */
+		private final int capacity;
+		/**
+		 * The <code>ConcurrentHashMap</code> of client
+		 * key to the <code>AtomicLong</code> theoretical
+		 * arrival time of its bucket.
+		 */
+		private final ConcurrentHashMap<String, AtomicLong> buckets;
+		/**
+		 * The <code>AtomicInteger</code> number of
+		 * buckets.
+		 */
+		private final AtomicInteger size;
+		/**
+		 * The <code>AtomicBoolean</code> flag indicating
+		 * if a thread is evicting buckets.
+		 */
+		private final AtomicBoolean evicting;
+		/**
+		 * The <code>long</code> time in nanoseconds when
+		 * the idle buckets should be evicted next.
+		 */
+		private volatile long nextSweep;
+
+		/**
+		 * Constructor of <code>Stripe</code>.
+		 * @param capacity The <code>int</code> maximum
+		 * number of buckets.
+		 */
+		private Stripe(final int capacity) {
+			this.capacity = capacity;
+			this.buckets = new ConcurrentHashMap<String, AtomicLong>(Math.min(capacity, 1024));
+			this.size = new AtomicInteger();
+			this.evicting = new AtomicBoolean();
+			this.nextSweep = System.nanoTime() + SWEEP_INTERVAL;
+		}
+
+		/**
+		 * Retrieve the bucket of the given key, creating
+		 * a full bucket if there is none.
+		 * @param key The <code>String</code> client key.
+		 * @param now The <code>long</code> current time
+		 * in nanoseconds.
+		 * @return The <code>AtomicLong</code> theoretical
+		 * arrival time of the bucket.
+		 */
+		private AtomicLong get(final String key, final long now) {
+			final AtomicLong existing = this.buckets.get(key);
+			if (existing != null) return existing;
+			if (now - this.nextSweep >= 0 || this.size.get() >= this.capacity) this.evict(now);
+			final AtomicLong bucket = new AtomicLong(now);
+			final AtomicLong raced = this.buckets.putIfAbsent(key, bucket);
+			if (raced != null) return raced;
+			this.size.incrementAndGet();
+			return bucket;
+		}
+
+		/**
+		 * Evict the idle buckets if due, and the fullest
+		 * bucket of a sample if the stripe is full. Only a
+		 * single thread evicts at a time, and the others
+		 * proceed without waiting, so the capacity may be
+		 * briefly exceeded under contention.
+		 * @param now The <code>long</code> current time
+		 * in nanoseconds.
+		 */
+		private void evict(final long now) {
+			if (!this.evicting.compareAndSet(false, true)) return;
+			try {
+				// Only sweep periodically, so a flood of new
+				// keys does not scan the stripe every time.
+				if (now - this.nextSweep >= 0) {
+					this.nextSweep = now + SWEEP_INTERVAL;
+					final Iterator<Map.Entry<String, AtomicLong>> iterator = this.buckets.entrySet().iterator();
+					while (iterator.hasNext()) {
+						final Map.Entry<String, AtomicLong> entry = iterator.next();
+						if (entry.getValue().get() - now <= 0) this.remove(entry);
+					}
+				}
+				if (this.size.get() < this.capacity) return;
+				Map.Entry<String, AtomicLong> fullest = null;
+				int sampled = 0;
+				for (final Map.Entry<String, AtomicLong> entry : this.buckets.entrySet()) {
+					if (fullest == null || entry.getValue().get() - fullest.getValue().get() < 0) fullest = entry;
+					if (++sampled >= EVICTION_SAMPLE) break;
+				}
+				if (fullest != null) this.remove(fullest);
+			} finally {
+				this.evicting.set(false);
+			}
+		}
+
+		/**
+		 * Remove the given bucket entry if it has not
+		 * been replaced.
+		 * @param entry The <code>Map.Entry</code> of the
+		 * bucket.
+		 */
+		private void remove(final Map.Entry<String, AtomicLong> entry) {
+			if (this.buckets.remove(entry.getKey(), entry.getValue())) this.size.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package hemera.core.apache.runtime;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>RequestCoalescer</code> defines an internal unit
+ * that tracks the requests of the processors implementing
+ * <code>ICoalescingProcessor</code> that are in progress,
+ * so the identical requests arriving concurrently share
+ * the response of the first one.
+ * <p>
+ * The first request of a key leads a flight, which is
+ * completed with the encoded response once the leader
+ * is done. The following requests of the same key wait
+ * for the flight to complete, up to the timeout of the
+ * processor. A flight completed without a response or
+ * a wait timed out falls back to processing the request
+ * independently.
+ * <p>
+ * <code>RequestCoalescer</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class RequestCoalescer {
+	/**
+	 * The <code>ConcurrentMap</code> of key to the
+	 * <code>Flight</code> in progress.
+	 */
+	private final ConcurrentMap<String, Flight> flights;
+	/**
+	 * The <code>int</code> maximum number of bytes of
+	 * a shared response.
+	 */
+	private final int maxResponseSize;
+	/**
+	 * The <code>AtomicLong</code> number of requests
+	 * answered with a shared response.
+	 */
+	private final AtomicLong shared;
+	/**
+	 * The <code>AtomicLong</code> number of waiting
+	 * requests that fell back to independent processing.
+	 */
+	private final AtomicLong fallbacks;
+
+	/**
+	 * Constructor of <code>RequestCoalescer</code>.
+	 * @param maxResponseSize The <code>int</code>
+	 * maximum number of bytes of a shared response.
+	 */
+	RequestCoalescer(final int maxResponseSize) {
+		this.flights = new ConcurrentHashMap<String, Flight>();
+		this.maxResponseSize = maxResponseSize;
+		this.shared = new AtomicLong();
+		this.fallbacks = new AtomicLong();
+	}
+
+	/**
+	 * Build the coalescing key of the given request.
+	 * @param method The <code>String</code> request
+	 * method.
+	 * @param path The <code>String</code> request path.
+	 * @param arguments The <code>Map</code> of request
+	 * arguments.
+	 * @return The <code>String</code> key. <code>null</code>
+	 * if any of the arguments is not a string, in which
+	 * case the request cannot be coalesced.
+	 */
+	static String buildKey(final String method, final String path, final Map<String, Object> arguments) {
+		final String key = ResponseCache.buildKey(path, arguments);
+		if (key == null) return null;
+		return method + ' ' + key;
+	}
+
+	/**
+	 * Start a flight of the given key if there is none
+	 * in progress. The returned flight must always be
+	 * completed by the caller.
+	 * @param key The <code>String</code> key.
+	 * @return The new <code>Flight</code> led by the
+	 * caller. <code>null</code> if a flight of the key
+	 * is already in progress.
+	 */
+	Flight lead(final String key) {
+		final Flight flight = new Flight(key);
+		return (this.flights.putIfAbsent(key, flight) == null) ? flight : null;
+	}
+
+	/**
+	 * Wait for the flight of the given key in progress
+	 * to complete.
+	 * @param key The <code>String</code> key.
+	 * @param timeout The <code>long</code> maximum
+	 * time to wait in nanoseconds.
+	 * @return The shared <code>CachedResponse</code>.
+	 * <code>null</code> if the flight completed without
+	 * a response, the wait timed out or there is no
+	 * flight of the key in progress.
+	 * @throws InterruptedException If the waiting thread
+	 * is interrupted.
+	 */
+	ResponseCache.CachedResponse await(final String key, final long timeout) throws InterruptedException {
+		final Flight flight = this.flights.get(key);
+		final ResponseCache.CachedResponse response = (flight == null) ? null : flight.await(timeout);
+		if (response != null) this.shared.incrementAndGet();
+		else this.fallbacks.incrementAndGet();
+		return response;
+	}
+
+	/**
+	 * Complete the given flight, releasing all the
+	 * requests waiting for it.
+	 * @param flight The <code>Flight</code> led by the
+	 * caller.
+	 */
+	void complete(final Flight flight) {
+		this.flights.remove(flight.key, flight);
+		flight.latch.countDown();
+	}
+
+	/**
+	 * Retrieve the maximum number of bytes of a shared
+	 * response.
+	 * @return The <code>int</code> size in bytes.
+	 */
+	int getMaxResponseSize() {
+		return this.maxResponseSize;
+	}
+
+	/**
+	 * Retrieve the number of requests answered with a
+	 * shared response.
+	 * @return The <code>long</code> count.
+	 */
+	long getSharedCount() {
+		return this.shared.get();
+	}
+
+	/**
+	 * Retrieve the number of waiting requests that fell
+	 * back to independent processing.
+	 * @return The <code>long</code> count.
+	 */
+	long getFallbackCount() {
+		return this.fallbacks.get();
+	}
+
+	/**
+	 * <code>Flight</code> defines a request in progress
+	 * that the identical requests wait for.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.0
+	 */
+	static class Flight {
+		/**
+		 * The <code>String</code> key.
+		 */
+		private final String key;
+		/**
+		 * The <code>CountDownLatch</code> released on
+		 * completion.
+		 */
+		private final CountDownLatch latch;
+		/**
+		 * The shared <code>CachedResponse</code>, which
+		 * is published by the latch.
+		 */
+		private ResponseCache.CachedResponse response;
+
+		/**
+		 * Constructor of <code>Flight</code>.
+		 * @param key The <code>String</code> key.
+		 */
+		private Flight(final String key) {
+			this.key = key;
+			this.latch = new CountDownLatch(1);
+		}
+
+		/**
+		 * Set the response to share with the waiting
+		 * requests. This method must be invoked before
+		 * the flight is completed.
+		 * @param response The <code>CachedResponse</code>.
+		 */
+		void setResponse(final ResponseCache.CachedResponse response) {
+			this.response = response;
+		}
+
+		private ResponseCache.CachedResponse await(final long timeout) throws InterruptedException {
+			if (!this.latch.await(timeout, TimeUnit.NANOSECONDS)) return null;
+			return this.response;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * <code>RequestDecompression</code> defines an internal
+ * request interceptor that transparently decodes the
+ * request entities sent with the gzip or deflate
+ * content coding, so the request parser always reads
+ * the original data. The data is decompressed lazily
+ * as it is read, and the size limits of the request
+ * parser apply to the decompressed data.
+ * <p>
+ * Any other content coding is left as is, since older
+ * clients may still send their charset in the header.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class RequestDecompression implements HttpRequestInterceptor {
+
+	@Override
+	public void process(final HttpRequest request, final HttpContext context) throws HttpException, IOException {
+		if (!(request instanceof HttpEntityEnclosingRequest)) return;
+		final HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest)request;
+		final HttpEntity entity = entityRequest.getEntity();
+		if (entity == null) return;
+		final Header header = entity.getContentEncoding();
+		if (header == null) return;
+		final String coding = header.getValue().trim().toLowerCase(Locale.ENGLISH);
+		if (coding.equals("gzip") || coding.equals("x-gzip")) {
+			entityRequest.setEntity(new DecodedEntity(entity, true));
+		} else if (coding.equals("deflate")) {
+			entityRequest.setEntity(new DecodedEntity(entity, false));
+		}
+	}
+
+	/**
+	 * <code>DecodedEntity</code> defines the entity that
+	 * decompresses the data of the received entity. The
+	 * content stream is only opened once, so the service
+	 * can still consume the remaining data of the request
+	 * after the decompression failed on malformed data.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.0
+	 */
+	private static class DecodedEntity extends HttpEntityWrapper {
+		/**
+		 * The <code>boolean</code> flag indicating if the
+		 * data is in the gzip format.
+		 */
+		private final boolean gzip;
+		/**
+		 * The opened content <code>InputStream</code>.
+		 */
+		private InputStream content;
+
+		/**
+		 * Constructor of <code>DecodedEntity</code>.
+		 * @param entity The received <code>HttpEntity</code>.
+		 * @param gzip The <code>boolean</code> flag
+		 * indicating if the data is in the gzip format
+		 * instead of the deflate format.
+		 */
+		private DecodedEntity(final HttpEntity entity, final boolean gzip) {
+			super(entity);
+			this.gzip = gzip;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			if (this.content != null) return this.content;
+			this.content = this.wrappedEntity.getContent();
+			if (this.gzip) this.content = new GZIPInputStream(this.content);
+			else this.content = this.newInflaterStream(this.content);
+			return this.content;
+		}
+
+		/**
+		 * Create the stream that inflates the given data
+		 * in the deflate format. Some clients send the raw
+		 * deflate data without the zlib wrapper, which is
+		 * detected from the first two bytes.
+		 * @param stream The <code>InputStream</code> of
+		 * the received data.
+		 * @return The <code>InputStream</code> of the
+		 * inflated data.
+		 * @throws IOException If reading the data failed.
+		 */
+		private InputStream newInflaterStream(final InputStream stream) throws IOException {
+			final PushbackInputStream pushback = new PushbackInputStream(stream, 2);
+			final int first = pushback.read();
+			final int second = (first < 0) ? -1 : pushback.read();
+			if (second >= 0) pushback.unread(second);
+			if (first >= 0) pushback.unread(first);
+			// Compression method and header checksum of zlib.
+			final boolean zlib = (second >= 0 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0);
+			final Inflater inflater = new Inflater(!zlib);
+			return new InflaterInputStream(pushback, inflater) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					inflater.end();
+				}
+			};
+		}
+
+		@Override
+		public Header getContentEncoding() {
+			return null;
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return false;
+		}
+
+		@Override
+		public void writeTo(final OutputStream outstream) throws IOException {
+			if (outstream == null) throw new IllegalArgumentException("Output stream may not be null");
+			final InputStream stream = this.getContent();
+			try {
+				final byte[] buffer = new byte[4096];
+				int count;
+				while ((count = stream.read(buffer)) != -1) outstream.write(buffer, 0, count);
+			} finally {
+				stream.close();
+			}
+		}
+	}
+}
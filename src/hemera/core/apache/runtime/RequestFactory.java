@@ -0,0 +1,145 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.structure.interfaces.IRequest;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <code>RequestFactory</code> defines an internal unit
+ * that creates the processor requests of a single
+ * request type. The constructor of the request type is
+ * resolved once into a <code>MethodHandle</code>, so
+ * the creation of each request does not go through
+ * reflective access checks.
+ * <p>
+ * If the request type implements <code>IResettableRequest</code>,
+ * the released requests are reset and kept in a bounded
+ * pool to be reused by later requests.
+ * <p>
+ * <code>RequestFactory</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class RequestFactory {
+	/**
+	 * The <code>MethodType</code> of the constructor
+	 * handle.
+	 */
+	private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(IRequest.class);
+	/**
+	 * The request <code>Class</code>.
+	 */
+	private final Class<? extends IRequest> type;
+	/**
+	 * The <code>MethodHandle</code> of the no-argument
+	 * constructor. <code>null</code> if the constructor
+	 * is not publicly accessible.
+	 */
+	private final MethodHandle constructor;
+	/**
+	 * The <code>Queue</code> of pooled requests.
+	 * <code>null</code> if requests are not pooled.
+	 */
+	private final Queue<IRequest> pool;
+	/**
+	 * The <code>int</code> maximum number of pooled
+	 * requests.
+	 */
+	private final int capacity;
+	/**
+	 * The <code>AtomicInteger</code> number of pooled
+	 * requests.
+	 */
+	private final AtomicInteger pooled;
+
+	/**
+	 * Constructor of <code>RequestFactory</code>.
+	 * @param type The request <code>Class</code>.
+	 * @param capacity The <code>int</code> maximum
+	 * number of pooled requests if the request type
+	 * is resettable. Zero or less disables pooling.
+	 */
+	RequestFactory(final Class<? extends IRequest> type, final int capacity) {
+		this.type = type;
+		this.constructor = this.resolveConstructor(type);
+		final boolean pooling = (capacity > 0 && IResettableRequest.class.isAssignableFrom(type));
+		this.pool = pooling ? new ConcurrentLinkedQueue<IRequest>() : null;
+		this.capacity = capacity;
+		this.pooled = new AtomicInteger();
+	}
+
+	/**
+	 * Acquire a request instance, reusing a pooled one
+	 * if available.
+	 * @return The <code>IRequest</code> instance.
+	 * @throws Exception If instantiation failed.
+	 */
+	IRequest acquire() throws Exception {
+		if (this.pool != null) {
+			final IRequest request = this.pool.poll();
+			if (request != null) {
+				this.pooled.decrementAndGet();
+				return request;
+			}
+		}
+		if (this.constructor == null) return this.type.newInstance();
+		try {
+			return (IRequest)this.constructor.invokeExact();
+		} catch (final Exception e) {
+			throw e;
+		} catch (final Error e) {
+			throw e;
+		} catch (final Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Release the given request once it has been
+	 * processed, which pools the request if possible.
+	 * @param request The <code>IRequest</code> to
+	 * release.
+	 */
+	void release(final IRequest request) {
+		if (this.pool == null) return;
+		if (this.pooled.incrementAndGet() > this.capacity) {
+			this.pooled.decrementAndGet();
+			return;
+		}
+		try {
+			((IResettableRequest)request).reset();
+		} catch (final RuntimeException e) {
+			// Discard request that cannot be reset.
+			this.pooled.decrementAndGet();
+			return;
+		}
+		this.pool.add(request);
+	}
+
+	/**
+	 * Resolve the handle of the public no-argument
+	 * constructor of the given request type.
+	 * @param type The request <code>Class</code>.
+	 * @return The <code>MethodHandle</code> returning
+	 * <code>IRequest</code>. <code>null</code> if the
+	 * constructor is not accessible, in which case the
+	 * reflective instantiation is used to report the
+	 * failure for each request.
+	 */
+	private MethodHandle resolveConstructor(final Class<? extends IRequest> type) {
+		try {
+			final MethodHandle handle = MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class));
+			return handle.asType(CONSTRUCTOR_TYPE);
+		} catch (final NoSuchMethodException e) {
+			return null;
+		} catch (final IllegalAccessException e) {
+			return null;
+		}
+	}
+}
@@ -1,27 +1,33 @@
 package hemera.core.apache.runtime;
 
 import hemera.core.apache.runtime.fileupload.HttpRequestParser;
+import hemera.core.apache.runtime.fileupload.RequestURIParser;
 import hemera.core.execution.interfaces.IExceptionHandler;
 import hemera.core.structure.enumn.EHttpMethod;
 import hemera.core.structure.enumn.EHttpStatus;
 import hemera.core.structure.interfaces.IProcessor;
 import hemera.core.structure.interfaces.IRequest;
-import hemera.core.structure.interfaces.IResource;
 import hemera.core.structure.interfaces.IResourceRegistry;
 import hemera.core.structure.interfaces.IResponse;
 import hemera.core.utility.logging.FileLogger;
-import hemera.core.utility.uri.RESTURI;
 
+import java.io.File;
 import java.net.SocketTimeoutException;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipException;
 
+import org.apache.commons.fileupload.FileUploadBase.FileSizeLimitExceededException;
+import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
-import org.json.JSONObject;
 
 /**
  * <code>RequestHandler</code> defines an internal unit
@@ -43,24 +49,125 @@ import org.json.JSONObject;
  * all connections. Therefore, this implementation must
  * provide thread-safety as well as high concurrency
  * capabilities.
+ * <p>
+ * If rate limits are configured, each request is first
+ * checked against the token bucket of its client by
+ * the <code>RateLimiter</code>, and throttled requests
+ * are rejected before any routing or parsing.
+ * <p>
+ * Each request is then admitted by the runtime's
+ * <code>AdmissionController</code>. Requests beyond
+ * the configured concurrency limit are rejected with
+ * a canned response before any routing or parsing.
+ * <p>
+ * The resolved routes are cached by the handler, so
+ * the cache must be invalidated via the hosting
+ * runtime whenever the registered resources change.
+ * <p>
+ * The responses of the processors implementing
+ * <code>ICacheableProcessor</code> are cached with
+ * entity tags, so repeated requests are answered from
+ * the cache, and conditional requests for unchanged
+ * responses are answered without content. The
+ * concurrent identical requests of the processors
+ * implementing <code>ICoalescingProcessor</code> share
+ * a single invocation of the processor.
+ * <p>
+ * Every phase of handling a request is timed with the
+ * <code>RequestTimer</code> of the connection, and
+ * recorded in the metrics of the route of the request.
+ * The metrics of all routes are reported as JSON data
+ * on the configured reserved path.
+ * <p>
+ * The processors implementing <code>IAsyncProcessor</code>
+ * complete their responses asynchronously. On the
+ * connections of the non-blocking runtime, a request
+ * that is not completed immediately is suspended, and
+ * its response is committed by the runtime once it is
+ * completed. Otherwise, the invoking thread waits for
+ * the completion.
+ * <p>
+ * The responses implementing <code>IFileResponse</code>
+ * are committed by the <code>FileResponder</code>, so
+ * their content is sent straight from the file, with
+ * support for range and conditional requests. The
+ * responses implementing <code>IStreamingResponse</code>
+ * are streamed into the connection record by record.
+ * Since the content of these responses is written
+ * after the handler returns, and may still read the
+ * request, the request is only released once the
+ * response has been sent, as for a deferred request.
  *
  * @author Yi Wang (Neakor)
- * @version 1.0.7
+ * @version 1.1.7
  */
 class RequestHandler implements HttpRequestHandler {
+	/**
+	 * The <code>String</code> context attribute of the
+	 * per-connection <code>RequestURIParser</code>.
+	 */
+	private static final String URI_PARSER = "hemera.uri.parser";
+	/**
+	 * The <code>String</code> context attribute of the
+	 * <code>AsyncExchange</code> of the request to
+	 * release once its response is sent.
+	 */
+	private static final String DEFERRED = "hemera.request.deferred";
 	/**
 	 * The <code>IExceptionHandler</code> instance
 	 * used by the runtime environment.
 	 */
 	private final IExceptionHandler handler;
 	/**
-	 * The <code>IResourceRegistry</code> instance.
+	 * The <code>RouteCache</code> instance.
+	 */
+	private final RouteCache routes;
+	/**
+	 * The <code>ResponseCache</code> instance.
+	 * <code>null</code> if response caching is
+	 * disabled.
+	 */
+	private final ResponseCache responses;
+	/**
+	 * The <code>RequestCoalescer</code> instance.
+	 */
+	private final RequestCoalescer coalescer;
+	/**
+	 * The <code>RequestMetrics</code> instance.
+	 */
+	private final RequestMetrics metrics;
+	/**
+	 * The <code>String</code> reserved path of the
+	 * metrics route. <code>null</code> if disabled.
+	 */
+	private final String metricsPath;
+	/**
+	 * The <code>AdmissionController</code> instance.
+	 */
+	private final AdmissionController admission;
+	/**
+	 * The <code>RateLimiter</code> instance. <code>null</code>
+	 * if rate limiting is disabled.
+	 */
+	private final RateLimiter limiter;
+	/**
+	 * The <code>ConcurrentMap</code> of request type
+	 * to its <code>RequestFactory</code>.
+	 */
+	private final ConcurrentMap<Class<?>, RequestFactory> factories;
+	/**
+	 * The <code>int</code> maximum number of pooled
+	 * instances of each resettable request type.
 	 */
-	private final IResourceRegistry registry;
+	private final int requestPoolSize;
 	/**
 	 * The <code>HttpRequestParser</code> instance.
 	 */
 	private final HttpRequestParser parser;
+	/**
+	 * The <code>FileResponder</code> instance.
+	 */
+	private final FileResponder files;
 	/**
 	 * The <code>FileLogger</code> instance.
 	 */
@@ -72,71 +179,380 @@ class RequestHandler implements HttpRequestHandler {
 	 * instance used by the runtime environment.
 	 * @param runtime The <code>IResourceRegistry</code>
 	 * of the hosting runtime environment.
+	 * @param admission The <code>AdmissionController</code>
+	 * of the hosting runtime environment.
+	 * @param config The <code>ApacheConfig</code> of
+	 * the hosting runtime environment.
 	 */
-	RequestHandler(final IExceptionHandler handler, final IResourceRegistry registry) {
+	RequestHandler(final IExceptionHandler handler, final IResourceRegistry registry, final AdmissionController admission,
+			final ApacheConfig config) {
 		this.handler = handler;
-		this.registry = registry;
-		this.parser = new HttpRequestParser();
+		this.routes = new RouteCache(registry, config.routeCacheSize);
+		this.responses = (config.responseCacheSize > 0) ? new ResponseCache(config.responseCacheSize, config.responseCacheEntrySize) : null;
+		this.coalescer = new RequestCoalescer(config.responseCacheEntrySize);
+		this.metrics = new RequestMetrics();
+		this.metricsPath = config.metricsPath;
+		this.factories = new ConcurrentHashMap<Class<?>, RequestFactory>();
+		this.requestPoolSize = config.requestPoolSize;
+		this.admission = admission;
+		this.limiter = (config.rateLimits == null) ? null : new RateLimiter(config.rateLimits, config.rateLimitKeyHeader, config.rateLimitMaxKeys);
+		final File spoolDirectory = (config.uploadSpoolDirectory == null) ? null : new File(config.uploadSpoolDirectory);
+		this.parser = new HttpRequestParser(config.maxBodySize, config.uploadMaxPartSize, config.uploadSpoolThreshold, spoolDirectory);
+		this.files = new FileResponder();
 		this.logger = FileLogger.getLogger(this.getClass());
 	}
 
 	@Override
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public void handle(final HttpRequest httpRequest, final HttpResponse httpResponse, final HttpContext context) {
+		// Reject immediately if throttled or overloaded.
+		if (this.limiter != null) {
+			final long wait = this.limiter.acquire(httpRequest, context);
+			if (wait > 0) {
+				this.limiter.reject(httpResponse, wait);
+				return;
+			}
+		}
+		if (!this.admission.acquireRequest()) {
+			this.admission.reject(httpResponse);
+			return;
+		}
+		boolean deferred = false;
+		try {
+			deferred = this.process(httpRequest, httpResponse, context);
+		} finally {
+			// Deferred requests are released once completed.
+			if (!deferred) this.admission.releaseRequest();
+		}
+	}
+
+	/**
+	 * Release the request of the connection with the
+	 * given context, whose release has been deferred
+	 * until its response is sent. This method must be
+	 * invoked once the response of every request has
+	 * been sent or has failed.
+	 * @param context The <code>HttpContext</code> of
+	 * the connection.
+	 */
+	static void releaseDeferred(final HttpContext context) {
+		final AsyncExchange deferred = (AsyncExchange)context.removeAttribute(DEFERRED);
+		if (deferred != null) deferred.handler.release(deferred);
+	}
+
+	/**
+	 * Invalidate all the cached routes. This method
+	 * should be invoked whenever the resources of the
+	 * registry change.
+	 */
+	void invalidateRoutes() {
+		this.routes.invalidate();
+	}
+
+	/**
+	 * Invalidate all the cached responses.
+	 */
+	void invalidateResponses() {
+		if (this.responses != null) this.responses.invalidate();
+	}
+
+	/**
+	 * Retrieve the response cache.
+	 * @return The <code>ResponseCache</code>. <code>null</code>
+	 * if response caching is disabled.
+	 */
+	ResponseCache getResponseCache() {
+		return this.responses;
+	}
+
+	/**
+	 * Retrieve the request coalescer.
+	 * @return The <code>RequestCoalescer</code>.
+	 */
+	RequestCoalescer getRequestCoalescer() {
+		return this.coalescer;
+	}
+
+	/**
+	 * Retrieve the rate limiter.
+	 * @return The <code>RateLimiter</code>. <code>null</code>
+	 * if rate limiting is disabled.
+	 */
+	RateLimiter getRateLimiter() {
+		return this.limiter;
+	}
+
+	/**
+	 * Retrieve the request metrics.
+	 * @return The <code>RequestMetrics</code>.
+	 */
+	RequestMetrics getRequestMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Route the given admitted request to the
+	 * corresponding processor and commit the result
+	 * to the given response.
+	 * @param httpRequest The <code>HttpRequest</code>
+	 * to process.
+	 * @param httpResponse The <code>HttpResponse</code>
+	 * to commit to.
+	 * @param context The <code>HttpContext</code> of
+	 * the connection.
+	 * @return <code>true</code> if the release of the
+	 * request is deferred until its asynchronous
+	 * processing is completed, or its response is sent.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private boolean process(final HttpRequest httpRequest, final HttpResponse httpResponse, final HttpContext context) {
+		final RequestTimer timer = RequestTimer.get(context);
 		try {
 			// Parse URI.
 			final String uriStr = httpRequest.getRequestLine().getUri();
-			final RESTURI uri = new RESTURI(uriStr);
+			final RequestURIParser uri = this.getURIParser(context);
+			uri.parse(uriStr);
+			// Report metrics on the reserved path.
+			if (this.metricsPath != null && this.metricsPath.equals(uri.getPath())) {
+				httpResponse.setStatusCode(HttpStatus.SC_OK);
+				httpResponse.setEntity(new JSONEntity(this.metrics.toJSON(), null));
+				return false;
+			}
+			timer.mark(ERequestPhase.URIParsing);
 			final EHttpMethod method = EHttpMethod.parse(httpRequest.getRequestLine().getMethod());
-			// Retrieve resource.
-			final IResource resource = this.registry.getResource(uri, method);
-			if (resource == null) throw new UnsupportedOperationException(uriStr);
-			// Retrieve processor.
-			final String[] path = uri.getElementArray();
-			final IProcessor processor = resource.getProcessor(path, method);
-			if (processor == null) throw new UnsupportedOperationException(uriStr);
+			// Resolve resource and processor.
+			final RouteCache.Route route = this.routes.resolve(uri, method);
+			if (route == null) {
+				timer.setRoute(this.metrics.getUnrouted());
+				timer.mark(ERequestPhase.Routing);
+				this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C404_NotFound, uriStr);
+				return false;
+			}
+			final String[] path = uri.getPathElements();
+			final IProcessor processor = route.processor;
+			timer.setRoute(this.metrics.get(processor));
+			timer.mark(ERequestPhase.Routing);
 			// Parse request arguments.
-			final Map<String, Object> arguments = this.parser.parseArguments(httpRequest);
-			// Create processor request.
-			final Class<? extends IRequest> requestclass = processor.getRequestType();
-			final IRequest request = requestclass.newInstance();
+			final Map<String, Object> arguments = this.parser.parseArguments(httpRequest, uri);
+			timer.mark(ERequestPhase.ArgumentParsing);
+			AsyncExchange exchange = null;
+			boolean deferred = false;
 			try {
-				request.parse(path, arguments);
-			} catch (final Exception e) {
-				throw new IllegalArgumentException(e.getMessage());
-			}
-			// Invoke processor based on redirect behavior.
-			final String callbackArg = (String)arguments.get("callback");
-			switch (processor.getRedirectBehavior(request)) {
-			case Invoke:
-				this.invoke(processor, request, httpResponse, callbackArg);
-				break;
-			case RedirectBeforeInvoke:
-				final String beforeInvokeRedirectURI = processor.getRedirectURI(request);
-				httpResponse.setStatusCode(EHttpStatus.C307_TemporaryRedirect.code);
-				httpResponse.setHeader("Location", beforeInvokeRedirectURI);
-				break;
-			case RedirectAfterInvoke:
-				final IResponse response = this.invoke(processor, request, httpResponse, callbackArg);
-				final String afterInvokeRedirectURI = processor.getRedirectURI(request, response);
-				httpResponse.setStatusCode(EHttpStatus.C307_TemporaryRedirect.code);
-				httpResponse.setHeader("Location", afterInvokeRedirectURI);
-				break;
-			default: throw new IllegalArgumentException("Unsupported redirect behavior");
+				// Answer from the response cache if possible.
+				final String cacheKey = this.getCacheKey(processor, httpRequest, uri, arguments);
+				if (cacheKey != null) {
+					final ResponseCache.CachedResponse cached = this.responses.get(cacheKey);
+					if (cached != null) {
+						this.setCachedResponse(httpRequest, httpResponse, cached);
+						return false;
+					}
+				}
+				// Share the response of the identical request in progress.
+				final String flightKey = this.getFlightKey(processor, httpRequest, uri, arguments);
+				RequestCoalescer.Flight flight = null;
+				if (flightKey != null) {
+					flight = this.coalescer.lead(flightKey);
+					if (flight == null) {
+						final long timeout = ((ICoalescingProcessor<?, ?>)processor).getCoalescingTimeout(TimeUnit.NANOSECONDS);
+						final ResponseCache.CachedResponse shared = this.coalescer.await(flightKey, timeout);
+						timer.mark(ERequestPhase.Processing);
+						if (shared != null) {
+							this.setCachedResponse(httpRequest, httpResponse, shared);
+							return false;
+						}
+					}
+				}
+				try {
+					// Create processor request.
+					final RequestFactory factory = this.getFactory(processor.getRequestType());
+					final IRequest request = factory.acquire();
+					final NioConnection connection = (NioConnection)context.getAttribute(NioConnection.ATTRIBUTE);
+					try {
+						exchange = this.dispatch(processor, request, path, arguments, httpRequest, httpResponse, cacheKey, flight, connection, timer);
+						if (exchange == null) {
+							final AsyncExchange sent = new AsyncExchange(0);
+							sent.request = request;
+							sent.factory = factory;
+							sent.arguments = arguments;
+							deferred = this.deferRelease(sent, httpResponse, context);
+						}
+					} finally {
+						// The deferred request is released once completed.
+						if (exchange != null) exchange.factory = factory;
+						else if (!deferred) factory.release(request);
+					}
+				} finally {
+					if (flight != null && exchange == null) this.coalescer.complete(flight);
+				}
+			} finally {
+				if (exchange == null && !deferred) this.parser.release(arguments);
 			}
+			return (exchange != null || deferred);
 		} catch (final SocketTimeoutException e) {
 			// Log warning if client timed out.
 			this.logger.warning("Client socket timed out.");
+		} catch (final SizeLimitExceededException e) {
+			this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C400_BadRequest, e.getMessage());
+		} catch (final FileSizeLimitExceededException e) {
+			this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C400_BadRequest, e.getMessage());
+		} catch (final ZipException e) {
+			// Malformed compressed request body.
+			this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C400_BadRequest, e.getMessage());
 		} catch (final UnsupportedOperationException e) {
-			this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C404_NotFound, e);
+			this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C404_NotFound, e.getMessage());
 		} catch (final IllegalArgumentException e) {
-			this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C400_BadRequest, e);
+			this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C400_BadRequest, e.getMessage());
 		} catch (final Exception e) {
 			this.handler.handle(e);
-			this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C500_InternalServerError, e);
+			this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C500_InternalServerError, null);
 		}
+		return false;
+	}
+
+	/**
+	 * Parse the given processor request and dispatch it
+	 * to the processor based on its redirect behavior.
+	 * @param processor The <code>IProcessor</code> to
+	 * dispatch to.
+	 * @param request The <code>IRequest</code> to parse
+	 * and dispatch.
+	 * @param path The <code>String</code> array of the
+	 * request path elements.
+	 * @param arguments The <code>Map</code> of request
+	 * arguments.
+	 * @param httpRequest The <code>HttpRequest</code>
+	 * being processed.
+	 * @param httpResponse The <code>HttpResponse</code>
+	 * to commit to.
+	 * @param cacheKey The <code>String</code> key to
+	 * cache the response with. <code>null</code> if the
+	 * response should not be cached.
+	 * @param flight The <code>Flight</code> led by the
+	 * request to share the response with. <code>null</code>
+	 * if the request is not coalesced.
+	 * @param connection The <code>NioConnection</code>
+	 * to suspend while the response is deferred.
+	 * <code>null</code> if the connection cannot be
+	 * suspended.
+	 * @param timer The <code>RequestTimer</code> of
+	 * the request.
+	 * @return The <code>AsyncExchange</code> of the
+	 * deferred request. <code>null</code> if the response
+	 * is committed.
+	 * @throws Exception If any processing failed.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private AsyncExchange dispatch(final IProcessor processor, final IRequest request, final String[] path, final Map<String, Object> arguments,
+			final HttpRequest httpRequest, final HttpResponse httpResponse, final String cacheKey, final RequestCoalescer.Flight flight,
+			final NioConnection connection, final RequestTimer timer) throws Exception {
+		try {
+			request.parse(path, arguments);
+		} catch (final Exception e) {
+			this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C400_BadRequest, e.getMessage());
+			return null;
+		} finally {
+			timer.mark(ERequestPhase.RequestParsing);
+		}
+		// Invoke processor based on redirect behavior.
+		final String callbackArg = (String)arguments.get("callback");
+		switch (processor.getRedirectBehavior(request)) {
+		case Invoke:
+			if (connection != null && processor instanceof IAsyncProcessor) {
+				return this.invokeAsync((IAsyncProcessor)processor, request, arguments, httpRequest, httpResponse, callbackArg, cacheKey, flight,
+						connection, timer);
+			}
+			if (cacheKey == null && flight == null) this.invoke(processor, request, httpRequest, httpResponse, callbackArg, timer);
+			else this.invokeEncoded(processor, request, httpRequest, httpResponse, callbackArg, cacheKey, flight, timer);
+			break;
+		case RedirectBeforeInvoke:
+			final String beforeInvokeRedirectURI = processor.getRedirectURI(request);
+			httpResponse.setStatusCode(EHttpStatus.C307_TemporaryRedirect.code);
+			httpResponse.setHeader("Location", beforeInvokeRedirectURI);
+			break;
+		case RedirectAfterInvoke:
+			final IResponse response = this.invoke(processor, request, httpRequest, httpResponse, callbackArg, timer);
+			final String afterInvokeRedirectURI = processor.getRedirectURI(request, response);
+			httpResponse.setStatusCode(EHttpStatus.C307_TemporaryRedirect.code);
+			httpResponse.setHeader("Location", afterInvokeRedirectURI);
+			break;
+		default: throw new IllegalArgumentException("Unsupported redirect behavior");
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieve the factory of the given request type,
+	 * creating one if necessary.
+	 * @param type The request <code>Class</code>.
+	 * @return The <code>RequestFactory</code>.
+	 */
+	private RequestFactory getFactory(final Class<? extends IRequest> type) {
+		final RequestFactory factory = this.factories.get(type);
+		if (factory != null) return factory;
+		final RequestFactory created = new RequestFactory(type, this.requestPoolSize);
+		final RequestFactory existing = this.factories.putIfAbsent(type, created);
+		return (existing == null) ? created : existing;
 	}
 	
+	/**
+	 * Retrieve the key to cache the response of the
+	 * given request with.
+	 * @param processor The <code>IProcessor</code> of
+	 * the request.
+	 * @param httpRequest The <code>HttpRequest</code>.
+	 * @param uri The <code>RequestURIParser</code> that
+	 * parsed the request URI.
+	 * @param arguments The <code>Map</code> of request
+	 * arguments.
+	 * @return The <code>String</code> key. <code>null</code>
+	 * if the response should not be cached.
+	 */
+	private String getCacheKey(final IProcessor<?, ?> processor, final HttpRequest httpRequest, final RequestURIParser uri,
+			final Map<String, Object> arguments) {
+		if (this.responses == null || !(processor instanceof ICacheableProcessor)) return null;
+		final String method = httpRequest.getRequestLine().getMethod();
+		if (!method.equals("GET") && !method.equals("HEAD")) return null;
+		if (((ICacheableProcessor<?, ?>)processor).getCacheDuration(TimeUnit.NANOSECONDS) <= 0) return null;
+		return ResponseCache.buildKey(uri.getPath(), arguments);
+	}
+
+	/**
+	 * Retrieve the key to coalesce the given request
+	 * with the identical requests in progress.
+	 * @param processor The <code>IProcessor</code> of
+	 * the request.
+	 * @param httpRequest The <code>HttpRequest</code>.
+	 * @param uri The <code>RequestURIParser</code> that
+	 * parsed the request URI.
+	 * @param arguments The <code>Map</code> of request
+	 * arguments.
+	 * @return The <code>String</code> key. <code>null</code>
+	 * if the request should not be coalesced.
+	 */
+	private String getFlightKey(final IProcessor<?, ?> processor, final HttpRequest httpRequest, final RequestURIParser uri,
+			final Map<String, Object> arguments) {
+		if (!(processor instanceof ICoalescingProcessor)) return null;
+		final String method = httpRequest.getRequestLine().getMethod();
+		if (!method.equals("GET") && !method.equals("HEAD")) return null;
+		if (((ICoalescingProcessor<?, ?>)processor).getCoalescingTimeout(TimeUnit.NANOSECONDS) <= 0) return null;
+		return RequestCoalescer.buildKey(method, uri.getPath(), arguments);
+	}
+
+	/**
+	 * Retrieve the URI parser of the connection with
+	 * the given context, creating one if necessary.
+	 * @param context The <code>HttpContext</code> of
+	 * the connection.
+	 * @return The <code>RequestURIParser</code>.
+	 */
+	private RequestURIParser getURIParser(final HttpContext context) {
+		RequestURIParser uriParser = (RequestURIParser)context.getAttribute(URI_PARSER);
+		if (uriParser == null) {
+			uriParser = new RequestURIParser();
+			context.setAttribute(URI_PARSER, uriParser);
+		}
+		return uriParser;
+	}
+
 	/**
 	 * Invoke the processor to process given request
 	 * and commit to given HTTP response with given
@@ -148,65 +564,369 @@ class RequestHandler implements HttpRequestHandler {
 	 * process the request.
 	 * @param request The <code>IRequest</code> to be
 	 * processed.
+	 * @param httpRequest The <code>HttpRequest</code>
+	 * being processed.
+	 * @param httpResponse The <code>HttpResponse</code>
+	 * to commit to.
+	 * @param callbackArg The <code>String</code> call
+	 * back argument.
+	 * @param timer The <code>RequestTimer</code> of
+	 * the request.
+	 * @return The produced <code>IResponse</code>.
+	 * @throws Exception If any processing failed.
+	 */
+	private IResponse invoke(final IProcessor<?, ?> processor, final IRequest request, final HttpRequest httpRequest, final HttpResponse httpResponse,
+			final String callbackArg, final RequestTimer timer) throws Exception {
+		final IResponse response;
+		try {
+			response = this.call(processor, request);
+		} finally {
+			timer.mark(ERequestPhase.Processing);
+		}
+		this.commit(response, httpRequest, httpResponse, callbackArg);
+		return response;
+	}
+	
+	/**
+	 * Invoke the processor to process given request as
+	 * the <code>invoke</code> method, but commit the
+	 * response as encoded data that is also cached if
+	 * the response is successful, and shared with the
+	 * requests waiting for the given flight.
+	 * @param processor The <code>IProcessor</code> to
+	 * process the request.
+	 * @param request The <code>IRequest</code> to be
+	 * processed.
+	 * @param httpRequest The <code>HttpRequest</code>
+	 * being processed.
 	 * @param httpResponse The <code>HttpResponse</code>
 	 * to commit to.
 	 * @param callbackArg The <code>String</code> call
 	 * back argument.
+	 * @param cacheKey The <code>String</code> key to
+	 * cache the response with. <code>null</code> if the
+	 * response should not be cached.
+	 * @param flight The <code>Flight</code> to share
+	 * the response with. <code>null</code> if the request
+	 * is not coalesced.
+	 * @param timer The <code>RequestTimer</code> of
+	 * the request.
+	 * @throws Exception If any processing failed.
+	 */
+	private void invokeEncoded(final IProcessor<?, ?> processor, final IRequest request, final HttpRequest httpRequest,
+			final HttpResponse httpResponse, final String callbackArg, final String cacheKey, final RequestCoalescer.Flight flight,
+			final RequestTimer timer) throws Exception {
+		final long generation = (cacheKey == null) ? 0 : this.responses.getGeneration();
+		final IResponse response;
+		try {
+			response = this.call(processor, request);
+		} finally {
+			timer.mark(ERequestPhase.Processing);
+		}
+		this.commitEncoded(processor, response, httpRequest, httpResponse, callbackArg, cacheKey, flight, generation);
+	}
+
+	/**
+	 * Invoke the asynchronous processor to process the
+	 * given request, and defer committing the response
+	 * until the processing is completed, if it is not
+	 * completed immediately. The response is committed
+	 * as the <code>invoke</code> or <code>invokeEncoded</code>
+	 * method does.
+	 * @param processor The <code>IAsyncProcessor</code>
+	 * to process the request.
+	 * @param request The <code>IRequest</code> to be
+	 * processed.
+	 * @param arguments The <code>Map</code> of request
+	 * arguments.
+	 * @param httpRequest The <code>HttpRequest</code>
+	 * being processed.
+	 * @param httpResponse The <code>HttpResponse</code>
+	 * to commit to.
+	 * @param callbackArg The <code>String</code> call
+	 * back argument.
+	 * @param cacheKey The <code>String</code> key to
+	 * cache the response with. <code>null</code> if the
+	 * response should not be cached.
+	 * @param flight The <code>Flight</code> to share
+	 * the response with. <code>null</code> if the request
+	 * is not coalesced.
+	 * @param connection The <code>NioConnection</code>
+	 * to suspend while the response is deferred.
+	 * @param timer The <code>RequestTimer</code> of
+	 * the request.
+	 * @return The <code>AsyncExchange</code> of the
+	 * deferred request. <code>null</code> if the response
+	 * is committed.
+	 * @throws Exception If any processing failed.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private AsyncExchange invokeAsync(final IAsyncProcessor processor, final IRequest request, final Map<String, Object> arguments,
+			final HttpRequest httpRequest, final HttpResponse httpResponse, final String callbackArg, final String cacheKey,
+			final RequestCoalescer.Flight flight, final NioConnection connection, final RequestTimer timer) throws Exception {
+		final AsyncExchange exchange = new AsyncExchange(processor.getAsyncTimeout(TimeUnit.NANOSECONDS));
+		exchange.processor = processor;
+		exchange.request = request;
+		exchange.arguments = arguments;
+		exchange.httpRequest = httpRequest;
+		exchange.callbackArg = callbackArg;
+		exchange.cacheKey = cacheKey;
+		exchange.flight = flight;
+		exchange.generation = (cacheKey == null) ? 0 : this.responses.getGeneration();
+		try {
+			processor.processAsync(request, exchange);
+		} finally {
+			timer.mark(ERequestPhase.Processing);
+		}
+		if (exchange.isCompleted()) {
+			this.commitAsync(exchange, httpResponse);
+			return null;
+		}
+		// Release the worker thread until completed.
+		exchange.route = timer.suspend();
+		connection.suspend(exchange);
+		return exchange;
+	}
+
+	/**
+	 * Commit the response of the given completed
+	 * asynchronous request to the given HTTP response,
+	 * and release the request, unless its response
+	 * content is written after this method returns.
+	 * @param exchange The completed <code>AsyncExchange</code>
+	 * of a request deferred by this handler.
+	 * @param httpResponse The <code>HttpResponse</code>
+	 * to commit to.
+	 * @param context The <code>HttpContext</code> of
+	 * the connection.
+	 */
+	void complete(final AsyncExchange exchange, final HttpResponse httpResponse, final HttpContext context) {
+		final RequestTimer timer = RequestTimer.get(context);
+		timer.setRoute(exchange.route);
+		timer.mark(ERequestPhase.Processing);
+		try {
+			this.commitAsync(exchange, httpResponse);
+		} catch (final Exception e) {
+			this.handler.handle(e);
+			this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C500_InternalServerError, null);
+		} finally {
+			// Files and streams are never shared.
+			if (exchange.flight != null) {
+				this.coalescer.complete(exchange.flight);
+				exchange.flight = null;
+			}
+			if (!this.deferRelease(exchange, httpResponse, context)) this.release(exchange);
+		}
+	}
+
+	/**
+	 * Defer the release of the request of the given
+	 * exchange until the given response is sent, if the
+	 * content of the response is written after the
+	 * handler returns.
+	 * @param exchange The <code>AsyncExchange</code>
+	 * of the request to release.
+	 * @param httpResponse The committed <code>HttpResponse</code>.
+	 * @param context The <code>HttpContext</code> of
+	 * the connection.
+	 * @return <code>true</code> if the release is
+	 * deferred.
+	 */
+	private boolean deferRelease(final AsyncExchange exchange, final HttpResponse httpResponse, final HttpContext context) {
+		final HttpEntity entity = httpResponse.getEntity();
+		if (!(entity instanceof StreamingEntity) && !(entity instanceof FileRegionEntity)) return false;
+		exchange.handler = this;
+		context.setAttribute(DEFERRED, exchange);
+		return true;
+	}
+
+	/**
+	 * Release the request of the given completed or
+	 * sent exchange.
+	 * @param exchange The <code>AsyncExchange</code>
+	 * of the request to release.
+	 */
+	private void release(final AsyncExchange exchange) {
+		exchange.factory.release(exchange.request);
+		if (exchange.flight != null) this.coalescer.complete(exchange.flight);
+		this.parser.release(exchange.arguments);
+		this.admission.releaseRequest();
+	}
+
+	/**
+	 * Commit the response of the given completed
+	 * asynchronous request to the given HTTP response.
+	 * @param exchange The completed <code>AsyncExchange</code>.
+	 * @param httpResponse The <code>HttpResponse</code>
+	 * to commit to.
+	 * @throws Exception If the processing failed.
+	 */
+	private void commitAsync(final AsyncExchange exchange, final HttpResponse httpResponse) throws Exception {
+		final IResponse response = exchange.getResponse();
+		if (exchange.cacheKey == null && exchange.flight == null) {
+			this.commit(response, exchange.httpRequest, httpResponse, exchange.callbackArg);
+		} else {
+			this.commitEncoded(exchange.processor, response, exchange.httpRequest, httpResponse, exchange.callbackArg, exchange.cacheKey,
+					exchange.flight, exchange.generation);
+		}
+	}
+
+	/**
+	 * Invoke the processor to process the given request
+	 * on the current thread. Asynchronous processors are
+	 * waited for up to their timeout.
+	 * @param processor The <code>IProcessor</code> to
+	 * process the request.
+	 * @param request The <code>IRequest</code> to be
+	 * processed.
 	 * @return The produced <code>IResponse</code>.
+	 * <code>null</code> if the processor is inactive
+	 * or timed out.
 	 * @throws Exception If any processing failed.
 	 */
 	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private IResponse invoke(final IProcessor processor, final IRequest request, final HttpResponse httpResponse, final String callbackArg) throws Exception {
-		final IResponse response = processor.process(request);
+	private IResponse call(final IProcessor processor, final IRequest request) throws Exception {
+		if (!(processor instanceof IAsyncProcessor)) return processor.process(request);
+		final IAsyncProcessor asyncProcessor = (IAsyncProcessor)processor;
+		final AsyncExchange exchange = new AsyncExchange(asyncProcessor.getAsyncTimeout(TimeUnit.NANOSECONDS));
+		asyncProcessor.processAsync(request, exchange);
+		return exchange.await();
+	}
+
+	/**
+	 * Commit the given processor response to the given
+	 * HTTP response, serialized directly into the
+	 * connection.
+	 * @param response The produced <code>IResponse</code>.
+	 * <code>null</code> if the processor is inactive.
+	 * @param httpRequest The <code>HttpRequest</code>
+	 * being processed.
+	 * @param httpResponse The <code>HttpResponse</code>
+	 * to commit to.
+	 * @param callbackArg The <code>String</code> call
+	 * back argument.
+	 * @throws Exception If encoding the response failed.
+	 */
+	private void commit(final IResponse response, final HttpRequest httpRequest, final HttpResponse httpResponse, final String callbackArg)
+			throws Exception {
 		// Processor inactive.
 		if (response == null) {
 			this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C503_ServiceUnavailable, null);
 		}
+		// Send file content from the file.
+		else if (response instanceof IFileResponse) {
+			this.files.commit(httpRequest, httpResponse, (IFileResponse)response);
+		}
+		// Stream records as they are produced.
+		else if (response instanceof IStreamingResponse) {
+			httpResponse.setStatusCode(response.getStatus().code);
+			httpResponse.setEntity(new StreamingEntity((IStreamingResponse)response, callbackArg));
+		}
 		// Commit response.
 		else {
-			final String jsonstr = response.toJSON().toString();
 			final EHttpStatus status = response.getStatus();
 			httpResponse.setStatusCode(status.code);
-			// JSONP format.
-			final boolean useJSONP = (callbackArg != null);
-			if (useJSONP) {
-				final StringBuilder jsonpBuilder = new StringBuilder();
-				jsonpBuilder.append(callbackArg).append("(").append(jsonstr).append(")");
-				final String wrapped = jsonpBuilder.toString();
-				httpResponse.setEntity(new StringEntity(wrapped, ContentType.APPLICATION_JSON));
-			}
-			// If no callback function, return in JSON format.
-			else {
-				httpResponse.setEntity(new StringEntity(jsonstr, ContentType.APPLICATION_JSON));
+			// Serialize directly into the connection, wrapped if JSONP format.
+			httpResponse.setEntity(new JSONEntity(response.toJSON(), callbackArg));
+		}
+	}
+
+	/**
+	 * Commit the given processor response to the given
+	 * HTTP response as encoded data that is also cached
+	 * if the response is successful, and shared with the
+	 * requests waiting for the given flight.
+	 * @param processor The <code>IProcessor</code> that
+	 * produced the response.
+	 * @param response The produced <code>IResponse</code>.
+	 * <code>null</code> if the processor is inactive.
+	 * @param httpRequest The <code>HttpRequest</code>
+	 * being processed.
+	 * @param httpResponse The <code>HttpResponse</code>
+	 * to commit to.
+	 * @param callbackArg The <code>String</code> call
+	 * back argument.
+	 * @param cacheKey The <code>String</code> key to
+	 * cache the response with. <code>null</code> if the
+	 * response should not be cached.
+	 * @param flight The <code>Flight</code> to share
+	 * the response with. <code>null</code> if the request
+	 * is not coalesced.
+	 * @param generation The <code>long</code> response
+	 * cache generation before processing.
+	 * @throws Exception If encoding the response failed.
+	 */
+	private void commitEncoded(final IProcessor<?, ?> processor, final IResponse response, final HttpRequest httpRequest,
+			final HttpResponse httpResponse, final String callbackArg, final String cacheKey, final RequestCoalescer.Flight flight,
+			final long generation) throws Exception {
+		if (response == null) {
+			this.setUncaughtExceptionResponse(httpResponse, EHttpStatus.C503_ServiceUnavailable, null);
+			return;
+		}
+		// Files and streams are neither cached nor shared.
+		if (response instanceof IFileResponse || response instanceof IStreamingResponse) {
+			this.commit(response, httpRequest, httpResponse, callbackArg);
+			return;
+		}
+		final EHttpStatus status = response.getStatus();
+		httpResponse.setStatusCode(status.code);
+		final JSONEntity entity = new JSONEntity(response.toJSON(), callbackArg);
+		// Stream responses that can be neither cached nor shared.
+		final boolean cacheable = (cacheKey != null && status.code == HttpStatus.SC_OK);
+		int limit = (flight == null) ? -1 : this.coalescer.getMaxResponseSize();
+		if (cacheable) limit = Math.max(limit, this.responses.getMaxEntrySize());
+		final byte[] data = (limit < 0) ? null : entity.toByteArray(limit);
+		if (data == null) {
+			httpResponse.setEntity(entity);
+			return;
+		}
+		final ResponseCache.CachedResponse encoded;
+		if (cacheable && data.length <= this.responses.getMaxEntrySize()) {
+			final long duration = ((ICacheableProcessor<?, ?>)processor).getCacheDuration(TimeUnit.NANOSECONDS);
+			encoded = this.responses.put(cacheKey, status.code, entity.getContentType().getValue(), data, duration, generation);
+		} else {
+			encoded = ResponseCache.newResponse(status.code, entity.getContentType().getValue(), data);
+		}
+		if (flight != null) flight.setResponse(encoded);
+		this.setCachedResponse(httpRequest, httpResponse, encoded);
+	}
+
+	/**
+	 * Commit the given cached or shared response to the
+	 * given Http response, which has no content if the
+	 * client already has the response.
+	 * @param httpRequest The <code>HttpRequest</code>
+	 * being processed.
+	 * @param httpResponse The <code>HttpResponse</code>
+	 * to commit to.
+	 * @param cached The <code>CachedResponse</code>.
+	 */
+	private void setCachedResponse(final HttpRequest httpRequest, final HttpResponse httpResponse, final ResponseCache.CachedResponse cached) {
+		if (cached.etag != null) {
+			httpResponse.setHeader("ETag", cached.etag);
+			if (ResponseCache.isNotModified(httpRequest, cached.etag)) {
+				httpResponse.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+				httpResponse.setEntity(null);
+				return;
 			}
 		}
-		return response;
+		httpResponse.setStatusCode(cached.status);
+		final ByteArrayEntity entity = new ByteArrayEntity(cached.data);
+		entity.setContentType(cached.contentType);
+		httpResponse.setEntity(entity);
 	}
-	
+
 	/**
 	 * Set the exception response with the given Http
-	 * response, status and exception.
+	 * response, status and detail message.
 	 * @param httpResponse The <code>HttpResponse</code>
 	 * to set to.
 	 * @param status The <code>EHttpStatus</code> value.
-	 * @param exception The optional <code>Exception</code>
-	 * to include in the error message.
+	 * @param detail The optional <code>String</code>
+	 * detail to include in the error message.
 	 */
-	private void setUncaughtExceptionResponse(final HttpResponse httpResponse, final EHttpStatus status, final Exception exception) {
+	private void setUncaughtExceptionResponse(final HttpResponse httpResponse, final EHttpStatus status, final String detail) {
 		httpResponse.setStatusCode(status.code);
-		try {
-			final JSONObject exceptionJSON = new JSONObject();
-			exceptionJSON.put("http_status", status.name());
-			if (status == EHttpStatus.C404_NotFound) {
-				exceptionJSON.put("exception", "No such service provided: " + exception.getMessage());
-			} else if (status == EHttpStatus.C400_BadRequest) {
-				exceptionJSON.put("exception", "Invalid request: " + exception.getMessage());
-			} else if (status == EHttpStatus.C500_InternalServerError) {
-				exceptionJSON.put("exception", "A server error has occurred.");
-			} else if (status == EHttpStatus.C503_ServiceUnavailable) {
-				exceptionJSON.put("exception", "Requested service has been disabled.");
-			}
-			httpResponse.setEntity(new StringEntity(exceptionJSON.toString()));
-		} catch (final Exception ignore) {}
+		httpResponse.setEntity(ErrorEntities.newEntity(status, detail));
 	}
 }
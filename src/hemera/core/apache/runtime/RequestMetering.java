@@ -0,0 +1,81 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * <code>RequestMetering</code> defines an internal
+ * request interceptor that starts the <code>RequestTimer</code>
+ * of the connection as soon as a request head is
+ * received, and counts the bytes of the request entity
+ * as they are read. This interceptor must be placed
+ * first, so the entity is counted as received before
+ * any decoding.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class RequestMetering implements HttpRequestInterceptor {
+
+	@Override
+	public void process(final HttpRequest request, final HttpContext context) throws HttpException, IOException {
+		final RequestTimer timer = RequestTimer.get(context);
+		timer.start();
+		if (!(request instanceof HttpEntityEnclosingRequest)) return;
+		final HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest)request;
+		final HttpEntity entity = entityRequest.getEntity();
+		if (entity != null) entityRequest.setEntity(new CountedEntity(entity, timer));
+	}
+
+	/**
+	 * <code>CountedEntity</code> defines the entity that
+	 * counts the bytes read from the received entity.
+	 * The content stream is only opened once, so the
+	 * service consumes the same stream.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.0
+	 */
+	private static class CountedEntity extends HttpEntityWrapper {
+		/**
+		 * The <code>RequestTimer</code> to count with.
+		 */
+		private final RequestTimer timer;
+		/**
+		 * The opened content <code>InputStream</code>.
+		 */
+		private InputStream content;
+
+		/**
+		 * Constructor of <code>CountedEntity</code>.
+		 * @param entity The received <code>HttpEntity</code>.
+		 * @param timer The <code>RequestTimer</code> to
+		 * count with.
+		 */
+		private CountedEntity(final HttpEntity entity, final RequestTimer timer) {
+			super(entity);
+			this.timer = timer;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			if (this.content != null) return this.content;
+			this.content = new ProxyInputStream(this.wrappedEntity.getContent()) {
+				@Override
+				protected void afterRead(final int n) {
+					if (n > 0) timer.addRequestBytes(n);
+				}
+			};
+			return this.content;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.structure.interfaces.IProcessor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <code>RequestMetrics</code> defines an internal unit
+ * that holds the <code>RouteMetrics</code> of all the
+ * routes of a runtime environment. The routes are keyed
+ * on the processor classes, and the requests that could
+ * not be routed are recorded in a dedicated route.
+ * <p>
+ * <code>RequestMetrics</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class RequestMetrics {
+	/**
+	 * The <code>String</code> name of the route of
+	 * unrouted requests.
+	 */
+	private static final String UNROUTED = "unrouted";
+	/**
+	 * The <code>ConcurrentMap</code> of processor class
+	 * to its <code>RouteMetrics</code>.
+	 */
+	private final ConcurrentMap<Class<?>, RouteMetrics> routes;
+	/**
+	 * The <code>RouteMetrics</code> of the unrouted
+	 * requests.
+	 */
+	private final RouteMetrics unrouted;
+
+	/**
+	 * Constructor of <code>RequestMetrics</code>.
+	 */
+	RequestMetrics() {
+		this.routes = new ConcurrentHashMap<Class<?>, RouteMetrics>();
+		this.unrouted = new RouteMetrics(UNROUTED);
+	}
+
+	/**
+	 * Retrieve the metrics of the route of the given
+	 * processor, creating one if necessary.
+	 * @param processor The <code>IProcessor</code>.
+	 * @return The <code>RouteMetrics</code>.
+	 */
+	RouteMetrics get(final IProcessor<?, ?> processor) {
+		final Class<?> type = processor.getClass();
+		final RouteMetrics metrics = this.routes.get(type);
+		if (metrics != null) return metrics;
+		final RouteMetrics created = new RouteMetrics(type.getName());
+		final RouteMetrics existing = this.routes.putIfAbsent(type, created);
+		return (existing == null) ? created : existing;
+	}
+
+	/**
+	 * Retrieve the metrics of the unrouted requests.
+	 * @return The <code>RouteMetrics</code>.
+	 */
+	RouteMetrics getUnrouted() {
+		return this.unrouted;
+	}
+
+	/**
+	 * Take a snapshot of the metrics of all the routes
+	 * that have received requests.
+	 * @return The <code>List</code> of <code>RouteMetricsSnapshot</code>
+	 * ordered by route name.
+	 */
+	List<RouteMetricsSnapshot> snapshot() {
+		final List<RouteMetricsSnapshot> snapshots = new ArrayList<RouteMetricsSnapshot>(this.routes.size() + 1);
+		for (final RouteMetrics metrics : this.routes.values()) {
+			snapshots.add(metrics.snapshot());
+		}
+		final RouteMetricsSnapshot unroutedSnapshot = this.unrouted.snapshot();
+		if (unroutedSnapshot.getRequestCount() > 0) snapshots.add(unroutedSnapshot);
+		Collections.sort(snapshots, new Comparator<RouteMetricsSnapshot>() {
+			@Override
+			public int compare(final RouteMetricsSnapshot a, final RouteMetricsSnapshot b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return snapshots;
+	}
+
+	/**
+	 * Convert a snapshot of the metrics of all the
+	 * routes into JSON data keyed on route names.
+	 * @return The <code>JSONObject</code> data.
+	 * @throws JSONException If conversion failed.
+	 */
+	JSONObject toJSON() throws JSONException {
+		final JSONObject json = new JSONObject();
+		for (final RouteMetricsSnapshot snapshot : this.snapshot()) {
+			json.put(snapshot.getName(), snapshot.toJSON());
+		}
+		return json;
+	}
+}
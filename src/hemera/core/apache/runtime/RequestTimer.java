@@ -0,0 +1,162 @@
+package hemera.core.apache.runtime;
+
+import java.util.Arrays;
+
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * <code>RequestTimer</code> defines an internal unit
+ * that times the phases of handling a single request
+ * and records them in the <code>RouteMetrics</code> of
+ * the request once the response is sent.
+ * <p>
+ * Each phase is timed from the end of the previous
+ * phase, so the phases always add up to the total
+ * latency. A phase entered more than once accumulates
+ * its time, and the time after the last marked phase
+ * is attributed to <code>Serialization</code>.
+ * <p>
+ * A single instance is kept in the context of every
+ * connection and reused for all its requests, which
+ * are handled one at a time. Therefore, this class is
+ * not thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class RequestTimer {
+	/**
+	 * The <code>String</code> context attribute of the
+	 * per-connection <code>RequestTimer</code>.
+	 */
+	static final String ATTRIBUTE = "hemera.request.timer";
+	/**
+	 * The <code>long</code> array of the time spent in
+	 * each phase in nanoseconds. Negative for the phases
+	 * not entered.
+	 */
+	private final long[] phases;
+	/**
+	 * The <code>RouteMetrics</code> of the current
+	 * request. <code>null</code> if the request is not
+	 * recorded.
+	 */
+	private RouteMetrics route;
+	/**
+	 * The <code>long</code> start time in nanoseconds.
+	 */
+	private long start;
+	/**
+	 * The <code>long</code> end time of the last phase
+	 * in nanoseconds.
+	 */
+	private long mark;
+	/**
+	 * The <code>long</code> number of bytes of the
+	 * request entity read so far.
+	 */
+	private long requestBytes;
+
+	/**
+	 * Constructor of <code>RequestTimer</code>.
+	 */
+	private RequestTimer() {
+		this.phases = new long[ERequestPhase.values().length];
+	}
+
+	/**
+	 * Retrieve the timer of the connection with the
+	 * given context, creating and starting one if
+	 * necessary.
+	 * @param context The <code>HttpContext</code> of
+	 * the connection.
+	 * @return The <code>RequestTimer</code>.
+	 */
+	static RequestTimer get(final HttpContext context) {
+		RequestTimer timer = (RequestTimer)context.getAttribute(ATTRIBUTE);
+		if (timer == null) {
+			timer = new RequestTimer();
+			timer.start();
+			context.setAttribute(ATTRIBUTE, timer);
+		}
+		return timer;
+	}
+
+	/**
+	 * Start timing a new request.
+	 */
+	void start() {
+		Arrays.fill(this.phases, -1);
+		this.route = null;
+		this.requestBytes = 0;
+		this.start = System.nanoTime();
+		this.mark = this.start;
+	}
+
+	/**
+	 * Set the route to record the current request in.
+	 * @param route The <code>RouteMetrics</code>.
+	 */
+	void setRoute(final RouteMetrics route) {
+		this.route = route;
+	}
+
+	/**
+	 * Check if the current request is recorded.
+	 * @return <code>true</code> if a route is set.
+	 */
+	boolean isRouted() {
+		return this.route != null;
+	}
+
+	/**
+	 * Suspend the recording of the current request while
+	 * its response is deferred, so the interim response
+	 * of the request is not recorded.
+	 * @return The <code>RouteMetrics</code> to resume
+	 * the recording with. <code>null</code> if the
+	 * request is not recorded.
+	 */
+	RouteMetrics suspend() {
+		final RouteMetrics route = this.route;
+		this.route = null;
+		return route;
+	}
+
+	/**
+	 * Mark the end of the given phase.
+	 * @param phase The <code>ERequestPhase</code> that
+	 * just ended.
+	 */
+	void mark(final ERequestPhase phase) {
+		final long now = System.nanoTime();
+		final int index = phase.ordinal();
+		this.phases[index] = Math.max(0, this.phases[index]) + (now - this.mark);
+		this.mark = now;
+	}
+
+	/**
+	 * Count the given number of bytes read from the
+	 * request entity.
+	 * @param count The <code>long</code> number of
+	 * bytes.
+	 */
+	void addRequestBytes(final long count) {
+		this.requestBytes += count;
+	}
+
+	/**
+	 * Complete the current request and record it in
+	 * its route, if any.
+	 * @param status The <code>int</code> response
+	 * status code.
+	 * @param responseBytes The <code>long</code> number
+	 * of bytes of the response entity sent.
+	 */
+	void complete(final int status, final long responseBytes) {
+		if (this.route == null) return;
+		this.mark(ERequestPhase.Serialization);
+		this.route.record(this.phases, this.mark - this.start, status, this.requestBytes, responseBytes);
+		this.route = null;
+	}
+}
@@ -0,0 +1,48 @@
+package hemera.core.apache.runtime;
+
+import org.apache.http.ProtocolException;
+
+/**
+ * <code>RequestTooLargeException</code> defines the
+ * internal exception thrown when a request exceeds
+ * the maximum request size, as opposed to a malformed
+ * request. It indicates if the request head alone is
+ * too large, so the connection can answer with the
+ * matching status.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class RequestTooLargeException extends ProtocolException {
+	/**
+	 * Serial version ID.
+	 */
+	private static final long serialVersionUID = 1L;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * request head exceeds the maximum size.
+	 */
+	private final boolean head;
+
+	/**
+	 * Constructor of <code>RequestTooLargeException</code>.
+	 * @param message The <code>String</code> message.
+	 * @param head The <code>boolean</code> flag
+	 * indicating if the request head exceeds the
+	 * maximum size.
+	 */
+	RequestTooLargeException(final String message, final boolean head) {
+		super(message);
+		this.head = head;
+	}
+
+	/**
+	 * Check if the request head alone exceeds the
+	 * maximum size.
+	 * @return <code>true</code> if the head is too
+	 * large. <code>false</code> if the body is.
+	 */
+	boolean isHead() {
+		return this.head;
+	}
+}
@@ -0,0 +1,438 @@
+package hemera.core.apache.runtime;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
+
+/**
+ * <code>ResponseCache</code> defines an internal unit
+ * that caches the serialized responses of the processors
+ * implementing <code>ICacheableProcessor</code>. Each
+ * response is keyed on the request path and the sorted
+ * request arguments, and is stored as the encoded bytes
+ * along with its content type and entity tag, so a
+ * cache hit neither invokes the processor nor serializes
+ * any data.
+ * <p>
+ * The cached responses expire after the duration of
+ * their processors. The cache is bounded by the total
+ * size of the cached data, evicting the least recently
+ * used responses once full. The size of a response is
+ * approximated by the length of its data and key. Like
+ * <code>ConcurrentLruCache</code>, the cache is split
+ * into independently locked segments, each holding its
+ * share of the capacity.
+ * <p>
+ * <code>ResponseCache</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.1
+ */
+class ResponseCache {
+	/**
+	 * The <code>int</code> number of segments.
+	 */
+	private static final int SEGMENT_COUNT = 16;
+	/**
+	 * The <code>char</code> array of hexadecimal digits.
+	 */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	/**
+	 * The array of <code>Segment</code>.
+	 */
+	private final Segment[] segments;
+	/**
+	 * The <code>int</code> maximum number of bytes of
+	 * a single cached response.
+	 */
+	private final int maxEntrySize;
+	/**
+	 * The <code>AtomicLong</code> generation that is
+	 * incremented on every invalidation, used to avoid
+	 * caching responses produced before invalidation.
+	 */
+	private final AtomicLong generation;
+	/**
+	 * The <code>AtomicLong</code> number of requests
+	 * answered from the cache.
+	 */
+	private final AtomicLong hits;
+	/**
+	 * The <code>AtomicLong</code> number of cacheable
+	 * requests not found in the cache.
+	 */
+	private final AtomicLong misses;
+
+	/**
+	 * Constructor of <code>ResponseCache</code>.
+	 * @param capacity The <code>long</code> maximum
+	 * total number of bytes of the cached responses.
+	 * @param maxEntrySize The <code>int</code> maximum
+	 * number of bytes of a single cached response.
+	 */
+	ResponseCache(final long capacity, final int maxEntrySize) {
+		final long segmentCapacity = Math.max(1, (capacity + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+		this.segments = new Segment[SEGMENT_COUNT];
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			this.segments[i] = new Segment(segmentCapacity);
+		}
+		this.maxEntrySize = (int)Math.min(maxEntrySize, segmentCapacity);
+		this.generation = new AtomicLong();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+
+	/**
+	 * Build the cache key of the given request path and
+	 * arguments.
+	 * @param path The <code>String</code> request path.
+	 * @param arguments The <code>Map</code> of request
+	 * arguments.
+	 * @return The <code>String</code> key. <code>null</code>
+	 * if any of the arguments is not a string, in which
+	 * case the response cannot be cached.
+	 */
+	static String buildKey(final String path, final Map<String, Object> arguments) {
+		if (arguments.isEmpty()) return path;
+		final List<String> names = new ArrayList<String>(arguments.keySet());
+		Collections.sort(names);
+		final StringBuilder builder = new StringBuilder(path);
+		builder.append('?');
+		for (final String name : names) {
+			final Object value = arguments.get(name);
+			if (!(value instanceof String)) return null;
+			final String str = (String)value;
+			// Length prefixed to avoid ambiguity.
+			builder.append(name.length()).append(':').append(name);
+			builder.append(str.length()).append(':').append(str);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Retrieve the unexpired cached response of the
+	 * given key.
+	 * @param key The <code>String</code> key.
+	 * @return The <code>CachedResponse</code>. <code>null</code>
+	 * if there is no such response or it has expired.
+	 */
+	CachedResponse get(final String key) {
+		final Segment segment = this.segmentFor(key);
+		final CachedResponse response;
+		synchronized (segment) {
+			response = segment.get(key);
+		}
+		if (response != null) this.hits.incrementAndGet();
+		else this.misses.incrementAndGet();
+		return response;
+	}
+
+	/**
+	 * Retrieve the current generation of the cache,
+	 * which must be retrieved before producing the
+	 * response to be cached.
+	 * @return The <code>long</code> generation.
+	 */
+	long getGeneration() {
+		return this.generation.get();
+	}
+
+	/**
+	 * Cache the given encoded response data, unless
+	 * the cache has been invalidated since the given
+	 * generation.
+	 * @param key The <code>String</code> key.
+	 * @param status The <code>int</code> HTTP status
+	 * code.
+	 * @param contentType The <code>String</code>
+	 * content type of the data.
+	 * @param data The <code>byte</code> array of the
+	 * encoded response.
+	 * @param duration The <code>long</code> duration
+	 * to cache the response for in nanoseconds.
+	 * @param generation The <code>long</code> generation
+	 * retrieved before producing the response.
+	 * @return The created <code>CachedResponse</code>,
+	 * which is returned even if it is not cached.
+	 */
+	CachedResponse put(final String key, final int status, final String contentType, final byte[] data, final long duration,
+			final long generation) {
+		final CachedResponse response = new CachedResponse(status, contentType, data, ResponseCache.buildETag(data), System.nanoTime() + duration);
+		final Segment segment = this.segmentFor(key);
+		synchronized (segment) {
+			if (this.generation.get() == generation) segment.put(key, response);
+		}
+		return response;
+	}
+
+	/**
+	 * Create a response of the given encoded data that
+	 * is not cached, but shared with other requests.
+	 * @param status The <code>int</code> HTTP status
+	 * code.
+	 * @param contentType The <code>String</code>
+	 * content type of the data.
+	 * @param data The <code>byte</code> array of the
+	 * encoded response.
+	 * @return The created <code>CachedResponse</code>,
+	 * which only has an entity tag if successful.
+	 */
+	static CachedResponse newResponse(final int status, final String contentType, final byte[] data) {
+		final String etag = (status == HttpStatus.SC_OK) ? ResponseCache.buildETag(data) : null;
+		return new CachedResponse(status, contentType, data, etag, System.nanoTime());
+	}
+
+	/**
+	 * Invalidate all the cached responses.
+	 */
+	void invalidate() {
+		this.generation.incrementAndGet();
+		for (int i = 0; i < this.segments.length; i++) {
+			synchronized (this.segments[i]) {
+				this.segments[i].clear();
+			}
+		}
+	}
+
+	/**
+	 * Retrieve the total size of the cached responses,
+	 * as approximated for the capacity.
+	 * @return The <code>long</code> size in bytes.
+	 */
+	long getSize() {
+		long size = 0;
+		for (int i = 0; i < this.segments.length; i++) {
+			synchronized (this.segments[i]) {
+				size += this.segments[i].size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Retrieve the maximum number of bytes of a single
+	 * cached response.
+	 * @return The <code>int</code> size in bytes.
+	 */
+	int getMaxEntrySize() {
+		return this.maxEntrySize;
+	}
+
+	/**
+	 * Retrieve the number of requests answered from
+	 * the cache.
+	 * @return The <code>long</code> count.
+	 */
+	long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * Retrieve the number of cacheable requests that
+	 * were not found in the cache.
+	 * @return The <code>long</code> count.
+	 */
+	long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Check if the given request is conditional on any
+	 * of its entity tags not matching the given tag. The
+	 * weak comparison is used, so the tags of compressed
+	 * representations also match.
+	 * @param request The <code>HttpRequest</code>.
+	 * @param etag The <code>String</code> entity tag
+	 * of the current response.
+	 * @return <code>true</code> if the client already
+	 * has the current response.
+	 */
+	static boolean isNotModified(final HttpRequest request, final String etag) {
+		final Header[] headers = request.getHeaders("If-None-Match");
+		if (headers.length == 0) return false;
+		final String opaque = ResponseCache.stripWeak(etag);
+		for (final Header header : headers) {
+			for (final String tag : header.getValue().split(",")) {
+				final String trimmed = tag.trim();
+				if (trimmed.equals("*") || ResponseCache.stripWeak(trimmed).equals(opaque)) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove the weak indicator of the given entity tag.
+	 * @param etag The <code>String</code> entity tag.
+	 * @return The <code>String</code> opaque tag.
+	 */
+	private static String stripWeak(final String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+
+	/**
+	 * Build the strong entity tag of the given data,
+	 * which is the quoted digest of the data.
+	 * @param data The <code>byte</code> array data.
+	 * @return The <code>String</code> entity tag.
+	 */
+	private static String buildETag(final byte[] data) {
+		final byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(data);
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		final char[] chars = new char[digest.length*2 + 2];
+		chars[0] = '"';
+		for (int i = 0; i < digest.length; i++) {
+			chars[i*2+1] = HEX[(digest[i] >> 4) & 0x0f];
+			chars[i*2+2] = HEX[digest[i] & 0x0f];
+		}
+		chars[chars.length-1] = '"';
+		return new String(chars);
+	}
+
+	/**
+	 * Retrieve the segment of the given key.
+	 * @param key The <code>String</code> key.
+	 * @return The <code>Segment</code>.
+	 */
+	private Segment segmentFor(final String key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return this.segments[hash & (SEGMENT_COUNT-1)];
+	}
+
+	/**
+	 * <code>CachedResponse</code> defines the immutable
+	 * encoded data of a cached response, which is also
+	 * used to share the responses of coalesced requests.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.1
+	 */
+	static class CachedResponse {
+		/**
+		 * The <code>int</code> HTTP status code.
+		 */
+		final int status;
+		/**
+		 * The <code>String</code> content type of the
+		 * encoded response.
+		 */
+		final String contentType;
+		/**
+		 * The <code>byte</code> array of the encoded
+		 * response.
+		 */
+		final byte[] data;
+		/**
+		 * The quoted <code>String</code> entity tag.
+		 * <code>null</code> if the response is not
+		 * successful.
+		 */
+		final String etag;
+		/**
+		 * The <code>long</code> expiration time in the
+		 * <code>System.nanoTime</code> scale.
+		 */
+		private final long expiration;
+
+		/**
+		 * Constructor of <code>CachedResponse</code>.
+		 * @param status The <code>int</code> HTTP status
+		 * code.
+		 * @param contentType The <code>String</code>
+		 * content type of the data.
+		 * @param data The <code>byte</code> array of the
+		 * encoded response.
+		 * @param etag The quoted <code>String</code>
+		 * entity tag.
+		 * @param expiration The <code>long</code> time
+		 * of expiration.
+		 */
+		private CachedResponse(final int status, final String contentType, final byte[] data, final String etag, final long expiration) {
+			this.status = status;
+			this.contentType = contentType;
+			this.data = data;
+			this.etag = etag;
+			this.expiration = expiration;
+		}
+
+		/**
+		 * Check if the response has expired.
+		 * @param now The <code>long</code> current time
+		 * in the <code>System.nanoTime</code> scale.
+		 * @return <code>true</code> if expired.
+		 */
+		private boolean isExpired(final long now) {
+			return now - this.expiration >= 0;
+		}
+	}
+
+	/**
+	 * <code>Segment</code> defines an access ordered
+	 * map of cached responses bounded by size.
+	 */
+	private static class Segment {
+		/**
+		 * The <code>LinkedHashMap</code> of key to the
+		 * <code>CachedResponse</code>.
+		 */
+		private final LinkedHashMap<String, CachedResponse> map;
+		/**
+		 * The <code>long</code> maximum size in bytes.
+		 */
+		private final long capacity;
+		/**
+		 * The <code>long</code> current size in bytes.
+		 */
+		private long size;
+
+		private Segment(final long capacity) {
+			this.map = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		private CachedResponse get(final String key) {
+			final CachedResponse response = this.map.get(key);
+			if (response == null) return null;
+			if (!response.isExpired(System.nanoTime())) return response;
+			this.map.remove(key);
+			this.size -= Segment.sizeOf(key, response);
+			return null;
+		}
+
+		private void put(final String key, final CachedResponse response) {
+			final CachedResponse replaced = this.map.put(key, response);
+			if (replaced != null) this.size -= Segment.sizeOf(key, replaced);
+			this.size += Segment.sizeOf(key, response);
+			// Evict the least recently used.
+			final Iterator<Map.Entry<String, CachedResponse>> iterator = this.map.entrySet().iterator();
+			while (this.size > this.capacity && iterator.hasNext()) {
+				final Map.Entry<String, CachedResponse> eldest = iterator.next();
+				iterator.remove();
+				this.size -= Segment.sizeOf(eldest.getKey(), eldest.getValue());
+			}
+		}
+
+		private void clear() {
+			this.map.clear();
+			this.size = 0;
+		}
+
+		private static long sizeOf(final String key, final CachedResponse response) {
+			return response.data.length + key.length();
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * <code>ResponseCompression</code> defines an internal
+ * response interceptor that compresses the response
+ * entities with the gzip or deflate content coding,
+ * based on the <code>Accept-Encoding</code> header of
+ * the request. Only textual entities of at least the
+ * threshold size are compressed.
+ * <p>
+ * Since the size of streamed JSON entities is not
+ * known in advance, they are serialized into memory up
+ * to the threshold size first. The ones that turn out
+ * to be smaller are sent uncompressed with the known
+ * length, and the larger ones are compressed as they
+ * are streamed. File responses are never compressed,
+ * so they can be sent straight from the file.
+ * <p>
+ * The number of compressed responses, the size of the
+ * data before and after compression, and the time spent
+ * compressing are recorded to report the compression
+ * ratio and cost. The entity tags of the compressed
+ * responses are marked weak, since the compressed data
+ * differs from the data the tags are computed from.
+ * This interceptor must be placed before
+ * <code>ResponseTransferControl</code> and <code>ResponseContent</code>.
+ * <p>
+ * <code>ResponseCompression</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.1
+ */
+class ResponseCompression implements HttpResponseInterceptor {
+	/**
+	 * The <code>int</code> maximum number of pooled
+	 * deflaters of each format.
+	 */
+	private static final int POOL_SIZE = 64;
+	/**
+	 * The <code>int</code> minimum number of bytes of
+	 * the compressed entities. Negative if compression
+	 * is disabled.
+	 */
+	private final int threshold;
+	/**
+	 * The <code>DeflaterPool</code> of the gzip format.
+	 */
+	private final DeflaterPool gzipPool;
+	/**
+	 * The <code>DeflaterPool</code> of the deflate
+	 * format.
+	 */
+	private final DeflaterPool deflatePool;
+	/**
+	 * The <code>AtomicLong</code> number of compressed
+	 * responses.
+	 */
+	private final AtomicLong responses;
+	/**
+	 * The <code>AtomicLong</code> number of bytes before
+	 * compression.
+	 */
+	private final AtomicLong uncompressedBytes;
+	/**
+	 * The <code>AtomicLong</code> number of bytes after
+	 * compression.
+	 */
+	private final AtomicLong compressedBytes;
+	/**
+	 * The <code>AtomicLong</code> time spent compressing
+	 * in nanoseconds.
+	 */
+	private final AtomicLong time;
+
+	/**
+	 * Constructor of <code>ResponseCompression</code>.
+	 * @param threshold The <code>int</code> minimum
+	 * number of bytes of the compressed entities.
+	 * Negative disables compression.
+	 * @param level The <code>int</code> compression
+	 * level.
+	 */
+	ResponseCompression(final int threshold, final int level) {
+		this.threshold = threshold;
+		this.gzipPool = new DeflaterPool(level, true, POOL_SIZE);
+		this.deflatePool = new DeflaterPool(level, false, POOL_SIZE);
+		this.responses = new AtomicLong();
+		this.uncompressedBytes = new AtomicLong();
+		this.compressedBytes = new AtomicLong();
+		this.time = new AtomicLong();
+	}
+
+	@Override
+	public void process(final HttpResponse response, final HttpContext context) throws HttpException, IOException {
+		if (this.threshold < 0) return;
+		final HttpEntity entity = response.getEntity();
+		if (entity == null || entity.getContentEncoding() != null || !this.isCompressible(entity)) return;
+		// File regions are sent without copying.
+		if (entity instanceof FileRegionEntity) return;
+		final int status = response.getStatusLine().getStatusCode();
+		if (status < HttpStatus.SC_OK || status == HttpStatus.SC_NO_CONTENT || status == HttpStatus.SC_NOT_MODIFIED) return;
+		// The representation depends on the request.
+		response.addHeader("Vary", "Accept-Encoding");
+		final HttpRequest request = (HttpRequest)context.getAttribute(ExecutionContext.HTTP_REQUEST);
+		if (request == null) return;
+		final String coding = this.negotiate(request);
+		if (coding == null) return;
+		// Check the size of the entity.
+		final long length = entity.getContentLength();
+		if (length >= 0 && length < this.threshold) return;
+		else if (length < 0 && entity instanceof JSONEntity) {
+			final byte[] data = ((JSONEntity)entity).toByteArray(this.threshold);
+			if (data != null) {
+				final ByteArrayEntity small = new ByteArrayEntity(data);
+				small.setContentType(entity.getContentType());
+				response.setEntity(small);
+				return;
+			}
+		}
+		response.setEntity(new CompressedEntity(entity, coding.equals("gzip"), this));
+		// Compressed representations are only weakly equal.
+		final Header etag = response.getFirstHeader("ETag");
+		if (etag != null && !etag.getValue().startsWith("W/")) response.setHeader("ETag", "W/" + etag.getValue());
+	}
+
+	/**
+	 * Check if the given entity has a textual content
+	 * type that benefits from compression.
+	 * @param entity The <code>HttpEntity</code> to
+	 * check.
+	 * @return <code>true</code> if the entity should
+	 * be compressed.
+	 */
+	private boolean isCompressible(final HttpEntity entity) {
+		final Header header = entity.getContentType();
+		if (header == null) return false;
+		final String type = header.getValue().toLowerCase(Locale.ENGLISH);
+		return type.startsWith("text/") || type.contains("json") || type.contains("javascript") || type.contains("xml");
+	}
+
+	/**
+	 * Select the preferred content coding accepted by
+	 * the client of the given request.
+	 * @param request The <code>HttpRequest</code>.
+	 * @return The <code>String</code> content coding.
+	 * <code>null</code> if neither gzip nor deflate is
+	 * accepted.
+	 */
+	private String negotiate(final HttpRequest request) {
+		final Header[] headers = request.getHeaders("Accept-Encoding");
+		if (headers.length == 0) return null;
+		float gzip = -1;
+		float deflate = -1;
+		float any = -1;
+		for (final Header header : headers) {
+			for (final HeaderElement element : header.getElements()) {
+				final String name = element.getName().toLowerCase(Locale.ENGLISH);
+				final float quality = this.parseQuality(element.getParameterByName("q"));
+				if (name.equals("gzip") || name.equals("x-gzip")) gzip = Math.max(gzip, quality);
+				else if (name.equals("deflate")) deflate = Math.max(deflate, quality);
+				else if (name.equals("*")) any = Math.max(any, quality);
+			}
+		}
+		// Wildcard applies to the codings not listed.
+		if (gzip < 0) gzip = any;
+		if (deflate < 0) deflate = any;
+		if (gzip > 0 && gzip >= deflate) return "gzip";
+		else if (deflate > 0) return "deflate";
+		return null;
+	}
+
+	/**
+	 * Parse the given quality value parameter.
+	 * @param parameter The <code>NameValuePair</code>
+	 * quality parameter. <code>null</code> if not set.
+	 * @return The <code>float</code> quality value.
+	 * Zero if malformed.
+	 */
+	private float parseQuality(final NameValuePair parameter) {
+		if (parameter == null || parameter.getValue() == null) return 1;
+		try {
+			return Float.parseFloat(parameter.getValue());
+		} catch (final NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Acquire a deflater of the given format.
+	 * @param gzip The <code>boolean</code> flag
+	 * indicating if the gzip format is used.
+	 * @return The <code>Deflater</code> instance.
+	 */
+	Deflater acquireDeflater(final boolean gzip) {
+		return gzip ? this.gzipPool.acquire() : this.deflatePool.acquire();
+	}
+
+	/**
+	 * Release the given deflater of the given format.
+	 * @param deflater The <code>Deflater</code> to
+	 * release.
+	 * @param gzip The <code>boolean</code> flag
+	 * indicating if the gzip format is used.
+	 */
+	void releaseDeflater(final Deflater deflater, final boolean gzip) {
+		if (gzip) this.gzipPool.release(deflater);
+		else this.deflatePool.release(deflater);
+	}
+
+	/**
+	 * Record a completed compression.
+	 * @param uncompressed The <code>long</code> number
+	 * of bytes before compression.
+	 * @param compressed The <code>long</code> number
+	 * of bytes after compression.
+	 * @param nanos The <code>long</code> time spent
+	 * compressing in nanoseconds.
+	 */
+	void record(final long uncompressed, final long compressed, final long nanos) {
+		this.responses.incrementAndGet();
+		this.uncompressedBytes.addAndGet(uncompressed);
+		this.compressedBytes.addAndGet(compressed);
+		this.time.addAndGet(nanos);
+	}
+
+	/**
+	 * Retrieve the number of compressed responses.
+	 * @return The <code>long</code> count.
+	 */
+	long getCompressedCount() {
+		return this.responses.get();
+	}
+
+	/**
+	 * Retrieve the overall ratio of the compressed size
+	 * to the uncompressed size of the responses.
+	 * @return The <code>double</code> ratio. Zero if
+	 * no response has been compressed.
+	 */
+	double getRatio() {
+		final long uncompressed = this.uncompressedBytes.get();
+		if (uncompressed == 0) return 0;
+		return (double)this.compressedBytes.get() / uncompressed;
+	}
+
+	/**
+	 * Retrieve the total time spent compressing.
+	 * @param unit The <code>TimeUnit</code> of the
+	 * returned value.
+	 * @return The <code>long</code> time in the given
+	 * unit.
+	 */
+	long getTime(final TimeUnit unit) {
+		return unit.convert(this.time.get(), TimeUnit.NANOSECONDS);
+	}
+}
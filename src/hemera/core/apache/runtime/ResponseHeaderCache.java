@@ -0,0 +1,112 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * <code>ResponseHeaderCache</code> defines an internal
+ * response interceptor that adds the <code>Date</code>
+ * and <code>Server</code> headers to the responses,
+ * replacing <code>ResponseDate</code> and
+ * <code>ResponseServer</code>.
+ * <p>
+ * The <code>Server</code> header is built once, and the
+ * <code>Date</code> header is only formatted once every
+ * second, which is the resolution of the header value.
+ * All the other responses share the same immutable
+ * header instances without any locking.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class ResponseHeaderCache implements HttpResponseInterceptor {
+	/**
+	 * The <code>Header</code> of the server name.
+	 * <code>null</code> if no server name is sent.
+	 */
+	private final Header server;
+	/**
+	 * The <code>SimpleDateFormat</code> used to format
+	 * the date, guarded by this interceptor.
+	 */
+	private final SimpleDateFormat format;
+	/**
+	 * The <code>CachedDate</code> of the current
+	 * second.
+	 */
+	private volatile CachedDate date;
+
+	/**
+	 * Constructor of <code>ResponseHeaderCache</code>.
+	 * @param server The optional <code>String</code>
+	 * server name. <code>null</code> if the server
+	 * header should not be sent.
+	 */
+	ResponseHeaderCache(final String server) {
+		this.server = (server == null) ? null : new BasicHeader(HTTP.SERVER_HEADER, server);
+		this.format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		this.format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		this.date = new CachedDate(-1, null);
+	}
+
+	@Override
+	public void process(final HttpResponse response, final HttpContext context) throws HttpException, IOException {
+		if (response.getStatusLine().getStatusCode() >= HttpStatus.SC_OK && !response.containsHeader(HTTP.DATE_HEADER)) {
+			response.addHeader(this.getDateHeader());
+		}
+		if (this.server != null && !response.containsHeader(HTTP.SERVER_HEADER)) {
+			response.addHeader(this.server);
+		}
+	}
+
+	/**
+	 * Retrieve the date header of the current second,
+	 * formatting a new one if necessary.
+	 * @return The <code>Header</code> of the date.
+	 */
+	private Header getDateHeader() {
+		final long now = System.currentTimeMillis();
+		final long second = now / 1000;
+		final CachedDate cached = this.date;
+		if (cached.second == second) return cached.header;
+		synchronized (this) {
+			if (this.date.second != second) {
+				final String value = this.format.format(new Date(second * 1000));
+				this.date = new CachedDate(second, new BasicHeader(HTTP.DATE_HEADER, value));
+			}
+			return this.date.header;
+		}
+	}
+
+	/**
+	 * <code>CachedDate</code> defines the immutable
+	 * date header of a particular second.
+	 */
+	private static class CachedDate {
+		/**
+		 * The <code>long</code> epoch second.
+		 */
+		private final long second;
+		/**
+		 * The <code>Header</code> of the date.
+		 */
+		private final Header header;
+
+		private CachedDate(final long second, final Header header) {
+			this.second = second;
+			this.header = header;
+		}
+	}
+}
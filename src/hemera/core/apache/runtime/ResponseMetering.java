@@ -0,0 +1,104 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * <code>ResponseMetering</code> defines an internal
+ * response interceptor that completes the <code>RequestTimer</code>
+ * of the connection once the response is sent. The
+ * responses with entities are completed after their
+ * entities are written, counting the bytes as sent,
+ * and the others are completed immediately. The file
+ * region entities are left unwrapped, so they can be
+ * sent without copying, and complete the timer once
+ * their regions are sent. This
+ * interceptor must be placed last, so the entity is
+ * counted after any encoding.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.1
+ */
+class ResponseMetering implements HttpResponseInterceptor {
+
+	@Override
+	public void process(final HttpResponse response, final HttpContext context) throws HttpException, IOException {
+		final RequestTimer timer = (RequestTimer)context.getAttribute(RequestTimer.ATTRIBUTE);
+		if (timer == null || !timer.isRouted()) return;
+		final int status = response.getStatusLine().getStatusCode();
+		final HttpEntity entity = response.getEntity();
+		final HttpRequest request = (HttpRequest)context.getAttribute(ExecutionContext.HTTP_REQUEST);
+		if (entity == null || !this.hasBody(request, status)) timer.complete(status, 0);
+		else if (entity instanceof FileRegionEntity) ((FileRegionEntity)entity).meter(timer, status);
+		else response.setEntity(new MeteredEntity(entity, timer, status));
+	}
+
+	/**
+	 * Check if the response of the given request and
+	 * status is sent with its entity, following the
+	 * rules of <code>HttpService</code>.
+	 * @param request The <code>HttpRequest</code>.
+	 * @param status The <code>int</code> response
+	 * status code.
+	 * @return <code>true</code> if the entity is sent.
+	 */
+	private boolean hasBody(final HttpRequest request, final int status) {
+		if (request != null && request.getRequestLine().getMethod().equalsIgnoreCase("HEAD")) return false;
+		return status >= HttpStatus.SC_OK && status != HttpStatus.SC_NO_CONTENT && status != HttpStatus.SC_NOT_MODIFIED
+				&& status != HttpStatus.SC_RESET_CONTENT;
+	}
+
+	/**
+	 * <code>MeteredEntity</code> defines the entity that
+	 * completes the timer of its request once written.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.0
+	 */
+	private static class MeteredEntity extends HttpEntityWrapper {
+		/**
+		 * The <code>RequestTimer</code> to complete.
+		 */
+		private final RequestTimer timer;
+		/**
+		 * The <code>int</code> response status code.
+		 */
+		private final int status;
+
+		/**
+		 * Constructor of <code>MeteredEntity</code>.
+		 * @param entity The <code>HttpEntity</code> to
+		 * write.
+		 * @param timer The <code>RequestTimer</code> to
+		 * complete.
+		 * @param status The <code>int</code> response
+		 * status code.
+		 */
+		private MeteredEntity(final HttpEntity entity, final RequestTimer timer, final int status) {
+			super(entity);
+			this.timer = timer;
+			this.status = status;
+		}
+
+		@Override
+		public void writeTo(final OutputStream outstream) throws IOException {
+			final CountingOutputStream counter = new CountingOutputStream(outstream);
+			try {
+				this.wrappedEntity.writeTo(counter);
+			} finally {
+				this.timer.complete(this.status, counter.getByteCount());
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * <code>ResponseTransferControl</code> defines an
+ * internal response interceptor that disables the
+ * chunked transfer coding of response entities sent
+ * to HTTP/1.0 clients, which do not support it. The
+ * <code>HttpService</code> always produces HTTP/1.1
+ * responses, so without this interceptor the chunked
+ * entities would be sent chunked to all clients.
+ * <p>
+ * The entities of unknown length are then delimited
+ * by closing the connection instead. This interceptor
+ * must be placed before <code>ResponseContent</code>.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class ResponseTransferControl implements HttpResponseInterceptor {
+
+	@Override
+	public void process(final HttpResponse response, final HttpContext context) throws HttpException, IOException {
+		final HttpEntity entity = response.getEntity();
+		if (entity == null || !entity.isChunked() || !(entity instanceof AbstractHttpEntity)) return;
+		final HttpRequest request = (HttpRequest)context.getAttribute(ExecutionContext.HTTP_REQUEST);
+		if (request == null) return;
+		if (request.getRequestLine().getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0)) {
+			((AbstractHttpEntity)entity).setChunked(false);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.apache.runtime.fileupload.RequestURIParser;
+import hemera.core.structure.enumn.EHttpMethod;
+import hemera.core.structure.interfaces.IProcessor;
+import hemera.core.structure.interfaces.IResource;
+import hemera.core.structure.interfaces.IResourceRegistry;
+import hemera.core.utility.uri.RESTURI;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * <code>RouteCache</code> defines an internal unit that
+ * caches the resolution of request paths into their
+ * corresponding resources and processors. A resolved
+ * route is keyed on the request method and the path
+ * of the request URI, which excludes the query and
+ * fragment parts.
+ * <p>
+ * The route is keyed on the concrete path rather than
+ * the resource and processor it resolves to, since the
+ * registry and the resources may resolve any element
+ * of the path, and the template a request matches is
+ * not known to the runtime. Parameterized paths such
+ * as <code>/user/1</code> and <code>/user/2</code> are
+ * therefore separate entries. To keep such paths that
+ * are only requested once from evicting the hot routes,
+ * a path is only cached the second time it is resolved
+ * within a recent window, which costs the hot routes
+ * one additional resolution each.
+ * <p>
+ * The cache is bounded and evicts the least recently
+ * used routes. Only successful resolutions are cached,
+ * so routing misses always consult the registry. The
+ * cache must be invalidated whenever the resources
+ * of the registry change.
+ * <p>
+ * <code>RouteCache</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.1
+ */
+class RouteCache {
+	/**
+	 * The <code>IResourceRegistry</code> instance.
+	 */
+	private final IResourceRegistry registry;
+	/**
+	 * The <code>ConcurrentLruCache</code> of route
+	 * key to <code>Route</code>. <code>null</code> if
+	 * caching is disabled.
+	 */
+	private final ConcurrentLruCache<String, Route> cache;
+	/**
+	 * The <code>AtomicIntegerArray</code> of the hash
+	 * codes of the recently resolved keys that are not
+	 * cached yet, indexed by the hash code. <code>null</code>
+	 * if caching is disabled.
+	 */
+	private final AtomicIntegerArray admission;
+
+	/**
+	 * Constructor of <code>RouteCache</code>.
+	 * @param registry The <code>IResourceRegistry</code>
+	 * to resolve routes with.
+	 * @param capacity The <code>int</code> maximum
+	 * number of cached routes. Zero or less disables
+	 * caching.
+	 */
+	RouteCache(final IResourceRegistry registry, final int capacity) {
+		this.registry = registry;
+		this.cache = (capacity > 0) ? new ConcurrentLruCache<String, Route>(capacity) : null;
+		this.admission = (capacity > 0) ? new AtomicIntegerArray(Integer.highestOneBit(Math.max(1, capacity-1)) << 1) : null;
+	}
+
+	/**
+	 * Resolve the route of the given parsed request URI
+	 * and method.
+	 * @param uri The <code>RequestURIParser</code> that
+	 * parsed the request URI.
+	 * @param method The <code>EHttpMethod</code> of
+	 * the request.
+	 * @return The resolved <code>Route</code>.
+	 * <code>null</code> if there is no resource or
+	 * processor for the request.
+	 */
+	Route resolve(final RequestURIParser uri, final EHttpMethod method) {
+		if (this.cache == null) return this.lookup(uri, method);
+		final String key = this.buildKey(uri, method);
+		final Route cached = this.cache.get(key);
+		if (cached != null) return cached;
+		final long generation = this.cache.getGeneration();
+		final Route route = this.lookup(uri, method);
+		if (route != null && this.admit(key)) this.cache.put(key, route, generation);
+		return route;
+	}
+
+	/**
+	 * Invalidate all the cached routes.
+	 */
+	void invalidate() {
+		if (this.cache != null) this.cache.clear();
+	}
+
+	/**
+	 * Check if the resolved route of the given key
+	 * should be cached, which is the case if the key
+	 * has been resolved recently. Otherwise the key is
+	 * recorded, replacing the key recorded in its slot.
+	 * @param key The <code>String</code> key.
+	 * @return <code>true</code> if the route should be
+	 * cached.
+	 */
+	private boolean admit(final String key) {
+		final int hash = key.hashCode();
+		final int index = (hash ^ (hash >>> 16)) & (this.admission.length()-1);
+		if (this.admission.get(index) == hash) return true;
+		this.admission.set(index, hash);
+		return false;
+	}
+
+	/**
+	 * Resolve the route from the registry.
+	 * @param uri The <code>RequestURIParser</code> that
+	 * parsed the request URI.
+	 * @param method The <code>EHttpMethod</code> of
+	 * the request.
+	 * @return The resolved <code>Route</code>.
+	 * <code>null</code> if there is no resource or
+	 * processor for the request.
+	 */
+	@SuppressWarnings("rawtypes")
+	private Route lookup(final RequestURIParser uri, final EHttpMethod method) {
+		final IResource resource = this.registry.getResource(new RESTURI(uri.getURI()), method);
+		if (resource == null) return null;
+		final IProcessor processor = resource.getProcessor(uri.getPathElements(), method);
+		if (processor == null) return null;
+		return new Route(resource, processor);
+	}
+
+	/**
+	 * Build the cache key of the given request URI and
+	 * method.
+	 * @param uri The <code>RequestURIParser</code> that
+	 * parsed the request URI.
+	 * @param method The <code>EHttpMethod</code> of
+	 * the request.
+	 * @return The <code>String</code> key.
+	 */
+	private String buildKey(final RequestURIParser uri, final EHttpMethod method) {
+		final String path = uri.getPath();
+		final StringBuilder builder = new StringBuilder(path.length() + 8);
+		builder.append(method).append(' ').append(path);
+		return builder.toString();
+	}
+
+	/**
+	 * <code>Route</code> defines the immutable resolved
+	 * route of a request path.
+	 */
+	@SuppressWarnings("rawtypes")
+	static class Route {
+		/**
+		 * The <code>IResource</code> instance.
+		 */
+		final IResource resource;
+		/**
+		 * The <code>IProcessor</code> instance.
+		 */
+		final IProcessor processor;
+
+		private Route(final IResource resource, final IProcessor processor) {
+			this.resource = resource;
+			this.processor = processor;
+		}
+	}
+}
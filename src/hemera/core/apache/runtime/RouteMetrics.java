@@ -0,0 +1,116 @@
+package hemera.core.apache.runtime;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <code>RouteMetrics</code> defines an internal unit
+ * that records the latencies of every phase of handling
+ * the requests of a single route, along with the number
+ * of bytes received and sent and the number of responses
+ * of each status code.
+ * <p>
+ * <code>RouteMetrics</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class RouteMetrics {
+	/**
+	 * The <code>int</code> number of distinguished
+	 * status codes.
+	 */
+	private static final int STATUS_COUNT = 600;
+	/**
+	 * The <code>String</code> name of the route.
+	 */
+	private final String name;
+	/**
+	 * The array of <code>LatencyHistogram</code> of
+	 * each <code>ERequestPhase</code>.
+	 */
+	private final LatencyHistogram[] phases;
+	/**
+	 * The <code>LatencyHistogram</code> of the total
+	 * latencies.
+	 */
+	private final LatencyHistogram total;
+	/**
+	 * The <code>AtomicLong</code> number of bytes of
+	 * the request entities.
+	 */
+	private final AtomicLong requestBytes;
+	/**
+	 * The <code>AtomicLong</code> number of bytes of
+	 * the response entities.
+	 */
+	private final AtomicLong responseBytes;
+	/**
+	 * The <code>AtomicLongArray</code> number of
+	 * responses of each status code.
+	 */
+	private final AtomicLongArray statuses;
+
+	/**
+	 * Constructor of <code>RouteMetrics</code>.
+	 * @param name The <code>String</code> name of
+	 * the route.
+	 */
+	RouteMetrics(final String name) {
+		this.name = name;
+		this.phases = new LatencyHistogram[ERequestPhase.values().length];
+		for (int i = 0; i < this.phases.length; i++) {
+			this.phases[i] = new LatencyHistogram();
+		}
+		this.total = new LatencyHistogram();
+		this.requestBytes = new AtomicLong();
+		this.responseBytes = new AtomicLong();
+		this.statuses = new AtomicLongArray(STATUS_COUNT);
+	}
+
+	/**
+	 * Record a completed request.
+	 * @param phaseNanos The <code>long</code> array of
+	 * the time spent in each phase in nanoseconds,
+	 * indexed by the ordinal of <code>ERequestPhase</code>.
+	 * Negative for the phases the request did not go
+	 * through.
+	 * @param totalNanos The <code>long</code> total
+	 * latency in nanoseconds.
+	 * @param status The <code>int</code> response
+	 * status code.
+	 * @param requestBytes The <code>long</code> number
+	 * of bytes of the request entity.
+	 * @param responseBytes The <code>long</code> number
+	 * of bytes of the response entity.
+	 */
+	void record(final long[] phaseNanos, final long totalNanos, final int status, final long requestBytes, final long responseBytes) {
+		for (int i = 0; i < phaseNanos.length; i++) {
+			if (phaseNanos[i] >= 0) this.phases[i].record(phaseNanos[i]);
+		}
+		this.total.record(totalNanos);
+		if (requestBytes > 0) this.requestBytes.addAndGet(requestBytes);
+		if (responseBytes > 0) this.responseBytes.addAndGet(responseBytes);
+		if (status >= 0 && status < STATUS_COUNT) this.statuses.incrementAndGet(status);
+	}
+
+	/**
+	 * Take a snapshot of the recorded metrics.
+	 * @return The <code>RouteMetricsSnapshot</code>.
+	 */
+	RouteMetricsSnapshot snapshot() {
+		final LatencySnapshot[] phaseSnapshots = new LatencySnapshot[this.phases.length];
+		for (int i = 0; i < this.phases.length; i++) {
+			phaseSnapshots[i] = this.phases[i].snapshot();
+		}
+		final Map<Integer, Long> statusCounts = new TreeMap<Integer, Long>();
+		for (int i = 0; i < STATUS_COUNT; i++) {
+			final long count = this.statuses.get(i);
+			if (count > 0) statusCounts.put(i, count);
+		}
+		return new RouteMetricsSnapshot(this.name, phaseSnapshots, this.total.snapshot(), this.requestBytes.get(), this.responseBytes.get(),
+				statusCounts);
+	}
+}
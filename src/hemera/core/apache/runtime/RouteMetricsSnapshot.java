@@ -0,0 +1,161 @@
+package hemera.core.apache.runtime;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <code>RouteMetricsSnapshot</code> defines the immutable
+ * snapshot of the metrics of a single route recorded by
+ * the Apache runtime environments. A route is identified
+ * by the class name of its processor. The requests that
+ * could not be routed are recorded under the name
+ * <code>unrouted</code>.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+public class RouteMetricsSnapshot {
+	/**
+	 * The <code>String</code> name of the route.
+	 */
+	private final String name;
+	/**
+	 * The array of <code>LatencySnapshot</code> of
+	 * each <code>ERequestPhase</code>.
+	 */
+	private final LatencySnapshot[] phases;
+	/**
+	 * The <code>LatencySnapshot</code> of the total
+	 * latencies.
+	 */
+	private final LatencySnapshot total;
+	/**
+	 * The <code>long</code> number of bytes of the
+	 * request entities.
+	 */
+	private final long requestBytes;
+	/**
+	 * The <code>long</code> number of bytes of the
+	 * response entities.
+	 */
+	private final long responseBytes;
+	/**
+	 * The unmodifiable <code>Map</code> of status code
+	 * to the number of responses.
+	 */
+	private final Map<Integer, Long> statusCounts;
+
+	/**
+	 * Constructor of <code>RouteMetricsSnapshot</code>.
+	 * @param name The <code>String</code> name of the
+	 * route.
+	 * @param phases The array of <code>LatencySnapshot</code>
+	 * of each <code>ERequestPhase</code>.
+	 * @param total The <code>LatencySnapshot</code> of
+	 * the total latencies.
+	 * @param requestBytes The <code>long</code> number
+	 * of bytes of the request entities.
+	 * @param responseBytes The <code>long</code> number
+	 * of bytes of the response entities.
+	 * @param statusCounts The <code>Map</code> of status
+	 * code to the number of responses.
+	 */
+	RouteMetricsSnapshot(final String name, final LatencySnapshot[] phases, final LatencySnapshot total, final long requestBytes,
+			final long responseBytes, final Map<Integer, Long> statusCounts) {
+		this.name = name;
+		this.phases = phases;
+		this.total = total;
+		this.requestBytes = requestBytes;
+		this.responseBytes = responseBytes;
+		this.statusCounts = Collections.unmodifiableMap(statusCounts);
+	}
+
+	/**
+	 * Retrieve the name of the route.
+	 * @return The <code>String</code> name.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Retrieve the number of completed requests.
+	 * @return The <code>long</code> count.
+	 */
+	public long getRequestCount() {
+		return this.total.getCount();
+	}
+
+	/**
+	 * Retrieve the number of bytes of the request
+	 * entities as received.
+	 * @return The <code>long</code> number of bytes.
+	 */
+	public long getRequestBytes() {
+		return this.requestBytes;
+	}
+
+	/**
+	 * Retrieve the number of bytes of the response
+	 * entities as sent.
+	 * @return The <code>long</code> number of bytes.
+	 */
+	public long getResponseBytes() {
+		return this.responseBytes;
+	}
+
+	/**
+	 * Retrieve the number of responses of each status
+	 * code.
+	 * @return The unmodifiable <code>Map</code> of the
+	 * status code to the number of responses, ordered
+	 * by the status code.
+	 */
+	public Map<Integer, Long> getStatusCounts() {
+		return this.statusCounts;
+	}
+
+	/**
+	 * Retrieve the latencies of the given phase.
+	 * @param phase The <code>ERequestPhase</code>.
+	 * @return The <code>LatencySnapshot</code>.
+	 */
+	public LatencySnapshot getLatency(final ERequestPhase phase) {
+		return this.phases[phase.ordinal()];
+	}
+
+	/**
+	 * Retrieve the total latencies, from receiving the
+	 * request head to writing the response entity.
+	 * @return The <code>LatencySnapshot</code>.
+	 */
+	public LatencySnapshot getTotalLatency() {
+		return this.total;
+	}
+
+	/**
+	 * Convert the snapshot into JSON data.
+	 * @return The <code>JSONObject</code> data.
+	 * @throws JSONException If conversion failed.
+	 */
+	public JSONObject toJSON() throws JSONException {
+		final JSONObject json = new JSONObject();
+		json.put("requests", this.total.getCount());
+		json.put("requestBytes", this.requestBytes);
+		json.put("responseBytes", this.responseBytes);
+		final JSONObject statuses = new JSONObject();
+		for (final Map.Entry<Integer, Long> entry : this.statusCounts.entrySet()) {
+			statuses.put(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		json.put("statuses", statuses);
+		json.put("total", this.total.toJSON());
+		final ERequestPhase[] values = ERequestPhase.values();
+		for (int i = 0; i < values.length; i++) {
+			if (this.phases[i].getCount() > 0) json.put(values[i].name(), this.phases[i].toJSON());
+		}
+		return json;
+	}
+}
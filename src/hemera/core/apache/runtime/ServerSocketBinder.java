@@ -0,0 +1,205 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+
+import hemera.core.utility.logging.FileLogger;
+
+/**
+ * <code>ServerSocketBinder</code> defines an internal
+ * unit that creates and binds the server sockets the
+ * connection listeners accept connections on.
+ * <p>
+ * When multiple acceptors are requested, the binder
+ * attempts to bind a separate server socket for each
+ * acceptor with the <code>SO_REUSEPORT</code> option,
+ * so the operating system shards the incoming
+ * connections across the acceptors. The option is
+ * located reflectively since it is only available on
+ * newer Java runtimes. If the option is not supported,
+ * a single server socket is bound and shared by all
+ * the acceptors, which still allows the accepting to
+ * proceed concurrently.
+ * <p>
+ * Plain server sockets are created from server socket
+ * channels in blocking mode, so the accepted sockets
+ * provide socket channels that can be multiplexed
+ * while the connections are idle. The channels can
+ * also be bound in non-blocking mode for the reactors
+ * of the non-blocking runtime.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.2
+ */
+class ServerSocketBinder {
+	/**
+	 * The <code>FileLogger</code> instance.
+	 */
+	private final FileLogger logger;
+	/**
+	 * The <code>TlsContext</code> used to create SSL
+	 * server sockets. <code>null</code> if plain
+	 * sockets should be created.
+	 */
+	private final TlsContext tls;
+
+	/**
+	 * Constructor of <code>ServerSocketBinder</code>.
+	 * @param tls The optional <code>TlsContext</code>
+	 * used to create SSL server sockets. <code>null</code>
+	 * if plain sockets should be created.
+	 */
+	ServerSocketBinder(final TlsContext tls) {
+		this.logger = FileLogger.getLogger(this.getClass());
+		this.tls = tls;
+	}
+
+	/**
+	 * Check if the bound sockets are SSL sockets.
+	 * @return <code>true</code> if SSL is used.
+	 */
+	boolean isSecure() {
+		return (this.tls != null);
+	}
+
+	/**
+	 * Bind the server sockets for the given number of
+	 * acceptors on the given port.
+	 * @param port The <code>int</code> port to listen
+	 * on.
+	 * @param backlog The <code>int</code> maximum
+	 * length of the pending connection queue.
+	 * @param acceptors The <code>int</code> number of
+	 * acceptors.
+	 * @return The array of <code>ServerSocket</code>
+	 * with one element per acceptor. The elements may
+	 * refer to the same shared socket.
+	 * @throws IOException If binding failed.
+	 */
+	ServerSocket[] bind(final int port, final int backlog, final int acceptors) throws IOException {
+		final ServerSocket[] sockets = new ServerSocket[acceptors];
+		// Attempt to shard with separate sockets.
+		if (acceptors > 1) {
+			final ServerSocket first = this.newServerSocket();
+			if (this.enableReusePort(first)) {
+				sockets[0] = first;
+				try {
+					first.bind(new InetSocketAddress(port), backlog);
+					for (int i = 1; i < acceptors; i++) {
+						sockets[i] = this.newServerSocket();
+						this.enableReusePort(sockets[i]);
+						sockets[i].bind(new InetSocketAddress(port), backlog);
+					}
+				} catch (final IOException e) {
+					for (int i = 0; i < acceptors; i++) {
+						if (sockets[i] != null) sockets[i].close();
+					}
+					throw e;
+				}
+				this.logger.info("Bound " + acceptors + " sharded server sockets on port " + port);
+				return sockets;
+			}
+			first.close();
+		}
+		// Share a single socket.
+		final ServerSocket socket = this.newServerSocket();
+		try {
+			socket.bind(new InetSocketAddress(port), backlog);
+		} catch (final IOException e) {
+			socket.close();
+			throw e;
+		}
+		for (int i = 0; i < acceptors; i++) sockets[i] = socket;
+		return sockets;
+	}
+
+	/**
+	 * Bind the non-blocking server socket channels for
+	 * the given number of acceptors on the given port.
+	 * This method can only be used by binders of plain
+	 * sockets.
+	 * @param port The <code>int</code> port to listen
+	 * on.
+	 * @param backlog The <code>int</code> maximum
+	 * length of the pending connection queue.
+	 * @param acceptors The <code>int</code> number of
+	 * acceptors.
+	 * @return The array of <code>ServerSocketChannel</code>
+	 * with one element per acceptor if the channels are
+	 * sharded, or a single shared channel otherwise.
+	 * @throws IOException If binding failed.
+	 */
+	ServerSocketChannel[] bindChannels(final int port, final int backlog, final int acceptors) throws IOException {
+		if (this.tls != null) throw new IllegalStateException("Channels cannot be bound with SSL server sockets");
+		final ServerSocket[] sockets = this.bind(port, backlog, acceptors);
+		final int count = (sockets[acceptors-1] == sockets[0]) ? 1 : acceptors;
+		final ServerSocketChannel[] channels = new ServerSocketChannel[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				channels[i] = sockets[i].getChannel();
+				channels[i].configureBlocking(false);
+			}
+		} catch (final IOException e) {
+			for (int i = 0; i < count; i++) sockets[i].close();
+			throw e;
+		}
+		return channels;
+	}
+
+	/**
+	 * Create a new unbound server socket.
+	 * @return The <code>ServerSocket</code> instance.
+	 * @throws IOException If creation failed.
+	 */
+	private ServerSocket newServerSocket() throws IOException {
+		final ServerSocket socket;
+		if (this.tls == null) socket = ServerSocketChannel.open().socket();
+		else socket = this.tls.newServerSocket();
+		socket.setReuseAddress(true);
+		return socket;
+	}
+
+	/**
+	 * Enable the <code>SO_REUSEPORT</code> option on
+	 * the given unbound socket if it is supported.
+	 * @param socket The <code>ServerSocket</code> to
+	 * enable the option on.
+	 * @return <code>true</code> if the option has been
+	 * enabled. <code>false</code> if not supported.
+	 */
+	private boolean enableReusePort(final ServerSocket socket) {
+		try {
+			final Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+			// Channel based sockets.
+			final ServerSocketChannel channel = socket.getChannel();
+			if (channel != null) {
+				if (!channel.supportedOptions().contains(option)) return false;
+				this.setChannelOption(channel, (SocketOption<?>)option);
+				return true;
+			}
+			final Method supported = ServerSocket.class.getMethod("supportedOptions");
+			if (!((Set<?>)supported.invoke(socket)).contains(option)) return false;
+			final Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+			setOption.invoke(socket, option, Boolean.TRUE);
+			return true;
+		} catch (final Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Enable the given boolean option on the channel.
+	 * @param channel The <code>ServerSocketChannel</code>.
+	 * @param option The boolean <code>SocketOption</code>.
+	 * @throws IOException If setting option failed.
+	 */
+	@SuppressWarnings("unchecked")
+	private void setChannelOption(final ServerSocketChannel channel, final SocketOption<?> option) throws IOException {
+		channel.setOption((SocketOption<Boolean>)option, Boolean.TRUE);
+	}
+}
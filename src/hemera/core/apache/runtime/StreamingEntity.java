@@ -0,0 +1,206 @@
+package hemera.core.apache.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <code>StreamingEntity</code> defines an internal HTTP
+ * entity that writes the records of an
+ * <code>IStreamingResponse</code> straight into the
+ * connection output as UTF-8 text, as they are produced
+ * by the response.
+ * <p>
+ * The records are written as the elements of a JSON
+ * array, optionally wrapped with a JSONP callback
+ * function, or as newline delimited JSON. The output is
+ * flushed after the first record, so the client receives
+ * data without waiting for the buffer to fill up.
+ * <p>
+ * Since the records are produced on the fly, the entity
+ * can only be written once, and is sent with the chunked
+ * transfer coding.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class StreamingEntity extends AbstractHttpEntity {
+	/**
+	 * The <code>Charset</code> of the data.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * The <code>String</code> content type of newline
+	 * delimited JSON.
+	 */
+	private static final String NDJSON = "application/x-ndjson; charset=UTF-8";
+	/**
+	 * The <code>IStreamingResponse</code> to write.
+	 */
+	private final IStreamingResponse response;
+	/**
+	 * The optional <code>String</code> JSONP callback
+	 * function name.
+	 */
+	private final String callback;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * entity has been written.
+	 */
+	private boolean consumed;
+
+	/**
+	 * Constructor of <code>StreamingEntity</code>.
+	 * @param response The <code>IStreamingResponse</code>
+	 * to write.
+	 * @param callback The optional <code>String</code>
+	 * JSONP callback function name. <code>null</code>
+	 * if the array should not be wrapped. Delimited
+	 * records are never wrapped.
+	 */
+	StreamingEntity(final IStreamingResponse response, final String callback) {
+		this.response = response;
+		this.callback = response.isDelimited() ? null : callback;
+		this.setContentType(response.isDelimited() ? NDJSON : ContentType.APPLICATION_JSON.toString());
+		this.setChunked(true);
+	}
+
+	@Override
+	public void writeTo(final OutputStream outstream) throws IOException {
+		if (outstream == null) throw new IllegalArgumentException("Output stream may not be null");
+		if (this.consumed) throw new IllegalStateException("Streaming entity has already been written");
+		this.consumed = true;
+		// The entity stream is already buffered.
+		final Writer writer = new OutputStreamWriter(outstream, UTF8);
+		final boolean delimited = this.response.isDelimited();
+		if (this.callback != null) {
+			writer.write(this.callback);
+			writer.write('(');
+		}
+		if (!delimited) writer.write('[');
+		try {
+			this.response.stream(new RecordStream(writer, delimited));
+		} catch (final IOException e) {
+			throw e;
+		} catch (final Exception e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		if (!delimited) writer.write(']');
+		if (this.callback != null) writer.write(')');
+		writer.flush();
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		final ByteArrayOutputStream outstream = new ByteArrayOutputStream();
+		this.writeTo(outstream);
+		return new ByteArrayInputStream(outstream.toByteArray());
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return !this.consumed;
+	}
+
+	/**
+	 * <code>RecordStream</code> defines the record stream
+	 * that writes the records with their separators.
+	 *
+	 * @author Yi Wang (Neakor)
+	 * @version 1.0.0
+	 */
+	private static class RecordStream implements IRecordStream {
+		/**
+		 * The <code>Writer</code> to write to.
+		 */
+		private final Writer writer;
+		/**
+		 * The <code>boolean</code> flag indicating if the
+		 * records are newline delimited.
+		 */
+		private final boolean delimited;
+		/**
+		 * The <code>long</code> number of records written.
+		 */
+		private long count;
+
+		/**
+		 * Constructor of <code>RecordStream</code>.
+		 * @param writer The <code>Writer</code> to write
+		 * to.
+		 * @param delimited The <code>boolean</code> flag
+		 * indicating if the records are newline delimited.
+		 */
+		private RecordStream(final Writer writer, final boolean delimited) {
+			this.writer = writer;
+			this.delimited = delimited;
+		}
+
+		@Override
+		public void write(final JSONObject record) throws IOException {
+			this.begin();
+			try {
+				record.write(this.writer);
+			} catch (final JSONException e) {
+				throw new IOException(e.getMessage());
+			}
+			this.end();
+		}
+
+		@Override
+		public void write(final JSONArray record) throws IOException {
+			this.begin();
+			try {
+				record.write(this.writer);
+			} catch (final JSONException e) {
+				throw new IOException(e.getMessage());
+			}
+			this.end();
+		}
+
+		/**
+		 * Write the separator before the next record.
+		 * @throws IOException If writing failed.
+		 */
+		private void begin() throws IOException {
+			if (!this.delimited && this.count > 0) this.writer.write(',');
+		}
+
+		/**
+		 * Complete the written record, and send the first
+		 * record immediately.
+		 * @throws IOException If writing failed.
+		 */
+		private void end() throws IOException {
+			if (this.delimited) this.writer.write('\n');
+			this.count++;
+			if (this.count == 1) this.writer.flush();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.writer.flush();
+		}
+	}
+}
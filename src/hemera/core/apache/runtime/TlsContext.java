@@ -0,0 +1,264 @@
+package hemera.core.apache.runtime;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import hemera.core.utility.logging.FileLogger;
+
+/**
+ * <code>TlsContext</code> defines an internal unit that
+ * holds the TLS configuration shared by all the secure
+ * connections of a runtime environment, and records
+ * the handshakes of the connections.
+ * <p>
+ * Only the configured protocols and cipher suites that
+ * are supported by the Java runtime are enabled, and
+ * the cipher suites are selected in the configured
+ * order of preference. The server session cache is
+ * sized and timed as configured, so reconnecting
+ * clients can resume their sessions with abbreviated
+ * handshakes instead of full ones.
+ * <p>
+ * The number and latency of the full and the resumed
+ * handshakes are recorded separately, along with the
+ * number of failed handshakes. A handshake is
+ * considered resumed if its session was created before
+ * the handshake started.
+ * <p>
+ * <code>TlsContext</code> is thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class TlsContext {
+	/**
+	 * The <code>String</code> default comma separated
+	 * cipher suites in the order of preference.
+	 */
+	static final String DEFAULT_CIPHER_SUITES = "TLS_AES_128_GCM_SHA256,TLS_AES_256_GCM_SHA384,TLS_CHACHA20_POLY1305_SHA256," +
+			"TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256," +
+			"TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384,TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384," +
+			"TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256,TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256";
+	/**
+	 * The <code>FileLogger</code> instance.
+	 */
+	private final FileLogger logger;
+	/**
+	 * The <code>SSLContext</code> instance.
+	 */
+	private final SSLContext context;
+	/**
+	 * The <code>String</code> array of enabled
+	 * protocols.
+	 */
+	private final String[] protocols;
+	/**
+	 * The <code>String</code> array of enabled cipher
+	 * suites in the order of preference.
+	 */
+	private final String[] cipherSuites;
+	/**
+	 * The <code>LatencyHistogram</code> of the full
+	 * handshakes.
+	 */
+	private final LatencyHistogram fullHandshakes;
+	/**
+	 * The <code>LatencyHistogram</code> of the resumed
+	 * handshakes.
+	 */
+	private final LatencyHistogram resumedHandshakes;
+	/**
+	 * The <code>AtomicLong</code> number of failed
+	 * handshakes.
+	 */
+	private final AtomicLong failedHandshakes;
+
+	/**
+	 * Constructor of <code>TlsContext</code>.
+	 * @param certPath The <code>String</code> path to
+	 * the key store of the certificate.
+	 * @param keyPass The <code>String</code> password
+	 * used to protect the key store and the key.
+	 * @param config The <code>ApacheConfig</code> of
+	 * the runtime environment.
+	 * @throws GeneralSecurityException If initializing
+	 * the key store or the context failed.
+	 * @throws IOException If loading the key store
+	 * failed.
+	 */
+	TlsContext(final String certPath, final String keyPass, final ApacheConfig config) throws GeneralSecurityException, IOException {
+		this.logger = FileLogger.getLogger(this.getClass());
+		// Load the certificate.
+		final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		final char[] keyPassChars = keyPass.toCharArray();
+		final FileInputStream certStream = new FileInputStream(certPath);
+		try {
+			keyStore.load(certStream, keyPassChars);
+		} finally {
+			certStream.close();
+		}
+		final KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyFactory.init(keyStore, keyPassChars);
+		this.context = SSLContext.getInstance("TLS");
+		this.context.init(keyFactory.getKeyManagers(), null, new SecureRandom());
+		// Size the session cache for resumption.
+		final SSLSessionContext sessions = this.context.getServerSessionContext();
+		sessions.setSessionCacheSize(Math.max(0, config.tlsSessionCacheSize));
+		sessions.setSessionTimeout(Math.max(0, config.tlsSessionTimeout));
+		// Select the supported protocols and suites.
+		final SSLParameters supported = this.context.getSupportedSSLParameters();
+		final SSLParameters defaults = this.context.getDefaultSSLParameters();
+		this.protocols = this.select(config.tlsProtocols, supported.getProtocols(), defaults.getProtocols(), "protocols");
+		this.cipherSuites = this.select(config.tlsCipherSuites, supported.getCipherSuites(), defaults.getCipherSuites(), "cipher suites");
+		this.fullHandshakes = new LatencyHistogram();
+		this.resumedHandshakes = new LatencyHistogram();
+		this.failedHandshakes = new AtomicLong();
+		this.logger.info("TLS enabled with protocols " + Arrays.toString(this.protocols) + " and " + this.cipherSuites.length + " cipher suites.");
+	}
+
+	/**
+	 * Select the configured values that are supported,
+	 * keeping the configured order.
+	 * @param configured The <code>String</code> comma
+	 * separated configured values. <code>null</code> to
+	 * use the defaults.
+	 * @param supported The <code>String</code> array of
+	 * supported values.
+	 * @param defaults The <code>String</code> array of
+	 * default values.
+	 * @param type The <code>String</code> type of the
+	 * values for logging.
+	 * @return The <code>String</code> array of selected
+	 * values. The defaults if none is supported.
+	 */
+	private String[] select(final String configured, final String[] supported, final String[] defaults, final String type) {
+		if (configured == null) return defaults;
+		final List<String> supportedList = Arrays.asList(supported);
+		final List<String> selected = new ArrayList<String>();
+		for (final String value : configured.split(",")) {
+			final String trimmed = value.trim();
+			if (supportedList.contains(trimmed)) selected.add(trimmed);
+		}
+		if (selected.isEmpty()) {
+			this.logger.warning("None of the configured TLS " + type + " is supported. Using the defaults instead.");
+			return defaults;
+		}
+		return selected.toArray(new String[selected.size()]);
+	}
+
+	/**
+	 * Create a new unbound server socket that accepts
+	 * secure connections.
+	 * @return The <code>ServerSocket</code> instance.
+	 * @throws IOException If creation failed.
+	 */
+	ServerSocket newServerSocket() throws IOException {
+		final SSLServerSocket socket = (SSLServerSocket)this.context.getServerSocketFactory().createServerSocket();
+		socket.setSSLParameters(this.newParameters());
+		return socket;
+	}
+
+	/**
+	 * Create a new server mode engine for a secure
+	 * connection.
+	 * @return The <code>SSLEngine</code> instance.
+	 */
+	SSLEngine newEngine() {
+		final SSLEngine engine = this.context.createSSLEngine();
+		engine.setUseClientMode(false);
+		engine.setSSLParameters(this.newParameters());
+		return engine;
+	}
+
+	/**
+	 * Create the parameters of the server sockets and
+	 * engines.
+	 * @return The <code>SSLParameters</code> instance.
+	 */
+	private SSLParameters newParameters() {
+		final SSLParameters parameters = new SSLParameters(this.cipherSuites, this.protocols);
+		// Prefer the server order if the runtime allows it.
+		try {
+			final Method method = SSLParameters.class.getMethod("setUseCipherSuitesOrder", boolean.class);
+			method.invoke(parameters, Boolean.TRUE);
+		} catch (final Exception ignore) {}
+		return parameters;
+	}
+
+	/**
+	 * Perform the handshake of the given accepted
+	 * secure socket and record it.
+	 * @param socket The <code>SSLSocket</code>.
+	 * @throws IOException If the handshake failed.
+	 */
+	void handshake(final SSLSocket socket) throws IOException {
+		final long startMillis = System.currentTimeMillis();
+		final long start = System.nanoTime();
+		try {
+			socket.startHandshake();
+		} catch (final IOException e) {
+			this.recordFailure();
+			throw e;
+		}
+		this.record(socket.getSession(), startMillis, System.nanoTime() - start);
+	}
+
+	/**
+	 * Record a completed handshake.
+	 * @param session The <code>SSLSession</code> the
+	 * handshake established.
+	 * @param startMillis The <code>long</code> wall
+	 * clock time in milliseconds the handshake started.
+	 * @param nanos The <code>long</code> latency of the
+	 * handshake in nanoseconds.
+	 */
+	void record(final SSLSession session, final long startMillis, final long nanos) {
+		if (session.getCreationTime() < startMillis) this.resumedHandshakes.record(nanos);
+		else this.fullHandshakes.record(nanos);
+	}
+
+	/**
+	 * Record a failed handshake.
+	 */
+	void recordFailure() {
+		this.failedHandshakes.incrementAndGet();
+	}
+
+	/**
+	 * Take a snapshot of the latencies of the full or
+	 * the resumed handshakes.
+	 * @param resumed The <code>boolean</code> flag
+	 * indicating if the resumed handshakes should be
+	 * reported.
+	 * @return The <code>LatencySnapshot</code>.
+	 */
+	LatencySnapshot getHandshakeLatency(final boolean resumed) {
+		return resumed ? this.resumedHandshakes.snapshot() : this.fullHandshakes.snapshot();
+	}
+
+	/**
+	 * Retrieve the number of failed handshakes.
+	 * @return The <code>long</code> count.
+	 */
+	long getFailedHandshakeCount() {
+		return this.failedHandshakes.get();
+	}
+}
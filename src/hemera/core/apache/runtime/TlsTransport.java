@@ -0,0 +1,364 @@
+package hemera.core.apache.runtime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * <code>TlsTransport</code> defines an internal unit
+ * that secures the non-blocking IO of a single
+ * <code>NioConnection</code> with an <code>SSLEngine</code>.
+ * The received network data is decrypted into the
+ * application data the connection frames requests
+ * from, and the response data is encrypted before
+ * it is written to the channel.
+ * <p>
+ * The handshake is driven by the reads of the owning
+ * reactor and never blocks. The delegated tasks of the
+ * engine, such as the key exchange computations, are
+ * not run by the reactor. Instead, the transport stops
+ * reading until the tasks are run by a worker thread,
+ * after which the reactor resumes the handshake.
+ * <p>
+ * The encrypted data that cannot be written without
+ * blocking is retained until the channel is writable
+ * again, so the connection must keep its interest in
+ * writing while the transport has pending output.
+ * <p>
+ * All the methods except the delegated tasks should
+ * only be invoked by the owning reactor, or by the
+ * worker while the connection is processing.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class TlsTransport {
+	/**
+	 * The empty <code>ByteBuffer</code> wrapped to
+	 * produce the handshake data.
+	 */
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	/**
+	 * The <code>SSLEngine</code> of the connection.
+	 */
+	private final SSLEngine engine;
+	/**
+	 * The <code>TlsContext</code> to record the
+	 * handshake with.
+	 */
+	private final TlsContext tls;
+	/**
+	 * The <code>ByteBuffer</code> of received network
+	 * data not decrypted yet, in write mode.
+	 */
+	private ByteBuffer netIn;
+	/**
+	 * The <code>ByteBuffer</code> of encrypted network
+	 * data not written yet, in write mode.
+	 */
+	private ByteBuffer netOut;
+	/**
+	 * The <code>ByteBuffer</code> of decrypted data not
+	 * consumed yet, in write mode.
+	 */
+	private ByteBuffer appIn;
+	/**
+	 * The <code>long</code> time in nanoseconds when
+	 * the first handshake data was received. Zero if
+	 * no data has been received.
+	 */
+	private long start;
+	/**
+	 * The <code>long</code> wall clock time in
+	 * milliseconds when the first handshake data was
+	 * received.
+	 */
+	private long startMillis;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * initial handshake is finished.
+	 */
+	private volatile boolean handshaken;
+	/**
+	 * The <code>boolean</code> flag indicating if the
+	 * handshake has been recorded as failed.
+	 */
+	private boolean failed;
+
+	/**
+	 * Constructor of <code>TlsTransport</code>.
+	 * @param tls The <code>TlsContext</code> to create
+	 * the engine with and record the handshake with.
+	 */
+	TlsTransport(final TlsContext tls) {
+		this.tls = tls;
+		this.engine = tls.newEngine();
+		final int packetSize = this.engine.getSession().getPacketBufferSize();
+		this.netIn = ByteBuffer.allocate(packetSize);
+		this.netOut = ByteBuffer.allocate(packetSize);
+		this.appIn = ByteBuffer.allocate(this.engine.getSession().getApplicationBufferSize());
+	}
+
+	/**
+	 * Read the available network data from the given
+	 * channel and decrypt it into the given buffer,
+	 * advancing the handshake as necessary.
+	 * @param channel The <code>SocketChannel</code>
+	 * to read from.
+	 * @param dst The <code>ByteBuffer</code> to read
+	 * the decrypted data into.
+	 * @return The <code>int</code> number of bytes
+	 * read into the given buffer. <code>-1</code> if
+	 * the end of stream or the closure of the peer has
+	 * been reached.
+	 * @throws IOException If reading or decrypting
+	 * failed.
+	 */
+	int read(final SocketChannel channel, final ByteBuffer dst) throws IOException {
+		try {
+			while (true) {
+				if (this.appIn.position() > 0) return this.transfer(dst);
+				final HandshakeStatus status = this.engine.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) return 0;
+				if (status == HandshakeStatus.NEED_WRAP) {
+					if (!this.wrapHandshake(channel)) return 0;
+					continue;
+				}
+				this.netIn.flip();
+				final SSLEngineResult result = this.engine.unwrap(this.netIn, this.appIn);
+				this.netIn.compact();
+				this.checkFinished(result);
+				switch (result.getStatus()) {
+				case CLOSED:
+					return -1;
+				case BUFFER_OVERFLOW:
+					if (this.appIn.position() == 0) this.appIn = this.enlarge(this.appIn, this.engine.getSession().getApplicationBufferSize());
+					continue;
+				case BUFFER_UNDERFLOW:
+					break;
+				default:
+					if (result.bytesConsumed() > 0 || result.bytesProduced() > 0) continue;
+					if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK || result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) continue;
+					break;
+				}
+				// Receive more network data.
+				if (!this.netIn.hasRemaining()) this.netIn = this.enlarge(this.netIn, this.engine.getSession().getPacketBufferSize());
+				final int count = channel.read(this.netIn);
+				if (count < 0) return -1;
+				else if (count == 0) return 0;
+				else if (this.start == 0) {
+					this.startMillis = System.currentTimeMillis();
+					this.start = System.nanoTime();
+				}
+			}
+		} catch (final SSLException e) {
+			this.fail();
+			throw e;
+		}
+	}
+
+	/**
+	 * Encrypt the data of the given buffers and write
+	 * it to the given channel, until the channel cannot
+	 * accept more data without blocking.
+	 * @param channel The <code>SocketChannel</code>
+	 * to write to.
+	 * @param srcs The <code>ByteBuffer</code> array
+	 * of the data to write.
+	 * @param offset The <code>int</code> offset of the
+	 * first buffer to write.
+	 * @param length The <code>int</code> number of
+	 * buffers to write.
+	 * @throws IOException If encrypting or writing
+	 * failed.
+	 */
+	void write(final SocketChannel channel, final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+		if (!this.flush(channel)) return;
+		while (true) {
+			final SSLEngineResult result = this.engine.wrap(srcs, offset, length, this.netOut);
+			this.checkFinished(result);
+			switch (result.getStatus()) {
+			case CLOSED:
+				throw new SSLException("Writing to a closed TLS transport.");
+			case BUFFER_OVERFLOW:
+				if (this.netOut.position() == 0) this.netOut = this.enlarge(this.netOut, this.engine.getSession().getPacketBufferSize());
+				else if (!this.flush(channel)) return;
+				continue;
+			default:
+				if (!this.flush(channel) || result.bytesConsumed() == 0) return;
+			}
+		}
+	}
+
+	/**
+	 * Write the pending encrypted data to the given
+	 * channel.
+	 * @param channel The <code>SocketChannel</code>
+	 * to write to.
+	 * @return <code>true</code> if all the pending
+	 * data is written.
+	 * @throws IOException If writing failed.
+	 */
+	boolean flush(final SocketChannel channel) throws IOException {
+		if (this.netOut.position() == 0) return true;
+		this.netOut.flip();
+		try {
+			channel.write(this.netOut);
+		} finally {
+			this.netOut.compact();
+		}
+		return (this.netOut.position() == 0);
+	}
+
+	/**
+	 * Check if there is encrypted data pending to be
+	 * written.
+	 * @return <code>true</code> if there is pending
+	 * output.
+	 */
+	boolean hasPendingOutput() {
+		return (this.netOut.position() > 0);
+	}
+
+	/**
+	 * Check if the initial handshake is still in
+	 * progress.
+	 * @return <code>true</code> if handshaking.
+	 */
+	boolean isHandshaking() {
+		return !this.handshaken;
+	}
+
+	/**
+	 * Check if the engine is waiting for its delegated
+	 * tasks to be run.
+	 * @return <code>true</code> if there are tasks to
+	 * run.
+	 */
+	boolean needsTask() {
+		return (this.engine.getHandshakeStatus() == HandshakeStatus.NEED_TASK);
+	}
+
+	/**
+	 * Run all the delegated tasks of the engine. This
+	 * method is invoked by a worker thread.
+	 */
+	void runTasks() {
+		Runnable task;
+		while ((task = this.engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Close the transport by attempting to send the
+	 * closure notification without blocking. A handshake
+	 * that has not finished is recorded as failed.
+	 * @param channel The <code>SocketChannel</code>
+	 * to write to.
+	 */
+	void close(final SocketChannel channel) {
+		if (!this.handshaken) {
+			if (this.start != 0) this.fail();
+			return;
+		}
+		this.engine.closeOutbound();
+		try {
+			while (!this.engine.isOutboundDone()) {
+				final SSLEngineResult result = this.engine.wrap(EMPTY, this.netOut);
+				if (result.getStatus() != SSLEngineResult.Status.OK || !this.flush(channel)) break;
+			}
+			this.flush(channel);
+		} catch (final IOException ignore) {}
+	}
+
+	/**
+	 * Produce the pending handshake data and write it
+	 * to the given channel.
+	 * @param channel The <code>SocketChannel</code>
+	 * to write to.
+	 * @return <code>true</code> if the handshake can
+	 * proceed. <code>false</code> if the data cannot be
+	 * written without blocking.
+	 * @throws IOException If producing or writing the
+	 * data failed.
+	 */
+	private boolean wrapHandshake(final SocketChannel channel) throws IOException {
+		final SSLEngineResult result = this.engine.wrap(EMPTY, this.netOut);
+		this.checkFinished(result);
+		switch (result.getStatus()) {
+		case CLOSED:
+			this.flush(channel);
+			throw new SSLException("TLS transport closed during handshake.");
+		case BUFFER_OVERFLOW:
+			if (this.netOut.position() == 0) {
+				this.netOut = this.enlarge(this.netOut, this.engine.getSession().getPacketBufferSize());
+				return true;
+			}
+			return this.flush(channel);
+		default:
+			this.flush(channel);
+			return true;
+		}
+	}
+
+	/**
+	 * Record the handshake if the given result finished
+	 * the initial handshake.
+	 * @param result The <code>SSLEngineResult</code>.
+	 */
+	private void checkFinished(final SSLEngineResult result) {
+		if (this.handshaken || result.getHandshakeStatus() != HandshakeStatus.FINISHED) return;
+		this.handshaken = true;
+		this.tls.record(this.engine.getSession(), this.startMillis, System.nanoTime() - this.start);
+	}
+
+	/**
+	 * Record the handshake as failed once.
+	 */
+	private void fail() {
+		if (this.handshaken || this.failed) return;
+		this.failed = true;
+		this.tls.recordFailure();
+	}
+
+	/**
+	 * Move as much of the decrypted data as possible
+	 * into the given buffer.
+	 * @param dst The <code>ByteBuffer</code> to move
+	 * the data into.
+	 * @return The <code>int</code> number of bytes
+	 * moved.
+	 */
+	private int transfer(final ByteBuffer dst) {
+		this.appIn.flip();
+		final int count = Math.min(this.appIn.remaining(), dst.remaining());
+		final int limit = this.appIn.limit();
+		this.appIn.limit(this.appIn.position() + count);
+		dst.put(this.appIn);
+		this.appIn.limit(limit);
+		this.appIn.compact();
+		return count;
+	}
+
+	/**
+	 * Create a larger copy of the given buffer in write
+	 * mode.
+	 * @param buffer The <code>ByteBuffer</code> to
+	 * enlarge.
+	 * @param size The <code>int</code> minimum size to
+	 * add.
+	 * @return The enlarged <code>ByteBuffer</code>.
+	 */
+	private ByteBuffer enlarge(final ByteBuffer buffer, final int size) {
+		final ByteBuffer enlarged = ByteBuffer.allocate(buffer.capacity() + size);
+		buffer.flip();
+		enlarged.put(buffer);
+		return enlarged;
+	}
+}
@@ -5,16 +5,26 @@ import java.io.InputStream;
 
 import org.apache.commons.fileupload.RequestContext;
 import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.NameValuePair;
 
 /**
  * <code>HttpRequestContext</code> defines the internal
  * implementation that provides the request context for
  * a <code>HttpEntityEnclosingRequest</code>.
+ * <p>
+ * Since the file upload request context can only
+ * report content lengths within the <code>int</code>
+ * range, the length of larger bodies is reported as
+ * unknown, and is only available as a <code>long</code>
+ * via <code>contentLength</code>. The character
+ * encoding is the charset parameter of the content
+ * type.
  *
  * @author Yi Wang (Neakor)
- * @version 1.0.0
+ * @version 1.0.2
  */
 class HttpRequestContext implements RequestContext {
 	/**
@@ -47,15 +57,30 @@ class HttpRequestContext implements RequestContext {
 
 	@Override
 	public int getContentLength() {
+		final long length = this.contentLength();
+		return (length > Integer.MAX_VALUE) ? -1 : (int)length;
+	}
+
+	/**
+	 * Retrieve the content length of the request.
+	 * @return The <code>long</code> content length.
+	 * <code>-1</code> if unknown.
+	 */
+	public long contentLength() {
 		if (this.entity == null) return 0;
-		return (int)this.entity.getContentLength();
+		return this.entity.getContentLength();
 	}
 
 	@Override
 	public String getCharacterEncoding() {
 		if (this.entity == null) return null;
-		final Header header = this.entity.getContentEncoding();
+		// The charset parameter of the content type.
+		final Header header = this.entity.getContentType();
 		if (header == null) return null;
-		return header.getValue();
+		final HeaderElement[] elements = header.getElements();
+		if (elements.length == 0) return null;
+		final NameValuePair charset = elements[0].getParameterByName("charset");
+		if (charset == null || charset.getValue() == null || charset.getValue().isEmpty()) return null;
+		return charset.getValue();
 	}
 }
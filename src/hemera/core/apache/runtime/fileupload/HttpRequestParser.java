@@ -1,17 +1,17 @@
 package hemera.core.apache.runtime.fileupload;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUpload;
+import org.apache.commons.fileupload.FileUploadBase.FileUploadIOException;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.util.Streams;
 import org.apache.commons.io.IOUtils;
@@ -19,21 +19,92 @@ import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpRequest;
-import org.apache.http.NameValuePair;
 import org.apache.http.ParseException;
-import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.util.EntityUtils;
 
 /**
  * <code>HttpRequestParser</code> defines the HTTP
  * request utility implementation that provides the
  * support to parse a received HTTP request and
  * retrieve the contained contents data.
+ * <p>
+ * The file parts of multi-part requests are either
+ * read fully into memory as arrays of <code>byte</code>,
+ * or received as <code>UploadedFile</code> handles that
+ * spool large parts to temporary files, based on the
+ * configured spooling threshold. The handles must be
+ * released via <code>release</code> once the request
+ * has been processed.
+ * <p>
+ * URL encoded bodies are decoded incrementally from
+ * the entity stream using the charset specified by
+ * the <code>Content-Type</code> header, defaulting
+ * to UTF-8.
  *
  * @author Yi Wang (Neakor)
- * @version 1.0.1
+ * @version 1.0.4
  */
 public class HttpRequestParser {
+	/**
+	 * The default <code>Charset</code> of URL encoded
+	 * request bodies.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * The <code>long</code> maximum number of bytes of
+	 * a request body. <code>-1</code> if unlimited.
+	 */
+	private final long maxBodySize;
+	/**
+	 * The <code>long</code> maximum number of bytes of
+	 * a single part. <code>-1</code> if unlimited.
+	 */
+	private final long maxPartSize;
+	/**
+	 * The <code>int</code> maximum number of bytes of
+	 * a file part kept in memory. <code>-1</code> if
+	 * file parts are read as <code>byte</code> arrays.
+	 */
+	private final int spoolThreshold;
+	/**
+	 * The <code>File</code> directory of the spooled
+	 * parts. <code>null</code> for the default temporary
+	 * directory.
+	 */
+	private final File spoolDirectory;
+
+	/**
+	 * Constructor of <code>HttpRequestParser</code>.
+	 * <p>
+	 * Creates a parser without any size limits, that
+	 * reads file parts as arrays of <code>byte</code>.
+	 */
+	public HttpRequestParser() {
+		this(-1, -1, -1, null);
+	}
+
+	/**
+	 * Constructor of <code>HttpRequestParser</code>.
+	 * @param maxBodySize The <code>long</code> maximum
+	 * number of bytes of a request body. <code>-1</code>
+	 * if unlimited.
+	 * @param maxPartSize The <code>long</code> maximum
+	 * number of bytes of a single part. <code>-1</code>
+	 * if unlimited.
+	 * @param spoolThreshold The <code>int</code> maximum
+	 * number of bytes of a file part kept in memory
+	 * before it is spooled to a temporary file. <code>-1</code>
+	 * if file parts should be read as <code>byte</code>
+	 * arrays instead of <code>UploadedFile</code>.
+	 * @param spoolDirectory The <code>File</code>
+	 * directory of the spooled parts. <code>null</code>
+	 * for the default temporary directory.
+	 */
+	public HttpRequestParser(final long maxBodySize, final long maxPartSize, final int spoolThreshold, final File spoolDirectory) {
+		this.maxBodySize = maxBodySize;
+		this.maxPartSize = maxPartSize;
+		this.spoolThreshold = spoolThreshold;
+		this.spoolDirectory = spoolDirectory;
+	}
 
 	/**
 	 * Parse out all the arguments including both URI
@@ -52,13 +123,58 @@ public class HttpRequestParser {
 	 * has syntax error.
 	 */
 	public Map<String, Object> parseArguments(final HttpRequest httpRequest) throws FileUploadException, ParseException, IOException, URISyntaxException {
+		final RequestURIParser uriParser = new RequestURIParser();
+		uriParser.parse(httpRequest.getRequestLine().getUri());
+		return this.parseArguments(httpRequest, uriParser);
+	}
+
+	/**
+	 * Parse out all the arguments including both URI
+	 * arguments and body arguments from given request,
+	 * whose URI has already been parsed by the given
+	 * URI parser.
+	 * @param httpRequest The <code>HttpRequest</code>
+	 * to parse.
+	 * @param uriParser The <code>RequestURIParser</code>
+	 * that parsed the request URI.
+	 * @return The <code>Map</code> of arguments with
+	 * <code>String</code> key and <code>Object</code>
+	 * value. The value can either of of type array of
+	 * <code>byte</code>, <code>UploadedFile</code> or
+	 * <code>String</code>.
+	 * @throws FileUploadException If request body
+	 * parsing failed.
+	 * @throws IOException If entity retrieval failed.
+	 * @throws ParseException If entity parsing failed.
+	 * @throws URISyntaxException If given request's URI
+	 * has syntax error.
+	 */
+	public Map<String, Object> parseArguments(final HttpRequest httpRequest, final RequestURIParser uriParser) throws FileUploadException, ParseException, IOException, URISyntaxException {
 		final Map<String, Object> arguments = new HashMap<String, Object>();
-		// Parse request URI arguments.
-		final URI uri = new URI(httpRequest.getRequestLine().getUri());
-		this.parseArguments(uri, "UTF-8", arguments);
-		// Parse request body arguments.
-		this.parseBody(httpRequest, arguments);
-		return arguments;
+		try {
+			// Parse request URI arguments.
+			uriParser.parseQuery(arguments);
+			// Parse request body arguments.
+			this.parseBody(httpRequest, arguments);
+			return arguments;
+		} catch (final Exception e) {
+			this.release(arguments);
+			throw e;
+		}
+	}
+
+	/**
+	 * Release the resources held by the given parsed
+	 * arguments, which deletes the temporary files of
+	 * the spooled file parts.
+	 * @param arguments The <code>Map</code> of parsed
+	 * arguments.
+	 */
+	public void release(final Map<String, Object> arguments) {
+		if (this.spoolThreshold < 0) return;
+		for (final Object value : arguments.values()) {
+			if (value instanceof UploadedFile) ((UploadedFile)value).delete();
+		}
 	}
 	
 	/**
@@ -92,66 +208,17 @@ public class HttpRequestParser {
 			if (contentType.contains("multipart")) {
 				this.parseMultipartBody(entityRequest, store);
 			}
-			// Parse as URL encoded.
+			// Decode as URL encoded directly from the stream.
 			else {
-				final String entityContent = EntityUtils.toString(entity);
-				final Header encodingHeader = entity.getContentEncoding();
-				final String encoding = (encodingHeader==null) ? "UTF-8" : encodingHeader.getValue();
-				this.parseArguments(entityContent, encoding, store);
-				// Note, parsing the entity directly using URLEncodedUtils.parse(Entity)
-				// does not seem to parse properly sometimes.
+				final HttpRequestContext context = new HttpRequestContext(entityRequest);
+				final String encoding = context.getCharacterEncoding();
+				final Charset charset = (encoding==null) ? UTF8 : Charset.forName(encoding);
+				final URLEncodedBodyDecoder decoder = new URLEncodedBodyDecoder(this.maxBodySize);
+				decoder.decode(entity.getContent(), context.contentLength(), charset, store);
 			}
 		}
 	}
 
-	/**
-	 * Parse the given URL encoded URI into arguments
-	 * and store them in the given storage.
-	 * @param uri The <code>URI</code> to be parsed.
-	 * @param encoding The <code>String</code> encoding
-	 * name.
-	 * @param store The storage <code>Map</code> of
-	 * <code>String</code> key to <code>Object</code>
-	 * value pairs of the request contents.
-	 */
-	private void parseArguments(final URI uri, final String encoding, final Map<String, Object> store) {
-		final List<NameValuePair> uriArguments = URLEncodedUtils.parse(uri, encoding);
-		if (uriArguments != null && !uriArguments.isEmpty()) {
-			final int size = uriArguments.size();
-			for (int i = 0; i < size; i++) {
-				final NameValuePair pair = uriArguments.get(i);
-				// May be null since it could be part of the URI.
-				if (pair.getName() != null && pair.getValue() != null) {
-					store.put(pair.getName(), pair.getValue());
-				}
-			}
-		}
-	}
-	
-	/**
-	 * Parse the given URL encoded String into arguments
-	 * and store them in the given storage.
-	 * @param content The <code>String</code> to be parsed.
-	 * @param encoding The <code>String</code> encoding
-	 * name.
-	 * @param store The storage <code>Map</code> of
-	 * <code>String</code> key to <code>Object</code>
-	 * value pairs of the request contents.
-	 */
-	private void parseArguments(final String content, final String encoding, final Map<String, Object> store) {
-		final List<NameValuePair> uriArguments = URLEncodedUtils.parse(content, Charset.forName(encoding));
-		if (uriArguments != null && !uriArguments.isEmpty()) {
-			final int size = uriArguments.size();
-			for (int i = 0; i < size; i++) {
-				final NameValuePair pair = uriArguments.get(i);
-				// May be null since it could be part of the URI.
-				if (pair.getName() != null && pair.getValue() != null) {
-					store.put(pair.getName(), pair.getValue());
-				}
-			}
-		}
-	}
-	
 	/**
 	 * Parse the entity request's body as a multi-part
 	 * entity and store the arguments in given store
@@ -171,22 +238,36 @@ public class HttpRequestParser {
 	private void parseMultipartBody(final HttpEntityEnclosingRequest request, final Map<String, Object> store) throws FileUploadException, IOException {
 		// Parse the request using request context.
 		final FileUpload fileupload = new FileUpload();
+		fileupload.setSizeMax(this.maxBodySize);
+		fileupload.setFileSizeMax(this.maxPartSize);
 		final HttpRequestContext context = new HttpRequestContext(request);
-		final FileItemIterator iterator = fileupload.getItemIterator(context);
-		while (iterator.hasNext()) {
-			final FileItemStream item = iterator.next();
-			final String fieldName = item.getFieldName();
-			final InputStream stream = item.openStream();
-			// Form text data.
-			if (item.isFormField()) {
-				final String value = Streams.asString(stream);
-				store.put(fieldName, value);
-			}
-			// File data.
-			else {
-				final byte[] data = IOUtils.toByteArray(stream);
-				store.put(fieldName, data);
+		try {
+			final FileItemIterator iterator = fileupload.getItemIterator(context);
+			while (iterator.hasNext()) {
+				final FileItemStream item = iterator.next();
+				final String fieldName = item.getFieldName();
+				final InputStream stream = item.openStream();
+				// Form text data.
+				if (item.isFormField()) {
+					final String value = Streams.asString(stream);
+					store.put(fieldName, value);
+				}
+				// File data kept in memory.
+				else if (this.spoolThreshold < 0) {
+					final byte[] data = IOUtils.toByteArray(stream);
+					store.put(fieldName, data);
+				}
+				// File data spooled if large.
+				else {
+					final UploadedFile file = UploadedFile.receive(fieldName, item.getName(), item.getContentType(), stream,
+							this.spoolThreshold, this.spoolDirectory);
+					final Object replaced = store.put(fieldName, file);
+					if (replaced instanceof UploadedFile) ((UploadedFile)replaced).delete();
+				}
 			}
+		} catch (final FileUploadIOException e) {
+			// Size limit exceeded while streaming.
+			throw (FileUploadException)e.getCause();
 		}
 	}
 }
@@ -0,0 +1,252 @@
+package hemera.core.apache.runtime.fileupload;
+
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * <code>RequestURIParser</code> defines the utility
+ * implementation that parses a raw request URI into
+ * its path elements and decoded query arguments in a
+ * single pass, without constructing intermediate
+ * <code>URI</code> or <code>NameValuePair</code>
+ * instances.
+ * <p>
+ * The results are equivalent to parsing the path with
+ * <code>RESTURI</code> and the query with a combination
+ * of <code>URI</code> and <code>URLEncodedUtils</code>.
+ * This includes rejecting the URIs that contain illegal
+ * characters or malformed escapes, treating raw non-ASCII
+ * characters as the bytes received on the wire, and the
+ * last value winning for duplicate argument names.
+ * <p>
+ * A parser instance keeps its working buffers between
+ * parses, so it is intended to be reused for all the
+ * requests of a single connection. It is therefore
+ * not thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+public class RequestURIParser {
+	/**
+	 * The <code>Charset</code> of the query arguments.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * The <code>boolean</code> lookup table of ASCII
+	 * characters that are illegal in any component.
+	 */
+	private static final boolean[] ILLEGAL;
+	static {
+		ILLEGAL = new boolean[128];
+		for (int i = 0; i <= ' '; i++) ILLEGAL[i] = true;
+		ILLEGAL[127] = true;
+		final String illegal = "\"<>\\^`{|}";
+		for (int i = 0; i < illegal.length(); i++) ILLEGAL[illegal.charAt(i)] = true;
+	}
+	/**
+	 * The <code>ArrayList</code> of path elements of
+	 * the last parsed URI.
+	 */
+	private final ArrayList<String> elements;
+	/**
+	 * The <code>byte</code> array buffer used to
+	 * decode escaped arguments.
+	 */
+	private byte[] buffer;
+	/**
+	 * The last parsed <code>String</code> URI.
+	 */
+	private String uri;
+	/**
+	 * The <code>int</code> exclusive end index of the
+	 * path, which is the index of the query separator.
+	 */
+	private int pathEnd;
+	/**
+	 * The <code>int</code> exclusive end index of the
+	 * query component.
+	 */
+	private int queryEnd;
+	/**
+	 * The <code>int</code> index of the first syntax
+	 * error. <code>-1</code> if the URI is valid.
+	 */
+	private int errorIndex;
+	/**
+	 * The <code>String</code> syntax error reason.
+	 */
+	private String errorReason;
+
+	/**
+	 * Constructor of <code>RequestURIParser</code>.
+	 */
+	public RequestURIParser() {
+		this.elements = new ArrayList<String>();
+		this.buffer = new byte[128];
+	}
+
+	/**
+	 * Parse the given raw request URI. The syntax of
+	 * the URI is validated in the same pass, but any
+	 * error is only reported when the query arguments
+	 * are retrieved, so routing a malformed URI still
+	 * behaves the same as for a valid one.
+	 * @param uri The <code>String</code> request URI.
+	 */
+	public void parse(final String uri) {
+		this.uri = uri;
+		this.elements.clear();
+		this.errorIndex = -1;
+		this.errorReason = null;
+		final int length = uri.length();
+		this.pathEnd = length;
+		this.queryEnd = length;
+		// 0 for path, 1 for query and 2 for fragment.
+		int component = 0;
+		int elementStart = 0;
+		for (int i = 0; i < length; i++) {
+			final char c = uri.charAt(i);
+			if (c == '?' && this.pathEnd == length) {
+				// Path elements always end at the query.
+				if (i > elementStart) this.elements.add(uri.substring(elementStart, i));
+				this.pathEnd = i;
+				if (component == 0) component = 1;
+			} else if (c == '/' && this.pathEnd == length) {
+				if (i > elementStart) this.elements.add(uri.substring(elementStart, i));
+				elementStart = i+1;
+			} else if (c == '#' && component < 2) {
+				// Fragment before query means no query.
+				this.queryEnd = (component == 1) ? i : 0;
+				component = 2;
+			} else if (this.errorIndex < 0) {
+				this.validate(uri, i, c, component);
+			}
+		}
+		if (this.pathEnd == length && length > elementStart) this.elements.add(uri.substring(elementStart, length));
+		// Network path without any authority.
+		if (length == 2 && this.errorIndex < 0 && uri.equals("//")) {
+			this.errorIndex = 2;
+			this.errorReason = "Expected authority";
+		}
+	}
+
+	/**
+	 * Retrieve the last parsed request URI.
+	 * @return The <code>String</code> URI.
+	 */
+	public String getURI() {
+		return this.uri;
+	}
+
+	/**
+	 * Retrieve the path of the last parsed request URI,
+	 * which excludes the query.
+	 * @return The <code>String</code> path.
+	 */
+	public String getPath() {
+		return (this.pathEnd == this.uri.length()) ? this.uri : this.uri.substring(0, this.pathEnd);
+	}
+
+	/**
+	 * Retrieve the non-empty path elements of the last
+	 * parsed request URI.
+	 * @return The new <code>String</code> array of the
+	 * path elements.
+	 */
+	public String[] getPathElements() {
+		return this.elements.toArray(new String[this.elements.size()]);
+	}
+
+	/**
+	 * Decode the query arguments of the last parsed
+	 * request URI and store them in the given storage.
+	 * Arguments without a value are ignored.
+	 * @param store The storage <code>Map</code> of
+	 * <code>String</code> key to <code>Object</code>
+	 * value pairs of the request contents.
+	 * @throws URISyntaxException If the request URI
+	 * has syntax error.
+	 */
+	public void parseQuery(final Map<String, Object> store) throws URISyntaxException {
+		if (this.errorIndex >= 0) throw new URISyntaxException(this.uri, this.errorReason, this.errorIndex);
+		int start = this.pathEnd + 1;
+		while (start < this.queryEnd) {
+			int end = this.uri.indexOf('&', start);
+			if (end < 0 || end > this.queryEnd) end = this.queryEnd;
+			final int separator = this.uri.indexOf('=', start);
+			if (separator >= 0 && separator < end) {
+				final String name = this.decode(start, separator);
+				final String value = this.decode(separator+1, end);
+				store.put(name, value);
+			}
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Validate the given character of the URI.
+	 * @param uri The <code>String</code> URI.
+	 * @param index The <code>int</code> index of the
+	 * character.
+	 * @param c The <code>char</code> to validate.
+	 * @param component The <code>int</code> component
+	 * the character belongs to.
+	 */
+	private void validate(final String uri, final int index, final char c, final int component) {
+		final boolean valid;
+		if (c == '%') {
+			valid = (index+2 < uri.length()) && this.isHex(uri.charAt(index+1)) && this.isHex(uri.charAt(index+2));
+			if (!valid) this.errorReason = "Malformed escape pair";
+		} else {
+			if (c < 128) valid = !ILLEGAL[c] && !(component == 0 && (c == '[' || c == ']')) && !(component == 2 && c == '#');
+			else valid = !Character.isSpaceChar(c) && !Character.isISOControl(c);
+			if (!valid) this.errorReason = "Illegal character";
+		}
+		if (!valid) this.errorIndex = index;
+	}
+
+	/**
+	 * Decode the given range of the URI.
+	 * @param start The <code>int</code> start index.
+	 * @param end The <code>int</code> exclusive end
+	 * index.
+	 * @return The decoded <code>String</code>.
+	 */
+	private String decode(final int start, final int end) {
+		// Most arguments do not require decoding.
+		boolean plain = true;
+		for (int i = start; i < end && plain; i++) {
+			final char c = this.uri.charAt(i);
+			plain = (c != '%' && c != '+' && c < 128);
+		}
+		if (plain) return this.uri.substring(start, end);
+		if (this.buffer.length < end-start) this.buffer = new byte[Math.max(end-start, this.buffer.length << 1)];
+		int count = 0;
+		for (int i = start; i < end; i++) {
+			final char c = this.uri.charAt(i);
+			if (c == '+') this.buffer[count] = ' ';
+			else if (c == '%') {
+				this.buffer[count] = (byte)((Character.digit(this.uri.charAt(i+1), 16) << 4) + Character.digit(this.uri.charAt(i+2), 16));
+				i += 2;
+			}
+			// Raw characters are the bytes received.
+			else this.buffer[count] = (byte)c;
+			count++;
+		}
+		return new String(this.buffer, 0, count, UTF8);
+	}
+
+	/**
+	 * Check if the given character is a hexadecimal
+	 * digit.
+	 * @param c The <code>char</code> to check.
+	 * @return <code>true</code> if character is a
+	 * hexadecimal digit.
+	 */
+	private boolean isHex(final char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+}
@@ -0,0 +1,295 @@
+package hemera.core.apache.runtime.fileupload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException;
+
+/**
+ * <code>URLEncodedBodyDecoder</code> defines the internal
+ * implementation that decodes an URL encoded request
+ * body directly from the entity stream into arguments,
+ * without reading the entire body into a single string
+ * first. Only the bytes of the field being decoded are
+ * buffered, so the memory used grows with the size of
+ * the largest field rather than the size of the body.
+ * <p>
+ * The results are equivalent to parsing the body with
+ * <code>URLEncodedUtils</code>. This includes keeping
+ * malformed escapes as literal characters, trimming
+ * the unescaped whitespace around names and values,
+ * ignoring the fields without a name or a value, and
+ * the last value winning for duplicate field names.
+ * Raw bytes are decoded with the given charset along
+ * with the escaped bytes.
+ * <p>
+ * A decoder instance keeps the state of the field being
+ * decoded, so it is not thread-safe.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.0
+ */
+class URLEncodedBodyDecoder {
+	/**
+	 * The <code>long</code> maximum number of bytes of
+	 * the body. <code>-1</code> if unlimited.
+	 */
+	private final long maxSize;
+	/**
+	 * The <code>byte</code> array buffer used to read
+	 * the stream.
+	 */
+	private final byte[] readBuffer;
+	/**
+	 * The <code>byte</code> array of the decoded bytes
+	 * of the current name or value.
+	 */
+	private byte[] token;
+	/**
+	 * The <code>int</code> number of bytes in the token.
+	 */
+	private int length;
+	/**
+	 * The <code>int</code> number of bytes in the token
+	 * excluding the trailing unescaped whitespace.
+	 */
+	private int trimmedLength;
+	/**
+	 * The decoded <code>String</code> name of the field
+	 * if its value is being decoded. <code>null</code>
+	 * if the name is being decoded.
+	 */
+	private String name;
+	/**
+	 * The <code>int</code> number of characters of the
+	 * pending escape including the percent sign. Zero if
+	 * there is no pending escape.
+	 */
+	private int escape;
+	/**
+	 * The <code>int</code> first character following
+	 * the percent sign of the pending escape.
+	 */
+	private int escapeHigh;
+	/**
+	 * The <code>int</code> index of the plus sign of a
+	 * malformed escape followed by whitespace, which is
+	 * decoded as a space if it ends up as the last byte
+	 * after trimming. <code>-1</code> if there is none.
+	 */
+	private int trailingPlus;
+
+	/**
+	 * Constructor of <code>URLEncodedBodyDecoder</code>.
+	 * @param maxSize The <code>long</code> maximum
+	 * number of bytes of the body. <code>-1</code> if
+	 * unlimited.
+	 */
+	URLEncodedBodyDecoder(final long maxSize) {
+		this.maxSize = maxSize;
+		this.readBuffer = new byte[4096];
+		this.token = new byte[128];
+		this.trailingPlus = -1;
+	}
+
+	/**
+	 * Decode the URL encoded body from the given stream
+	 * and store the fields in the given storage.
+	 * @param stream The <code>InputStream</code> of the
+	 * body.
+	 * @param contentLength The <code>long</code> declared
+	 * length of the body. <code>-1</code> if unknown.
+	 * @param charset The <code>Charset</code> of the
+	 * decoded bytes.
+	 * @param store The storage <code>Map</code> of
+	 * <code>String</code> key to <code>Object</code>
+	 * value pairs of the request contents.
+	 * @throws SizeLimitExceededException If the body is
+	 * larger than the maximum size.
+	 * @throws IOException If reading the stream failed.
+	 */
+	void decode(final InputStream stream, final long contentLength, final Charset charset, final Map<String, Object> store)
+			throws SizeLimitExceededException, IOException {
+		// Reject declared oversized bodies without reading.
+		if (this.maxSize >= 0 && contentLength > this.maxSize) this.reject(contentLength);
+		long total = 0;
+		int count;
+		while ((count = stream.read(this.readBuffer)) != -1) {
+			total += count;
+			if (this.maxSize >= 0 && total > this.maxSize) this.reject(total);
+			for (int i = 0; i < count; i++) {
+				this.decode(this.readBuffer[i] & 0xFF, charset, store);
+			}
+		}
+		this.completeField(charset, store);
+	}
+
+	/**
+	 * Decode the given byte of the body.
+	 * @param b The <code>int</code> unsigned byte.
+	 * @param charset The <code>Charset</code> of the
+	 * decoded bytes.
+	 * @param store The storage <code>Map</code> of
+	 * arguments.
+	 */
+	private void decode(final int b, final Charset charset, final Map<String, Object> store) {
+		final boolean delimiter = (b == '&' || (b == '=' && this.name == null));
+		// Escapes never span across delimiters.
+		if (this.escape > 0 && !delimiter) {
+			if (this.escape == 1) {
+				this.escapeHigh = b;
+				this.escape = 2;
+			} else {
+				final int high = Character.digit(this.escapeHigh, 16);
+				final int low = Character.digit(b, 16);
+				if (high >= 0 && low >= 0) {
+					this.append((high << 4) + low);
+				} else {
+					this.append('%');
+					this.appendLiteral(this.escapeHigh);
+					// The escape is incomplete if trimmed.
+					if (this.escapeHigh == '+' && this.isWhitespace(b)) this.trailingPlus = this.length-1;
+					this.appendLiteral(b);
+				}
+				this.escape = 0;
+			}
+			return;
+		}
+		if (this.escape > 0) this.flushEscape();
+		switch (b) {
+		case '&':
+			this.completeField(charset, store);
+			break;
+		case '=':
+			if (this.name != null) this.append(b);
+			else {
+				this.name = this.toString(charset);
+				this.reset();
+			}
+			break;
+		case '%':
+			this.escape = 1;
+			break;
+		case '+':
+			this.append(' ');
+			break;
+		default:
+			// Leading and trailing whitespace is trimmed.
+			if (!this.isWhitespace(b)) this.append(b);
+			else if (this.length > 0) this.appendWhitespace(b);
+			break;
+		}
+	}
+
+	/**
+	 * Complete the current field and store it if it has
+	 * both a name and a value, then reset the state for
+	 * the next field.
+	 * @param charset The <code>Charset</code> of the
+	 * decoded bytes.
+	 * @param store The storage <code>Map</code> of
+	 * arguments.
+	 */
+	private void completeField(final Charset charset, final Map<String, Object> store) {
+		if (this.escape > 0) this.flushEscape();
+		if (this.name != null && this.name.length() > 0) {
+			store.put(this.name, this.toString(charset));
+		}
+		this.name = null;
+		this.reset();
+	}
+
+	/**
+	 * Reset the token for the next name or value.
+	 */
+	private void reset() {
+		this.length = 0;
+		this.trimmedLength = 0;
+		this.trailingPlus = -1;
+	}
+
+	/**
+	 * Append the pending incomplete escape as a literal
+	 * percent sign, followed by the character after it
+	 * decoded as a regular character.
+	 */
+	private void flushEscape() {
+		this.append('%');
+		if (this.escape == 2) {
+			if (this.escapeHigh == '+') this.append(' ');
+			else this.appendLiteral(this.escapeHigh);
+		}
+		this.escape = 0;
+	}
+
+	/**
+	 * Append the given raw byte of a malformed escape
+	 * to the token, which is only significant if it is
+	 * not whitespace.
+	 * @param b The <code>int</code> byte to append.
+	 */
+	private void appendLiteral(final int b) {
+		if (this.isWhitespace(b)) this.appendWhitespace(b);
+		else this.append(b);
+	}
+
+	/**
+	 * Append the given significant byte to the token.
+	 * @param b The <code>int</code> byte to append.
+	 */
+	private void append(final int b) {
+		this.appendWhitespace(b);
+		this.trimmedLength = this.length;
+	}
+
+	/**
+	 * Append the given byte to the token without
+	 * marking it as significant.
+	 * @param b The <code>int</code> byte to append.
+	 */
+	private void appendWhitespace(final int b) {
+		if (this.length == this.token.length) {
+			final byte[] expanded = new byte[this.token.length << 1];
+			System.arraycopy(this.token, 0, expanded, 0, this.length);
+			this.token = expanded;
+		}
+		this.token[this.length] = (byte)b;
+		this.length++;
+	}
+
+	/**
+	 * Decode the trimmed token with the given charset.
+	 * @param charset The <code>Charset</code> of the
+	 * decoded bytes.
+	 * @return The decoded <code>String</code>.
+	 */
+	private String toString(final Charset charset) {
+		if (this.trimmedLength == 0) return "";
+		if (this.trailingPlus >= 0 && this.trailingPlus == this.trimmedLength-1) this.token[this.trailingPlus] = ' ';
+		return new String(this.token, 0, this.trimmedLength, charset);
+	}
+
+	/**
+	 * Check if the given byte is whitespace trimmed
+	 * around names and values.
+	 * @param b The <code>int</code> byte to check.
+	 * @return <code>true</code> if the byte is space,
+	 * tab, carriage return or line feed.
+	 */
+	private boolean isWhitespace(final int b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	/**
+	 * Reject the body for exceeding the maximum size.
+	 * @param size The <code>long</code> number of bytes
+	 * of the body known so far.
+	 * @throws SizeLimitExceededException Always.
+	 */
+	private void reject(final long size) throws SizeLimitExceededException {
+		throw new SizeLimitExceededException("the request was rejected because its size (" + size
+				+ ") exceeds the configured maximum (" + this.maxSize + ")", size, this.maxSize);
+	}
+}
@@ -0,0 +1,274 @@
+package hemera.core.apache.runtime.fileupload;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <code>UploadedFile</code> defines the handle of a
+ * file part received in a multi-part request. The data
+ * of small parts is kept in memory, whereas the data
+ * of larger parts is spooled to a temporary file while
+ * the request is being parsed, so the memory used by
+ * an upload does not grow with its size.
+ * <p>
+ * The data can be read as a stream, or as a read-only
+ * <code>ByteBuffer</code>, which is memory-mapped for
+ * the spooled parts. The temporary file is deleted
+ * once the response of the request has been sent, so
+ * processors must copy the data if it needs to outlive
+ * the request.
+ *
+ * @author Yi Wang (Neakor)
+ * @version 1.0.1
+ */
+public class UploadedFile {
+	/**
+	 * The <code>String</code> form field name.
+	 */
+	private final String fieldName;
+	/**
+	 * The <code>String</code> file name provided by
+	 * the client.
+	 */
+	private final String fileName;
+	/**
+	 * The <code>String</code> content type provided
+	 * by the client.
+	 */
+	private final String contentType;
+	/**
+	 * The <code>byte</code> array data if the part is
+	 * kept in memory.
+	 */
+	private final byte[] data;
+	/**
+	 * The spooled <code>File</code> if the part is
+	 * not kept in memory.
+	 */
+	private final File file;
+	/**
+	 * The <code>long</code> size in bytes.
+	 */
+	private final long size;
+
+	/**
+	 * Constructor of <code>UploadedFile</code>.
+	 * @param fieldName The <code>String</code> form
+	 * field name.
+	 * @param fileName The <code>String</code> file
+	 * name provided by the client.
+	 * @param contentType The <code>String</code>
+	 * content type provided by the client.
+	 * @param data The <code>byte</code> array data if
+	 * the part is kept in memory.
+	 * @param file The spooled <code>File</code> if the
+	 * part is not kept in memory.
+	 * @param size The <code>long</code> size in bytes.
+	 */
+	private UploadedFile(final String fieldName, final String fileName, final String contentType, final byte[] data, final File file,
+			final long size) {
+		this.fieldName = fieldName;
+		this.fileName = fileName;
+		this.contentType = contentType;
+		this.data = data;
+		this.file = file;
+		this.size = size;
+	}
+
+	/**
+	 * Receive the data of a file part from the given
+	 * stream, spooling it to a temporary file once it
+	 * exceeds the given threshold.
+	 * @param fieldName The <code>String</code> form
+	 * field name.
+	 * @param fileName The <code>String</code> file
+	 * name provided by the client.
+	 * @param contentType The <code>String</code>
+	 * content type provided by the client.
+	 * @param stream The <code>InputStream</code> of
+	 * the part data.
+	 * @param threshold The <code>int</code> maximum
+	 * number of bytes kept in memory.
+	 * @param directory The <code>File</code> directory
+	 * of the temporary files. <code>null</code> for the
+	 * default temporary directory.
+	 * @return The <code>UploadedFile</code> handle.
+	 * @throws IOException If reading or spooling the
+	 * data failed.
+	 */
+	static UploadedFile receive(final String fieldName, final String fileName, final String contentType, final InputStream stream,
+			final int threshold, final File directory) throws IOException {
+		final byte[] buffer = new byte[8192];
+		final ByteArrayOutputStream memory = new ByteArrayOutputStream(Math.min(threshold, buffer.length));
+		int count;
+		while ((count = stream.read(buffer)) != -1) {
+			if (memory.size() + count > threshold) {
+				return UploadedFile.spool(fieldName, fileName, contentType, memory, buffer, count, stream, directory);
+			}
+			memory.write(buffer, 0, count);
+		}
+		return new UploadedFile(fieldName, fileName, contentType, memory.toByteArray(), null, memory.size());
+	}
+
+	/**
+	 * Spool the data received so far and the rest of
+	 * the given stream to a temporary file.
+	 * @param fieldName The <code>String</code> form
+	 * field name.
+	 * @param fileName The <code>String</code> file
+	 * name provided by the client.
+	 * @param contentType The <code>String</code>
+	 * content type provided by the client.
+	 * @param memory The <code>ByteArrayOutputStream</code>
+	 * of the data kept in memory so far.
+	 * @param buffer The <code>byte</code> array of the
+	 * last read data.
+	 * @param count The <code>int</code> number of bytes
+	 * in the buffer.
+	 * @param stream The <code>InputStream</code> of
+	 * the rest of the data.
+	 * @param directory The <code>File</code> directory
+	 * of the temporary file.
+	 * @return The <code>UploadedFile</code> handle.
+	 * @throws IOException If spooling failed.
+	 */
+	private static UploadedFile spool(final String fieldName, final String fileName, final String contentType,
+			final ByteArrayOutputStream memory, final byte[] buffer, final int count, final InputStream stream,
+			final File directory) throws IOException {
+		final File file = File.createTempFile("hemera-upload-", ".tmp", directory);
+		final OutputStream outstream = new FileOutputStream(file);
+		try {
+			memory.writeTo(outstream);
+			outstream.write(buffer, 0, count);
+			final long size = memory.size() + count + IOUtils.copyLarge(stream, outstream, buffer);
+			outstream.close();
+			return new UploadedFile(fieldName, fileName, contentType, null, file, size);
+		} catch (final IOException e) {
+			IOUtils.closeQuietly(outstream);
+			file.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open a new stream to read the data.
+	 * @return The <code>InputStream</code> of the data.
+	 * @throws IOException If opening the spooled file
+	 * failed.
+	 */
+	public InputStream openStream() throws IOException {
+		if (this.data != null) return new ByteArrayInputStream(this.data);
+		return new FileInputStream(this.file);
+	}
+
+	/**
+	 * Retrieve a read-only buffer of the data, which is
+	 * memory-mapped if the data has been spooled.
+	 * @return The read-only <code>ByteBuffer</code>.
+	 * @throws IOException If mapping the spooled file
+	 * failed or the data is larger than 2 GB, in which
+	 * case it can only be read as a stream.
+	 */
+	public ByteBuffer map() throws IOException {
+		if (this.data != null) return ByteBuffer.wrap(this.data).asReadOnlyBuffer();
+		if (this.size > Integer.MAX_VALUE) throw new IOException("Uploaded file is too large to be mapped: " + this.size);
+		final RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Read all the data into memory. This should only
+	 * be used for parts known to be small.
+	 * @return The <code>byte</code> array data.
+	 * @throws IOException If reading the spooled file
+	 * failed.
+	 */
+	public byte[] getBytes() throws IOException {
+		if (this.data != null) return this.data;
+		final InputStream stream = this.openStream();
+		try {
+			return IOUtils.toByteArray(stream);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Delete the spooled temporary file if there is one.
+	 * This is invoked by the runtime once the response
+	 * of the request has been sent.
+	 */
+	public void delete() {
+		if (this.file != null) this.file.delete();
+	}
+
+	/**
+	 * Retrieve the form field name.
+	 * @return The <code>String</code> field name.
+	 */
+	public String getFieldName() {
+		return this.fieldName;
+	}
+
+	/**
+	 * Retrieve the file name provided by the client.
+	 * @return The <code>String</code> file name.
+	 * <code>null</code> if not provided.
+	 */
+	public String getFileName() {
+		return this.fileName;
+	}
+
+	/**
+	 * Retrieve the content type provided by the client.
+	 * @return The <code>String</code> content type.
+	 * <code>null</code> if not provided.
+	 */
+	public String getContentType() {
+		return this.contentType;
+	}
+
+	/**
+	 * Retrieve the size of the data.
+	 * @return The <code>long</code> size in bytes.
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Retrieve the spooled temporary file, which can be
+	 * sent as the content of a file response of the
+	 * request.
+	 * @return The <code>File</code>. <code>null</code>
+	 * if the data is kept in memory.
+	 */
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Check if the data is kept in memory.
+	 * @return <code>true</code> if the data is in
+	 * memory. <code>false</code> if it has been spooled
+	 * to a temporary file.
+	 */
+	public boolean isInMemory() {
+		return this.data != null;
+	}
+}
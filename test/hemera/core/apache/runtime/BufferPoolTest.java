@@ -0,0 +1,134 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.apache.test.TestReport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.CharArrayBuffer;
+
+public class BufferPoolTest {
+
+	private final TestReport report = new TestReport("Buffer pool");
+
+	public static void main(String[] args) throws Exception {
+		final BufferPoolTest test = new BufferPoolTest();
+		test.testSizeClasses();
+		test.testReuse();
+		test.testMaxBytes();
+		test.testDoubleRelease();
+		test.testConnections();
+		test.testLeakDetection();
+		test.report.complete();
+	}
+
+	private void testSizeClasses() {
+		final BufferPool pool = new BufferPool(1 << 20, false);
+		this.report.check("smallest class", 512, pool.borrow(1).array().length);
+		this.report.check("exact class", 1024, pool.borrow(1024).array().length);
+		this.report.check("rounded class", 2048, pool.borrow(1025).array().length);
+		this.report.check("largest class", 1 << 20, pool.borrow(1 << 20).array().length);
+		this.report.check("beyond largest class", (1 << 20) + 1, pool.borrow((1 << 20) + 1).array().length);
+	}
+
+	private void testReuse() {
+		final BufferPool pool = new BufferPool(1 << 20, false);
+		final BufferPool.Lease first = pool.borrow(8192);
+		final byte[] array = first.array();
+		pool.release(first);
+		this.report.check("pooled count", 1, pool.getPooledCount());
+		this.report.check("pooled bytes", 8192L, pool.getPooledBytes());
+		final BufferPool.Lease second = pool.borrow(5000);
+		if (second.array() != array) this.report.fail("released buffer not reused");
+		this.report.check("allocations", 1L, pool.getAllocationCount());
+		this.report.check("borrowed count", 1, pool.getBorrowedCount());
+		try {
+			first.array();
+			this.report.fail("released lease still usable");
+		} catch (final IllegalStateException expected) {}
+		// Beyond the largest class is never pooled.
+		pool.release(pool.borrow((1 << 20) + 1));
+		this.report.check("oversized pooled count", 0, pool.getPooledCount());
+	}
+
+	private void testMaxBytes() {
+		final BufferPool pool = new BufferPool(8192, false);
+		final BufferPool.Lease[] leases = new BufferPool.Lease[4];
+		for (int i = 0; i < leases.length; i++) leases[i] = pool.borrow(4096);
+		for (int i = 0; i < leases.length; i++) pool.release(leases[i]);
+		this.report.check("bounded pooled count", 2, pool.getPooledCount());
+		this.report.check("bounded pooled bytes", 8192L, pool.getPooledBytes());
+		this.report.check("borrowed after release", 0, pool.getBorrowedCount());
+		final BufferPool disabled = new BufferPool(0, false);
+		disabled.release(disabled.borrow(512));
+		this.report.check("disabled pooled count", 0, disabled.getPooledCount());
+	}
+
+	private void testDoubleRelease() {
+		final BufferPool pool = new BufferPool(1 << 20, true);
+		final BufferPool.Lease lease = pool.borrow(1024);
+		pool.release(lease);
+		pool.release(lease);
+		this.report.check("double release pooled count", 1, pool.getPooledCount());
+		this.report.check("double release borrowed count", 0, pool.getBorrowedCount());
+		// Both borrowers would otherwise share the buffer.
+		if (pool.borrow(1024).array() == pool.borrow(1024).array()) this.report.fail("buffer lent twice");
+	}
+
+	private void testConnections() throws IOException {
+		final BufferPool pool = new BufferPool(1 << 20, true);
+		final HttpParams params = new BasicHttpParams();
+		final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		try {
+			for (int i = 0; i < 100; i++) {
+				final Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+				final Socket accepted = server.accept();
+				try {
+					final PooledSessionInputBuffer input = new PooledSessionInputBuffer(accepted, 8192, params, pool);
+					final PooledSessionOutputBuffer output = new PooledSessionOutputBuffer(accepted, 8192, params, pool);
+					this.report.check("borrowed per connection", 2, pool.getBorrowedCount());
+					client.getOutputStream().write(("GET /" + i + " HTTP/1.1\r\n").getBytes("US-ASCII"));
+					final CharArrayBuffer line = new CharArrayBuffer(64);
+					input.readLine(line);
+					this.report.check("request line", "GET /" + i + " HTTP/1.1", line.toString());
+					output.writeLine("HTTP/1.1 200 OK");
+					output.flush();
+					input.release();
+					output.release();
+				} finally {
+					accepted.close();
+					client.close();
+				}
+			}
+		} finally {
+			server.close();
+		}
+		// The two buffers of the first connection serve all the others.
+		this.report.check("connection allocations", 2L, pool.getAllocationCount());
+		this.report.check("connection borrowed count", 0, pool.getBorrowedCount());
+		this.report.check("connection pooled count", 2, pool.getPooledCount());
+		this.report.check("connection leaks", 0L, pool.getLeakCount());
+	}
+
+	private void testLeakDetection() throws InterruptedException {
+		final BufferPool pool = new BufferPool(1 << 20, true);
+		BufferPoolTest.leak(pool);
+		this.report.check("outstanding lease", 1, pool.getBorrowedCount());
+		for (int i = 0; i < 50 && pool.getLeakCount() == 0; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		this.report.check("leak count", 1L, pool.getLeakCount());
+		this.report.check("leaked borrowed count", 0, pool.getBorrowedCount());
+		// The leaked buffer is never returned to the pool.
+		this.report.check("leaked pooled count", 0, pool.getPooledCount());
+	}
+
+	private static void leak(final BufferPool pool) {
+		pool.borrow(2048);
+	}
+}
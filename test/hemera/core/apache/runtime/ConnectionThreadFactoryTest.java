@@ -0,0 +1,55 @@
+package hemera.core.apache.runtime;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ConnectionThreadFactoryTest {
+
+	public static void main(String[] args) throws Exception {
+		final int version = ConnectionThreadFactoryTest.getJavaVersion();
+		final ConnectionThreadFactory factory = new ConnectionThreadFactory();
+		if (version < 21) {
+			System.err.println("Java " + version + " does not support virtual threads, virtual=" + factory.isVirtual());
+			if (factory.isVirtual()) System.exit(1);
+			return;
+		}
+		if (!factory.isVirtual()) {
+			System.err.println("Java " + version + " supports virtual threads but the factory creates platform threads.");
+			System.exit(1);
+		}
+		// Verify the threads actually created.
+		final Method isVirtual = Thread.class.getMethod("isVirtual");
+		final AtomicBoolean virtual = new AtomicBoolean();
+		final CountDownLatch latch = new CountDownLatch(1);
+		final Thread thread = factory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					virtual.set((Boolean)isVirtual.invoke(Thread.currentThread()));
+				} catch (final Exception e) {
+					e.printStackTrace();
+				} finally {
+					latch.countDown();
+				}
+			}
+		});
+		thread.start();
+		if (!latch.await(5, TimeUnit.SECONDS) || !virtual.get()) {
+			System.err.println("Thread " + thread.getName() + " is not virtual.");
+			System.exit(1);
+		}
+		if (!thread.getName().startsWith("hemera-connection-")) {
+			System.err.println("Thread " + thread.getName() + " is not named.");
+			System.exit(1);
+		}
+		System.err.println("Java " + version + " created virtual thread " + thread.getName() + ".");
+	}
+
+	private static int getJavaVersion() {
+		final String version = System.getProperty("java.specification.version");
+		if (version.startsWith("1.")) return Integer.parseInt(version.substring(2));
+		return Integer.parseInt(version);
+	}
+}
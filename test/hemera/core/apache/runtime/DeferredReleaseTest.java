@@ -0,0 +1,333 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.apache.runtime.fileupload.UploadedFile;
+import hemera.core.apache.test.TestReport;
+import hemera.core.execution.interfaces.IExceptionHandler;
+import hemera.core.structure.enumn.EHttpMethod;
+import hemera.core.structure.enumn.EHttpStatus;
+import hemera.core.structure.enumn.ERedirectBehavior;
+import hemera.core.structure.interfaces.IProcessor;
+import hemera.core.structure.interfaces.IRequest;
+import hemera.core.structure.interfaces.IResource;
+import hemera.core.structure.interfaces.IResourceRegistry;
+import hemera.core.utility.uri.RESTURI;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.json.JSONObject;
+
+public class DeferredReleaseTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String BOUNDARY = "----HemeraDeferredBoundary";
+
+	private final AdmissionController admission = new AdmissionController(0, 0, 1);
+
+	private final FileProcessor files = new FileProcessor();
+
+	private final StreamProcessor streams = new StreamProcessor();
+
+	private final RequestHandler handler;
+
+	private final TestReport report = new TestReport("Deferred release");
+
+	public static void main(String[] args) throws Exception {
+		final DeferredReleaseTest test = new DeferredReleaseTest();
+		test.testFileResponse();
+		test.testUnsentFileResponse();
+		test.testStreamingResponse();
+		test.report.complete();
+	}
+
+	private DeferredReleaseTest() {
+		final ApacheConfig config = new ApacheConfig();
+		config.responseCacheSize = 0;
+		config.uploadSpoolThreshold = 16;
+		config.uploadSpoolDirectory = System.getProperty("java.io.tmpdir");
+		this.handler = new RequestHandler(new IExceptionHandler() {
+			@Override
+			public void handle(final Exception e) {
+				e.printStackTrace();
+			}
+		}, new Registry(), this.admission, config);
+	}
+
+	private void testFileResponse() throws IOException {
+		final byte[] data = DeferredReleaseTest.newData(64 * 1024);
+		final HttpContext context = new BasicHttpContext();
+		final HttpResponse response = this.handle(data, context);
+		final File spooled = this.files.spooled;
+		if (spooled == null || !spooled.isFile()) {
+			this.report.fail("upload not spooled");
+			return;
+		}
+		this.report.check("in-flight requests before sending", 1, this.admission.getRequestCount());
+		// The connection writes the entity after the handler returns.
+		final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		response.getEntity().writeTo(sent);
+		if (!Arrays.equals(data, sent.toByteArray())) this.report.fail("sent file differs from the upload");
+		RequestHandler.releaseDeferred(context);
+		if (spooled.exists()) this.report.fail("spooled upload not deleted once sent");
+		this.report.check("in-flight requests after sending", 0, this.admission.getRequestCount());
+		RequestHandler.releaseDeferred(context);
+		this.report.check("in-flight requests after second release", 0, this.admission.getRequestCount());
+	}
+
+	private void testUnsentFileResponse() throws IOException {
+		final HttpContext context = new BasicHttpContext();
+		this.handle(DeferredReleaseTest.newData(1024), context);
+		final File spooled = this.files.spooled;
+		if (spooled == null || !spooled.isFile()) this.report.fail("upload deleted before the response is sent");
+		// The response failed before its entity was written.
+		RequestHandler.releaseDeferred(context);
+		if (spooled != null && spooled.exists()) this.report.fail("spooled upload of unsent response not deleted");
+		this.report.check("in-flight requests of unsent response", 0, this.admission.getRequestCount());
+	}
+
+	private void testStreamingResponse() throws IOException {
+		final HttpContext context = new BasicHttpContext();
+		final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		this.handler.handle(new BasicHttpRequest("GET", "/stream/records?name=hemera&count=3", HttpVersion.HTTP_1_1), response, context);
+		if (!(response.getEntity() instanceof StreamingEntity)) {
+			this.report.fail("streaming response not committed as a streaming entity");
+			return;
+		}
+		final StreamRequest request = this.streams.last;
+		this.report.check("in-flight requests before streaming", 1, this.admission.getRequestCount());
+		if (request.resets > 0) this.report.fail("pooled request reset before streaming");
+		// The records read the request while the connection writes the entity.
+		final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		response.getEntity().writeTo(sent);
+		this.report.check("streamed records", "[{\"name\":\"hemera\"},{\"name\":\"hemera\"},{\"name\":\"hemera\"}]", new String(sent.toByteArray(), UTF8));
+		RequestHandler.releaseDeferred(context);
+		this.report.check("pooled request resets after streaming", 1, request.resets);
+		this.report.check("in-flight requests after streaming", 0, this.admission.getRequestCount());
+	}
+
+	private HttpResponse handle(final byte[] data, final HttpContext context) throws IOException {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+				+ "Content-Type: application/octet-stream\r\n\r\n").getBytes(UTF8));
+		body.write(data);
+		body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(UTF8));
+		final String contentType = "multipart/form-data; boundary=" + BOUNDARY;
+		final BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", "/files/echo", HttpVersion.HTTP_1_1);
+		final ByteArrayEntity entity = new ByteArrayEntity(body.toByteArray());
+		entity.setContentType(contentType);
+		request.setEntity(entity);
+		request.setHeader("Content-Type", contentType);
+		request.setHeader("Content-Length", String.valueOf(body.size()));
+		final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		this.handler.handle(request, response, context);
+		this.report.check("status", 200, response.getStatusLine().getStatusCode());
+		if (!(response.getEntity() instanceof FileRegionEntity)) this.report.fail("file response not committed as a file region");
+		return response;
+	}
+
+	private static byte[] newData(final int size) {
+		final byte[] data = new byte[size];
+		for (int i = 0; i < data.length; i++) data[i] = (byte)(i * 31);
+		return data;
+	}
+
+	private class Registry implements IResourceRegistry {
+
+		@Override
+		public IResource getResource(final RESTURI uri, final EHttpMethod method) {
+			return new IResource() {
+				@Override
+				public IProcessor<?, ?> getProcessor(final String[] path, final EHttpMethod method) {
+					if (path[0].equals("stream")) return DeferredReleaseTest.this.streams;
+					return DeferredReleaseTest.this.files;
+				}
+			};
+		}
+	}
+
+	public static class UploadRequest implements IRequest {
+
+		private UploadedFile file;
+
+		@Override
+		public void parse(final String[] path, final Map<String, Object> arguments) throws Exception {
+			this.file = (UploadedFile)arguments.get("file");
+		}
+	}
+
+	public static class FileResponse implements IFileResponse {
+
+		private final File file;
+
+		private FileResponse(final File file) {
+			this.file = file;
+		}
+
+		@Override
+		public File getFile() {
+			return this.file;
+		}
+
+		@Override
+		public long getOffset() {
+			return 0;
+		}
+
+		@Override
+		public long getLength() {
+			return -1;
+		}
+
+		@Override
+		public String getContentType() {
+			return "application/octet-stream";
+		}
+
+		@Override
+		public String getFileName() {
+			return null;
+		}
+
+		@Override
+		public EHttpStatus getStatus() {
+			return EHttpStatus.C200_OK;
+		}
+
+		@Override
+		public JSONObject toJSON() {
+			return null;
+		}
+	}
+
+	// Sends the spooled upload back as the content of the response.
+	private static class FileProcessor implements IProcessor<UploadRequest, FileResponse> {
+
+		private volatile File spooled;
+
+		@Override
+		public FileResponse process(final UploadRequest request) {
+			this.spooled = request.file.getFile();
+			return new FileResponse(this.spooled);
+		}
+
+		@Override
+		public Class<UploadRequest> getRequestType() {
+			return UploadRequest.class;
+		}
+
+		@Override
+		public ERedirectBehavior getRedirectBehavior(final UploadRequest request) {
+			return ERedirectBehavior.Invoke;
+		}
+
+		@Override
+		public String getRedirectURI(final UploadRequest request) {
+			return null;
+		}
+
+		@Override
+		public String getRedirectURI(final UploadRequest request, final FileResponse response) {
+			return null;
+		}
+	}
+
+	public static class StreamRequest implements IResettableRequest {
+
+		private String name;
+
+		private int count;
+
+		private int resets;
+
+		@Override
+		public void parse(final String[] path, final Map<String, Object> arguments) throws Exception {
+			this.name = (String)arguments.get("name");
+			this.count = Integer.parseInt((String)arguments.get("count"));
+		}
+
+		@Override
+		public void reset() {
+			this.name = null;
+			this.count = 0;
+			this.resets++;
+		}
+	}
+
+	// Reads the request for every record, as the records are streamed.
+	public static class StreamResponse implements IStreamingResponse {
+
+		private final StreamRequest request;
+
+		private StreamResponse(final StreamRequest request) {
+			this.request = request;
+		}
+
+		@Override
+		public void stream(final IRecordStream stream) throws Exception {
+			for (int i = 0; i < this.request.count; i++) {
+				final JSONObject record = new JSONObject();
+				record.put("name", this.request.name);
+				stream.write(record);
+			}
+		}
+
+		@Override
+		public boolean isDelimited() {
+			return false;
+		}
+
+		@Override
+		public EHttpStatus getStatus() {
+			return EHttpStatus.C200_OK;
+		}
+
+		@Override
+		public JSONObject toJSON() {
+			return null;
+		}
+	}
+
+	private static class StreamProcessor implements IProcessor<StreamRequest, StreamResponse> {
+
+		private volatile StreamRequest last;
+
+		@Override
+		public StreamResponse process(final StreamRequest request) {
+			this.last = request;
+			return new StreamResponse(request);
+		}
+
+		@Override
+		public Class<StreamRequest> getRequestType() {
+			return StreamRequest.class;
+		}
+
+		@Override
+		public ERedirectBehavior getRedirectBehavior(final StreamRequest request) {
+			return ERedirectBehavior.Invoke;
+		}
+
+		@Override
+		public String getRedirectURI(final StreamRequest request) {
+			return null;
+		}
+
+		@Override
+		public String getRedirectURI(final StreamRequest request, final StreamResponse response) {
+			return null;
+		}
+	}
+}
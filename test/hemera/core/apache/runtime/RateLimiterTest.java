@@ -0,0 +1,168 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.apache.test.TestReport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.util.EntityUtils;
+
+public class RateLimiterTest {
+
+	private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final TestReport report = new TestReport("Rate limiter");
+
+	public static void main(String[] args) throws Exception {
+		final RateLimiterTest test = new RateLimiterTest();
+		test.testParse();
+		test.testMalformed();
+		test.testMatch();
+		test.testBurst();
+		test.testRefill();
+		test.testCapacity();
+		test.testReject();
+		test.report.complete();
+	}
+
+	private void testParse() {
+		final RateLimiter.Limit[] limits = RateLimiter.parse(" api = 10 , /api/admin=2/5,, /=0.5");
+		this.report.check("limit count", 3, limits.length);
+		// Sorted by the descending length of the prefixes.
+		this.report.check("longest prefix", "/api/admin", limits[0].prefix);
+		this.report.check("normalized prefix", "/api", limits[1].prefix);
+		this.report.check("root prefix", "/", limits[2].prefix);
+		this.report.check("rate interval", 100 * MILLISECOND, limits[1].interval);
+		this.report.check("default burst", 10 * limits[1].interval, limits[1].tolerance);
+		this.report.check("explicit burst", 5 * limits[0].interval, limits[0].tolerance);
+		// A rate below one still allows a single request.
+		this.report.check("slow rate interval", TimeUnit.SECONDS.toNanos(2), limits[2].interval);
+		this.report.check("slow rate burst", limits[2].interval, limits[2].tolerance);
+		this.report.check("empty specification", 0, RateLimiter.parse(" , ").length);
+	}
+
+	private void testMalformed() {
+		final String[] specs = {"/api", "=5", " =5", "/api=", "/api=0", "/api=-1", "/api=abc", "/api=NaN", "/api=5/0", "/api=5/0.5",
+				"/api=5/x", "/api=5/", "/a=1,/b"};
+		for (final String spec : specs) {
+			try {
+				RateLimiter.parse(spec);
+				this.report.fail("malformed specification accepted: " + spec);
+			} catch (final IllegalArgumentException expected) {}
+		}
+		try {
+			new RateLimiter("/api=x", null, 100);
+			this.report.fail("malformed specification constructed");
+		} catch (final IllegalArgumentException expected) {}
+	}
+
+	private void testMatch() {
+		final RateLimiter limiter = new RateLimiter("/api=10,/api/admin=1,/static/=5", null, 100);
+		this.report.check("exact prefix", "/api", this.match(limiter, "/api"));
+		this.report.check("segment boundary", "/api", this.match(limiter, "/api/users"));
+		this.report.check("partial segment", null, this.match(limiter, "/apis"));
+		this.report.check("longest prefix", "/api/admin", this.match(limiter, "/api/admin/users"));
+		this.report.check("longer segment", "/api", this.match(limiter, "/api/administrator"));
+		this.report.check("query", "/api", this.match(limiter, "/api?next=/api/admin"));
+		this.report.check("query boundary", "/api/admin", this.match(limiter, "/api/admin?x=1"));
+		this.report.check("fragment", "/api", this.match(limiter, "/api#admin"));
+		this.report.check("absolute URI", "/api/admin", this.match(limiter, "http://localhost:8080/api/admin"));
+		this.report.check("absolute URI without path", null, this.match(limiter, "http://localhost:8080"));
+		this.report.check("relative URI", null, this.match(limiter, "api/admin"));
+		this.report.check("trailing slash prefix", "/static/", this.match(limiter, "/static/app.js"));
+		this.report.check("trailing slash prefix parent", null, this.match(limiter, "/static"));
+		this.report.check("unlimited path", null, this.match(limiter, "/other"));
+		// Empty segments are dropped by the routing as well.
+		this.report.check("leading empty segment", "/api", this.match(limiter, "//api/items"));
+		this.report.check("inner empty segment", "/api/admin", this.match(limiter, "/api//admin/users"));
+		this.report.check("trailing empty segments", "/api", this.match(limiter, "/api///"));
+		this.report.check("absolute URI empty segment", "/api/admin", this.match(limiter, "http://localhost:8080//api//admin"));
+		this.report.check("empty segment partial segment", null, this.match(limiter, "//apis"));
+		this.report.check("empty segment trailing slash prefix", "/static/", this.match(limiter, "/static//app.js"));
+		final RateLimiter nested = new RateLimiter("/a//b=1", null, 100);
+		this.report.check("normalized nested prefix", "/a/b", this.match(nested, "/a//b"));
+		this.report.check("normalized nested prefix single slash", "/a/b", this.match(nested, "/a/b/c"));
+	}
+
+	private void testBurst() {
+		// 10 per second with a burst of 5.
+		final RateLimiter.Limit limit = RateLimiter.parse("/a=10/5")[0];
+		final long start = 1000L * MILLISECOND;
+		final AtomicLong bucket = new AtomicLong(start);
+		for (int i = 0; i < 5; i++) {
+			this.report.check("burst token " + i, 0L, limit.take(bucket, start));
+		}
+		this.report.check("exhausted wait", 100 * MILLISECOND, limit.take(bucket, start));
+		this.report.check("exhausted wait later", 60 * MILLISECOND, limit.take(bucket, start + 40 * MILLISECOND));
+		// A rejected request does not consume a token.
+		this.report.check("arrival time after rejection", start + 500 * MILLISECOND, bucket.get());
+	}
+
+	private void testRefill() {
+		final RateLimiter.Limit limit = RateLimiter.parse("/a=10/5")[0];
+		final long start = 1000L * MILLISECOND;
+		final AtomicLong bucket = new AtomicLong(start);
+		for (int i = 0; i < 5; i++) limit.take(bucket, start);
+		// One token is refilled every interval.
+		final long refilled = start + 100 * MILLISECOND;
+		this.report.check("refilled token", 0L, limit.take(bucket, refilled));
+		this.report.check("refilled exhausted", 100 * MILLISECOND, limit.take(bucket, refilled));
+		this.report.check("partial refill", 0L, limit.take(bucket, start + 250 * MILLISECOND));
+		this.report.check("partial refill exhausted", 50 * MILLISECOND, limit.take(bucket, start + 250 * MILLISECOND));
+		// An idle bucket refills up to the burst only.
+		final long idle = start + TimeUnit.SECONDS.toNanos(60);
+		for (int i = 0; i < 5; i++) {
+			this.report.check("idle burst token " + i, 0L, limit.take(bucket, idle));
+		}
+		if (limit.take(bucket, idle) <= 0) this.report.fail("idle bucket refilled beyond its burst");
+	}
+
+	private void testCapacity() {
+		// 16 stripes of 10 buckets each.
+		final RateLimiter limiter = new RateLimiter("/=1", "X-Api-Key", 160);
+		final BasicHttpContext context = new BasicHttpContext();
+		for (int i = 0; i < 10000; i++) {
+			final BasicHttpRequest request = new BasicHttpRequest("GET", "/", HttpVersion.HTTP_1_1);
+			request.setHeader("X-Api-Key", "key" + i);
+			if (limiter.acquire(request, context) != 0) this.report.fail("new key throttled");
+			if (limiter.getKeyCount() > 160) {
+				this.report.fail("key count " + limiter.getKeyCount() + " exceeds capacity 160");
+				break;
+			}
+		}
+		// The stripes hold at least the eviction sample.
+		final RateLimiter small = new RateLimiter("/=1", "X-Api-Key", 1);
+		for (int i = 0; i < 10000; i++) {
+			final BasicHttpRequest request = new BasicHttpRequest("GET", "/", HttpVersion.HTTP_1_1);
+			request.setHeader("X-Api-Key", "key" + i);
+			small.acquire(request, context);
+		}
+		if (small.getKeyCount() > 16 * 8) this.report.fail("key count " + small.getKeyCount() + " exceeds minimum capacity 128");
+		this.report.check("throttled new keys", 0L, small.getThrottledCount());
+	}
+
+	private void testReject() throws Exception {
+		final RateLimiter limiter = new RateLimiter("/=1", null, 100);
+		final BasicHttpContext context = new BasicHttpContext();
+		final BasicHttpRequest request = new BasicHttpRequest("GET", "/x", HttpVersion.HTTP_1_1);
+		this.report.check("first request", 0L, limiter.acquire(request, context));
+		final long wait = limiter.acquire(request, context);
+		if (wait <= 0) this.report.fail("second request allowed");
+		this.report.check("throttled count", 1L, limiter.getThrottledCount());
+		final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		limiter.reject(response, wait);
+		this.report.check("status", RateLimiter.SC_TOO_MANY_REQUESTS, response.getStatusLine().getStatusCode());
+		this.report.check("retry after", "1", response.getFirstHeader("Retry-After").getValue());
+		this.report.check("body", "{\"http_status\":\"C429_TooManyRequests\",\"exception\":\"Too many requests.\"}", EntityUtils.toString(response.getEntity()));
+	}
+
+	private String match(final RateLimiter limiter, final String uri) {
+		final RateLimiter.Limit limit = limiter.match(uri);
+		return (limit == null) ? null : limit.prefix;
+	}
+}
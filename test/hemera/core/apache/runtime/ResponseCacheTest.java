@@ -0,0 +1,117 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.apache.test.TestReport;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.message.BasicHttpRequest;
+
+public class ResponseCacheTest {
+
+	private static final String JSON = "application/json; charset=UTF-8";
+
+	private final TestReport report = new TestReport("Response cache");
+
+	public static void main(String[] args) throws Exception {
+		final ResponseCacheTest test = new ResponseCacheTest();
+		test.testKey();
+		test.testContentType();
+		test.testExpiration();
+		test.testSizeBound();
+		test.testNotModified();
+		test.testInvalidation();
+		test.report.complete();
+	}
+
+	private void testKey() {
+		final Map<String, Object> first = new HashMap<String, Object>();
+		first.put("b", "2");
+		first.put("a", "1");
+		final Map<String, Object> second = new HashMap<String, Object>();
+		second.put("a", "1");
+		second.put("b", "2");
+		this.report.check("argument order", ResponseCache.buildKey("/p", first), ResponseCache.buildKey("/p", second));
+		second.put("callback", "cb");
+		if (ResponseCache.buildKey("/p", first).equals(ResponseCache.buildKey("/p", second))) this.report.fail("callback not keyed");
+		second.put("file", new byte[0]);
+		if (ResponseCache.buildKey("/p", second) != null) this.report.fail("binary argument keyed");
+	}
+
+	private void testContentType() {
+		final ResponseCache cache = new ResponseCache(1 << 20, 1024);
+		cache.put("/p?cb", 200, JSONEntity.JAVASCRIPT, "cb({})".getBytes(), TimeUnit.SECONDS.toNanos(10), cache.getGeneration());
+		cache.put("/p", 200, JSON, "{}".getBytes(), TimeUnit.SECONDS.toNanos(10), cache.getGeneration());
+		this.report.check("JSONP content type", JSONEntity.JAVASCRIPT, cache.get("/p?cb").contentType);
+		this.report.check("JSON content type", JSON, cache.get("/p").contentType);
+		this.report.check("shared content type", JSONEntity.JAVASCRIPT, ResponseCache.newResponse(200, JSONEntity.JAVASCRIPT, new byte[1]).contentType);
+	}
+
+	private void testExpiration() throws InterruptedException {
+		final ResponseCache cache = new ResponseCache(1 << 20, 1024);
+		cache.put("short", 200, JSON, "{}".getBytes(), TimeUnit.MILLISECONDS.toNanos(50), cache.getGeneration());
+		cache.put("long", 200, JSON, "{}".getBytes(), TimeUnit.SECONDS.toNanos(10), cache.getGeneration());
+		if (cache.get("short") == null) this.report.fail("response expired early");
+		Thread.sleep(100);
+		if (cache.get("short") != null) this.report.fail("expired response retrieved");
+		if (cache.get("long") == null) this.report.fail("unexpired response evicted");
+		this.report.check("expired size", (long)("long".length() + 2), cache.getSize());
+		this.report.check("hits", 2L, cache.getHitCount());
+		this.report.check("misses", 1L, cache.getMissCount());
+	}
+
+	private void testSizeBound() {
+		// Each of the 16 segments holds 1000 bytes.
+		final ResponseCache cache = new ResponseCache(16000, 1000);
+		final byte[] data = new byte[96];
+		for (int i = 0; i < 10000; i++) {
+			cache.put("k" + i, 200, JSON, data, TimeUnit.SECONDS.toNanos(10), cache.getGeneration());
+			if (cache.getSize() > 16000) {
+				this.report.fail("size " + cache.getSize() + " exceeds capacity");
+				break;
+			}
+		}
+		// The recently used response survives the insertions into its segment.
+		cache.put("hot", 200, JSON, data, TimeUnit.SECONDS.toNanos(10), cache.getGeneration());
+		for (int i = 0; i < 10000; i++) {
+			if (cache.get("hot") == null) {
+				this.report.fail("recently used response evicted after " + i + " insertions");
+				break;
+			}
+			cache.put("c" + i, 200, JSON, data, TimeUnit.SECONDS.toNanos(10), cache.getGeneration());
+		}
+		if (cache.getMaxEntrySize() > 1000) this.report.fail("entry size exceeds segment capacity");
+	}
+
+	private void testNotModified() {
+		final ResponseCache cache = new ResponseCache(1 << 20, 1024);
+		final String etag = cache.put("/p", 200, JSON, "{\"a\":1}".getBytes(), TimeUnit.SECONDS.toNanos(10), cache.getGeneration()).etag;
+		if (etag == null || !etag.startsWith("\"")) this.report.fail("invalid entity tag " + etag);
+		final String other = ResponseCache.newResponse(200, JSON, "{\"a\":2}".getBytes()).etag;
+		if (etag.equals(other)) this.report.fail("entity tag does not depend on data");
+		if (ResponseCache.newResponse(500, JSON, new byte[1]).etag != null) this.report.fail("error response tagged");
+		this.report.check("no condition", false, ResponseCache.isNotModified(ResponseCacheTest.newRequest(null), etag));
+		this.report.check("matching tag", true, ResponseCache.isNotModified(ResponseCacheTest.newRequest(etag), etag));
+		this.report.check("weak tag", true, ResponseCache.isNotModified(ResponseCacheTest.newRequest("W/" + etag), etag));
+		this.report.check("tag list", true, ResponseCache.isNotModified(ResponseCacheTest.newRequest(other + ", " + etag), etag));
+		this.report.check("wildcard", true, ResponseCache.isNotModified(ResponseCacheTest.newRequest("*"), etag));
+		this.report.check("other tag", false, ResponseCache.isNotModified(ResponseCacheTest.newRequest(other), etag));
+	}
+
+	private void testInvalidation() {
+		final ResponseCache cache = new ResponseCache(1 << 20, 1024);
+		final long generation = cache.getGeneration();
+		cache.put("/p", 200, JSON, "{}".getBytes(), TimeUnit.SECONDS.toNanos(10), generation);
+		cache.invalidate();
+		if (cache.get("/p") != null) this.report.fail("invalidated response retrieved");
+		cache.put("/p", 200, JSON, "{}".getBytes(), TimeUnit.SECONDS.toNanos(10), generation);
+		if (cache.get("/p") != null) this.report.fail("response produced before invalidation cached");
+	}
+
+	private static BasicHttpRequest newRequest(final String ifNoneMatch) {
+		final BasicHttpRequest request = new BasicHttpRequest("GET", "/p");
+		if (ifNoneMatch != null) request.setHeader("If-None-Match", ifNoneMatch);
+		return request;
+	}
+}
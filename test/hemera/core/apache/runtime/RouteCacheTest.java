@@ -0,0 +1,125 @@
+package hemera.core.apache.runtime;
+
+import hemera.core.apache.runtime.fileupload.RequestURIParser;
+import hemera.core.apache.test.TestReport;
+import hemera.core.structure.enumn.EHttpMethod;
+import hemera.core.structure.interfaces.IProcessor;
+import hemera.core.structure.interfaces.IResource;
+import hemera.core.structure.interfaces.IResourceRegistry;
+import hemera.core.utility.uri.RESTURI;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RouteCacheTest {
+
+	private static final EHttpMethod GET = EHttpMethod.parse("GET");
+
+	private final AtomicInteger lookups = new AtomicInteger();
+
+	private final TestReport report = new TestReport("Route cache");
+
+	public static void main(String[] args) throws Exception {
+		final RouteCacheTest test = new RouteCacheTest();
+		test.testAdmission();
+		test.testOneOffPaths();
+		test.testInvalidation();
+		test.testStaleGeneration();
+		test.testCapacity();
+		test.report.complete();
+	}
+
+	private void testAdmission() {
+		final RouteCache cache = new RouteCache(this.newRegistry(), 64);
+		final int before = this.lookups.get();
+		for (int i = 0; i < 10; i++) {
+			if (cache.resolve(RouteCacheTest.parse("/user/profile"), GET) == null) this.report.fail("route not resolved");
+		}
+		// The first two resolutions consult the registry.
+		this.report.check("hot route lookups", 2, this.lookups.get() - before);
+		if (cache.resolve(RouteCacheTest.parse("/missing/x"), GET) != null) this.report.fail("missing route resolved");
+	}
+
+	private void testOneOffPaths() {
+		final RouteCache cache = new RouteCache(this.newRegistry(), 64);
+		for (int i = 0; i < 3; i++) cache.resolve(RouteCacheTest.parse("/user/profile"), GET);
+		for (int i = 0; i < 10000; i++) cache.resolve(RouteCacheTest.parse("/user/" + i), GET);
+		final int before = this.lookups.get();
+		cache.resolve(RouteCacheTest.parse("/user/profile"), GET);
+		this.report.check("hot route lookups after one-off paths", 0, this.lookups.get() - before);
+	}
+
+	private void testInvalidation() {
+		final RouteCache cache = new RouteCache(this.newRegistry(), 64);
+		for (int i = 0; i < 3; i++) cache.resolve(RouteCacheTest.parse("/user/profile"), GET);
+		cache.invalidate();
+		final int before = this.lookups.get();
+		cache.resolve(RouteCacheTest.parse("/user/profile"), GET);
+		this.report.check("lookups after invalidation", 1, this.lookups.get() - before);
+	}
+
+	private void testStaleGeneration() {
+		final ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(16);
+		final long generation = cache.getGeneration();
+		cache.clear();
+		if (cache.put("key", "stale", generation)) this.report.fail("stale value stored");
+		if (cache.get("key") != null) this.report.fail("stale value retrieved");
+		if (!cache.put("key", "fresh", cache.getGeneration())) this.report.fail("fresh value not stored");
+		this.report.check("fresh value", "fresh", cache.get("key"));
+	}
+
+	private void testCapacity() {
+		final ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(32);
+		for (int i = 0; i < 10000; i++) cache.put("key" + i, "value" + i);
+		if (cache.size() > 32) this.report.fail("size " + cache.size() + " exceeds capacity 32");
+		// The recently read entry survives the writes to its segment.
+		cache.put("hot", "value");
+		for (int i = 0; i < 10000; i++) {
+			cache.get("hot");
+			cache.put("cold" + i, "value");
+		}
+		this.report.check("recently read entry", "value", cache.get("hot"));
+	}
+
+	// The structure interfaces are implemented with proxies, so only the
+	// resolution methods used by the cache need to be provided.
+	private IResourceRegistry newRegistry() {
+		final IProcessor<?, ?> processor = RouteCacheTest.newProxy(IProcessor.class, null);
+		final IResource resource = RouteCacheTest.newProxy(IResource.class, processor);
+		return RouteCacheTest.newProxy(IResourceRegistry.class, new Resolver() {
+			@Override
+			public Object resolve(final Object[] args) {
+				RouteCacheTest.this.lookups.incrementAndGet();
+				final String[] elements = ((RESTURI)args[0]).getElementArray();
+				return (elements.length > 0 && elements[0].equals("user")) ? resource : null;
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T newProxy(final Class<?> type, final Object result) {
+		return (T)Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				if (method.getName().equals("equals")) return (proxy == args[0]);
+				if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+				if (method.getName().equals("toString")) return type.getSimpleName();
+				if (result instanceof Resolver) return ((Resolver)result).resolve(args);
+				return result;
+			}
+		});
+	}
+
+	private interface Resolver {
+
+		public Object resolve(final Object[] args);
+	}
+
+	private static RequestURIParser parse(final String uri) {
+		final RequestURIParser parser = new RequestURIParser();
+		parser.parse(uri);
+		return parser;
+	}
+}
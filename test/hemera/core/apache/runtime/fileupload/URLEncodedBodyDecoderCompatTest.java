@@ -0,0 +1,84 @@
+package hemera.core.apache.runtime.fileupload;
+
+import hemera.core.apache.test.TestReport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+public class URLEncodedBodyDecoderCompatTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static final String[] CASES = {
+		"", "&", "=", "==", "&&=&&", "name=Yi", "name=Yi&age=30", "name=Yi&name=Wang", "name=Yi&name=",
+		"name", "name=", "=Yi", "name&age=30", "&&name=Yi&&", "name=Yi=Wang", "name=Yi;age=30",
+		"q=a+b", "q=+a+", "q=++", "+=v", "a+b=c+d", "q=a%20b", "q=%2B%26%3D", "k+%2B=v%26w",
+		"q=%e4%bd%a0%E5%A5%BD", "q=%C3", "q=%zz", "q=%2", "q=1%", "q=%", "q=%%", "q=%%41", "q=%4%41",
+		"q=%+", "q=%+1", "q=%+ ", "q=%1+", "q=%g1", "q=%&r=1", "q=%2&r=1", "%=1", "%41=1", "%41%42=%43",
+		" name = Yi ", "name=Yi ", "name=\tYi\r\n", " = Yi", "q=a b", "q= %20a%20 ", "q=a%20", "q=%20",
+		"q=\u00e4\u00bd\u00a0", "q=\u00e9", "q=\u00a0", "\u00e9=1", "q=a|b", "q=[1]", "q=a?b/c", "q=1#f"
+	};
+
+	// Quotes are left out, since the decoder does not unquote values.
+	private static final String ALPHABET = "ab=&+%; \t09AFfz\u00e9\u00a0";
+
+	private final TestReport report = new TestReport("URL encoded body decoder compatibility");
+
+	public void start(final int fuzzCount) throws Exception {
+		for (int i = 0; i < CASES.length; i++) {
+			this.compare(CASES[i], new URLEncodedBodyDecoder(-1));
+		}
+		final Random random = new Random(7);
+		for (int i = 0; i < fuzzCount; i++) {
+			final StringBuilder builder = new StringBuilder();
+			final int length = random.nextInt(24);
+			for (int j = 0; j < length; j++) {
+				builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+			}
+			this.compare(builder.toString(), new URLEncodedBodyDecoder(-1));
+		}
+		System.err.println((CASES.length + fuzzCount) + " bodies compared.");
+	}
+
+	public static void main(String[] args) throws Exception {
+		final URLEncodedBodyDecoderCompatTest test = new URLEncodedBodyDecoderCompatTest();
+		test.start(100000);
+		test.report.complete();
+	}
+
+	private void compare(final String body, final URLEncodedBodyDecoder decoder) throws IOException {
+		// Expected behavior, where the body used to be read into a string
+		// with one character per byte.
+		final Map<String, Object> expected = new HashMap<String, Object>();
+		final List<NameValuePair> pairs = URLEncodedUtils.parse(body, UTF8);
+		for (final NameValuePair pair : pairs) {
+			if (pair.getName() != null && pair.getValue() != null) {
+				expected.put(pair.getName(), pair.getValue());
+			}
+		}
+		// Actual behavior.
+		final Map<String, Object> actual = new HashMap<String, Object>();
+		final byte[] bytes = body.getBytes(ISO_8859_1);
+		try {
+			decoder.decode(new ByteArrayInputStream(bytes), bytes.length, UTF8, actual);
+		} catch (final SizeLimitExceededException e) {
+			this.report.fail("mismatch for " + body + ": unexpected size limit");
+			return;
+		}
+		// Compare.
+		if (!expected.equals(actual)) {
+			this.report.fail("mismatch for " + body + ": arguments " + expected + " != " + actual);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package hemera.core.apache.test;
+
+import hemera.core.apache.runtime.ApacheConfig;
+import hemera.core.apache.runtime.ApacheRuntime;
+import hemera.core.environment.config.Configuration;
+import hemera.core.execution.interfaces.IExceptionHandler;
+import hemera.core.execution.interfaces.IExecutionService;
+import hemera.core.execution.interfaces.task.ICyclicTask;
+import hemera.core.execution.interfaces.task.handle.ICyclicTaskHandle;
+import hemera.core.structure.enumn.EHttpMethod;
+import hemera.core.structure.interfaces.IResource;
+import hemera.core.utility.uri.RESTURI;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * An <code>ApacheRuntime</code> that serves a single resource in the current
+ * process, without a Hemera environment. Every task the runtime submits is run
+ * by its own daemon thread, and all requests whose first path element matches
+ * are routed to the given resource.
+ */
+public class EmbeddedRuntime extends ApacheRuntime {
+
+	private final String name;
+
+	private final IResource resource;
+
+	public EmbeddedRuntime(final int port, final ApacheConfig apacheConfig, final String name, final IResource resource) {
+		super(EmbeddedRuntime.newExecutionService(), EmbeddedRuntime.newConfiguration(port), apacheConfig);
+		this.name = name;
+		this.resource = resource;
+	}
+
+	public void start() throws Exception {
+		this.activateComponents();
+	}
+
+	public void stop() throws Exception {
+		this.shutdownComponents();
+	}
+
+	@Override
+	public IResource getResource(final RESTURI uri, final EHttpMethod method) {
+		final String[] elements = uri.getElementArray();
+		if (elements.length == 0 || !elements[0].equals(this.name)) return null;
+		return this.resource;
+	}
+
+	private static Configuration newConfiguration(final int port) {
+		final Configuration config = new Configuration();
+		config.runtime.socket.port = port;
+		config.runtime.socket.timeout = 30000;
+		config.runtime.socket.bufferSize = 8192;
+		return config;
+	}
+
+	// Only the task submission and the exception handler are used by the
+	// runtime, so the service is a proxy that leaves everything else unset.
+	private static IExecutionService newExecutionService() {
+		final IExceptionHandler exceptionHandler = new IExceptionHandler() {
+			@Override
+			public void handle(final Exception e) {
+				e.printStackTrace();
+			}
+		};
+		return (IExecutionService)Proxy.newProxyInstance(EmbeddedRuntime.class.getClassLoader(), new Class<?>[] {IExecutionService.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+						if (method.getName().equals("getExceptionHandler")) return exceptionHandler;
+						if (method.getName().equals("submit") && args != null && args.length == 1 && args[0] instanceof ICyclicTask) {
+							return EmbeddedRuntime.start((ICyclicTask)args[0], exceptionHandler);
+						}
+						return EmbeddedRuntime.defaultValue(method.getReturnType());
+					}
+				});
+	}
+
+	private static ICyclicTaskHandle start(final ICyclicTask task, final IExceptionHandler exceptionHandler) {
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (task.execute());
+				} catch (final Exception e) {
+					exceptionHandler.handle(e);
+				} finally {
+					try {
+						task.cleanup();
+					} catch (final Exception e) {
+						exceptionHandler.handle(e);
+					}
+				}
+			}
+		}, "Embedded-" + task.getClass().getSimpleName());
+		thread.setDaemon(true);
+		thread.start();
+		return (ICyclicTaskHandle)Proxy.newProxyInstance(EmbeddedRuntime.class.getClassLoader(), new Class<?>[] {ICyclicTaskHandle.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+						if (method.getName().equals("terminate")) {
+							task.signalTerminate();
+							thread.interrupt();
+							return Boolean.TRUE;
+						}
+						return EmbeddedRuntime.defaultValue(method.getReturnType());
+					}
+				});
+	}
+
+	private static Object defaultValue(final Class<?> type) {
+		if (!type.isPrimitive() || type == void.class) return null;
+		if (type == boolean.class) return Boolean.FALSE;
+		if (type == char.class) return Character.valueOf((char)0);
+		if (type == long.class) return Long.valueOf(0);
+		if (type == float.class) return Float.valueOf(0);
+		if (type == double.class) return Double.valueOf(0);
+		if (type == byte.class) return Byte.valueOf((byte)0);
+		if (type == short.class) return Short.valueOf((short)0);
+		return Integer.valueOf(0);
+	}
+}
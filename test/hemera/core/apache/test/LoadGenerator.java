@@ -0,0 +1,487 @@
+package hemera.core.apache.test;
+
+import hemera.core.apache.runtime.ApacheConfig;
+import hemera.core.apache.runtime.LatencyHistogram;
+import hemera.core.apache.runtime.LatencySnapshot;
+import hemera.core.apache.runtime.RouteMetricsSnapshot;
+import hemera.core.structure.enumn.EHttpMethod;
+import hemera.core.structure.enumn.EHttpStatus;
+import hemera.core.structure.enumn.ERedirectBehavior;
+import hemera.core.structure.interfaces.IProcessor;
+import hemera.core.structure.interfaces.IRequest;
+import hemera.core.structure.interfaces.IResource;
+import hemera.core.structure.interfaces.IResponse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONObject;
+
+/**
+ * Open-loop load generator that sends requests at a constant rate over
+ * persistent connections, and reports latency percentiles corrected for
+ * coordinated omission.
+ * <p>
+ * Every request has an intended start time on a fixed schedule. Its latency is
+ * measured from that time rather than from when it was actually sent, so when
+ * the server stalls, the requests that should have been sent meanwhile are
+ * counted with the time they waited, instead of silently disappearing from the
+ * measurement. The uncorrected service time is reported alongside.
+ * <p>
+ * Without a target, an <code>EmbeddedRuntime</code> is started on a free port
+ * with a stand-in processor.
+ * <p>
+ * Usage: <code>LoadGenerator [rate] [seconds] [connections] [host:port/path]</code>
+ */
+public class LoadGenerator {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	// Requests sent later than this after their intended time are counted as
+	// late starts, which means the generator itself could not keep up.
+	private static final long LATE_THRESHOLD = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final long WARMUP = TimeUnit.SECONDS.toNanos(2);
+
+	private static final double[] PERCENTILES = {50, 75, 90, 99, 99.9, 99.99, 100};
+
+	private final String host;
+
+	private final int port;
+
+	private final String path;
+
+	private final int rate;
+
+	private final long duration;
+
+	private final int connectionCount;
+
+	public LoadGenerator(final String host, final int port, final String path, final int rate, final long duration, final TimeUnit unit,
+			final int connectionCount) {
+		this.host = host;
+		this.port = port;
+		this.path = path;
+		this.rate = rate;
+		this.duration = unit.toNanos(duration);
+		this.connectionCount = connectionCount;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final int rate = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+		final long seconds = (args.length > 1) ? Long.parseLong(args[1]) : 10;
+		final int connections = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+		EmbeddedRuntime runtime = null;
+		String host = "localhost";
+		int port;
+		String path = "/loadtest/echo?name=Yi";
+		if (args.length > 3) {
+			final String target = args[3];
+			final int slash = target.indexOf('/');
+			final String address = (slash < 0) ? target : target.substring(0, slash);
+			if (slash >= 0) path = target.substring(slash);
+			final int colon = address.indexOf(':');
+			host = (colon < 0) ? address : address.substring(0, colon);
+			port = (colon < 0) ? 80 : Integer.parseInt(address.substring(colon+1));
+		} else {
+			port = LoadGenerator.findFreePort();
+			runtime = new EmbeddedRuntime(port, new ApacheConfig(), "loadtest", new StandInResource());
+			runtime.start();
+			System.out.println("Started embedded runtime on port " + port + ".");
+		}
+		try {
+			new LoadGenerator(host, port, path, rate, seconds, TimeUnit.SECONDS, connections).run();
+			if (runtime != null) LoadGenerator.printServerMetrics(runtime);
+		} finally {
+			if (runtime != null) runtime.stop();
+		}
+	}
+
+	public void run() throws InterruptedException {
+		System.out.println("Target: http://" + this.host + ":" + this.port + this.path);
+		System.out.println("Rate: " + this.rate + " requests/second for " + TimeUnit.NANOSECONDS.toSeconds(this.duration) + " seconds over "
+				+ this.connectionCount + " connections, after " + TimeUnit.NANOSECONDS.toSeconds(WARMUP) + " seconds of warm up.");
+		final byte[] request = ("GET " + this.path + " HTTP/1.1\r\nHost: " + this.host + ":" + this.port + "\r\n\r\n").getBytes(ASCII);
+		final long interval = TimeUnit.SECONDS.toNanos(1) / this.rate;
+		final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		final AtomicLong sequence = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(this.connectionCount);
+		// The histograms are lock-free, so all the workers record into them.
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LatencyHistogram serviceTime = new LatencyHistogram();
+		final Worker[] workers = new Worker[this.connectionCount];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker(request, start, interval, sequence, done, latency, serviceTime);
+			final Thread thread = new Thread(workers[i], "LoadGenerator-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		done.await();
+		final LatencySnapshot latencySnapshot = latency.snapshot();
+		// Merge the errors of all the workers.
+		final Errors errors = new Errors();
+		long lateStarts = 0;
+		for (final Worker worker : workers) {
+			errors.add(worker.errors);
+			lateStarts += worker.lateStarts;
+		}
+		final double seconds = (double)this.duration / TimeUnit.SECONDS.toNanos(1);
+		System.out.println();
+		System.out.println(String.format("Completed: %d requests, %.1f requests/second.", latencySnapshot.getCount(), latencySnapshot.getCount() / seconds));
+		if (lateStarts > 0) {
+			System.out.println("Late starts: " + lateStarts + " requests were sent over 1 ms after their scheduled time.");
+		}
+		System.out.println();
+		LoadGenerator.printLatency("Latency corrected for coordinated omission (ms):", latencySnapshot);
+		System.out.println();
+		LoadGenerator.printLatency("Service time, uncorrected (ms):", serviceTime.snapshot());
+		System.out.println();
+		errors.print();
+	}
+
+	private static void printLatency(final String title, final LatencySnapshot snapshot) {
+		System.out.println(title);
+		if (snapshot.getCount() == 0) {
+			System.out.println("  No requests completed.");
+			return;
+		}
+		System.out.println(String.format("  %10s %12s %12s", "Percentile", "Value", "1/(1-p)"));
+		for (final double percentile : PERCENTILES) {
+			final String inverse = (percentile < 100) ? String.format("%.0f", 100 / (100 - percentile)) : "inf";
+			System.out.println(String.format("  %10s %12.3f %12s", percentile + "%", snapshot.getPercentile(percentile, TimeUnit.NANOSECONDS) / 1e6, inverse));
+		}
+		System.out.println(String.format("  Mean %.3f, max %.3f, count %d", snapshot.getMean(TimeUnit.NANOSECONDS) / 1e6,
+				snapshot.getMax(TimeUnit.NANOSECONDS) / 1e6, snapshot.getCount()));
+	}
+
+	private static void printServerMetrics(final EmbeddedRuntime runtime) {
+		System.out.println();
+		System.out.println("Server side total latency (ms):");
+		for (final RouteMetricsSnapshot route : runtime.getRouteMetrics()) {
+			final LatencySnapshot total = route.getTotalLatency();
+			System.out.println(String.format("  %s: %d requests, p50 %.3f, p99 %.3f, p99.9 %.3f, max %.3f", route.getName(), route.getRequestCount(),
+					total.getPercentile(50, TimeUnit.MICROSECONDS) / 1000.0, total.getPercentile(99, TimeUnit.MICROSECONDS) / 1000.0,
+					total.getPercentile(99.9, TimeUnit.MICROSECONDS) / 1000.0, total.getMax(TimeUnit.MICROSECONDS) / 1000.0));
+		}
+	}
+
+	private static int findFreePort() throws IOException {
+		final ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		private final byte[] request;
+
+		private final long start;
+
+		private final long interval;
+
+		private final AtomicLong sequence;
+
+		private final CountDownLatch done;
+
+		private final LatencyHistogram latency;
+
+		private final LatencyHistogram serviceTime;
+
+		private final Errors errors;
+
+		private long lateStarts;
+
+		private Connection connection;
+
+		private Worker(final byte[] request, final long start, final long interval, final AtomicLong sequence, final CountDownLatch done,
+				final LatencyHistogram latency, final LatencyHistogram serviceTime) {
+			this.request = request;
+			this.start = start;
+			this.interval = interval;
+			this.sequence = sequence;
+			this.done = done;
+			this.latency = latency;
+			this.serviceTime = serviceTime;
+			this.errors = new Errors();
+		}
+
+		@Override
+		public void run() {
+			final long measured = this.start + WARMUP;
+			final long end = measured + LoadGenerator.this.duration;
+			try {
+				while (true) {
+					// Requests are claimed in schedule order, so a slow
+					// connection delays its own requests but not the schedule.
+					final long intended = this.start + this.sequence.getAndIncrement() * this.interval;
+					if (intended - end >= 0) break;
+					LoadGenerator.sleepUntil(intended);
+					final long sent = System.nanoTime();
+					final boolean recorded = (intended - measured >= 0);
+					final int status = this.send();
+					final long received = System.nanoTime();
+					if (!recorded) continue;
+					if (sent - intended > LATE_THRESHOLD) this.lateStarts++;
+					if (status < 0) continue;
+					this.latency.record(received - intended);
+					this.serviceTime.record(received - sent);
+					if (status >= 400) this.errors.status(status);
+				}
+			} finally {
+				if (this.connection != null) this.connection.close();
+				this.done.countDown();
+			}
+		}
+
+		private int send() {
+			try {
+				if (this.connection == null) this.connection = new Connection(LoadGenerator.this.host, LoadGenerator.this.port);
+				final int status = this.connection.exchange(this.request);
+				if (!this.connection.isOpen()) this.connection = null;
+				return status;
+			} catch (final ConnectException e) {
+				this.errors.connect++;
+			} catch (final SocketTimeoutException e) {
+				this.errors.timeout++;
+			} catch (final IOException e) {
+				this.errors.io++;
+			}
+			if (this.connection != null) {
+				this.connection.close();
+				this.connection = null;
+			}
+			return -1;
+		}
+	}
+
+	private static void sleepUntil(final long time) {
+		long remaining;
+		while ((remaining = time - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	private static class Connection {
+
+		private final Socket socket;
+
+		private final InputStream in;
+
+		private final OutputStream out;
+
+		private boolean open;
+
+		private Connection(final String host, final int port) throws IOException {
+			this.socket = new Socket();
+			this.socket.setTcpNoDelay(true);
+			this.socket.setSoTimeout(10000);
+			this.socket.connect(new InetSocketAddress(host, port), 5000);
+			this.in = new BufferedInputStream(this.socket.getInputStream(), 8192);
+			this.out = new BufferedOutputStream(this.socket.getOutputStream(), 1024);
+			this.open = true;
+		}
+
+		private int exchange(final byte[] request) throws IOException {
+			this.out.write(request);
+			this.out.flush();
+			// Status line.
+			final String statusLine = this.readLine();
+			final int space = statusLine.indexOf(' ');
+			if (space < 0 || statusLine.length() < space + 4) throw new IOException("Malformed status line: " + statusLine);
+			final int status = Integer.parseInt(statusLine.substring(space+1, space+4));
+			// Headers.
+			long contentLength = -1;
+			boolean chunked = false;
+			boolean close = statusLine.startsWith("HTTP/1.0");
+			String line;
+			while ((line = this.readLine()).length() > 0) {
+				final int colon = line.indexOf(':');
+				if (colon < 0) continue;
+				final String name = line.substring(0, colon).trim();
+				final String value = line.substring(colon+1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) contentLength = Long.parseLong(value);
+				else if (name.equalsIgnoreCase("Transfer-Encoding")) chunked = value.equalsIgnoreCase("chunked");
+				else if (name.equalsIgnoreCase("Connection")) close = value.equalsIgnoreCase("close");
+			}
+			// Body.
+			if (status == 204 || status == 304 || status < 200) {
+				// No body.
+			} else if (chunked) {
+				long size;
+				while ((size = Long.parseLong(this.readLine().split(";")[0].trim(), 16)) > 0) {
+					this.skip(size);
+					this.readLine();
+				}
+				while (this.readLine().length() > 0);
+			} else if (contentLength >= 0) {
+				this.skip(contentLength);
+			} else {
+				while (this.in.read() >= 0);
+				close = true;
+			}
+			if (close) this.close();
+			return status;
+		}
+
+		private String readLine() throws IOException {
+			final StringBuilder builder = new StringBuilder(64);
+			int b;
+			while ((b = this.in.read()) != '\n') {
+				if (b < 0) throw new EOFException("Connection closed by server.");
+				if (b != '\r') builder.append((char)b);
+			}
+			return builder.toString();
+		}
+
+		private void skip(final long count) throws IOException {
+			long remaining = count;
+			while (remaining > 0) {
+				final long skipped = this.in.skip(remaining);
+				if (skipped > 0) remaining -= skipped;
+				else if (this.in.read() < 0) throw new EOFException("Connection closed by server.");
+				else remaining--;
+			}
+		}
+
+		private boolean isOpen() {
+			return this.open;
+		}
+
+		private void close() {
+			this.open = false;
+			try {
+				this.socket.close();
+			} catch (final IOException e) {
+				// Nothing to do.
+			}
+		}
+	}
+
+	private static class Errors {
+
+		private long connect;
+
+		private long timeout;
+
+		private long io;
+
+		private final Map<Integer, Long> statuses = new TreeMap<Integer, Long>();
+
+		private void status(final int status) {
+			final Long count = this.statuses.get(status);
+			this.statuses.put(status, (count == null) ? 1 : count + 1);
+		}
+
+		private void add(final Errors other) {
+			this.connect += other.connect;
+			this.timeout += other.timeout;
+			this.io += other.io;
+			for (final Map.Entry<Integer, Long> entry : other.statuses.entrySet()) {
+				final Long count = this.statuses.get(entry.getKey());
+				this.statuses.put(entry.getKey(), (count == null) ? entry.getValue() : count + entry.getValue());
+			}
+		}
+
+		private void print() {
+			System.out.println("Errors:");
+			if (this.connect == 0 && this.timeout == 0 && this.io == 0 && this.statuses.isEmpty()) {
+				System.out.println("  None.");
+				return;
+			}
+			if (this.connect > 0) System.out.println("  Connect failures: " + this.connect);
+			if (this.timeout > 0) System.out.println("  Read timeouts: " + this.timeout);
+			if (this.io > 0) System.out.println("  Connection errors: " + this.io);
+			for (final Map.Entry<Integer, Long> entry : this.statuses.entrySet()) {
+				System.out.println("  Status " + entry.getKey() + ": " + entry.getValue());
+			}
+		}
+	}
+
+	public static class StandInResource implements IResource {
+
+		private final StandInProcessor processor = new StandInProcessor();
+
+		@Override
+		public IProcessor<?, ?> getProcessor(final String[] path, final EHttpMethod method) {
+			return this.processor;
+		}
+	}
+
+	public static class StandInRequest implements IRequest {
+
+		private String name;
+
+		@Override
+		public void parse(final String[] path, final Map<String, Object> arguments) throws Exception {
+			this.name = (String)arguments.get("name");
+		}
+	}
+
+	public static class StandInResponse implements IResponse {
+
+		private final String name;
+
+		private StandInResponse(final String name) {
+			this.name = name;
+		}
+
+		@Override
+		public EHttpStatus getStatus() {
+			return EHttpStatus.C200_OK;
+		}
+
+		@Override
+		public JSONObject toJSON() throws Exception {
+			final JSONObject json = new JSONObject();
+			json.put("greeting", "Hello " + this.name);
+			return json;
+		}
+	}
+
+	public static class StandInProcessor implements IProcessor<StandInRequest, StandInResponse> {
+
+		@Override
+		public StandInResponse process(final StandInRequest request) throws Exception {
+			return new StandInResponse(request.name);
+		}
+
+		@Override
+		public Class<StandInRequest> getRequestType() {
+			return StandInRequest.class;
+		}
+
+		@Override
+		public ERedirectBehavior getRedirectBehavior(final StandInRequest request) {
+			return ERedirectBehavior.Invoke;
+		}
+
+		@Override
+		public String getRedirectURI(final StandInRequest request) {
+			return null;
+		}
+
+		@Override
+		public String getRedirectURI(final StandInRequest request, final StandInResponse response) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package hemera.core.apache.test;
+
+/**
+ * Counts the failed checks of a test that is run as a main class, and reports
+ * them once the test is completed. The process exits with a non-zero status if
+ * any check failed.
+ */
+public class TestReport {
+
+	private final String name;
+
+	private int failures;
+
+	public TestReport(final String name) {
+		this.name = name;
+	}
+
+	public void check(final String name, final Object expected, final Object actual) {
+		if (expected == null ? actual != null : !expected.equals(actual)) this.fail(name + " " + expected + " != " + actual);
+	}
+
+	public void fail(final String message) {
+		this.failures++;
+		System.err.println("Failed: " + message);
+	}
+
+	public int getFailureCount() {
+		return this.failures;
+	}
+
+	public void complete() {
+		System.err.println(this.name + " tests completed with " + this.failures + " failures.");
+		if (this.failures > 0) System.exit(1);
+	}
+}
@@ -0,0 +1,101 @@
+package hemera.core.apache.test;
+
+import hemera.core.apache.runtime.fileupload.RequestURIParser;
+import hemera.core.utility.uri.RESTURI;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+public class URIParserCompatTest {
+
+	private static final String[] CASES = {
+		"/", "*", "/hello/hi", "//hello//hi/", "/hello/hi/", "/hello/hi?", "/hello/hi?#",
+		"/hello/hi?name=Yi", "/hello/hi?name=Yi&age=30", "/hello/hi?name=Yi&name=Wang",
+		"/hello/hi?name", "/hello/hi?name=", "/hello/hi?=Yi", "/hello/hi?&&name=Yi&&",
+		"/hello/hi?name=Yi=Wang", "/hello/hi?name=Yi;age=30", "/hello/hi?callback=cb&q=a+b%20c",
+		"/hello/hi?q=%e4%bd%a0%E5%A5%BD", "/hello/hi?q=%C3", "/hello/hi?k+%2B=v%26w", "/hello/hi?q=a?b/c",
+		"/hello/hi?q=1#fragment", "/hello/hi#fragment?q=1", "/hello/hi?q=1#a#b", "/hello/hi?q=%zz",
+		"/hello/hi?q=%2", "/hello/hi?q=1%", "/hello/hi?q=a b", "/hello/hi?q=a|b", "/hello/hi?q=[1]",
+		"/hello/[1]?q=1", "/hello/%20hi?q=1", "/hello/%hi?q=1", "/hello/hi?q=\u00e4\u00bd\u00a0",
+		"/hello/hi?q=\u00a0", "/hello/hi?q=\u0085", "/hello/hi?q=\u00ad", "http://localhost:8080/hello/hi?name=Yi"
+	};
+
+	private static final String ALPHABET = "ab/?#&=+%;[]|\" 09AFfz\u00e9\u00a0";
+
+	private final TestReport report = new TestReport("URI parser compatibility");
+
+	public void start(final int fuzzCount) {
+		for (int i = 0; i < CASES.length; i++) {
+			this.compare(CASES[i]);
+		}
+		final Random random = new Random(7);
+		final RequestURIParser reused = new RequestURIParser();
+		for (int i = 0; i < fuzzCount; i++) {
+			final StringBuilder builder = new StringBuilder("/");
+			final int length = random.nextInt(24);
+			for (int j = 0; j < length; j++) {
+				builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+			}
+			this.compare(builder.toString(), reused);
+		}
+		System.err.println((CASES.length + fuzzCount) + " URIs compared.");
+	}
+
+	public static void main(String[] args) throws Exception {
+		final URIParserCompatTest test = new URIParserCompatTest();
+		test.start(100000);
+		test.report.complete();
+	}
+
+	private void compare(final String uri) {
+		this.compare(uri, new RequestURIParser());
+	}
+
+	private void compare(final String uri, final RequestURIParser parser) {
+		// Expected behavior.
+		final String[] expectedPath = new RESTURI(uri).getElementArray();
+		Map<String, Object> expectedArgs = new HashMap<String, Object>();
+		try {
+			final List<NameValuePair> pairs = URLEncodedUtils.parse(new URI(uri), "UTF-8");
+			for (final NameValuePair pair : pairs) {
+				if (pair.getName() != null && pair.getValue() != null) {
+					expectedArgs.put(pair.getName(), pair.getValue());
+				}
+			}
+		} catch (final URISyntaxException e) {
+			expectedArgs = null;
+		}
+		// Actual behavior.
+		parser.parse(uri);
+		final String[] actualPath = parser.getPathElements();
+		Map<String, Object> actualArgs = new HashMap<String, Object>();
+		try {
+			parser.parseQuery(actualArgs);
+		} catch (final URISyntaxException e) {
+			actualArgs = null;
+		}
+		// Compare.
+		if (!Arrays.equals(expectedPath, actualPath)) {
+			this.fail(uri, "path " + Arrays.toString(expectedPath) + " != " + Arrays.toString(actualPath));
+		}
+		if (expectedArgs == null && actualArgs != null) {
+			this.fail(uri, "expected syntax error but parsed " + actualArgs);
+		} else if (expectedArgs != null && actualArgs == null) {
+			this.fail(uri, "unexpected syntax error");
+		} else if (expectedArgs != null && !expectedArgs.equals(actualArgs)) {
+			this.fail(uri, "arguments " + expectedArgs + " != " + actualArgs);
+		}
+	}
+
+	private void fail(final String uri, final String message) {
+		this.report.fail("mismatch for " + uri + ": " + message);
+	}
+}